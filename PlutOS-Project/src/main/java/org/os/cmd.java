@@ -1,7 +1,14 @@
 package org.os;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
 import java.util.Scanner;
@@ -18,7 +25,7 @@ public class cmd {
      * Concatenates the contents of the files and prints the result. If we use cat with no
      * arguments, it will take input
      * from user and then print it on
-     * screen.
+     * screen. Files ending in .gz are decompressed on the fly.
      *
      * @param args The arguments added after the cat command represent file names.
      * @return String of concatenated file contents, or text to be printed
@@ -33,17 +40,46 @@ public class cmd {
             }
             return "";
         }
+        StringBuilder shown = new StringBuilder();
+        String output = cat(args, shown);
+        System.out.print(shown);
+        return output;
+    }
+
+    /**
+     * Like {@link #cat(String[])}, but puts the file names and read errors in front of the
+     * contents instead of printing them, so the result is all the shell shows and can be cached.
+     *
+     * @param args The arguments added after the cat command represent file names.
+     * @return file names and errors followed by the concatenated file contents
+     */
+    public static String catAsShown(String[] args) {
+        if (args.length == 1) {
+            return cat(args);
+        }
+        StringBuilder shown = new StringBuilder();
+        String output = cat(args, shown);
+        if (output.isEmpty()) {
+            shown.setLength(shown.length() - 1); // the shell adds the last line break
+        }
+        return shown.append(output).toString();
+    }
+
+    // Reads the files into the result; names and read errors go to shown, one per line
+    private static String cat(String[] args, StringBuilder shown) {
         StringBuilder output = new StringBuilder();
-        for (int i = 1; i < args.length; i++) {
-            String fileName = args[i];
-            System.out.println(fileName);
-            try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    output.append(line).append('\n');
+        try (readAhead files = new readAhead(Arrays.asList(args).subList(1, args.length))) {
+            for (int i = 1; i < args.length; i++) {
+                String fileName = args[i];
+                shown.append(fileName).append('\n');
+                try (BufferedReader reader = files.nextReader()) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        output.append(line).append('\n');
+                    }
+                } catch (IOException e) {
+                    shown.append(e.getMessage()).append('\n');
                 }
-            } catch (IOException e) {
-                System.out.println(e.getMessage());
             }
         }
         return output.toString();
@@ -55,7 +91,7 @@ public class cmd {
      * @param args has content & fileName
      */
     public static void forwardArrow(String[] args) {
-        try (FileWriter writer = new FileWriter(args[2])) {
+        try (Writer writer = Files.newBufferedWriter(session.resolveForWriting(args[2]))) {
             String line = switch (args[0]) {
                 case "cd" -> cmd.cd(args);
                 case "pwd" -> cmd.pwd();
@@ -72,7 +108,8 @@ public class cmd {
     }
 
     /**
-     * Changes current working directory to directory specified
+     * Changes current working directory to directory specified. 'archive.jar!/dir'
+     * enters a zip or jar archive, '..' at the root of an archive leaves it.
      *
      * @param args contains directory that we will change to
      * @return new directory name
@@ -80,24 +117,28 @@ public class cmd {
     public static String cd(String[] args) {
         String dirName = args[1];
         if (dirName.equals("..")) {
-            File currentDir = new File(System.getProperty("user.dir"));
-            if (currentDir.getParent() != null) {
-                System.setProperty("user.dir", currentDir.getParent());
-                System.out.println("Directory changed to: " + currentDir.getParent());
+            Path parent = session.parent(session.cwd());
+            if (parent != null) {
+                session.changeDir(parent);
+                System.out.println("Directory changed to: " + session.display(parent));
             } else {
                 System.out.println("Error: No parent directory.");
             }
         } else if (dirName.equals("~")) {
-            String homeDir = System.getProperty("user.home");
-            System.setProperty("user.dir", homeDir);
+            Path homeDir = session.home();
+            session.changeDir(homeDir);
             System.out.println("Directory changed to: " + homeDir);
         } else {
-            File dir = new File(System.getProperty("user.dir"), dirName);
-            if (dir.exists() && dir.isDirectory()) {
-                System.setProperty("user.dir", dir.getAbsolutePath());
-                System.out.println("Directory changed to: " + dir.getAbsolutePath());
-            } else {
-                System.out.println("Error: Directory does not exist.");
+            try {
+                Path dir = session.resolve(dirName).toAbsolutePath().normalize();
+                if (Files.isDirectory(dir)) {
+                    session.changeDir(dir);
+                    System.out.println("Directory changed to: " + session.display(dir));
+                } else {
+                    System.out.println("Error: Directory does not exist.");
+                }
+            } catch (IOException e) {
+                System.out.println("Error: " + e.getMessage());
             }
         }
         return dirName;
@@ -117,10 +158,12 @@ public class cmd {
         }
 
         BufferedReader reader = null;
-        FileWriter writer = null;
+        Writer writer = null;
+        Path source = null;
         try {
-            reader = new BufferedReader(new FileReader(args[1]));
-            writer = new FileWriter(args[2]);
+            source = session.resolveForWriting(args[1]);
+            reader = Files.newBufferedReader(source);
+            writer = Files.newBufferedWriter(session.resolveForWriting(args[2]));
             String line;
             while ((line = reader.readLine()) != null) {
                 writer.append(line).append(System.lineSeparator());
@@ -133,8 +176,7 @@ public class cmd {
                 if (writer != null) writer.close();
 
                 // delete original file
-                File sourceFile = new File(args[1]);
-                if (sourceFile.delete()) {
+                if (source != null && Files.deleteIfExists(source)) {
                     System.out.println("File moved successfully and original file deleted.");
                 } else {
                     System.out.println("Error: Could not delete the original file.");
@@ -150,7 +192,7 @@ public class cmd {
      * @return The current directory as a string.
      */
     public static String pwd() {
-        return System.getProperty("user.dir");
+        return session.display(session.cwd());
     }
 
     /**
@@ -176,22 +218,24 @@ public class cmd {
                 dirName = dirName.substring(1, dirName.length() - 1);
             }
 
-            File dir = new File(System.getProperty("user.dir"), dirName);
-
-            // Check if the directory exists and is a directory
-            if (dir.exists() && dir.isDirectory()) {
-                // Check if the directory is empty
-                if (Objects.requireNonNull(dir.list()).length == 0) {
-                    if (dir.delete()) {
-                        return "Directory '" + dirName + "' deleted.";
-                    } else {
-                        return "Error: Could not delete directory.";
+            try {
+                Path dir = session.resolveForWriting(dirName);
+
+                // Check if the directory exists and is a directory
+                if (Files.isDirectory(dir)) {
+                    // Check if the directory is empty
+                    try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                        if (entries.iterator().hasNext()) {
+                            return "Error: Directory is not empty.";
+                        }
                     }
+                    Files.delete(dir);
+                    return "Directory '" + dirName + "' deleted.";
                 } else {
-                    return "Error: Directory is not empty.";
+                    return "Error: Directory does not exist.";
                 }
-            } else {
-                return "Error: Directory does not exist.";
+            } catch (IOException e) {
+                return "Error: Could not delete directory.";
             }
         } else {
             lastError = "Error: Directory name not provided.";
@@ -201,6 +245,8 @@ public class cmd {
 
     /**
      * Deletes a file or directory. If the directory is specified, it deletes it along with its subdirectories and files recursively.
+     * With '--trash' (or after 'trash default on', unless '--no-trash' is given) it is only renamed into
+     * the trash, which takes the same short time however big it is, and really deleted later in the background.
      *
      * @param tokens The tokens representing the command and its arguments.
      * @return Result of file deletion as a string.
@@ -209,6 +255,7 @@ public class cmd {
         String lastError;
         boolean recursive = false;
         boolean force = false;
+        boolean toTrash = trashBin.byDefault;
         String fileName = "";
 
         for (int i = 1; i < tokens.length; i++) {
@@ -216,6 +263,10 @@ public class cmd {
                 recursive = true;
             } else if (tokens[i].equals("-f") || tokens[i].equals("--force")) {
                 force = true;
+            } else if (tokens[i].equals("--trash")) {
+                toTrash = true;
+            } else if (tokens[i].equals("--no-trash")) {
+                toTrash = false;
             } else {
                 fileName = tokens[i];
             }
@@ -231,33 +282,54 @@ public class cmd {
             return lastError;
         }
 
-        File file = new File(fileName);
-        if (!file.isAbsolute()) {
-            file = new File(System.getProperty("user.dir"), fileName);
+        Path file;
+        try {
+            file = session.resolveForWriting(fileName);
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
         }
+        String name = entryName(file);
 
-        if (!file.exists()) {
-            lastError = "Error: " + file.getName() + " does not exist.";
+        if (!Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+            lastError = "Error: " + name + " does not exist.";
             return lastError;
         }
 
-        if (!file.canWrite() && !force) {
+        if (!Files.isWritable(file) && !force) {
             // Prompt user for confirmation
-            System.out.print("File '" + file.getName() + "' is not writable. Do you want to remove it? (y/n): ");
+            System.out.print("File '" + name + "' is not writable. Do you want to remove it? (y/n): ");
             Scanner scanner = new Scanner(System.in);
             String response = scanner.nextLine();
             if (!response.trim().toLowerCase().startsWith("y")) {
-                return "File '" + file.getName() + "' skipped.";
+                return "File '" + name + "' skipped.";
+            }
+        }
+
+        boolean directory = Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS);
+        if (toTrash) {
+            try {
+                if (directory && !recursive) {
+                    try (DirectoryStream<Path> entries = Files.newDirectoryStream(file)) {
+                        if (entries.iterator().hasNext()) {
+                            return "Error: Could not delete " + name;
+                        }
+                    }
+                }
+                trashBin.trash(file);
+                return (directory ? "Directory '" : "File '") + name + "' moved to the trash.";
+            } catch (IOException e) {
+                return "Error: Could not move " + name + " to the trash: " + e.getMessage();
             }
         }
 
-        if (file.isDirectory() && recursive) {
+        if (directory && recursive) {
             return removeDirectoryRecursively(file);
         } else {
-            if (file.delete()) {
-                return "File '" + file.getName() + "' deleted.";
-            } else {
-                lastError = "Error: Could not delete " + file.getName();
+            try {
+                Files.delete(file);
+                return "File '" + name + "' deleted.";
+            } catch (IOException e) {
+                lastError = "Error: Could not delete " + name;
                 return lastError;
             }
         }
@@ -269,21 +341,23 @@ public class cmd {
      * @param dir The directory to delete.
      * @return Result of directory deletion as a string.
      */
-    private static String removeDirectoryRecursively(File dir) {
-        File[] files = dir.listFiles();
-        if (files != null) {
-            for (File f : files) {
-                if (f.isDirectory()) {
+    private static String removeDirectoryRecursively(Path dir) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                if (Files.isDirectory(f, LinkOption.NOFOLLOW_LINKS)) {
                     removeDirectoryRecursively(f);
                 } else {
-                    rm(new String[]{"rm", f.getAbsolutePath()});
+                    Files.deleteIfExists(f);
                 }
             }
+        } catch (IOException ignored) {
+            // whatever could not be removed makes deleting the directory fail below
         }
-        if (dir.delete()) {
-            return "Directory '" + dir.getName() + "' deleted.";
-        } else {
-            return "Error: Could not delete directory '" + dir.getName() + "'.";
+        try {
+            Files.delete(dir);
+            return "Directory '" + entryName(dir) + "' deleted.";
+        } catch (IOException e) {
+            return "Error: Could not delete directory '" + entryName(dir) + "'.";
         }
     }
 
@@ -298,49 +372,80 @@ public class cmd {
      * @param path   The path to the directory to be displayed.
      * @param indent The indentation level for displaying the contents.
      *               Each level is represented by four spaces.
-     * @return A string representation of the directory's contents,
-     * formatted with appropriate indentation.
+     * @param order  The order of the entries of each directory, or null for the order
+     *               the file system lists them in, which streams without reading the
+     *               whole directory first.
+     * @param out    Receives one line per entry, formatted with appropriate indentation.
+     * @return false if the sink stopped accepting lines, so the walk ended early.
      * @author Moaz Mohamed
      */
-    private static String displayDir(String path, int indent, Boolean all, Boolean recursive) {
-        if (path.charAt(path.length() - 1) != '/') {
-            path += "/";
-        }
-
-        File currentDir = new File(path);
-        if (!currentDir.exists() || !currentDir.isDirectory()) {
-            return "";
-        }
-
-        File[] files = currentDir.listFiles();
-
-        if (files == null) {
-            return "";
+    private static boolean displayDir(Path path, int indent, Boolean all, Boolean recursive,
+                                      Comparator<fileRecord> order, lineSink out) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return true;
         }
 
+        List<fileRecord> sorted = new ArrayList<>();
+        // Entries are read lazily, so a walk that is stopped early never lists the rest
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+            for (Path file : files) {
+                if (Files.isHidden(file) && !all) {
+                    continue;
+                }
 
-        StringBuilder ans = new StringBuilder();
-        String spaces = " ".repeat(indent * 4);
-        for (File file : files) {
-            if (file.isHidden() && !all) {
-                continue;
+                // One stat per entry gives the '/' of directories and the fields of the record
+                fileRecord record;
+                try {
+                    record = fileRecord.stat(file);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                if (order != null) {
+                    sorted.add(record);
+                } else if (!displayEntry(record, indent, all, recursive, null, out)) {
+                    return false;
+                }
             }
+        } catch (AccessDeniedException e) {
+            return true;
+        }
 
-            ans.append(spaces).append(file.getName());
-            if (file.isDirectory()) {
-                ans.append('/');
+        // A sorted directory is read whole before it is shown, one directory at a time
+        sorted.sort(order);
+        for (fileRecord record : sorted) {
+            if (!displayEntry(record, indent, all, recursive, order, out)) {
+                return false;
             }
+        }
+        return true;
 
-            ans.append("\n");
-            if (file.isDirectory() && recursive) {
-                String nPath = path + file.getName();
+    }
 
+    private static boolean displayEntry(fileRecord record, int indent, Boolean all, Boolean recursive,
+                                        Comparator<fileRecord> order, lineSink out) throws IOException {
+        boolean isDirectory = record.directory;
+        String line = " ".repeat(indent * 4) + entryName(record.path);
+        if (isDirectory) {
+            line += '/';
+        }
 
-                ans.append(displayDir(nPath, indent + 1, all, recursive));
-            }
+        if (!out.acceptRecord(record.withLine(line))) {
+            return false;
+        }
+        if (isDirectory && recursive) {
+            return displayDir(record.path, indent + 1, all, recursive, order, out);
         }
-        return ans.toString();
+        return true;
+    }
 
+    // File name of a path, without the trailing '/' some archive file systems keep on directories
+    static String entryName(Path path) {
+        Path name = path.getFileName();
+        if (name == null) {
+            return "";
+        }
+        String text = name.toString();
+        return text.endsWith("/") ? text.substring(0, text.length() - 1) : text;
     }
 
     /**
@@ -350,6 +455,11 @@ public class cmd {
      * files and to display the contents recursively. It extracts the path from the
      * command tokens and calls the displayDir method to retrieve the formatted
      * directory listing.
+     * <p>
+     * '-S', '-t' and '-X' sort each directory biggest first, newest first or by
+     * extension. '--top K' lists only the first K files in that order (by size if
+     * none is given), with '-r' out of the whole tree, walked once in parallel
+     * while keeping no more than K entries per directory being read.
      *
      * @param tokens An array of strings representing the command tokens,
      *               where the first token should be "ls". Additional tokens
@@ -359,15 +469,50 @@ public class cmd {
      * @author Moaz Mohamed
      */
     public static String ls(String[] tokens) {
+        StringBuilder ans = new StringBuilder();
+        String error = ls(tokens, line -> {
+            ans.append(line).append('\n');
+            return true;
+        });
+        return error != null ? error : ans.toString();
+    }
+
+    /**
+     * Streams the listing of the 'ls' command into a sink, one line per entry.
+     * The directory walk stops as soon as the sink stops accepting lines.
+     *
+     * @param tokens The 'ls' command tokens, see {@link #ls(String[])}.
+     * @param out    Receives the listing.
+     * @return null on success, or an error message.
+     */
+    static String ls(String[] tokens, lineSink out) {
         // Set all booleans to false
         Boolean all = false;
         Boolean recursive = false;
+        Comparator<fileRecord> order = null;
 
         // Check that line is for ls
         if (!tokens[0].contains("ls")) {
             return "Error: Invalid command: The line must contain 'ls' in first of the line";
         }
 
+        // '--top K' is taken out first, what is left is 'ls [-options] [path]'
+        int top = 0;
+        List<String> rest = new ArrayList<>(Arrays.asList(tokens));
+        int topIndex = rest.indexOf("--top");
+        if (topIndex >= 0) {
+            rest.remove(topIndex);
+            try {
+                top = topIndex < rest.size() ? Integer.parseInt(rest.remove(topIndex)) : 0;
+            } catch (NumberFormatException e) {
+                top = 0;
+            }
+            if (top <= 0) {
+                return "Error: --top needs a positive number of entries";
+            }
+        }
+        tokens = rest.toArray(new String[0]);
+
         if (tokens.length > 3) {
             return "Error: Your command must be in format of 'command -args attributes'";
         }
@@ -393,13 +538,17 @@ public class cmd {
                     recursive = true;
                     continue;
                 }
+                if (c == 'S' || c == 't' || c == 'X') {
+                    order = c == 'S' ? topEntries.BY_SIZE : c == 't' ? topEntries.BY_TIME : topEntries.BY_EXTENSION;
+                    continue;
+                }
                 return "Error: This " + c + " argument isn't supported\n";
             }
             pathIndex++;
         }
 
         // Extract path
-        String path = System.getProperty("user.dir");
+        String path = null;
         if (tokens.length > pathIndex) {
             int start = 0;
             int end = tokens[pathIndex].length();
@@ -414,19 +563,187 @@ public class cmd {
             path = tokens[pathIndex].substring(start, end);
         }
 
-        File currentDir = new File(path);
-        if (!currentDir.exists()) {
+        // Call display dir function that loops over files in the given path
+        try {
+            Path currentDir = path == null ? session.cwd() : session.resolve(path);
+            if (!Files.exists(currentDir)) {
+                return "Error: "+ path + " does not exist.\n";
+            }
+            if (!Files.isDirectory(currentDir)) {
+                return "Error: '" + path + " is not a directory.\n";
+            }
+            if (top == 0) {
+                displayDir(currentDir, 0, all, recursive, order, out);
+                return null;
+            }
+            // The best files of the whole walk, shown by their path below the directory
+            for (fileRecord record : topEntries.find(currentDir, all, recursive,
+                    order == null ? topEntries.BY_SIZE : order, top)) {
+                String line = currentDir.relativize(record.path) + (record.directory ? "/" : "");
+                if (!out.acceptRecord(record.withLine(line))) {
+                    break;
+                }
+            }
+        } catch (NoSuchFileException e) {
             return "Error: "+ path + " does not exist.\n";
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
+        return null;
+    }
+
+    /**
+     * Lists every file and directory below a directory, one path per line, the
+     * way 'find DIR' prints them. Piped into a record stage, e.g.
+     * 'find src | where name ~ *.java', each entry is passed as a {@link fileRecord}.
+     *
+     * @param tokens "find" optionally followed by the directory (default: the current one)
+     * @return the paths, or error message
+     */
+    public static String find(String[] tokens) {
+        StringBuilder ans = new StringBuilder();
+        String error = find(tokens, line -> {
+            ans.append(line).append('\n');
+            return true;
+        });
+        return error != null ? error : ans.toString();
+    }
+
+    /**
+     * Streams the entries of the 'find' command into a sink. The walk stops as soon
+     * as the sink stops accepting lines.
+     *
+     * @return null on success, or an error message.
+     */
+    static String find(String[] tokens, lineSink out) {
+        if (tokens.length > 2) {
+            return "Error: usage: find [directory]";
         }
-        if (!currentDir.isDirectory()) {
-            return "Error: '" + path + " is not a directory.\n";
+        String start = tokens.length > 1 ? tokens[1] : ".";
+        String prefix = start.length() > 1 && start.endsWith("/") ? start.substring(0, start.length() - 1) : start;
+        try {
+            Path top = session.resolve(start);
+            if (!Files.isDirectory(top)) {
+                return "Error: " + start + " is not a directory.";
+            }
+            // The walk reads the attributes of each entry once, the records reuse them
+            Files.walkFileTree(top, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                    return visitFile(dir, attributes);
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                    String relative = top.relativize(file).toString();
+                    String line = relative.isEmpty() ? start : prefix + "/" + relative;
+                    boolean directory = attributes.isSymbolicLink() ? Files.isDirectory(file) : attributes.isDirectory();
+                    return out.acceptRecord(fileRecord.of(file, attributes, directory).withLine(line))
+                            ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (NoSuchFileException e) {
+            return "Error: " + start + " does not exist.";
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
         }
+        return null;
+    }
 
-        // Call display dir function that loops over files in the given path
-        String ans = displayDir(path, 0, all, recursive);
+    /**
+     * Prints the size of a directory and of every directory below it, in KiB of
+     * file content, children before their parents, like 'du'. Piped into a record
+     * stage, each directory is passed as a {@link fileRecord} whose size is the
+     * total in bytes, e.g. 'du | where size > 100M | sort-by size -r'.
+     *
+     * @param tokens "du", optionally "-s" (only the total) and the directory (default: the current one)
+     * @return the sizes, or error message
+     */
+    public static String du(String[] tokens) {
+        StringBuilder ans = new StringBuilder();
+        String error = du(tokens, line -> {
+            ans.append(line).append('\n');
+            return true;
+        });
+        return error != null ? error : ans.toString();
+    }
+
+    /**
+     * Streams the directory sizes of the 'du' command into a sink.
+     *
+     * @return null on success, or an error message.
+     */
+    static String du(String[] tokens, lineSink out) {
+        boolean summary = false;
+        String start = null;
+        for (int i = 1; i < tokens.length; i++) {
+            if (tokens[i].equals("-s")) {
+                summary = true;
+            } else if (start == null && !tokens[i].startsWith("-")) {
+                start = tokens[i];
+            } else {
+                return "Error: usage: du [-s] [directory]";
+            }
+        }
+        String name = start == null ? "." : start;
+        String prefix = name.length() > 1 && name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+        boolean totalOnly = summary;
+        try {
+            Path top = session.resolve(name);
+            if (!Files.isDirectory(top)) {
+                return "Error: " + name + " is not a directory.";
+            }
+            // Sizes of the directories being walked, innermost last
+            ArrayDeque<long[]> totals = new ArrayDeque<>();
+            ArrayDeque<BasicFileAttributes> directories = new ArrayDeque<>();
+            Files.walkFileTree(top, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                    totals.push(new long[1]);
+                    directories.push(attributes);
+                    return FileVisitResult.CONTINUE;
+                }
 
-        // Return ans
-        return ans;
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile()) {
+                        totals.peek()[0] += attributes.size();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    long total = totals.pop()[0];
+                    BasicFileAttributes attributes = directories.pop();
+                    if (!totals.isEmpty()) {
+                        totals.peek()[0] += total;
+                    }
+                    if (totalOnly && !totals.isEmpty()) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    String relative = top.relativize(dir).toString();
+                    String line = (total + 1023) / 1024 + "\t" + (relative.isEmpty() ? name : prefix + "/" + relative);
+                    return out.acceptRecord(fileRecord.of(dir, attributes, true).withSize(total).withLine(line))
+                            ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+                }
+            });
+        } catch (NoSuchFileException e) {
+            return "Error: " + name + " does not exist.";
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
+        return null;
     }
 
     /**
@@ -452,11 +769,16 @@ public class cmd {
         String command = tokens[0];
         String file = tokens[2];
 
-        File outputFile = new File(file);
-        if (!outputFile.exists()) {
+        Path outputFile;
+        try {
+            outputFile = session.resolveForWriting(file);
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
+        if (!Files.exists(outputFile)) {
             return "Error: " + file + " does not exist.";
         }
-        if (!outputFile.canWrite()) {
+        if (!Files.isWritable(outputFile)) {
             return "Error: " + file + " is read-only.";
         }
 
@@ -497,7 +819,7 @@ public class cmd {
             return line.toString();
         }
 
-        try (FileWriter writer = new FileWriter(file, true)) {
+        try (Writer writer = Files.newBufferedWriter(outputFile, StandardOpenOption.APPEND)) {
             writer.append(line.toString());
             writer.append(System.lineSeparator());
         } catch (IOException e) {
@@ -520,19 +842,24 @@ public class cmd {
         }
 
         String dirName = tokens[1]; // Second token: directory name
-        String path = tokens.length > 2 ? tokens[2] : System.getProperty("user.dir");
-
-        File directory = new File(path, dirName);
+        Path directory;
+        try {
+            Path path = tokens.length > 2 ? session.resolve(tokens[2]) : session.cwd();
+            directory = session.checkWritable(path.resolve(dirName).toAbsolutePath());
+            System.out.println("Path provided: " + session.display(path));
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
 
-        System.out.println("Path provided: " + path);
-        System.out.println("Directory absolute path: " + directory.getAbsolutePath());
+        System.out.println("Directory absolute path: " + session.display(directory));
 
-        if (directory.exists()) {
+        if (Files.exists(directory)) {
             return "Error: Directory already exists.";
         }
-        if (directory.mkdirs()) { // Use mkdirs to create any necessary parent directories
-            return "Directory '" + dirName + "' created at " + directory.getAbsolutePath();
-        } else {
+        try {
+            Files.createDirectories(directory); // creates any necessary parent directories
+            return "Directory '" + dirName + "' created at " + session.display(directory);
+        } catch (IOException e) {
             return "Error: Could not create directory.";
         }
     }
@@ -556,91 +883,104 @@ public class cmd {
             fileName = fileName.substring(1, fileName.length() - 1);
         }
 
-        File file = new File(System.getProperty("user.dir"), fileName);
         try {
-            if (!file.exists()) {
-                if (file.createNewFile()) {
-                    return "File '" + fileName + "' created successfully.";
-                }
+            Path file = session.resolveForWriting(fileName);
+            if (!Files.exists(file)) {
+                Files.createFile(file);
+                return "File '" + fileName + "' created successfully.";
             } else {
-                if (file.setLastModified(System.currentTimeMillis())) {
+                try {
+                    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
                     return "File '" + fileName + "' updated successfully.";
-                } else {
+                } catch (IOException e) {
                     return "Error: Could not update the file '" + fileName + "'.";
                 }
             }
         } catch (IOException e) {
             return "Error: " + e.getMessage();
         }
-
-        return "Error: Could not create or update the file '" + fileName + "'.";
     }
 
     /**
      * Executes a series of commands separated by pipes ("|").
-     * Each command is processed in order, and the output of each
-     * command is displayed to the user.
+     * Lines stream from each command into the next one as they are produced,
+     * and the output of the last command is displayed to the user. When a later
+     * command needs no more input (e.g. head), the earlier ones stop early.
      *
      * @param input A string of commands separated by pipes.
+     * @return number of bytes of output printed
      */
-    
-    public static void handlePipe(String input) {
-        String[] commands = pipe(input);
-        String lastOutput = "";
-
-        for (int i = 0; i < commands.length; i++) {
-            String command = commands[i].trim();
-            String[] tokens = command.split("\\s+");
-            String commandName = tokens[0].toLowerCase();
-
-            switch (commandName) {
-                case "ls":
-                    lastOutput = cmd.ls(tokens);
-                    break;
-                case "pwd":
-                    lastOutput = cmd.pwd();
-                    break;
-                case "cat":
-                    lastOutput = cmd.cat(tokens);
-                    break;
-                case "grep":
-                    lastOutput = cmd.grep(tokens, lastOutput); // Using output from the previous command
-                    break;
-                case "mkdir":
-                    System.out.println(cmd.mkdirCommand(tokens));
-                    lastOutput = "";
-                    break;
-                case "touch":
-                    System.out.println(cmd.touchCommand(tokens));
-                    lastOutput = "";
-                    break;
-                default:
-                    System.out.println("Unknown command in pipe: " + commandName);
-                    lastOutput = "";
-                    break;
-            }
+    public static long handlePipe(String input) {
+        long[] printed = {0};
+        try {
+            new pipeline(input).run(new lineSink() {
+                @Override
+                public boolean accept(String line) {
+                    System.out.println(line);
+                    printed[0] += profiler.utf8Length(line) + 1;
+                    return true;
+                }
 
-            // Print output after each command (if applicable)
-            if (commandName.equals("ls") || commandName.equals("pwd") || commandName.equals("cat") || commandName.equals("grep")) {
-                if (!lastOutput.isEmpty()) {
-                    System.out.println(lastOutput);
+                // Writes the bytes of a block in one go, without decoding them
+                @Override
+                public boolean acceptBlock(lineBlock block) throws IOException {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    for (int i = 0; i < block.count; i++) {
+                        bytes.write(block.data, block.starts[i], block.ends[i] - block.starts[i]);
+                        bytes.write('\n');
+                    }
+                    bytes.writeTo(System.out);
+                    System.out.flush();
+                    printed[0] += bytes.size();
+                    return true;
                 }
-            }
+            });
+        } catch (IOException e) {
+            System.out.println(redText("Error: " + e.getMessage()));
         }
+        return printed[0];
     }
 
     /**
      * Filters lines from the input that contain the specified pattern.
-     * This method is used to display only matching lines from previous command outputs.
-     * @param tokens An array of ("grep") and pattern we're searching for.
+     * This method is used to display only matching lines from previous command outputs,
+     * or of the files given after the pattern (files ending in .gz are decompressed on the fly).
+     * 'grep -r pattern [directory]' searches the whole tree instead.
+     * @param tokens An array of ("grep"), pattern we're searching for and optional file names.
      * @param input  A string containing lines to be searched.
      * @return A string with lines that match the pattern, or an empty one.
      */
     public static String grep(String[] tokens, String input) {
+        if (tokens.length > 1 && tokens[1].equals("-r")) {
+            if (tokens.length < 3) {
+                return "Error: grep -r needs a pattern.";
+            }
+            return grepRecursive(tokens[2], tokens.length > 3 ? tokens[3] : null);
+        }
         String pattern = tokens.length > 1 ? tokens[1] : "";
-        String[] lines = input.split("\n");
         StringBuilder output = new StringBuilder();
 
+        if (tokens.length > 2) {
+            // Like grep, prefix matches with the file name when searching several files
+            boolean prefix = tokens.length > 3;
+            try (readAhead files = new readAhead(Arrays.asList(tokens).subList(2, tokens.length))) {
+                for (int i = 2; i < tokens.length; i++) {
+                    try (BufferedReader reader = files.nextReader()) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            if (line.contains(pattern)) {
+                                output.append(prefix ? tokens[i] + ":" : "").append(line).append("\n");
+                            }
+                        }
+                    } catch (IOException e) {
+                        output.append("grep: ").append(tokens[i]).append(": ").append(e.getMessage()).append("\n");
+                    }
+                }
+            }
+            return output.toString().trim();
+        }
+
+        String[] lines = input.split("\n");
         for (String line : lines) {
             if (line.contains(pattern)) {
                 output.append(line).append("\n");
@@ -650,68 +990,1793 @@ public class cmd {
     }
 
     /**
-     * Splits an input string into commands using the pipe character ("|").
+     * Searches every text file under a directory (grep -r). When the directory is
+     * covered by an index built with the index command, only the files the index
+     * says may contain the pattern are read, plus any file changed since indexing.
      *
-     * @param input A string of commands separated by pipes.
-     * @return An array of commands as strings.
+     * @param pattern text to search for
+     * @param dirName directory to search, the current one if null
+     * @return matching lines prefixed with the file name, or error message
      */
-    public static String[] pipe(String input) {
-        String[] commands = input.split("\\|");
-        List<String> commandList = new ArrayList<>();
-        for (String command : commands) {
-            commandList.add(command.trim());
+    private static String grepRecursive(String pattern, String dirName) {
+        Path dir;
+        try {
+            dir = dirName == null ? session.cwd() : session.resolve(dirName);
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
         }
-        return commandList.toArray(new String[0]);
+        if (!Files.isDirectory(dir)) {
+            return "Error: " + dirName + " is not a directory.";
+        }
+
+        contentIndex index = contentIndex.find(dir);
+        java.util.BitSet candidates = index == null ? null : index.candidates(pattern);
+        List<Path> files = new ArrayList<>();
+        contentIndex.walk(dir, (file, attributes) -> {
+            int id = index == null ? -1 : index.lookup(file, attributes);
+            if (id >= 0 && (index.kind(id) == contentIndex.BINARY
+                    || (index.kind(id) == contentIndex.TEXT && candidates != null && !candidates.get(id)))) {
+                return;
+            }
+            files.add(file);
+        });
+
+        String prefix = dirName == null ? "" : (dirName.endsWith("/") ? dirName : dirName + "/");
+        return files.parallelStream()
+                .map(file -> grepFile(file, prefix + dir.relativize(file).toString(), pattern))
+                .filter(matches -> !matches.isEmpty())
+                .collect(java.util.stream.Collectors.joining("\n"));
+    }
+
+    // Matching lines of one file, prefixed with its name; binary files are skipped like grep -I does
+    private static String grepFile(Path file, String name, String pattern) {
+        StringBuilder output = new StringBuilder();
+        try (InputStream raw = Files.newInputStream(file);
+             BufferedInputStream in = new BufferedInputStream(gunzipIfNeeded(name, raw), 64 * 1024)) {
+            if (contentIndex.isBinary(in)) {
+                return "";
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.contains(pattern)) {
+                    if (output.length() > 0) {
+                        output.append('\n');
+                    }
+                    output.append(name).append(':').append(line);
+                }
+            }
+        } catch (IOException e) {
+            return "grep: " + name + ": " + e.getMessage();
+        }
+        return output.toString();
     }
 
     /**
-     * Prints a description of all available methods with their usage and required parameters.
+     * Builds or refreshes the trigram index of the files under a directory, which
+     * makes later 'grep -r' searches in it read only the files that can match.
+     * Only files whose size or modification time changed are read again.
      *
-     * @return A string representing the list of all commands with their descriptions.
+     * @param tokens "index" optionally followed by the directory (default: the current one)
+     * @return summary of the run, or error message
      */
-    public static String help() {
+    public static String index(String[] tokens) {
+        try {
+            // The index is written into the directory itself
+            Path dir = session.checkWritable(tokens.length > 1 ? session.resolve(tokens[1]) : session.cwd());
+            if (!Files.isDirectory(dir)) {
+                return "Error: " + tokens[1] + " is not a directory.";
+            }
+            contentIndex.stats stats = contentIndex.update(dir);
+            return "Indexed " + stats.files + " files (" + stats.read + " read, " + stats.unchanged + " unchanged, "
+                    + stats.binary + " binary), " + stats.trigrams + " trigrams";
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
+    }
 
-        return """
-                Available Commands:
-                
-                1. cat [file1 file2 ...]
-                   Concatenates the contents of the specified files and prints the result. If no file names are provided, it takes user input until '^C' is entered.
-                
-                2. forwardArrow [command] > [filename]
-                   Executes a command and saves its output to the specified file.
-                   Supported commands: cd, pwd, rmdir, rm, ls, cat, help.
-                
-                3. cd [directory]
-                   Changes the current working directory to the specified directory. Use '..' to move to the parent directory and '~' to go to the home directory.
-                
-                4. mv [sourceFile] [destinationFile]
-                   Moves the content of the source file to the destination file and deletes the source file.
-                
-                5. pwd
-                   Prints the current working directory.
-                
-                6. rmdir [directory]
-                   Removes an empty directory with the specified name.
-                
-                7. rm [options] [file/directory]
-                   Deletes the specified file or directory. Use '-r' for recursive deletion of directories and '-f' to force delete.
-                
-                8. ls [options] [path]
-                   Lists the contents of the specified directory.
-                   Options: '-a' to include hidden files, '-r' for recursive listing.
-                   
-                9. mkdir [directory] [path (or default path if not provided)]
-                    checks if a path is given, or performs the operations in the current project directory
-                    checks if there's already a directory in the specified path with the specified name
-                    creates directory
-                    
-                10. touch [file]
-                    Creates a new empty file or updates the timestamp of an existing file.
-                                   
-                11. pipe [command1 | command2 | ...]
-                    Executes a series of commands separated by pipes. Each command's output is passed to the next command.
+    /**
+     * Prints the groups of files with identical contents under a directory, one path
+     * per line and a blank line between groups, the groups wasting the most space first.
+     * With '--link' every duplicate is replaced by a hard link to the first file of its group.
+     *
+     * @param tokens "dupes [--link] [directory]", the current directory by default
+     * @return the groups, or error message
+     */
+    public static String dupes(String[] tokens) {
+        boolean link = false;
+        String dirName = null;
+        for (int i = 1; i < tokens.length; i++) {
+            if (tokens[i].equals("--link")) {
+                link = true;
+            } else if (tokens[i].startsWith("-")) {
+                return "Error: This " + tokens[i] + " argument isn't supported";
+            } else if (dirName != null) {
+                return "Error: dupes takes a single directory.";
+            } else {
+                dirName = tokens[i];
+            }
+        }
+
+        Path dir;
+        try {
+            dir = dirName == null ? session.cwd() : session.resolve(dirName);
+            if (link) {
+                session.checkWritable(dir);
+            }
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
+        if (!Files.isDirectory(dir)) {
+            return "Error: " + dirName + " is not a directory.";
+        }
+
+        duplicateFinder.result result;
+        try {
+            result = duplicateFinder.find(dir);
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
+        if (result.groups.isEmpty()) {
+            return "No duplicate files found.";
+        }
+
+        String prefix = dirName == null ? "" : (dirName.endsWith("/") ? dirName : dirName + "/");
+        StringBuilder output = new StringBuilder();
+        int linked = 0;
+        long freed = 0;
+        for (duplicateFinder.group group : result.groups) {
+            for (Path file : group.files) {
+                output.append(prefix).append(dir.relativize(file)).append('\n');
+            }
+            output.append('\n');
+            if (link) {
+                try {
+                    int replaced = duplicateFinder.link(group);
+                    linked += replaced;
+                    freed += replaced * group.size;
+                } catch (IOException e) {
+                    output.append("dupes: cannot link ").append(prefix).append(dir.relativize(group.files.get(0)))
+                            .append(": ").append(e.getMessage()).append("\n\n");
+                }
+            }
+        }
+        if (link) {
+            output.append("Linked ").append(linked).append(" duplicate files, freed ").append(freed).append(" bytes");
+        }
+        return output.toString().trim();
+    }
+
+    /**
+     * Makes a directory tree a copy of another one, like 'rsync -a': files whose size
+     * and time match are skipped without being read, and changed files only get the
+     * blocks that differ written. '--delete' also deletes what is only in the copy.
+     *
+     * @param tokens "sync [--delete] source target"
+     * @return what was synced, or error message
+     */
+    public static String sync(String[] tokens) {
+        boolean delete = false;
+        List<String> names = new ArrayList<>();
+        for (int i = 1; i < tokens.length; i++) {
+            if (tokens[i].equals("--delete")) {
+                delete = true;
+            } else if (tokens[i].startsWith("-")) {
+                return "Error: This " + tokens[i] + " argument isn't supported";
+            } else {
+                names.add(tokens[i]);
+            }
+        }
+        if (names.size() != 2) {
+            return "Error: usage: sync [--delete] source target";
+        }
+        try {
+            Path source = session.resolve(names.get(0));
+            if (!Files.isDirectory(source)) {
+                return "Error: " + names.get(0) + " is not a directory.";
+            }
+            return dirSync.sync(source, session.resolveForWriting(names.get(1)), delete).toString();
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Compares two files line by line, or two directory trees with '-r', and prints
+     * the differences: nothing when they are equal. '-u' prints them in unified format
+     * with three lines of context, as read by patch and git apply.
+     *
+     * @param tokens "diff [-u] [-r] first second"
+     * @return the differences, or error message
+     */
+    public static String diff(String[] tokens) {
+        StringBuilder output = new StringBuilder();
+        String error = diff(tokens, line -> {
+            output.append(line).append('\n');
+            return true;
+        });
+        return error != null ? error : output.toString().stripTrailing();
+    }
+
+    /**
+     * Streams the output of the 'diff' command into a sink.
+     *
+     * @param tokens The 'diff' command tokens, see {@link #diff(String[])}.
+     * @param out    Receives the differences.
+     * @return null on success, or an error message.
+     */
+    static String diff(String[] tokens, lineSink out) {
+        boolean unified = false;
+        boolean recursive = false;
+        List<String> names = new ArrayList<>();
+        for (int i = 1; i < tokens.length; i++) {
+            String token = tokens[i];
+            if (!token.startsWith("-") || token.length() == 1) {
+                names.add(token);
+                continue;
+            }
+            for (int j = 1; j < token.length(); j++) {
+                if (token.charAt(j) == 'u') {
+                    unified = true;
+                } else if (token.charAt(j) == 'r') {
+                    recursive = true;
+                } else {
+                    return "Error: This " + token.charAt(j) + " argument isn't supported";
+                }
+            }
+        }
+        if (names.size() != 2) {
+            return "Error: diff needs two files to compare.";
+        }
+
+        try {
+            Path first = session.resolve(names.get(0));
+            Path second = session.resolve(names.get(1));
+            for (int i = 0; i < 2; i++) {
+                if (!Files.exists(i == 0 ? first : second)) {
+                    return "Error: " + names.get(i) + ": No such file or directory";
+                }
+            }
+            boolean firstIsDir = Files.isDirectory(first);
+            boolean secondIsDir = Files.isDirectory(second);
+            if (firstIsDir && secondIsDir) {
+                if (!recursive) {
+                    return "Error: " + names.get(0) + " and " + names.get(1) + " are directories, use diff -r.";
+                }
+                fileDiff.trees(first, second, names.get(0), names.get(1), unified, out);
+            } else if (firstIsDir || secondIsDir) {
+                return "Error: cannot compare a directory with a file.";
+            } else {
+                fileDiff.files(first, second, names.get(0), names.get(1), unified, out);
+            }
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
+        return null;
+    }
+
+    /**
+     * Compresses or decompresses files with gzip, depending on the command name.
+     * <ul>
+     *     <li>gzip [-d] [-k] [-f] [-1..-9] file ... replaces each file by file.gz, compressed in parallel blocks.</li>
+     *     <li>gunzip [-k] [-f] file.gz ... restores the original files.</li>
+     *     <li>zcat file.gz ... (or gzip -dc) returns the decompressed contents.</li>
+     * </ul>
+     * Compressing to the output ('gzip -c') is not supported: the output of a command is text, which cannot
+     * carry the compressed bytes.
+     *
+     * @param tokens An array of ("gzip" | "gunzip" | "zcat"), options and file names.
+     * @return Nothing on success (zcat: the contents), or error messages.
+     */
+    public static String gzip(String[] tokens) {
+        String command = tokens[0].toLowerCase();
+        boolean decompress = command.equals("gunzip");
+        boolean toOutput = command.equals("zcat");
+        boolean keep = false;
+        boolean force = false;
+        int level = 6;
+        List<String> files = new ArrayList<>();
+
+        for (int i = 1; i < tokens.length; i++) {
+            String token = tokens[i];
+            if (!token.startsWith("-") || token.length() == 1) {
+                files.add(token);
+                continue;
+            }
+            for (char c : token.substring(1).toCharArray()) {
+                if (c == 'd') {
+                    decompress = true;
+                } else if (c == 'k') {
+                    keep = true;
+                } else if (c == 'f') {
+                    force = true;
+                } else if (c == 'c') {
+                    toOutput = true;
+                } else if (c >= '1' && c <= '9') {
+                    level = c - '0';
+                } else {
+                    return "Error: This " + c + " argument isn't supported";
+                }
+            }
+        }
+        if (toOutput && !decompress && !command.equals("zcat")) {
+            return "Error: gzip -c is not supported, compressed data cannot be printed; use gzip -k to keep the file";
+        }
+        if (files.isEmpty()) {
+            return "Error: File name not provided.";
+        }
+
+        StringBuilder output = new StringBuilder();
+        for (String fileName : files) {
+            Path source;
+            try {
+                source = toOutput ? session.resolve(fileName) : session.resolveForWriting(fileName);
+            } catch (IOException e) {
+                output.append("Error: ").append(e.getMessage()).append('\n');
+                continue;
+            }
+            if (!Files.isRegularFile(source)) {
+                output.append("Error: ").append(fileName).append(" does not exist.\n");
+                continue;
+            }
+            if (toOutput) {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                try (InputStream in = Files.newInputStream(source)) {
+                    parallelGzip.decompress(in, content);
+                } catch (IOException e) {
+                    output.append("Error: ").append(fileName).append(": ").append(e.getMessage()).append('\n');
+                    continue;
+                }
+                output.append(content.toString(StandardCharsets.UTF_8));
+                continue;
+            }
+
+            String name = entryName(source);
+            Path target;
+            if (decompress) {
+                if (!name.endsWith(".gz")) {
+                    output.append("Error: ").append(fileName).append(": unknown suffix -- ignored\n");
+                    continue;
+                }
+                target = source.resolveSibling(name.substring(0, name.length() - 3));
+            } else {
+                if (name.endsWith(".gz")) {
+                    output.append("Error: ").append(fileName).append(" already has .gz suffix -- unchanged\n");
+                    continue;
+                }
+                target = source.resolveSibling(name + ".gz");
+            }
+            if (Files.exists(target) && !force) {
+                output.append("Error: ").append(entryName(target)).append(" already exists.\n");
+                continue;
+            }
+
+            try {
+                try (InputStream in = Files.newInputStream(source);
+                     OutputStream out = new BufferedOutputStream(Files.newOutputStream(target), 256 * 1024)) {
+                    if (decompress) {
+                        parallelGzip.decompress(in, out);
+                    } else {
+                        parallelGzip.compress(in, out, level);
+                    }
+                }
+                Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+                if (!keep) {
+                    Files.delete(source);
+                }
+            } catch (IOException e) {
+                // Never leave a partial file behind while the source is still there
+                if (Files.exists(source)) {
+                    try {
+                        Files.deleteIfExists(target);
+                    } catch (IOException ignored) {
+                    }
+                }
+                output.append("Error: ").append(fileName).append(": ").append(e.getMessage()).append('\n');
+            }
+        }
+        return output.toString();
+    }
+
+    // Opens a text file for reading, names ending in .gz are decompressed on the fly
+    static BufferedReader openReader(Path file) throws IOException {
+        return new BufferedReader(new InputStreamReader(gunzipIfNeeded(entryName(file), Files.newInputStream(file)),
+                StandardCharsets.UTF_8));
+    }
+
+    static InputStream gunzipIfNeeded(String fileName, InputStream in) throws IOException {
+        return fileName.endsWith(".gz") ? new java.util.zip.GZIPInputStream(in, 64 * 1024) : in;
+    }
+
+    /**
+     * Sorts lines of the given files, or of the previous command's output when no
+     * files are given. Sorting happens within a memory budget: anything that does
+     * not fit is spilled to sorted temporary runs which are merged at the end.
+     * <p>
+     * Options: '-n' numeric, '-r' reverse, '-u' unique, '-k N[,M]' sort by fields N..M,
+     * '-t SEP' field separator, '-S SIZE' memory budget (suffix b, K, M or G; KiB by default).
+     *
+     * @param tokens An array of ("sort"), options and optional file names.
+     * @param input  Lines to sort when no file names are given.
+     * @return The sorted lines, or an error message.
+     */
+    public static String sort(String[] tokens, String input) {
+        sortOptions options = sortOptions.parse(tokens);
+        if (options.error != null) {
+            return options.error;
+        }
+
+        StringBuilder output = new StringBuilder();
+        try (externalSort sorter = options.newSorter()) {
+            if (options.files.isEmpty()) {
+                BufferedReader reader = new BufferedReader(new StringReader(input));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    sorter.add(line);
+                }
+            } else {
+                for (String fileName : options.files) {
+                    try (BufferedReader reader = openReader(session.resolve(fileName))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            sorter.add(line);
+                        }
+                    }
+                }
+            }
+            sorter.writeTo(line -> {
+                output.append(line).append('\n');
+                return true;
+            });
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
+        return output.toString();
+    }
+
+    /**
+     * Reports or omits repeated lines of the given files, or of the previous
+     * command's output when no files are given. By default only adjacent
+     * repeats are merged, so the input is normally sorted first. With '--all'
+     * repeats are found anywhere in the input, without sorting, using a compact
+     * off-heap hash table.
+     * <p>
+     * Options: '-c' prefix lines with their count, '-d' only print repeated lines,
+     * '-u' only print lines that are not repeated, '--all' (or '-a') unsorted input.
+     *
+     * @param tokens An array of ("uniq"), options and optional file names.
+     * @param input  Lines to use when no file names are given.
+     * @return The resulting lines, or an error message.
+     */
+    public static String uniq(String[] tokens, String input) {
+        uniqOptions options = uniqOptions.parse(tokens);
+        if (options.error != null) {
+            return options.error;
+        }
+
+        StringBuilder output = new StringBuilder();
+        lineSink uniq = pipeline.uniqStage(options, line -> {
+            output.append(line).append('\n');
+            return true;
+        });
+        try {
+            if (options.files.isEmpty()) {
+                feedLines(new BufferedReader(new StringReader(input)), uniq);
+            } else {
+                for (String fileName : options.files) {
+                    try (InputStream in = gunzipIfNeeded(fileName, Files.newInputStream(session.resolve(fileName)))) {
+                        lineBlock.pump(in, uniq);
+                    }
+                }
+            }
+            uniq.finish();
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
+        return output.toString();
+    }
+
+    // Pushes every line of a reader into a sink until it stops accepting
+    private static void feedLines(BufferedReader reader, lineSink out) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!out.accept(line)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Options of the uniq command, shared with pipe stages.
+     */
+    static class uniqOptions {
+        boolean count;
+        boolean repeated;
+        boolean single;
+        boolean all;
+        String error;
+        final List<String> files = new ArrayList<>();
+
+        static uniqOptions parse(String[] tokens) {
+            uniqOptions options = new uniqOptions();
+            for (int i = 1; i < tokens.length; i++) {
+                String token = tokens[i];
+                if (token.equals("--all")) {
+                    options.all = true;
+                    continue;
+                }
+                if (!token.startsWith("-") || token.length() == 1) {
+                    options.files.add(token);
+                    continue;
+                }
+                for (char c : token.substring(1).toCharArray()) {
+                    if (c == 'c') {
+                        options.count = true;
+                    } else if (c == 'd') {
+                        options.repeated = true;
+                    } else if (c == 'u') {
+                        options.single = true;
+                    } else if (c == 'a') {
+                        options.all = true;
+                    } else {
+                        options.error = "Error: This " + c + " argument isn't supported";
+                        return options;
+                    }
+                }
+            }
+            return options;
+        }
+
+        // Whether a line seen count times is printed
+        boolean keeps(long count) {
+            return !(repeated && count < 2) && !(single && count > 1);
+        }
+
+        String format(String line, long count) {
+            return this.count ? String.format("%7d %s", count, line) : line;
+        }
+    }
+
+    /**
+     * Counts the lines, words and bytes of the given files, or of the previous
+     * command's output when no files are given. The counting works on the raw
+     * bytes of each line, which are never decoded into text.
+     * <p>
+     * Options: '-l' lines, '-w' words, '-c' bytes; all three by default.
+     *
+     * @param tokens An array of ("wc"), options and optional file names.
+     * @param input  Text to count when no file names are given.
+     * @return One line of counts per file (and a total for several), or an error message.
+     */
+    public static String wc(String[] tokens, String input) {
+        wcOptions options = wcOptions.parse(tokens);
+        if (options.error != null) {
+            return options.error;
+        }
+        if (options.files.isEmpty()) {
+            wcCounter counter = new wcCounter();
+            try {
+                lineBlock.pump(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), counter);
+            } catch (IOException e) {
+                return "Error: " + e.getMessage();
+            }
+            return options.format(counter.counts, null) + "\n";
+        }
+
+        StringBuilder output = new StringBuilder();
+        long[] total = new long[3];
+        for (String fileName : options.files) {
+            wcCounter counter = new wcCounter();
+            try (InputStream in = gunzipIfNeeded(fileName, Files.newInputStream(session.resolve(fileName)))) {
+                lineBlock.pump(in, counter);
+            } catch (NoSuchFileException e) {
+                output.append("Error: ").append(fileName).append(" does not exist.\n");
+                continue;
+            } catch (IOException e) {
+                return "Error: " + e.getMessage();
+            }
+            output.append(options.format(counter.counts, fileName)).append('\n');
+            for (int i = 0; i < total.length; i++) {
+                total[i] += counter.counts[i];
+            }
+        }
+        if (options.files.size() > 1) {
+            output.append(options.format(total, "total")).append('\n');
+        }
+        return output.toString();
+    }
+
+    /**
+     * Options of the wc command, shared with pipe stages.
+     */
+    static class wcOptions {
+        boolean lines;
+        boolean words;
+        boolean bytes;
+        String error;
+        final List<String> files = new ArrayList<>();
+
+        static wcOptions parse(String[] tokens) {
+            wcOptions options = new wcOptions();
+            for (int i = 1; i < tokens.length; i++) {
+                String token = tokens[i];
+                if (!token.startsWith("-") || token.length() == 1) {
+                    options.files.add(token);
+                    continue;
+                }
+                for (char c : token.substring(1).toCharArray()) {
+                    if (c == 'l') {
+                        options.lines = true;
+                    } else if (c == 'w') {
+                        options.words = true;
+                    } else if (c == 'c') {
+                        options.bytes = true;
+                    } else {
+                        options.error = "Error: This " + c + " argument isn't supported";
+                        return options;
+                    }
+                }
+            }
+            if (!options.lines && !options.words && !options.bytes) {
+                options.lines = options.words = options.bytes = true;
+            }
+            return options;
+        }
+
+        // The selected counts (lines, words, bytes), then the name if there is one
+        String format(long[] counts, String name) {
+            StringBuilder line = new StringBuilder();
+            boolean[] selected = {lines, words, bytes};
+            for (int i = 0; i < counts.length; i++) {
+                if (selected[i]) {
+                    line.append(line.length() == 0 ? "" : " ").append(String.format("%7d", counts[i]));
+                }
+            }
+            return name == null ? line.toString() : line + " " + name;
+        }
+    }
+
+    /**
+     * Counts lines, words and bytes of the lines it receives, the way coreutils wc
+     * does: lines are '\n' characters, so a last line without one is not counted,
+     * and bytes include each line's own line break, '\r\n' or '\n'. Lines piped
+     * as text count as ending with a '\n'.
+     */
+    static class wcCounter implements lineSink {
+        final long[] counts = new long[3];
+
+        @Override
+        public boolean accept(String line) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            count(bytes, 0, bytes.length, 1, true);
+            return true;
+        }
+
+        @Override
+        public boolean acceptBlock(lineBlock block) {
+            for (int i = 0; i < block.count; i++) {
+                count(block.data, block.starts[i], block.ends[i], block.breaks[i], block.endsWithNewline(i));
+            }
+            return true;
+        }
+
+        // Words are runs of bytes other than ASCII whitespace, which never occurs inside a UTF-8 character
+        private void count(byte[] data, int from, int to, int lineBreak, boolean newline) {
+            if (newline) {
+                counts[0]++;
+            }
+            counts[2] += to - from + lineBreak;
+            boolean inWord = false;
+            for (int i = from; i < to; i++) {
+                byte b = data[i];
+                boolean space = b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0b;
+                if (!space && !inWord) {
+                    counts[1]++;
+                }
+                inWord = !space;
+            }
+        }
+    }
+
+    /**
+     * Computes checksums of files (sha256sum, md5sum or crc32c, taken from the
+     * command name), or verifies them with '-c'. Files are hashed in parallel and
+     * the results are printed in argument order, in the same "checksum  name"
+     * format that '-c' reads back. Without files the piped input is hashed.
+     *
+     * @param tokens An array of ("sha256sum" | "md5sum" | "crc32c"), options and file names.
+     * @param input  Text to hash when no file names are given.
+     * @return One line per file, or an error message.
+     */
+    public static String checksum(String[] tokens, String input) {
+        String command = tokens[0].toLowerCase();
+        String algorithm = fileHasher.algorithmOf(command);
+        if (algorithm == null) {
+            return "Error: Unknown checksum command: " + command;
+        }
+
+        boolean check = false;
+        List<String> files = new ArrayList<>();
+        for (int i = 1; i < tokens.length; i++) {
+            if (tokens[i].equals("-c") || tokens[i].equals("--check")) {
+                check = true;
+            } else if (tokens[i].startsWith("-") && tokens[i].length() > 1) {
+                return "Error: This " + tokens[i] + " argument isn't supported";
+            } else {
+                files.add(tokens[i]);
+            }
+        }
+
+        fileHasher hasher;
+        try {
+            hasher = new fileHasher(algorithm);
+        } catch (java.security.NoSuchAlgorithmException e) {
+            return "Error: " + e.getMessage();
+        }
+
+        if (files.isEmpty()) {
+            if (check) {
+                return "Error: " + command + " -c needs a checksum file";
+            }
+            fileHasher.incremental hash = hasher.start();
+            hash.update(input.getBytes(StandardCharsets.UTF_8));
+            return hash.finish() + "  -\n";
+        }
+
+        if (!check) {
+            List<Path> paths = new ArrayList<>();
+            for (String fileName : files) {
+                try {
+                    paths.add(session.resolve(fileName));
+                } catch (IOException e) {
+                    return "Error: " + e.getMessage();
+                }
+            }
+            StringBuilder output = new StringBuilder();
+            List<java.util.concurrent.Future<String>> sums = hasher.hashAll(paths);
+            for (int i = 0; i < files.size(); i++) {
+                String sum = fileHasher.await(sums.get(i));
+                if (sum == null) {
+                    output.append(command).append(": ").append(files.get(i)).append(": cannot read file\n");
+                } else {
+                    output.append(sum).append("  ").append(files.get(i)).append('\n');
+                }
+            }
+            return output.toString();
+        }
+
+        // Verify "checksum  name" lines of every checksum file
+        List<String> names = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        int malformed = 0;
+        for (String fileName : files) {
+            try (BufferedReader reader = openReader(session.resolve(fileName))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    if (space <= 0 || space + 2 > line.length()) {
+                        malformed++;
+                        continue;
+                    }
+                    expected.add(line.substring(0, space).toLowerCase());
+                    // A '*' before the name marks binary mode in coreutils output
+                    names.add(line.substring(space + 2));
+                }
+            } catch (IOException e) {
+                return "Error: " + e.getMessage();
+            }
+        }
+
+        List<Path> paths = new ArrayList<>();
+        for (String name : names) {
+            try {
+                paths.add(session.resolve(name));
+            } catch (IOException e) {
+                return "Error: " + e.getMessage();
+            }
+        }
+        List<java.util.concurrent.Future<String>> sums = hasher.hashAll(paths);
+        StringBuilder output = new StringBuilder();
+        int failed = 0;
+        int unreadable = 0;
+        for (int i = 0; i < names.size(); i++) {
+            String sum = fileHasher.await(sums.get(i));
+            if (sum == null) {
+                unreadable++;
+                output.append(names.get(i)).append(": FAILED open or read\n");
+            } else if (sum.equals(expected.get(i))) {
+                output.append(names.get(i)).append(": OK\n");
+            } else {
+                failed++;
+                output.append(names.get(i)).append(": FAILED\n");
+            }
+        }
+        if (malformed > 0) {
+            output.append("WARNING: ").append(malformed).append(" line(s) are improperly formatted\n");
+        }
+        if (unreadable > 0) {
+            output.append("WARNING: ").append(unreadable).append(" listed file(s) could not be read\n");
+        }
+        if (failed > 0) {
+            output.append("WARNING: ").append(failed).append(" computed checksum(s) did NOT match\n");
+        }
+        return output.toString();
+    }
+
+    /**
+     * Options of the sort command, shared with pipe stages.
+     */
+    static class sortOptions {
+        boolean numeric;
+        boolean reverse;
+        boolean unique;
+        int keyStart;
+        int keyEnd;
+        String separator;
+        long memory = DEFAULT_SORT_MEMORY;
+        String error;
+        final List<String> files = new ArrayList<>();
+
+        static sortOptions parse(String[] tokens) {
+            sortOptions options = new sortOptions();
+            for (int i = 1; i < tokens.length; i++) {
+                String token = tokens[i];
+                if (!token.startsWith("-") || token.length() == 1) {
+                    options.files.add(token);
+                    continue;
+                }
+                for (int j = 1; j < token.length(); j++) {
+                    char c = token.charAt(j);
+                    if (c == 'n') {
+                        options.numeric = true;
+                    } else if (c == 'r') {
+                        options.reverse = true;
+                    } else if (c == 'u') {
+                        options.unique = true;
+                    } else if (c == 'k' || c == 't' || c == 'S') {
+                        // Value is either glued to the option (-k2) or the next token (-k 2)
+                        String value = token.substring(j + 1);
+                        if (value.isEmpty()) {
+                            if (i + 1 >= tokens.length) {
+                                options.error = "Error: Option -" + c + " requires an argument";
+                                return options;
+                            }
+                            value = tokens[++i];
+                        }
+                        try {
+                            if (c == 'k') {
+                                String[] fields = value.split(",");
+                                options.keyStart = Integer.parseInt(fields[0]);
+                                options.keyEnd = fields.length > 1 ? Integer.parseInt(fields[1]) : 0;
+                                if (options.keyStart < 1 || options.keyEnd < 0) {
+                                    options.error = "Error: Invalid field number: " + value;
+                                    return options;
+                                }
+                            } else if (c == 't') {
+                                options.separator = value;
+                            } else {
+                                options.memory = parseSize(value);
+                            }
+                        } catch (NumberFormatException e) {
+                            options.error = "Error: Invalid argument for -" + c + ": " + value;
+                            return options;
+                        }
+                        break;
+                    } else {
+                        options.error = "Error: This " + c + " argument isn't supported";
+                        return options;
+                    }
+                }
+            }
+            return options;
+        }
+
+        externalSort newSorter() {
+            final int start = keyStart;
+            final int end = keyEnd;
+            final String sep = separator;
+            Comparator<String> key = numeric
+                    ? Comparator.comparingDouble(line -> leadingNumber(sortKey(line, start, end, sep)))
+                    : Comparator.comparing(line -> sortKey(line, start, end, sep));
+            return new externalSort(key, reverse, unique, memory);
+        }
+    }
+
+    // Default memory budget for sort, capped to a quarter of the heap
+    private static final long DEFAULT_SORT_MEMORY = Math.min(64L << 20, Runtime.getRuntime().maxMemory() / 4);
+
+    // Parses sizes like 512K, 64M or 1G; a plain number means KiB
+    private static long parseSize(String value) {
+        char unit = Character.toUpperCase(value.charAt(value.length() - 1));
+        long multiplier = switch (unit) {
+            case 'B' -> 1L;
+            case 'K' -> 1L << 10;
+            case 'M' -> 1L << 20;
+            case 'G' -> 1L << 30;
+            default -> -1L;
+        };
+        if (multiplier == -1L) {
+            return Long.parseLong(value) << 10;
+        }
+        return Long.parseLong(value.substring(0, value.length() - 1)) * multiplier;
+    }
+
+    // Returns fields start..end (1-based, end 0 = rest of line) without splitting the whole line
+    private static String sortKey(String line, int start, int end, String separator) {
+        if (start == 0) {
+            return line;
+        }
+        int field = 1;
+        int i = 0;
+        int from = -1;
+        int n = line.length();
+        if (separator == null) {
+            while (i < n && Character.isWhitespace(line.charAt(i))) i++;
+        }
+        while (true) {
+            if (field == start) {
+                from = i;
+            }
+            int next = separator == null ? nextBlank(line, i) : line.indexOf(separator, i);
+            if (next < 0) {
+                next = n;
+            }
+            if (end != 0 && field == end) {
+                return from < 0 ? "" : line.substring(from, next);
+            }
+            if (next >= n) {
+                return from < 0 ? "" : line.substring(from);
+            }
+            i = separator == null ? skipBlanks(line, next) : next + separator.length();
+            field++;
+        }
+    }
+
+    private static int nextBlank(String line, int i) {
+        while (i < line.length() && !Character.isWhitespace(line.charAt(i))) i++;
+        return i;
+    }
+
+    private static int skipBlanks(String line, int i) {
+        while (i < line.length() && Character.isWhitespace(line.charAt(i))) i++;
+        return i;
+    }
+
+    // Numeric value of the leading number in a key, 0 when there is none (like sort -n)
+    private static double leadingNumber(String key) {
+        int i = skipBlanks(key, 0);
+        int begin = i;
+        if (i < key.length() && (key.charAt(i) == '-' || key.charAt(i) == '+')) i++;
+        while (i < key.length() && Character.isDigit(key.charAt(i))) i++;
+        if (i < key.length() && key.charAt(i) == '.') {
+            i++;
+            while (i < key.length() && Character.isDigit(key.charAt(i))) i++;
+        }
+        try {
+            return Double.parseDouble(key.substring(begin, i));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Prints the first lines (or bytes) of the given files, or of the previous
+     * command's output when no files are given. Reading stops as soon as enough
+     * has been read, so large files are not read to the end.
+     * <p>
+     * Options: '-n N' number of lines (default 10), '-c N' number of bytes, '-N' same as '-n N'.
+     *
+     * @param tokens An array of ("head"), options and optional file names.
+     * @param input  Text to use when no file names are given.
+     * @return The first lines or bytes, or an error message.
+     */
+    public static String head(String[] tokens, String input) {
+        countOptions options = countOptions.parse(tokens, false);
+        if (options.error != null) {
+            return options.error;
+        }
+        if (options.files.isEmpty()) {
+            if (options.bytes >= 0) {
+                byte[] data = input.getBytes(StandardCharsets.UTF_8);
+                int length = (int) Math.min(data.length, options.bytes);
+                return new String(data, 0, lineBlock.wholeCharacters(data, 0, length), StandardCharsets.UTF_8);
+            }
+            return firstLines(input, options.lines);
+        }
+
+        StringBuilder output = new StringBuilder();
+        for (String fileName : options.files) {
+            if (options.files.size() > 1) {
+                output.append("==> ").append(fileName).append(" <==\n");
+            }
+            if (options.bytes >= 0) {
+                try (InputStream in = gunzipIfNeeded(fileName, Files.newInputStream(session.resolve(fileName)))) {
+                    byte[] data = in.readNBytes((int) Math.min(options.bytes, Integer.MAX_VALUE - 8));
+                    output.append(new String(data, 0, lineBlock.wholeCharacters(data, 0, data.length), StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    return "Error: " + e.getMessage();
+                }
+                continue;
+            }
+            try (BufferedReader reader = openReader(session.resolve(fileName))) {
+                String line;
+                for (long i = 0; i < options.lines && (line = reader.readLine()) != null; i++) {
+                    output.append(line).append('\n');
+                }
+            } catch (IOException e) {
+                return "Error: " + e.getMessage();
+            }
+        }
+        return output.toString();
+    }
+
+    /**
+     * Prints the last lines (or bytes) of the given files, or of the previous
+     * command's output when no files are given. Files are read backwards from
+     * the end, so the cost does not depend on the file size.
+     * <p>
+     * Options: '-n N' number of lines (default 10), '-c N' number of bytes, '-N' same as '-n N',
+     * '-f' keep printing data appended to the file until Enter is pressed.
+     *
+     * @param tokens An array of ("tail"), options and optional file names.
+     * @param input  Text to use when no file names are given.
+     * @return The last lines or bytes, or an error message.
+     */
+    public static String tail(String[] tokens, String input) {
+        countOptions options = countOptions.parse(tokens, true);
+        if (options.error != null) {
+            return options.error;
+        }
+        if (options.files.isEmpty()) {
+            if (options.follow) {
+                return "Error: tail -f needs a file name";
+            }
+            if (options.bytes >= 0) {
+                byte[] data = input.getBytes(StandardCharsets.UTF_8);
+                int start = lineBlock.characterStart(data, (int) Math.max(0, data.length - options.bytes), data.length);
+                return new String(data, start, data.length - start, StandardCharsets.UTF_8);
+            }
+            return lastLines(input, options.lines);
+        }
+        if (options.follow && options.files.size() > 1) {
+            return "Error: tail -f follows a single file";
+        }
+
+        StringBuilder output = new StringBuilder();
+        for (String fileName : options.files) {
+            if (options.files.size() > 1) {
+                output.append("==> ").append(fileName).append(" <==\n");
+            }
+            try {
+                Path file = session.resolve(fileName);
+                output.append(options.bytes >= 0
+                        ? fileTail.lastBytes(file, options.bytes)
+                        : fileTail.lastLines(file, options.lines));
+            } catch (IOException e) {
+                return "Error: " + e.getMessage();
+            }
+        }
+        if (!options.follow) {
+            return output.toString();
+        }
+
+        System.out.print(output);
+        System.out.println("--- following " + options.files.get(0) + ", press Enter to stop ---");
+        try {
+            Path file = session.resolve(options.files.get(0));
+            fileTail.follow(file, Files.size(file), System.out, cmd::enterPressed);
+            // Swallow the Enter that stopped following
+            while (System.in.available() > 0 && System.in.read() != '\n') {
+                // discard the rest of the line
+            }
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
+        return "";
+    }
+
+    /**
+     * Runs a command line again every few seconds, or whenever something changes
+     * under a directory, redrawing only the lines of its output that changed,
+     * until Enter is pressed.
+     *
+     * @param tokens "watch [-n SECONDS] [--on-change DIRECTORY] command [| command ...]";
+     *               every 2 seconds when neither is given
+     * @return "" once stopped, or error message
+     */
+    public static String watch(String[] tokens) {
+        long interval = -1;
+        Path dir = null;
+        int i = 1;
+        try {
+            for (; i < tokens.length - 1; i++) {
+                if (tokens[i].equals("-n")) {
+                    double seconds = Double.parseDouble(tokens[++i]);
+                    if (!(seconds >= 0.1)) {
+                        return "Error: watch -n takes at least 0.1 seconds";
+                    }
+                    interval = Math.round(seconds * 1000);
+                } else if (tokens[i].equals("--on-change")) {
+                    dir = session.resolve(tokens[++i]);
+                    if (!Files.isDirectory(dir)) {
+                        return "Error: " + tokens[i] + " is not a directory.";
+                    }
+                } else {
+                    break;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return "Error: watch -n takes a number of seconds";
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
+        if (i >= tokens.length) {
+            return "Error: usage: watch [-n SECONDS] [--on-change DIRECTORY] command";
+        }
+        String command = String.join(" ", Arrays.asList(tokens).subList(i, tokens.length));
+        try {
+            commandWatch.watch(command, interval < 0 && dir == null ? 2000 : Math.max(interval, 0), dir,
+                    System.out, cmd::enterPressed);
+            System.out.println("--- stopped watching ---");
+            // Swallow the Enter that stopped watching
+            while (System.in.available() > 0 && System.in.read() != '\n') {
+                // discard the rest of the line
+            }
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
+        return "";
+    }
+
+    // True once the user typed something, used to stop commands that run until interrupted
+    static boolean enterPressed() {
+        try {
+            return System.in.available() > 0;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    // First n lines of a text, each terminated by '\n'
+    private static String firstLines(String text, long n) {
+        int end = 0;
+        for (long i = 0; i < n && end < text.length(); i++) {
+            int next = text.indexOf('\n', end);
+            end = next < 0 ? text.length() : next + 1;
+        }
+        String result = text.substring(0, end);
+        return result.isEmpty() || result.endsWith("\n") ? result : result + '\n';
+    }
+
+    // Last n lines of a text, scanning backwards from the end
+    private static String lastLines(String text, long n) {
+        if (n <= 0 || text.isEmpty()) {
+            return "";
+        }
+        int start = text.endsWith("\n") ? text.length() - 1 : text.length();
+        for (long i = 0; i < n && start > 0; i++) {
+            start = text.lastIndexOf('\n', start - 1) + 1;
+            if (i + 1 < n && start > 0) {
+                start--;
+            }
+        }
+        String result = text.substring(start);
+        return result.endsWith("\n") ? result : result + '\n';
+    }
+
+    /**
+     * Options shared by head and tail.
+     */
+    static class countOptions {
+        long lines = 10;
+        long bytes = -1;
+        boolean follow;
+        String error;
+        final List<String> files = new ArrayList<>();
+
+        static countOptions parse(String[] tokens, boolean allowFollow) {
+            countOptions options = new countOptions();
+            for (int i = 1; i < tokens.length; i++) {
+                String token = tokens[i];
+                if (!token.startsWith("-") || token.length() == 1) {
+                    options.files.add(token);
+                    continue;
+                }
+                char c = token.charAt(1);
+                String value = token.substring(2);
+                try {
+                    if (Character.isDigit(c)) {
+                        options.lines = Long.parseLong(token.substring(1));
+                    } else if (c == 'f' && allowFollow && value.isEmpty()) {
+                        options.follow = true;
+                    } else if (c == 'n' || c == 'c') {
+                        if (value.isEmpty()) {
+                            if (i + 1 >= tokens.length) {
+                                options.error = "Error: Option -" + c + " requires an argument";
+                                return options;
+                            }
+                            value = tokens[++i];
+                        }
+                        long count = Long.parseLong(value);
+                        if (count < 0) {
+                            throw new NumberFormatException();
+                        }
+                        if (c == 'n') {
+                            options.lines = count;
+                            options.bytes = -1;
+                        } else {
+                            options.bytes = count;
+                        }
+                    } else {
+                        options.error = "Error: This " + c + " argument isn't supported";
+                        return options;
+                    }
+                } catch (NumberFormatException e) {
+                    options.error = "Error: Invalid number: " + token;
+                    return options;
+                }
+            }
+            return options;
+        }
+    }
+
+    /**
+     * Options of the xargs pipe stage: 'xargs [-n N] [-P P] [-I STR] command [args ...]'.
+     */
+    static class xargsOptions {
+        // Arguments per invocation, 0 for all of them at once
+        int maxArgs;
+        int parallel = 1;
+        String replace;
+        String error;
+        final List<String> command = new ArrayList<>();
+
+        static xargsOptions parse(String[] tokens) {
+            xargsOptions options = new xargsOptions();
+            int i = 1;
+            for (; i < tokens.length && tokens[i].startsWith("-") && tokens[i].length() > 1; i++) {
+                String token = tokens[i];
+                char c = token.charAt(1);
+                if (c != 'n' && c != 'P' && c != 'I') {
+                    options.error = "Error: This " + token + " argument isn't supported";
+                    return options;
+                }
+                // Value is either glued to the option (-P4) or the next token (-P 4)
+                String value = token.substring(2);
+                if (value.isEmpty()) {
+                    if (i + 1 >= tokens.length) {
+                        options.error = "Error: Option -" + c + " requires an argument";
+                        return options;
+                    }
+                    value = tokens[++i];
+                }
+                if (c == 'I') {
+                    options.replace = value;
+                    continue;
+                }
+                try {
+                    int number = Integer.parseInt(value);
+                    if (number < 0 || (c == 'n' && number == 0)) {
+                        throw new NumberFormatException();
+                    }
+                    if (c == 'n') {
+                        options.maxArgs = number;
+                    } else {
+                        // Like GNU xargs, -P 0 runs as many at once as possible
+                        options.parallel = number == 0 ? Runtime.getRuntime().availableProcessors() : number;
+                    }
+                } catch (NumberFormatException e) {
+                    options.error = "Error: Invalid argument for -" + c + ": " + value;
+                    return options;
+                }
+            }
+            for (; i < tokens.length; i++) {
+                options.command.add(tokens[i]);
+            }
+            if (options.command.isEmpty()) {
+                options.error = "Error: xargs needs a command to run.";
+            }
+            return options;
+        }
+
+        /**
+         * @return the tokens of the command to run with these arguments
+         */
+        String[] invocation(List<String> arguments) {
+            List<String> tokens = new ArrayList<>(command);
+            if (replace == null) {
+                tokens.addAll(arguments);
+            } else {
+                // With -I every input line is one invocation, replacing STR wherever it appears
+                tokens.replaceAll(token -> token.replace(replace, arguments.get(0)));
+            }
+            return tokens.toArray(new String[0]);
+        }
+    }
+
+    /**
+     * Splits an input string into commands using the pipe character ("|").
+     *
+     * @param input A string of commands separated by pipes.
+     * @return An array of commands as strings.
+     */
+    public static String[] pipe(String input) {
+        String[] commands = input.split("\\|");
+        List<String> commandList = new ArrayList<>();
+        for (String command : commands) {
+            commandList.add(command.trim());
+        }
+        return commandList.toArray(new String[0]);
+    }
+
+    /**
+     * Builds or refreshes the file name index used by locate.
+     * Only directories that changed since the previous run are listed again.
+     *
+     * @param tokens "updatedb" optionally followed by the directory to index
+     *               (default: the home directory) and "--db FILE"
+     * @return summary of the run, or error message
+     */
+    public static String updatedb(String[] tokens) {
+        String root = null;
+        String db = null;
+        for (int i = 1; i < tokens.length; i++) {
+            if (tokens[i].equals("--db") && i + 1 < tokens.length) {
+                db = tokens[++i];
+            } else if (tokens[i].startsWith("-")) {
+                return "Error: This " + tokens[i] + " argument isn't supported";
+            } else {
+                root = tokens[i];
+            }
+        }
+        try {
+            Path rootDir = root == null ? session.home() : session.resolve(root);
+            if (!Files.isDirectory(rootDir)) {
+                return "Error: " + root + " is not a directory.";
+            }
+            fileIndex.stats stats = fileIndex.update(rootDir, locateDatabase(db));
+            return "Indexed " + stats.entries + " entries in " + stats.directories + " directories ("
+                    + stats.listed + " listed, " + stats.unchanged + " unchanged)";
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Prints the indexed paths that contain a text, or that match a glob
+     * ('*', '?', '[...]' match the whole path) or a regular expression (-r).
+     *
+     * @param tokens "locate [-i] [-c] [-r] [-l N] [--db FILE] pattern"
+     * @return the matching paths, one per line, or error message
+     */
+    public static String locate(String[] tokens) {
+        boolean ignoreCase = false;
+        boolean count = false;
+        boolean regex = false;
+        long limit = Long.MAX_VALUE;
+        String db = null;
+        String pattern = null;
+        for (int i = 1; i < tokens.length; i++) {
+            switch (tokens[i]) {
+                case "-i" -> ignoreCase = true;
+                case "-c" -> count = true;
+                case "-r" -> regex = true;
+                case "-l", "--db" -> {
+                    if (i + 1 == tokens.length) {
+                        return "Error: " + tokens[i] + " needs a value.";
+                    }
+                    if (tokens[i].equals("--db")) {
+                        db = tokens[++i];
+                    } else {
+                        try {
+                            limit = Long.parseLong(tokens[++i]);
+                        } catch (NumberFormatException e) {
+                            return "Error: invalid limit: " + tokens[i];
+                        }
+                        if (limit < 0) {
+                            return "Error: invalid limit: " + tokens[i];
+                        }
+                    }
+                }
+                default -> {
+                    if (pattern != null) {
+                        return "Error: locate takes a single pattern.";
+                    }
+                    pattern = tokens[i];
+                }
+            }
+        }
+        if (pattern == null) {
+            return "Error: no pattern to search for.";
+        }
+
+        try {
+            Path database = locateDatabase(db);
+            if (!Files.exists(database)) {
+                return "Error: no index at " + session.display(database) + ", run updatedb first.";
+            }
+            List<String> matches = fileIndex.open(database).locate(fileIndex.matcher(pattern, ignoreCase, regex), limit);
+            if (count) {
+                return String.valueOf(matches.size());
+            }
+            return String.join("\n", matches);
+        } catch (java.util.regex.PatternSyntaxException e) {
+            return "Error: invalid pattern: " + e.getDescription();
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
+    }
+
+    // The index lives in the home directory unless another file is given
+    private static Path locateDatabase(String db) throws IOException {
+        return db == null ? session.home().resolve(".plutos_locate.db") : session.resolveForWriting(db);
+    }
+
+    /**
+     * Shows or searches the command history.
+     * 'history' prints the last 20 commands with their numbers and 'history N' the last N.
+     * 'history -s TEXT' prints the newest commands that contain TEXT, newest first.
+     *
+     * @param tokens  "history" followed by the options
+     * @param history the history of the shell, null if it is not available
+     * @return the commands, or error message
+     */
+    public static String history(String[] tokens, commandHistory history) {
+        if (history == null) {
+            return "Error: history is not available.";
+        }
+        int count = 20;
+        String text = null;
+        for (int i = 1; i < tokens.length; i++) {
+            if (tokens[i].equals("-s")) {
+                if (i + 1 == tokens.length) {
+                    return "Error: -s needs a text to search for.";
+                }
+                text = String.join(" ", List.of(tokens).subList(i + 1, tokens.length));
+                break;
+            }
+            try {
+                count = Integer.parseInt(tokens[i]);
+            } catch (NumberFormatException e) {
+                return "Error: usage: history [N] [-s TEXT]";
+            }
+        }
+
+        StringBuilder output = new StringBuilder();
+        try {
+            if (text == null) {
+                List<String> commands = history.last(count);
+                int number = history.size() - commands.size() + 1;
+                for (String command : commands) {
+                    output.append(String.format("%5d  %s%n", number++, command));
+                }
+            } else {
+                long position = history.end();
+                for (int found = 0; found < count; found++) {
+                    position = history.search(text, position);
+                    if (position < 0) {
+                        break;
+                    }
+                    output.append(history.entry(position)).append(System.lineSeparator());
+                }
+            }
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
+        return output.toString().stripTrailing();
+    }
+
+    /**
+     * Switches the shell between the disk and an in-memory file system.
+     * 'ramdisk on' starts with an empty ramdisk at /work, 'ramdisk off' drops it
+     * and everything in it, and 'ramdisk' alone tells which one is in use.
+     *
+     * @param tokens "ramdisk" optionally followed by "on" or "off"
+     * @return status message, or error message
+     */
+    public static String ramdisk(String[] tokens) {
+        if (tokens.length < 2) {
+            return session.current().isInMemory() ? "ramdisk is on" : "ramdisk is off";
+        }
+        switch (tokens[1]) {
+            case "on":
+                if (!session.current().isInMemory()) {
+                    session.use(session.inMemory());
+                }
+                return "ramdisk on, current directory is " + session.display(session.cwd());
+            case "off":
+                session ramdisk = session.current();
+                session.use(null);
+                if (ramdisk.isInMemory()) {
+                    try {
+                        ramdisk.close();
+                    } catch (IOException e) {
+                        return "Error: " + e.getMessage();
+                    }
+                }
+                return "ramdisk off, current directory is " + session.display(session.cwd());
+            default:
+                return "Error: usage: ramdisk [on|off]";
+        }
+    }
+
+    /**
+     * Controls the cache of command outputs. 'cache on [SIZE]' makes cat, ls, grep and
+     * the checksum commands remember their output until one of the files they read
+     * changes, using at most SIZE of memory (e.g. 64M). 'cache stats' prints its hit
+     * rate, 'cache clear' empties it and 'cache off' turns it off.
+     *
+     * @param tokens "cache" followed by "on [SIZE]", "off", "clear" or "stats"
+     * @return status message, or error message
+     */
+    public static String cache(String[] tokens) {
+        resultCache cache = resultCache.current();
+        String action = tokens.length > 1 ? tokens[1] : "stats";
+        switch (action) {
+            case "on":
+            case "clear": {
+                long budget = cache == null ? resultCache.DEFAULT_BUDGET : cache.budget();
+                if (action.equals("on") && tokens.length > 2) {
+                    try {
+                        budget = parseSize(tokens[2]);
+                    } catch (NumberFormatException e) {
+                        return "Error: Invalid cache size: " + tokens[2];
+                    }
+                } else if (action.equals("clear") && cache == null) {
+                    return "cache is off";
+                }
+                resultCache.enable(budget);
+                return action.equals("on") ? "cache on, " + budget + " bytes" : "cache cleared";
+            }
+            case "off":
+                resultCache.disable();
+                return "cache off";
+            case "stats":
+                return cache == null ? "cache is off" : cache.stats();
+            default:
+                return "Error: usage: cache [on [SIZE]|off|clear|stats]";
+        }
+    }
+
+    /**
+     * Shows or sets the memory budget shared by the buffering stages of all
+     * pipes (see {@link memoryGovernor}).
+     *
+     * @param tokens "memory", optionally followed by the new budget (e.g. 256M)
+     * @return the budget and its use, or an error message
+     */
+    public static String memory(String[] tokens) {
+        if (tokens.length > 1) {
+            try {
+                memoryGovernor.setBudget(parseSize(tokens[1]));
+            } catch (NumberFormatException e) {
+                return "Error: Invalid memory size: " + tokens[1];
+            }
+        }
+        return memoryGovernor.stats();
+    }
+
+    /**
+     * Lists, restores or empties the trash that 'rm --trash' moves files into.
+     * 'trash restore NAME' puts the latest entry with that name (as listed) or
+     * original path back, 'trash empty' hands everything to the background purge,
+     * 'trash default on|off' makes plain rm use the trash, and 'trash keep MINUTES'
+     * sets how long entries can be restored before they are purged.
+     *
+     * @param tokens "trash" followed by "list", "restore NAME", "empty", "default on|off" or "keep MINUTES"
+     * @return the entries, status message, or error message
+     */
+    public static String trash(String[] tokens) {
+        String action = tokens.length > 1 ? tokens[1] : "list";
+        switch (action) {
+            case "list": {
+                List<trashBin.entry> entries = trashBin.list();
+                if (entries.isEmpty()) {
+                    return "The trash is empty.";
+                }
+                StringBuilder output = new StringBuilder();
+                for (trashBin.entry entry : entries) {
+                    output.append(entry).append('\n');
+                }
+                return output.toString();
+            }
+            case "restore":
+                if (tokens.length < 3) {
+                    return "Error: trash restore needs a name or path.";
+                }
+                try {
+                    return "Restored " + session.display(trashBin.restore(tokens[2]));
+                } catch (IOException e) {
+                    return "Error: " + e.getMessage();
+                }
+            case "empty": {
+                int count = trashBin.empty();
+                return count == 0 ? "The trash is empty." : "Deleting " + count + " trashed entries in the background.";
+            }
+            case "default":
+                if (tokens.length > 2 && (tokens[2].equals("on") || tokens[2].equals("off"))) {
+                    trashBin.byDefault = tokens[2].equals("on");
+                }
+                return "rm uses the trash by default: " + (trashBin.byDefault ? "on" : "off");
+            case "keep":
+                if (tokens.length > 2) {
+                    try {
+                        long minutes = Long.parseLong(tokens[2]);
+                        if (minutes < 0) {
+                            throw new NumberFormatException();
+                        }
+                        trashBin.keep = java.time.Duration.ofMinutes(minutes);
+                        trashBin.wake();
+                    } catch (NumberFormatException e) {
+                        return "Error: Invalid number of minutes: " + tokens[2];
+                    }
+                }
+                return "Trashed entries are kept for " + trashBin.keep.toMinutes() + " minutes.";
+            default:
+                return "Error: usage: trash [list|restore NAME|empty|default on|off|keep MINUTES]";
+        }
+    }
+
+    /**
+     * Prints a description of all available methods with their usage and required parameters.
+     *
+     * @return A string representing the list of all commands with their descriptions.
+     */
+    public static String help() {
+
+        return """
+                Available Commands:
+                
+                1. cat [file1 file2 ...]
+                   Concatenates the contents of the specified files and prints the result. If no file names are provided, it takes user input until '^C' is entered.
+                
+                2. forwardArrow [command] > [filename]
+                   Executes a command and saves its output to the specified file.
+                   Supported commands: cd, pwd, rmdir, rm, ls, cat, help.
+                
+                3. cd [directory]
+                   Changes the current working directory to the specified directory. Use '..' to move to the parent directory and '~' to go to the home directory.
+                   Use 'archive.jar!/' (or .zip) to enter an archive; ls, cat and grep then read its entries without extracting them.
+                
+                4. mv [sourceFile] [destinationFile]
+                   Moves the content of the source file to the destination file and deletes the source file.
+                
+                5. pwd
+                   Prints the current working directory.
+                
+                6. rmdir [directory]
+                   Removes an empty directory with the specified name.
+                
+                7. rm [options] [file/directory]
+                   Deletes the specified file or directory. Use '-r' for recursive deletion of directories and '-f' to force delete.
+                   '--trash' moves it to the trash instead, at once however big it is (see 'trash'); '--no-trash' deletes
+                   it right away even when the trash is the default.
+                
+                8. ls [options] [--top K] [path]
+                   Lists the contents of the specified directory.
+                   Options: '-a' to include hidden files, '-r' for recursive listing, '-S' biggest first,
+                   '-t' newest first, '-X' by extension. '--top K' prints only the first K files in that
+                   order (default: by size); with '-r' out of the whole tree, e.g. ls -rS --top 20 /data.
+                   
+                9. mkdir [directory] [path (or default path if not provided)]
+                    checks if a path is given, or performs the operations in the current project directory
+                    checks if there's already a directory in the specified path with the specified name
+                    creates directory
+                    
+                10. touch [file]
+                    Creates a new empty file or updates the timestamp of an existing file.
+                                   
+                11. grep [pattern] [file ...] | grep -r [pattern] [directory]
+                    Prints the lines of the files, or of the previous command's output, that contain the pattern.
+                    '-r' searches every text file under the directory, using its index (see 'index') when there is one.
+                
+                12. pipe [command1 | command2 | ...]
+                    Executes a series of commands separated by pipes. Each command's output is passed to the next command.
+                
+                13. sort [options] [file ...]
+                    Sorts lines of the files, or of the previous command's output inside a pipe.
+                    Options: '-n' numeric, '-r' reverse, '-u' unique, '-k N[,M]' key fields,
+                    '-t SEP' field separator, '-S SIZE' memory budget before spilling to disk (e.g. 64M).
+                
+                14. uniq [-c] [-d] [-u] [--all] [file ...]
+                    Merges repeated adjacent lines. '-c' prefixes counts, '-d' keeps only repeated lines,
+                    '-u' keeps only unique lines, '--all' finds repeats anywhere without sorting first.
+                
+                15. sha256sum | md5sum | crc32c [-c] [file ...]
+                    Prints checksums of the files, hashed in parallel. '-c' verifies the files listed in a checksum file.
+                
+                16. gzip [-d] [-k] [-f] [-1..-9] file ... | gunzip [-k] file.gz ... | zcat file.gz ...
+                    Compresses files in parallel blocks (file -> file.gz), restores them, or prints their contents.
+                    cat and grep read .gz files transparently.
+                
+                17. head [-n N | -c N] [file ...]
+                    Prints the first N lines (default 10) or bytes of the files or of the piped input.
+                
+                18. tail [-n N | -c N] [-f] [file ...]
+                    Prints the last N lines (default 10) or bytes, reading the file backwards from its end.
+                    '-f' keeps printing data appended to the file until Enter is pressed.
+                
+                19. ramdisk [on|off]
+                    Switches to an empty in-memory file system at /work, or back to the disk.
+                    Nothing written on the ramdisk touches the disk, and it is gone once switched off.
+                
+                20. updatedb [directory] [--db FILE]
+                    Indexes the names of all files under the directory (default: home) for locate.
+                    Later runs only list the directories that changed since.
+                
+                21. locate [-i] [-c] [-r] [-l N] [--db FILE] pattern
+                    Prints the indexed paths containing the pattern, or matching it as a glob ('*.txt') or regex (-r).
+                    '-i' ignores case, '-c' prints only the count, '-l N' stops after N paths.
+                
+                22. index [directory]
+                    Builds a trigram index of the files under the directory (default: current) so that 'grep -r'
+                    only reads the files that can match. Run it again to pick up changed files.
+                
+                23. diff [-u] [-r] first second
+                    Prints the lines that differ between two files, in unified format with '-u'.
+                    '-r' compares two directory trees; files with the same size and time are not read.
+                
+                24. dupes [--link] [directory]
+                    Lists the groups of files with identical contents under the directory (default: current).
+                    Only files of the same size are read, most of them only at both ends. '--link' replaces
+                    each duplicate with a hard link to the first file of its group.
+                
+                25. sync [--delete] source target
+                    Makes the target directory a copy of the source, skipping files whose size and time match.
+                    Changed files are compared by blocks (as rsync does) and only the changed blocks written,
+                    in place or through a temporary file. '--delete' removes what is only in the target.
+                
+                26. ... | xargs [-n N] [-P P] [-I STR] command [args ...]
+                    Runs the command with the lines of the previous command as arguments, N lines per run
+                    (default: all), or once per line with STR replaced by it. '-P' runs P commands at a time;
+                    the output of each run is printed whole and in input order. e.g. ls | xargs -P 4 sha256sum
+                
+                27. cache [on [SIZE]|off|clear|stats]
+                    Remembers the output of cat, ls, grep and the checksum commands until a file they read changes
+                    (same inode, size and time), within SIZE of memory (default 32M). Off unless turned on.
+                
+                28. memory [SIZE]
+                    Prints how much of the memory budget shared by sort, tail, uniq --all and diff is in use,
+                    or sets the budget (e.g. 256M). A stage that is denied memory spills its lines to disk;
+                    one that cannot spill waits for memory.
+                
+                29. wc [-l] [-w] [-c] [file ...]
+                    Counts the lines, words and bytes of the files or of the piped input.
+                
+                30. find [directory]
+                    Prints the path of every file and directory under the directory (default: current).
+                
+                31. du [-s] [directory]
+                    Prints the size in KiB of the files under the directory and under each directory below it,
+                    or only the total with '-s'.
+                
+                32. ... | where FIELD OP VALUE | sort-by FIELD[,FIELD] [-r] | select FIELD[,FIELD] | to-json
+                    Work on the entries of ls, find and du as records with the fields path, name, type, size,
+                    mtime and mode, without parsing their text or reading the files again. OP is = != < <= > >=
+                    or ~ (glob); sizes take K, M and G, times a date or an age (e.g. 'where mtime > 2d').
+                    select prints the fields separated by tabs, to-json one JSON object per line.
+                    e.g. find src | where size > 1M | sort-by size -r | select path,size
+                
+                33. time command
+                    Runs the command and prints its wall time, the user and system CPU time of the shell thread,
+                    the CPU time of all threads and the bytes allocated meanwhile. Every command and pipe stage
+                    also records a Java Flight Recorder event (category PlutOS) while a recording is running.
+                
+                34. watch [-n SECONDS] [--on-change DIRECTORY] command
+                    Runs the command (or pipe) every SECONDS (default 2), or whenever files change under the
+                    directory, until Enter is pressed. A burst of changes runs it once, and only the lines of its
+                    output that changed are redrawn. e.g. watch --on-change logs ls -t --top 10 logs
+                
+                35. trash [list|restore NAME|empty|default on|off|keep MINUTES]
+                    Lists the entries 'rm --trash' moved to the trash, or restores one by name or original path.
+                    Entries are deleted by a low priority background thread after MINUTES (default 60) or once
+                    the trash is emptied. 'default on' makes plain rm use the trash.
+                
+                36. history [N] [-s TEXT]
+                    Prints the last N commands (default 20), or the newest commands containing TEXT.
+                    Interactive shells also search the history with Ctrl-R and walk it with Up and Down.
                 
-                12. help
+                37. help
                     Displays this help information for all commands.
                 """;
     }
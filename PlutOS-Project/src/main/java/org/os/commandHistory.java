@@ -0,0 +1,510 @@
+package org.os;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Command history shared by every shell of a user, with instant substring search.
+ * <p>
+ * Commands are appended to a log file as length-prefixed records, which is read
+ * through a memory mapping and never parsed as a whole. Searching uses an index of
+ * trigrams (every 3 consecutive bytes of a command): a command contains the text
+ * searched for only if it contains all the trigrams of that text, so only the few
+ * commands found in the posting lists of those trigrams are compared.
+ * <p>
+ * The index is a directory of immutable, memory-mapped segment files, each one
+ * covering a range of the log. New commands are indexed in memory and written out
+ * as a small segment every {@link #FLUSH_THRESHOLD} commands; segments of the same
+ * size are merged like a binary counter, so there are only O(log n) of them.
+ * Opening the history therefore only maps a handful of files and reads the few
+ * commands logged after the last segment. Several shells can share the files:
+ * appends and segment writes take a file lock, and each shell picks up what the
+ * others wrote the next time it searches.
+ */
+public class commandHistory implements Closeable {
+
+    // Commands indexed in memory before they are written out as a segment
+    private static final int FLUSH_THRESHOLD = 1024;
+
+    // Segment file layout: [int magic][int entries] then sorted postings (trigram << 39 | offset)
+    private static final int MAGIC = 0x50484958;
+    private static final int HEADER = 2 * Integer.BYTES;
+    private static final int OFFSET_BITS = 39;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    // Record layout in the log: [int length][bytes][int length], so it can be walked both ways
+    private static final int RECORD_OVERHEAD = 2 * Integer.BYTES;
+
+    private final Path indexDir;
+    private final FileChannel log;
+    private MappedByteBuffer view;
+
+    // Segments covering the log from offset 0 to indexedEnd, oldest first
+    private final List<segment> segments = new ArrayList<>();
+    private final Map<String, segment> mapped = new HashMap<>();
+    private long indexedEnd;
+    private int indexedEntries;
+
+    // Commands logged after indexedEnd, indexed in memory
+    private final Map<Integer, List<Long>> tail = new HashMap<>();
+    private final List<Long> tailEntries = new ArrayList<>();
+    private long tailStart;
+    private long tailEnd;
+
+    private commandHistory(Path logFile) throws IOException {
+        Path parent = logFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        indexDir = logFile.resolveSibling(logFile.getFileName() + ".index");
+        Files.createDirectories(indexDir);
+        log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Opens a history log, creating it and its index if needed.
+     *
+     * @param logFile the log, its index lives in a directory next to it
+     */
+    public static commandHistory open(Path logFile) throws IOException {
+        commandHistory history = new commandHistory(logFile);
+        try {
+            history.refresh();
+            if (history.tailEntries.size() >= FLUSH_THRESHOLD) {
+                history.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            history.log.close();
+            throw e;
+        }
+        return history;
+    }
+
+    /**
+     * Appends a command. Blank commands and repeats of the last command are not logged.
+     */
+    public void add(String command) throws IOException {
+        if (command.isBlank()) {
+            return;
+        }
+        refresh();
+        long last = previous(end());
+        if (last >= 0 && entry(last).equals(command)) {
+            return;
+        }
+        byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(bytes.length + RECORD_OVERHEAD);
+        record.putInt(bytes.length).put(bytes).putInt(bytes.length).flip();
+        FileLock lock = log.lock();
+        try {
+            long position = log.size();
+            while (record.hasRemaining()) {
+                position += log.write(record, position);
+            }
+        } finally {
+            lock.release();
+        }
+        refresh();
+        if (tailEntries.size() >= FLUSH_THRESHOLD) {
+            flush();
+        }
+    }
+
+    /**
+     * @return number of commands in the history
+     */
+    public int size() throws IOException {
+        refresh();
+        return indexedEntries + tailEntries.size();
+    }
+
+    /**
+     * @return the position just after the newest command, to pass to {@link #previous} and {@link #search}
+     */
+    public long end() throws IOException {
+        return log.size();
+    }
+
+    /**
+     * @param position position of a command, or {@link #end()}
+     * @return position of the command before it, or -1 at the start of the history
+     */
+    public long previous(long position) throws IOException {
+        position = Math.min(position, tailEnd);
+        if (position < RECORD_OVERHEAD) {
+            return -1;
+        }
+        map(position);
+        int length = view.getInt((int) position - Integer.BYTES);
+        return position - length - RECORD_OVERHEAD;
+    }
+
+    /**
+     * @param position position of a command
+     * @return position of the command after it, or -1 if it is the newest one
+     */
+    public long next(long position) throws IOException {
+        map(position + Integer.BYTES);
+        long next = position + view.getInt((int) position) + RECORD_OVERHEAD;
+        return next < tailEnd ? next : -1;
+    }
+
+    /**
+     * @param position position of a command
+     * @return the command
+     */
+    public String entry(long position) throws IOException {
+        map(position + Integer.BYTES);
+        int length = view.getInt((int) position);
+        byte[] bytes = new byte[length];
+        map(position + Integer.BYTES + length);
+        view.get((int) position + Integer.BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param count how many commands
+     * @return the newest commands, oldest first
+     */
+    public List<String> last(int count) throws IOException {
+        refresh();
+        LinkedList<String> commands = new LinkedList<>();
+        for (long p = previous(end()); p >= 0 && commands.size() < count; p = previous(p)) {
+            commands.addFirst(entry(p));
+        }
+        return commands;
+    }
+
+    /**
+     * Finds the newest command containing a text, before a position.
+     *
+     * @param text   text to look for
+     * @param before only commands starting before this position are considered, {@link #end()} for all
+     * @return position of the command, or -1 if none matches
+     */
+    public long search(String text, long before) throws IOException {
+        refresh();
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < 3) {
+            // Too short for a trigram, but short texts match recent commands almost at once
+            for (long p = previous(before); p >= 0; p = previous(p)) {
+                if (entry(p).contains(text)) {
+                    return p;
+                }
+            }
+            return -1;
+        }
+        int[] trigrams = trigrams(bytes);
+        long found = searchTail(trigrams, text, before);
+        for (int i = segments.size() - 1; found < 0 && i >= 0; i--) {
+            if (segments.get(i).start < before) {
+                found = searchSegment(segments.get(i).postings, trigrams, text, before);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Writes the commands indexed in memory out as a segment.
+     */
+    public void flush() throws IOException {
+        try (FileChannel lockFile = FileChannel.open(indexDir.resolve("lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = lockFile.lock();
+            try {
+                // Another shell may have written segments since we last looked
+                refresh();
+                if (tailEntries.isEmpty()) {
+                    return;
+                }
+                long[] postings = new long[tail.values().stream().mapToInt(List::size).sum()];
+                int n = 0;
+                for (Map.Entry<Integer, List<Long>> e : tail.entrySet()) {
+                    for (long offset : e.getValue()) {
+                        postings[n++] = ((long) e.getKey() << OFFSET_BITS) | offset;
+                    }
+                }
+                Arrays.sort(postings);
+                write(tailStart, tailEnd, tailEntries.size(), LongBuffer.wrap(postings), null);
+                refresh();
+                mergeSegments();
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            log.close();
+        }
+    }
+
+    // Picks up segments and commands written by any shell since the last call
+    private void refresh() throws IOException {
+        List<segment> available = new ArrayList<>();
+        try (Stream<Path> files = Files.list(indexDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".seg")) {
+                    segment s = mapped.get(name);
+                    if (s == null) {
+                        s = segment.map(file);
+                        if (s == null) {
+                            continue;
+                        }
+                        mapped.put(name, s);
+                    }
+                    available.add(s);
+                }
+            }
+        }
+
+        // The chain of largest segments from offset 0 covers the indexed part of the log,
+        // anything else is left over from a merge and only waits to be deleted
+        available.sort(Comparator.comparingLong((segment s) -> s.start).thenComparingLong(s -> -s.end));
+        segments.clear();
+        indexedEnd = 0;
+        indexedEntries = 0;
+        for (segment s : available) {
+            if (s.start == indexedEnd) {
+                segments.add(s);
+                indexedEnd = s.end;
+                indexedEntries += s.entries;
+            }
+        }
+        mapped.values().retainAll(available);
+
+        if (tailStart != indexedEnd) {
+            tail.clear();
+            tailEntries.clear();
+            tailStart = indexedEnd;
+            tailEnd = indexedEnd;
+        }
+        long size = log.size();
+        while (tailEnd + RECORD_OVERHEAD <= size) {
+            map(tailEnd + Integer.BYTES);
+            int length = view.getInt((int) tailEnd);
+            long recordEnd = tailEnd + length + RECORD_OVERHEAD;
+            // A record that is still being written (or was torn by a crash) ends the log for now
+            if (length < 0 || recordEnd > size) {
+                break;
+            }
+            map(recordEnd);
+            if (view.getInt((int) recordEnd - Integer.BYTES) != length) {
+                break;
+            }
+            byte[] bytes = new byte[length];
+            view.get((int) tailEnd + Integer.BYTES, bytes);
+            for (int trigram : trigrams(bytes)) {
+                tail.computeIfAbsent(trigram, k -> new ArrayList<>()).add(tailEnd);
+            }
+            tailEntries.add(tailEnd);
+            tailEnd = recordEnd;
+        }
+    }
+
+    // Merges the newest segments while they are no bigger than the one before them
+    private void mergeSegments() throws IOException {
+        while (segments.size() >= 2) {
+            segment older = segments.get(segments.size() - 2);
+            segment newer = segments.get(segments.size() - 1);
+            long total = (long) older.postings.capacity() + newer.postings.capacity();
+            if (older.entries > newer.entries || HEADER + total * Long.BYTES > Integer.MAX_VALUE) {
+                break;
+            }
+            write(older.start, newer.end, older.entries + newer.entries, older.postings, newer.postings);
+            refresh();
+            Files.deleteIfExists(older.file);
+            Files.deleteIfExists(newer.file);
+        }
+    }
+
+    // Writes a segment through a temporary file, so other shells never see it half written.
+    // The postings of two segments are merged on the way: they cover different parts of the
+    // log, so for the same trigram all offsets of the older segment come first.
+    private void write(long start, long end, int entries, LongBuffer first, LongBuffer second) throws IOException {
+        int total = first.capacity() + (second == null ? 0 : second.capacity());
+        Path file = indexDir.resolve(String.format("%016x-%016x.seg", start, end));
+        Path temp = indexDir.resolve(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) total * Long.BYTES);
+            out.putInt(MAGIC).putInt(entries);
+            int i = 0;
+            int j = 0;
+            int n = second == null ? 0 : second.capacity();
+            while (i < first.capacity() || j < n) {
+                if (j == n || (i < first.capacity() && first.get(i) <= second.get(j))) {
+                    out.putLong(first.get(i++));
+                } else {
+                    out.putLong(second.get(j++));
+                }
+            }
+            out.force();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long searchTail(int[] trigrams, String text, long before) throws IOException {
+        List<List<Long>> lists = new ArrayList<>();
+        for (int trigram : trigrams) {
+            List<Long> list = tail.get(trigram);
+            if (list == null) {
+                return -1;
+            }
+            lists.add(list);
+        }
+        lists.sort(Comparator.comparingInt(List::size));
+        List<Long> shortest = lists.get(0);
+        candidates:
+        for (int i = shortest.size() - 1; i >= 0; i--) {
+            long offset = shortest.get(i);
+            if (offset >= before) {
+                continue;
+            }
+            for (int k = 1; k < lists.size(); k++) {
+                if (Collections.binarySearch(lists.get(k), offset) < 0) {
+                    continue candidates;
+                }
+            }
+            if (entry(offset).contains(text)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private long searchSegment(LongBuffer postings, int[] trigrams, String text, long before) throws IOException {
+        // Posting range [from, to) of every trigram, shortest first
+        int[][] ranges = new int[trigrams.length][];
+        for (int k = 0; k < trigrams.length; k++) {
+            long key = (long) trigrams[k] << OFFSET_BITS;
+            int from = lowerBound(postings, key, 0, postings.capacity());
+            int to = lowerBound(postings, key + (1L << OFFSET_BITS), from, postings.capacity());
+            if (from == to) {
+                return -1;
+            }
+            ranges[k] = new int[]{from, to};
+        }
+        Arrays.sort(ranges, Comparator.comparingInt(r -> r[1] - r[0]));
+        candidates:
+        for (int i = ranges[0][1] - 1; i >= ranges[0][0]; i--) {
+            long offset = postings.get(i) & OFFSET_MASK;
+            if (offset >= before) {
+                continue;
+            }
+            for (int k = 1; k < ranges.length; k++) {
+                long key = (postings.get(ranges[k][0]) & ~OFFSET_MASK) | offset;
+                int at = lowerBound(postings, key, ranges[k][0], ranges[k][1]);
+                if (at == ranges[k][1] || postings.get(at) != key) {
+                    continue candidates;
+                }
+            }
+            if (entry(offset).contains(text)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private static int lowerBound(LongBuffer postings, long key, int from, int to) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (postings.get(mid) < key) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    // Distinct trigrams of the bytes, sorted; also those of the files in a grep index
+    static int[] trigrams(byte[] bytes) {
+        if (bytes.length < 3) {
+            return new int[0];
+        }
+        int[] trigrams = new int[bytes.length - 2];
+        int t = (bytes[0] & 0xff) << 8 | (bytes[1] & 0xff);
+        for (int i = 2; i < bytes.length; i++) {
+            t = (t << 8 | (bytes[i] & 0xff)) & 0xffffff;
+            trigrams[i - 2] = t;
+        }
+        Arrays.sort(trigrams);
+        int n = 0;
+        for (int i = 0; i < trigrams.length; i++) {
+            if (i == 0 || trigrams[i] != trigrams[i - 1]) {
+                trigrams[n++] = trigrams[i];
+            }
+        }
+        return Arrays.copyOf(trigrams, n);
+    }
+
+    // Makes sure the mapping of the log reaches up to the given position
+    private void map(long upTo) throws IOException {
+        if (view != null && view.capacity() >= upTo) {
+            return;
+        }
+        long size = log.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("history log is larger than 2 GiB");
+        }
+        view = log.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (view.capacity() < upTo) {
+            throw new IOException("history log is truncated");
+        }
+    }
+
+    private static class segment {
+        final Path file;
+        final long start;
+        final long end;
+        final int entries;
+        final LongBuffer postings;
+
+        private segment(Path file, long start, long end, int entries, LongBuffer postings) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.entries = entries;
+            this.postings = postings;
+        }
+
+        // Maps a segment file, or returns null if it is not a valid segment
+        static segment map(Path file) throws IOException {
+            String name = file.getFileName().toString();
+            String[] range = name.substring(0, name.length() - ".seg".length()).split("-");
+            if (range.length != 2) {
+                return null;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < HEADER || (size - HEADER) % Long.BYTES != 0) {
+                    return null;
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (buffer.getInt(0) != MAGIC) {
+                    return null;
+                }
+                return new segment(file, Long.parseUnsignedLong(range[0], 16), Long.parseUnsignedLong(range[1], 16),
+                        buffer.getInt(Integer.BYTES), buffer.position(HEADER).slice().asLongBuffer());
+            } catch (NumberFormatException | NoSuchFileException e) {
+                // a leftover of a merge deleted by another shell while listing
+                return null;
+            }
+        }
+    }
+}
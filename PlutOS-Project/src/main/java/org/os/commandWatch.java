@@ -0,0 +1,208 @@
+package org.os;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs a command line over and over and keeps its latest output on the screen ('watch').
+ * <p>
+ * The command runs on an interval, or when something changes under a directory, as
+ * told by a {@link WatchService} on the directory and every directory below it. A
+ * burst of events, like a build writing hundreds of files, is coalesced into one
+ * run: after the first event the watch waits until the directory has been quiet for
+ * a moment, but no longer than a second, so a busy directory reruns the command at
+ * most about once a second and an idle one costs nothing. Only the lines that differ
+ * from the previous run are redrawn, by moving the cursor to their rows, so output
+ * that barely changes costs almost no terminal output.
+ */
+public class commandWatch {
+
+    // A burst of events is over once none came for this long
+    private static final long QUIET_MILLIS = 200;
+
+    // Longest a burst can put off the next run
+    private static final long MAX_DELAY_MILLIS = 1000;
+
+    // How often the stop condition is checked while nothing happens
+    private static final long CHECK_MILLIS = 100;
+
+    // Rows above the output: the header and a blank line
+    private static final int HEADER_ROWS = 2;
+
+    private static final DateTimeFormatter CLOCK = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    private final String command;
+    private final long intervalMillis;
+    private final PrintStream out;
+    private final int rows;
+    private final int columns;
+
+    // What is on the screen now, one entry per output row
+    private List<String> shown;
+
+    private commandWatch(String command, long intervalMillis, PrintStream out) {
+        this.command = command;
+        this.intervalMillis = intervalMillis;
+        this.out = out;
+        int[] size = lineEditor.terminalSize();
+        rows = size == null ? 24 : size[0];
+        columns = size == null ? 80 : size[1];
+    }
+
+    /**
+     * Runs a command line, and runs it again after every interval or change, until told to stop.
+     *
+     * @param command        a command or a pipe, run the way pipes run their commands
+     * @param intervalMillis time between runs, 0 to run only on changes
+     * @param dir            directory whose changes rerun the command, or null to run only on the interval
+     * @param out            the terminal
+     * @param stop           checked between runs, watching ends once it returns true
+     * @return number of times the command ran
+     */
+    public static int watch(String command, long intervalMillis, Path dir, PrintStream out, BooleanSupplier stop)
+            throws IOException {
+        commandWatch watch = new commandWatch(command, intervalMillis, out);
+        int runs = 0;
+        try (WatchService watcher = dir == null ? null : dir.getFileSystem().newWatchService()) {
+            Map<WatchKey, Path> directories = new HashMap<>();
+            if (watcher != null) {
+                register(dir, watcher, directories);
+            }
+            watch.refresh();
+            runs++;
+            while (!stop.getAsBoolean()) {
+                if (watch.awaitChange(watcher, directories, stop)) {
+                    watch.refresh();
+                    runs++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Leave the cursor under the output
+        out.print("\u001B[" + (HEADER_ROWS + (watch.shown == null ? 0 : watch.shown.size()) + 1) + ";1H");
+        out.flush();
+        return runs;
+    }
+
+    // Waits for the interval to pass or a burst of changes to end; false if told to stop first
+    private boolean awaitChange(WatchService watcher, Map<WatchKey, Path> directories, BooleanSupplier stop)
+            throws IOException, InterruptedException {
+        long due = intervalMillis > 0 ? System.currentTimeMillis() + intervalMillis : Long.MAX_VALUE;
+        while (!stop.getAsBoolean()) {
+            long wait = Math.min(CHECK_MILLIS, due - System.currentTimeMillis());
+            if (wait <= 0) {
+                return true;
+            }
+            if (watcher == null) {
+                Thread.sleep(wait);
+                continue;
+            }
+            WatchKey key = watcher.poll(wait, TimeUnit.MILLISECONDS);
+            if (key == null) {
+                continue;
+            }
+            // Coalesce the burst this event starts into one run
+            long last = System.currentTimeMillis() + MAX_DELAY_MILLIS;
+            while (key != null) {
+                drain(key, watcher, directories);
+                long left = last - System.currentTimeMillis();
+                key = left > 0 ? watcher.poll(Math.min(QUIET_MILLIS, left), TimeUnit.MILLISECONDS) : null;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // Takes the events of a key, watching the directories created meanwhile too
+    private static void drain(WatchKey key, WatchService watcher, Map<WatchKey, Path> directories) throws IOException {
+        Path dir = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (dir != null && event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                Path created = dir.resolve((Path) event.context());
+                if (Files.isDirectory(created, LinkOption.NOFOLLOW_LINKS)) {
+                    register(created, watcher, directories);
+                }
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+    }
+
+    private static void register(Path top, WatchService watcher, Map<WatchKey, Path> directories) throws IOException {
+        Files.walkFileTree(top, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                directories.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Runs the command and redraws the header and the rows whose line changed
+    private void refresh() {
+        List<String> lines = new ArrayList<>();
+        int fit = Math.max(1, rows - HEADER_ROWS - 1);
+        try {
+            // Errors take rows of the output too, printed at the cursor they would break the redraw
+            new pipeline(command).reportTo(message -> {
+                for (String line : message.split("\n")) {
+                    if (lines.size() < fit) {
+                        lines.add(clip(line));
+                    }
+                }
+            }).run(line -> {
+                if (lines.size() < fit) {
+                    lines.add(clip(line));
+                }
+                // Rows below the screen would scroll it, so the rest of the output is not needed
+                return lines.size() < fit;
+            });
+        } catch (IOException e) {
+            lines.add(clip("Error: " + e.getMessage()));
+        }
+
+        StringBuilder screen = new StringBuilder();
+        if (shown == null) {
+            screen.append("\u001B[H\u001B[2J");
+            shown = List.of();
+        }
+        String header = clip("Every " + (intervalMillis > 0 ? intervalMillis / 1000.0 + "s" : "change") + ": "
+                + command + "    " + CLOCK.format(LocalTime.now()));
+        screen.append("\u001B[1;1H").append(header).append("\u001B[K");
+        for (int i = 0; i < lines.size(); i++) {
+            if (i >= shown.size() || !lines.get(i).equals(shown.get(i))) {
+                screen.append("\u001B[").append(HEADER_ROWS + i + 1).append(";1H").append(lines.get(i)).append("\u001B[K");
+            }
+        }
+        if (lines.size() < shown.size()) {
+            // Erase the rows the output no longer reaches
+            screen.append("\u001B[").append(HEADER_ROWS + lines.size() + 1).append(";1H\u001B[J");
+        }
+        out.print(screen);
+        out.flush();
+        shown = lines;
+    }
+
+    // A line longer than the screen would wrap onto the next row
+    private String clip(String line) {
+        return line.length() < columns ? line : line.substring(0, columns - 1);
+    }
+}
@@ -0,0 +1,495 @@
+package org.os;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * A trigram index of the contents of the files under a directory, used by 'grep -r'.
+ * <p>
+ * For every trigram (3 consecutive bytes) the index keeps the sorted list of the
+ * files that contain it. A file can only contain a text if it contains every
+ * trigram of that text, so intersecting a few posting lists gives the handful of
+ * files worth reading, and grep only reads those. Posting lists are stored as
+ * varint-encoded gaps between file numbers, which keeps them small, and the index
+ * is memory-mapped so opening it costs almost nothing.
+ * <p>
+ * The index remembers the size and modification time of every file. Rebuilding it
+ * only reads files whose size or time changed, the posting lists of the others are
+ * carried over from the old index. grep checks the same two values while walking
+ * the tree and reads any file that changed since it was indexed, so results are
+ * always current even when the index is not.
+ */
+public class contentIndex {
+
+    /**
+     * Name of the index file, kept in the directory it indexes.
+     */
+    public static final String FILE_NAME = ".plutos_grep_index";
+
+    private static final int MAGIC = 0x50475258;
+    private static final int VERSION = 1;
+
+    // Header: [int magic][int version][int files][int trigrams][long postings][long trigram table]
+    private static final int HEADER = 32;
+
+    // Trigram table entry: [int trigram][int count][long offset of the posting list]
+    private static final int TABLE_ENTRY = 16;
+
+    // Bigger files are not indexed, grep always reads them
+    private static final int MAX_INDEXED_SIZE = 16 << 20;
+
+    // Like grep, a NUL byte in the first block marks a binary file
+    private static final int BINARY_CHECK = 8192;
+
+    static final byte TEXT = 0;
+    static final byte BINARY = 1;
+    static final byte UNINDEXED = 2;
+
+    private final Path root;
+    private final ByteBuffer data;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final long[] sizes;
+    private final long[] modified;
+    private final byte[] kinds;
+    private final int trigrams;
+    private final int trigramTable;
+
+    private contentIndex(Path root, ByteBuffer data) throws IOException {
+        this.root = root;
+        this.data = data;
+        if (data.capacity() < HEADER || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+            throw new IOException("not a grep index");
+        }
+        int files = data.getInt(8);
+        trigrams = data.getInt(12);
+        trigramTable = (int) data.getLong(24);
+        sizes = new long[files];
+        modified = new long[files];
+        kinds = new byte[files];
+        fileIndex.cursor in = new fileIndex.cursor(data, HEADER);
+        byte[] path = new byte[256];
+        for (int id = 0; id < files; id++) {
+            int shared = in.varint();
+            int length = in.varint();
+            if (shared + length > path.length) {
+                path = Arrays.copyOf(path, Math.max(shared + length, path.length * 2));
+            }
+            in.read(path, shared, length);
+            ids.put(new String(path, 0, shared + length, StandardCharsets.UTF_8), id);
+            sizes[id] = in.varlong();
+            modified[id] = in.varlong();
+            kinds[id] = in.get();
+        }
+    }
+
+    /**
+     * Opens the index of a directory.
+     *
+     * @param root the indexed directory, which holds the index file
+     */
+    public static contentIndex open(Path root) throws IOException {
+        return new contentIndex(root, fileIndex.load(root.resolve(FILE_NAME), "grep index"));
+    }
+
+    /**
+     * Finds the index that covers a directory: its own or that of the closest parent that has one.
+     *
+     * @return the index, or null if there is none or it cannot be read
+     */
+    public static contentIndex find(Path dir) {
+        for (Path d = dir.toAbsolutePath().normalize(); d != null; d = d.getParent()) {
+            if (Files.isRegularFile(d.resolve(FILE_NAME))) {
+                try {
+                    return open(d);
+                } catch (IOException | RuntimeException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * What a run of the index command did.
+     */
+    public static class stats {
+        public int files;
+        public int read;
+        public int unchanged;
+        public int binary;
+        public int trigrams;
+    }
+
+    /**
+     * Indexes the files under a directory, reading only those that changed since the last run.
+     */
+    public static stats update(Path root) throws IOException {
+        root = root.toAbsolutePath().normalize();
+        contentIndex old = null;
+        if (Files.isRegularFile(root.resolve(FILE_NAME))) {
+            try {
+                old = open(root);
+            } catch (IOException | RuntimeException e) {
+                // a damaged index is simply rebuilt from scratch
+            }
+        }
+
+        List<Path> files = new ArrayList<>();
+        List<BasicFileAttributes> attributes = new ArrayList<>();
+        walk(root, (file, attrs) -> {
+            files.add(file);
+            attributes.add(attrs);
+        });
+
+        // New file numbers follow the walk order, which is also the order of the old
+        // numbers, so renumbering the old posting lists keeps them sorted
+        int count = files.size();
+        String[] names = new String[count];
+        byte[] kinds = new byte[count];
+        int[][] fileTrigrams = new int[count][];
+        int[] renumber = old == null ? new int[0] : new int[old.kinds.length];
+        Arrays.fill(renumber, -1);
+        List<Integer> changed = new ArrayList<>();
+        stats stats = new stats();
+        for (int id = 0; id < count; id++) {
+            names[id] = relativeName(root, files.get(id));
+            int oldId = old == null ? -1 : old.lookup(names[id], attributes.get(id));
+            if (oldId >= 0) {
+                renumber[oldId] = id;
+                kinds[id] = old.kinds[oldId];
+                stats.unchanged++;
+            } else {
+                changed.add(id);
+            }
+        }
+        changed.parallelStream().forEach(id -> {
+            try {
+                byte[] content = read(files.get(id));
+                if (content == null) {
+                    kinds[id] = UNINDEXED;
+                } else if (isBinary(content)) {
+                    kinds[id] = BINARY;
+                } else {
+                    kinds[id] = TEXT;
+                    fileTrigrams[id] = commandHistory.trigrams(content);
+                }
+            } catch (IOException e) {
+                kinds[id] = UNINDEXED; // unreadable now, grep will report it
+            }
+        });
+        stats.read = changed.size();
+
+        // (trigram, file) pairs of the files just read, grouped by trigram
+        long[] pairs = new long[Arrays.stream(fileTrigrams).filter(Objects::nonNull).mapToInt(t -> t.length).sum()];
+        int n = 0;
+        for (int id = 0; id < count; id++) {
+            if (fileTrigrams[id] != null) {
+                for (int trigram : fileTrigrams[id]) {
+                    pairs[n++] = (long) trigram << 32 | id;
+                }
+                fileTrigrams[id] = null;
+            }
+        }
+        Arrays.parallelSort(pairs);
+
+        Path file = root.resolve(FILE_NAME);
+        Path temp = root.resolve(FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.write(new byte[HEADER]);
+            byte[] previous = new byte[0];
+            for (int id = 0; id < count; id++) {
+                byte[] name = names[id].getBytes(StandardCharsets.UTF_8);
+                fileIndex.writeFrontCoded(out, previous, name);
+                previous = name;
+                fileIndex.writeVarint(out, attributes.get(id).size());
+                fileIndex.writeVarint(out, attributes.get(id).lastModifiedTime().to(TimeUnit.NANOSECONDS));
+                out.writeByte(kinds[id]);
+                if (kinds[id] == BINARY) {
+                    stats.binary++;
+                }
+            }
+
+            // Merge the carried over posting lists with the new pairs, trigram by trigram
+            long postings = out.size();
+            ByteArrayOutputStream table = new ByteArrayOutputStream();
+            DataOutputStream tableOut = new DataOutputStream(table);
+            int oldEntry = 0;
+            int oldCount = old == null ? 0 : old.trigrams;
+            int p = 0;
+            int[] ids = new int[16];
+            while (oldEntry < oldCount || p < pairs.length) {
+                int fromOld = oldEntry < oldCount ? old.trigramAt(oldEntry) : Integer.MAX_VALUE;
+                int fromNew = p < pairs.length ? (int) (pairs[p] >>> 32) : Integer.MAX_VALUE;
+                int trigram = Math.min(fromOld, fromNew);
+                int size = 0;
+                if (fromOld == trigram) {
+                    for (int oldId : old.postings(oldEntry++)) {
+                        if (renumber[oldId] >= 0) {
+                            if (size == ids.length) {
+                                ids = Arrays.copyOf(ids, size * 2);
+                            }
+                            ids[size++] = renumber[oldId];
+                        }
+                    }
+                }
+                int carried = size;
+                while (p < pairs.length && (int) (pairs[p] >>> 32) == trigram) {
+                    if (size == ids.length) {
+                        ids = Arrays.copyOf(ids, size * 2);
+                    }
+                    ids[size++] = (int) pairs[p++];
+                }
+                // Carried over and new files are each in order, but interleave
+                if (carried > 0 && size > carried) {
+                    Arrays.sort(ids, 0, size);
+                }
+                if (size == 0) {
+                    continue;
+                }
+                tableOut.writeInt(trigram);
+                tableOut.writeInt(size);
+                tableOut.writeLong(out.size());
+                int last = -1;
+                for (int i = 0; i < size; i++) {
+                    fileIndex.writeVarint(out, ids[i] - last);
+                    last = ids[i];
+                }
+                stats.trigrams++;
+            }
+            long tableStart = out.size();
+            table.writeTo(out);
+            if (out.size() == Integer.MAX_VALUE) {
+                throw new IOException("grep index is larger than 2 GiB");
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(stats.trigrams)
+                    .putLong(postings).putLong(tableStart).flip();
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        stats.files = count;
+        return stats;
+    }
+
+    /**
+     * @return the indexed directory
+     */
+    public Path root() {
+        return root;
+    }
+
+    /**
+     * Finds the files that may contain a text.
+     *
+     * @return the numbers of the files that contain every trigram of the text,
+     * or null when the text is too short to narrow anything down
+     */
+    public BitSet candidates(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < 3) {
+            return null;
+        }
+        int[] wanted = commandHistory.trigrams(bytes);
+        int[] entries = new int[wanted.length];
+        for (int i = 0; i < wanted.length; i++) {
+            entries[i] = find(wanted[i]);
+            if (entries[i] < 0) {
+                return new BitSet();
+            }
+        }
+        // Start from the rarest trigram, every other list can only shrink the result
+        Integer[] order = IntStream.range(0, entries.length).boxed().toArray(Integer[]::new);
+        Arrays.sort(order, Comparator.comparingInt(i -> countAt(entries[i])));
+        int[] result = postings(entries[order[0]]);
+        for (int i = 1; i < order.length && result.length > 0; i++) {
+            result = intersect(result, postings(entries[order[i]]));
+        }
+        BitSet candidates = new BitSet(ids.size());
+        for (int id : result) {
+            candidates.set(id);
+        }
+        return candidates;
+    }
+
+    /**
+     * Looks a file up by its path, if it has not changed since it was indexed.
+     *
+     * @return the number of the file, or -1 if it is not in the index or changed since
+     */
+    public int lookup(Path file, BasicFileAttributes attributes) {
+        return lookup(relativeName(root, file.toAbsolutePath().normalize()), attributes);
+    }
+
+    /**
+     * @return {@link #TEXT}, {@link #BINARY} or {@link #UNINDEXED}
+     */
+    byte kind(int id) {
+        return kinds[id];
+    }
+
+    /**
+     * Visits every regular file under a directory, depth first with names in order,
+     * without following links. The index file itself is skipped.
+     */
+    public static void walk(Path dir, BiConsumer<Path, BasicFileAttributes> visitor) {
+        Deque<Path> stack = new ArrayDeque<>();
+        stack.push(dir);
+        while (!stack.isEmpty()) {
+            Path current = stack.pop();
+            List<Path> children = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(current)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (!name.startsWith(FILE_NAME)) {
+                        children.add(entry);
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                continue; // unreadable directories are skipped, like find does
+            }
+            children.sort(Comparator.comparing(p -> p.getFileName().toString()));
+            // Files come first, then the subdirectories in order
+            List<Path> directories = new ArrayList<>();
+            for (Path child : children) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    continue;
+                }
+                if (attributes.isDirectory()) {
+                    directories.add(child);
+                } else if (attributes.isRegularFile()) {
+                    visitor.accept(child, attributes);
+                }
+            }
+            for (int i = directories.size() - 1; i >= 0; i--) {
+                stack.push(directories.get(i));
+            }
+        }
+    }
+
+    /**
+     * @return true if the data looks binary: a NUL byte in its first block
+     */
+    static boolean isBinary(byte[] data) {
+        int end = Math.min(data.length, BINARY_CHECK);
+        for (int i = 0; i < end; i++) {
+            if (data[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the first block of a stream to tell if it is binary. A stream that supports
+     * marks is put back where it was, so its text can be read after the check.
+     */
+    static boolean isBinary(InputStream in) throws IOException {
+        boolean mark = in.markSupported();
+        if (mark) {
+            in.mark(BINARY_CHECK);
+        }
+        boolean binary = isBinary(in.readNBytes(BINARY_CHECK));
+        if (mark) {
+            in.reset();
+        }
+        return binary;
+    }
+
+    private int lookup(String name, BasicFileAttributes attributes) {
+        Integer id = ids.get(name);
+        if (id == null || sizes[id] != attributes.size()
+                || modified[id] != attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)) {
+            return -1;
+        }
+        return id;
+    }
+
+    private static String relativeName(Path root, Path file) {
+        return root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+    }
+
+    // Contents of a file (decompressed if it is .gz), or null if it is too big to index
+    private static byte[] read(Path file) throws IOException {
+        try (InputStream in = cmd.gunzipIfNeeded(file.getFileName().toString(), Files.newInputStream(file))) {
+            byte[] content = in.readNBytes(MAX_INDEXED_SIZE + 1);
+            return content.length > MAX_INDEXED_SIZE ? null : content;
+        }
+    }
+
+    // Index of a trigram in the table, by binary search, or -1
+    private int find(int trigram) {
+        int from = 0;
+        int to = trigrams;
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            int value = trigramAt(mid);
+            if (value < trigram) {
+                from = mid + 1;
+            } else if (value > trigram) {
+                to = mid;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int trigramAt(int entry) {
+        return data.getInt(trigramTable + entry * TABLE_ENTRY);
+    }
+
+    private int countAt(int entry) {
+        return data.getInt(trigramTable + entry * TABLE_ENTRY + Integer.BYTES);
+    }
+
+    private int[] postings(int entry) {
+        int count = countAt(entry);
+        fileIndex.cursor in = new fileIndex.cursor(data, (int) data.getLong(trigramTable + entry * TABLE_ENTRY + 2 * Integer.BYTES));
+        int[] ids = new int[count];
+        int last = -1;
+        for (int i = 0; i < count; i++) {
+            last += in.varint();
+            ids[i] = last;
+        }
+        return ids;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+}
@@ -0,0 +1,469 @@
+package org.os;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Brings a copy of a directory tree up to date, writing only what changed
+ * ('sync source target').
+ * <p>
+ * Both trees are walked by a fork/join task per directory, and a file whose size
+ * and modification time equal those of its copy is not opened, so syncing a tree
+ * that barely changed costs about one pass over the metadata. New files are copied
+ * whole. A changed file is updated with the rsync algorithm: its old copy is cut
+ * into blocks, each with a weak rolling checksum and an MD5 hash, and the new file
+ * is scanned with a window that rolls one byte at a time, so a block found again,
+ * even moved by an insertion, is reused from the old copy instead of written. When
+ * every reused block is still where it was, the changed ranges are written into
+ * the copy in place; otherwise the new contents are put together in a temporary
+ * file next to it, which is then renamed over it, so the copy is never seen half
+ * written. Copies get the modification time of their source, which is what the
+ * next sync compares.
+ */
+class dirSync {
+
+    private static final int MIN_BLOCK = 1024;
+    private static final int MAX_BLOCK = 64 * 1024;
+
+    // Bytes of a block in the signature: weak sum, hash chain link and MD5
+    private static final int SIGNATURE_BYTES = 4 + 4 + 16;
+
+    private dirSync() {
+    }
+
+    /**
+     * What a sync did, counted by all of its tasks.
+     */
+    static class result {
+        final LongAdder checked = new LongAdder();
+        final LongAdder copied = new LongAdder();
+        final LongAdder updated = new LongAdder();
+        final LongAdder deleted = new LongAdder();
+        final LongAdder written = new LongAdder();
+        final LongAdder reused = new LongAdder();
+        final Queue<String> errors = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            for (String error : errors) {
+                text.append(error).append('\n');
+            }
+            long changed = copied.sum() + updated.sum();
+            return text.append(checked.sum()).append(" files checked, ").append(copied.sum()).append(" copied, ")
+                    .append(updated.sum()).append(" updated, ").append(checked.sum() - changed).append(" unchanged, ")
+                    .append(deleted.sum()).append(" deleted: ").append(written.sum()).append(" bytes written, ")
+                    .append(reused.sum()).append(" reused").toString();
+        }
+    }
+
+    /**
+     * Makes the target tree hold the same files as the source tree. Symbolic links
+     * are copied as links.
+     *
+     * @param delete whether to delete what is in the target but not in the source
+     */
+    static result sync(Path source, Path target, boolean delete) throws IOException {
+        if (!Files.isDirectory(source)) {
+            throw new NotDirectoryException(session.display(source));
+        }
+        Path from = source.toAbsolutePath().normalize();
+        Path to = target.toAbsolutePath().normalize();
+        if (to.startsWith(from) || from.startsWith(to)) {
+            throw new IOException("cannot sync " + session.display(source) + " with a directory inside or around it");
+        }
+        Files.createDirectories(target);
+        result result = new result();
+        ForkJoinPool.commonPool().invoke(new treeTask(source, target, delete, result));
+        return result;
+    }
+
+    // Syncs one pair of directories, forking a task per subdirectory and per file to write
+    private static class treeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path source;
+        private final Path target;
+        private final boolean delete;
+        private final result result;
+
+        treeTask(Path source, Path target, boolean delete, result result) {
+            this.source = source;
+            this.target = target;
+            this.delete = delete;
+            this.result = result;
+        }
+
+        @Override
+        protected void compute() {
+            Map<String, BasicFileAttributes> sources = list(source);
+            Map<String, BasicFileAttributes> targets = list(target);
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (Map.Entry<String, BasicFileAttributes> entry : sources.entrySet()) {
+                String name = entry.getKey();
+                BasicFileAttributes from = entry.getValue();
+                BasicFileAttributes to = targets.get(name);
+                Path file = source.resolve(name);
+                Path copy = target.resolve(name);
+                if (to != null && from.isDirectory() != to.isDirectory()) {
+                    result.errors.add("sync: " + session.display(copy) + ": cannot replace a "
+                            + (to.isDirectory() ? "directory with a file" : "file with a directory"));
+                } else if (from.isDirectory()) {
+                    try {
+                        if (to == null) {
+                            Files.createDirectory(copy);
+                        }
+                        tasks.add(new treeTask(file, copy, delete, result));
+                    } catch (IOException e) {
+                        result.errors.add("sync: " + session.display(copy) + ": " + e.getMessage());
+                    }
+                } else if (from.isSymbolicLink() || from.isRegularFile()) {
+                    result.checked.increment();
+                    if (!unchanged(file, copy, from, to)) {
+                        tasks.add(ForkJoinTask.adapt(() -> syncFile(file, copy, from, to, result)));
+                    }
+                }
+            }
+            if (delete) {
+                for (String name : targets.keySet()) {
+                    if (!sources.containsKey(name)) {
+                        remove(target.resolve(name), result);
+                    }
+                }
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    // Files are taken as equal by size and time, to the millisecond as not every file system keeps more; links by target
+    private static boolean unchanged(Path file, Path copy, BasicFileAttributes from, BasicFileAttributes to) {
+        if (to == null || to.isSymbolicLink() != from.isSymbolicLink()) {
+            return false;
+        }
+        if (from.isSymbolicLink()) {
+            try {
+                return Files.readSymbolicLink(file).equals(Files.readSymbolicLink(copy));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return to.size() == from.size()
+                && to.lastModifiedTime().toMillis() == from.lastModifiedTime().toMillis();
+    }
+
+    private static void syncFile(Path file, Path copy, BasicFileAttributes from, BasicFileAttributes to, result result) {
+        try {
+            if (from.isSymbolicLink() || to == null || !to.isRegularFile() || to.size() == 0) {
+                Files.copy(file, copy, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES,
+                        LinkOption.NOFOLLOW_LINKS);
+                if (!from.isSymbolicLink()) {
+                    Files.setLastModifiedTime(copy, from.lastModifiedTime());
+                }
+                result.copied.increment();
+                result.written.add(from.isSymbolicLink() ? 0 : from.size());
+                return;
+            }
+            update(file, copy, from.size(), to.size(), result);
+            Files.setLastModifiedTime(copy, from.lastModifiedTime());
+            result.updated.increment();
+        } catch (IOException e) {
+            result.errors.add("sync: " + session.display(file) + ": " + e.getMessage());
+        }
+    }
+
+    // Rewrites a copy to equal its source, reusing the blocks of the copy found in the source
+    private static void update(Path file, Path copy, long size, long oldSize, result result) throws IOException {
+        int block = (int) Math.min(MAX_BLOCK, Math.max(MIN_BLOCK, Long.highestOneBit((long) Math.sqrt(oldSize))));
+        List<long[]> ops;
+        try (memoryGovernor.reservation memory = memoryGovernor.reserve(false)) {
+            memory.cover(oldSize / block * SIGNATURE_BYTES);
+            ops = scan(file, signature.of(copy, block));
+        }
+
+        boolean inPlace = true;
+        for (long[] op : ops) {
+            if (op[2] >= 0 && op[2] != op[0]) {
+                inPlace = false;
+                break;
+            }
+        }
+        if (inPlace) {
+            // Every reused block is where it was: write the rest over it
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(copy, StandardOpenOption.WRITE)) {
+                for (long[] op : ops) {
+                    if (op[2] < 0) {
+                        transfer(in, op[0], op[1], out.position(op[0]));
+                        result.written.add(op[1]);
+                    } else {
+                        result.reused.add(op[1]);
+                    }
+                }
+                out.truncate(size);
+            }
+            return;
+        }
+
+        Path temporary = copy.resolveSibling("." + cmd.entryName(copy) + ".sync-" + System.nanoTime());
+        try {
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+                 FileChannel old = FileChannel.open(copy, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                for (long[] op : ops) {
+                    if (op[2] < 0) {
+                        transfer(in, op[0], op[1], out);
+                        result.written.add(op[1]);
+                    } else {
+                        transfer(old, op[2], op[1], out);
+                        result.reused.add(op[1]);
+                    }
+                }
+            }
+            copyPermissions(file, temporary);
+            Files.move(temporary, copy, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Finds the blocks of the old copy in a file.
+     *
+     * @return the file as ranges {offset, length, offset in the copy}, the last -1 for bytes not in the copy
+     */
+    private static List<long[]> scan(Path file, signature signature) throws IOException {
+        int block = signature.block;
+        List<long[]> ops = new ArrayList<>();
+        byte[] buffer = new byte[Math.max(4 * block, 256 * 1024)];
+        try (InputStream in = Files.newInputStream(file)) {
+            long base = 0; // offset of buffer[0] in the file
+            int start = 0; // start of the window
+            int end = 0;
+            long unmatched = 0; // first byte not in a range yet
+            boolean eof = false;
+            boolean rolling = false;
+            int a = 0;
+            int b = 0;
+            while (true) {
+                // Keep the window and the byte after it in the buffer
+                if (end - start <= block && !eof) {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    base += start;
+                    end -= start;
+                    start = 0;
+                    while (end < buffer.length) {
+                        int n = in.read(buffer, end, buffer.length - end);
+                        if (n < 0) {
+                            eof = true;
+                            break;
+                        }
+                        end += n;
+                    }
+                }
+                if (end - start < block) {
+                    break;
+                }
+                if (!rolling) {
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < block; i++) {
+                        a += buffer[start + i] & 0xff;
+                        b += (block - i) * (buffer[start + i] & 0xff);
+                    }
+                    rolling = true;
+                }
+
+                long offset = base + start;
+                int match = signature.find(a & 0xffff | b << 16, buffer, start, offset);
+                if (match >= 0) {
+                    if (offset > unmatched) {
+                        add(ops, unmatched, offset - unmatched, -1);
+                    }
+                    add(ops, offset, block, (long) match * block);
+                    start += block;
+                    unmatched = offset + block;
+                    rolling = false;
+                    continue;
+                }
+                if (end - start == block) {
+                    if (eof) {
+                        break;
+                    }
+                    continue;
+                }
+                // Slide the window one byte: drop the first, take the next
+                int out = buffer[start] & 0xff;
+                a += (buffer[start + block] & 0xff) - out;
+                b += a - block * out;
+                start++;
+            }
+            long size = base + end;
+            if (size > unmatched) {
+                add(ops, unmatched, size - unmatched, -1);
+            }
+        }
+        return ops;
+    }
+
+    // Appends a range, merged with the one before when both are new bytes or follow each other in the copy
+    private static void add(List<long[]> ops, long offset, long length, long from) {
+        if (!ops.isEmpty()) {
+            long[] last = ops.get(ops.size() - 1);
+            if (last[0] + last[1] == offset && (last[2] < 0 ? from < 0 : last[2] + last[1] == from)) {
+                last[1] += length;
+                return;
+            }
+        }
+        ops.add(new long[]{offset, length, from});
+    }
+
+    private static void transfer(FileChannel in, long offset, long length, FileChannel out) throws IOException {
+        for (long done = 0; done < length; ) {
+            long n = in.transferTo(offset + done, length - done, out);
+            if (n <= 0) {
+                throw new IOException("file changed while syncing");
+            }
+            done += n;
+        }
+    }
+
+    private static void copyPermissions(Path from, Path to) throws IOException {
+        PosixFileAttributeView source = Files.getFileAttributeView(from, PosixFileAttributeView.class);
+        PosixFileAttributeView target = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+        if (source != null && target != null) {
+            target.setPermissions(source.readAttributes().permissions());
+        }
+    }
+
+    private static void remove(Path path, result result) {
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                    Files.delete(file);
+                    result.deleted.increment();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    if (e != null) {
+                        throw e;
+                    }
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            result.errors.add("sync: cannot delete " + session.display(path) + ": " + e.getMessage());
+        }
+    }
+
+    private static Map<String, BasicFileAttributes> list(Path dir) {
+        Map<String, BasicFileAttributes> entries = new TreeMap<>();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+            for (Path child : children) {
+                try {
+                    entries.put(cmd.entryName(child),
+                            Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+                } catch (IOException e) {
+                    // vanished while listing
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            // an unreadable directory syncs as empty
+        }
+        return entries;
+    }
+
+    // The weak sums and MD5 hashes of the full blocks of a file, found by weak sum through a hash table
+    private static class signature {
+        final int block;
+        final int[] weak;
+        final byte[] strong;
+        final int[] heads;
+        final int[] next;
+        final MessageDigest md5;
+
+        private signature(int block, int blocks) {
+            this.block = block;
+            weak = new int[blocks];
+            strong = new byte[16 * blocks];
+            heads = new int[Integer.highestOneBit(Math.max(1, blocks)) * 2];
+            next = new int[blocks];
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static signature of(Path file, int block) throws IOException {
+            long blocks = Files.size(file) / block;
+            if (blocks > Integer.MAX_VALUE / 16) {
+                throw new IOException("file too large to sync by blocks");
+            }
+            signature signature = new signature(block, (int) blocks);
+            byte[] data = new byte[block];
+            try (InputStream in = Files.newInputStream(file)) {
+                for (int i = 0; i < blocks && in.readNBytes(data, 0, block) == block; i++) {
+                    int a = 0;
+                    int b = 0;
+                    for (int j = 0; j < block; j++) {
+                        a += data[j] & 0xff;
+                        b += (block - j) * (data[j] & 0xff);
+                    }
+                    signature.weak[i] = a & 0xffff | b << 16;
+                    signature.md5.update(data, 0, block);
+                    System.arraycopy(signature.md5.digest(), 0, signature.strong, 16 * i, 16);
+                    int bucket = signature.bucket(signature.weak[i]);
+                    signature.next[i] = signature.heads[bucket];
+                    signature.heads[bucket] = i + 1;
+                }
+            }
+            return signature;
+        }
+
+        /**
+         * @return a block with the data of the window, preferring the one at the same offset; -1 if none
+         */
+        int find(int sum, byte[] data, int from, long offset) {
+            byte[] hash = null;
+            int found = -1;
+            for (int i = heads[bucket(sum)] - 1; i >= 0; i = next[i] - 1) {
+                if (weak[i] != sum) {
+                    continue;
+                }
+                if (hash == null) {
+                    md5.update(data, from, block);
+                    hash = md5.digest();
+                }
+                if (Arrays.equals(strong, 16 * i, 16 * i + 16, hash, 0, 16)) {
+                    if ((long) i * block == offset) {
+                        return i;
+                    }
+                    if (found < 0) {
+                        found = i;
+                    }
+                }
+            }
+            return found;
+        }
+
+        private int bucket(int sum) {
+            return (sum ^ sum >>> 16) * 0x9E3779B1 >>> 1 & heads.length - 1;
+        }
+    }
+}
@@ -1,10 +1,25 @@
 package org.os;
 
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Scanner;
 
 public class driverProgram {
 
+    // Names completed by Tab at the start of a line
+    static final String[] COMMANDS = {
+            "cache", "cat", "cd", "crc32c", "diff", "du", "dupes", "exit", "find", "grep", "gunzip", "gzip", "head", "help",
+            "history", "index", "locate", "ls", "md5sum", "memory", "mkdir", "mv", "pwd", "ramdisk", "rm", "rmdir",
+            "sha256sum", "sort", "sync", "tail", "time", "touch", "trash", "uniq", "updatedb", "watch", "wc", "zcat"
+    };
+
+    // Stages that only work on piped input, completed only after a '|'
+    static final String[] PIPE_STAGES = {"select", "sort-by", "to-json", "where", "xargs"};
+
+    // Shared by every shell of the user, null when it could not be opened
+    private static commandHistory history;
+
 //        Style text with white color
     private static String whiteText(String s) {
         return "\u001B[37m" + s + "\u001B[0m";
@@ -20,27 +35,77 @@ public class driverProgram {
     }
 
     public static void start() {
+        try {
+            history = commandHistory.open(Path.of(System.getProperty("user.home"), ".plutos_history"));
+        } catch (IOException e) {
+            System.out.println(redText("Error: history is not available: " + e.getMessage()));
+        }
+        trashBin.resume();
+        lineEditor editor = history == null ? null : lineEditor.open(history, new pathCompleter(COMMANDS, PIPE_STAGES));
         Scanner scanner = new Scanner(System.in);
         while (true) {
-            System.out.print(blueText(System.getProperty("user.dir")) + whiteText("$"));
-            String input = scanner.nextLine();
+            String prompt = blueText(cmd.pwd()) + whiteText("$");
+            String input;
+            if (editor != null) {
+                try {
+                    input = editor.readLine(prompt);
+                } catch (IOException e) {
+                    // the terminal could not be switched, fall back to plain lines
+                    editor = null;
+                    continue;
+                }
+                if (input == null) {
+                    break;
+                }
+            } else {
+                System.out.print(prompt);
+                input = scanner.nextLine();
+            }
             if (input.equals("exit")) {
                 break;
             }
+            if (history != null) {
+                try {
+                    history.add(input);
+                } catch (IOException e) {
+                    System.out.println(redText("Error: could not save history: " + e.getMessage()));
+                }
+            }
 
             parseCommand(input);
         }
         scanner.close();
+        if (history != null) {
+            try {
+                history.close();
+            } catch (IOException ignored) {
+                // everything is in the log already, the index catches up on the next start
+            }
+        }
     }
 
     public static void parseCommand(String input) {
         String[] tokens = input.trim().split("\\s+");
         String command = tokens[0].toLowerCase();
+        if (command.equals("time") && tokens.length > 1) {
+            String timed = input.trim().substring(command.length()).trim();
+            System.out.println(profiler.time(() -> parseCommand(timed)));
+            return;
+        }
+        if (command.equals("watch")) {
+            // The watched command line may have pipes and redirections of its own
+            String output = cmd.watch(tokens);
+            if (!output.isEmpty()) {
+                System.out.println(redText(output));
+            }
+            return;
+        }
+        profiler.commandEvent event = profiler.begin(tokens);
         if (input.contains(">>")) {
             command = ">>";
         }
         if (input.contains("|")) {
-            cmd.handlePipe(input);
+            profiler.end(event, cmd.handlePipe(input));
             return;
         } else if (input.contains(">")) {
             command = ">";
@@ -64,7 +129,16 @@ public class driverProgram {
                 output = cmd.rm(tokens);
                 break;
             case "ls":
-                output = cmd.ls(tokens);
+                output = resultCache.cached(tokens, () -> cmd.ls(tokens));
+                break;
+            case "sync":
+                output = cmd.sync(tokens);
+                break;
+            case "find":
+                output = cmd.find(tokens);
+                break;
+            case "du":
+                output = cmd.du(tokens);
                 break;
             case ">>":
                 cmd.appendOutputToFile(tokens);
@@ -73,7 +147,65 @@ public class driverProgram {
                 cmd.forwardArrow(tokens);
                 break;
             case "cat":
-                output = cmd.cat(tokens);
+                output = resultCache.cached(tokens, () -> cmd.catAsShown(tokens));
+                break;
+            case "sort":
+                output = cmd.sort(tokens, "");
+                break;
+            case "uniq":
+                output = cmd.uniq(tokens, "");
+                break;
+            case "wc":
+                output = resultCache.cached(tokens, () -> cmd.wc(tokens, ""));
+                break;
+            case "sha256sum":
+            case "md5sum":
+            case "crc32c":
+                output = resultCache.cached(tokens, () -> cmd.checksum(tokens, ""));
+                break;
+            case "grep":
+                output = resultCache.cached(tokens, () -> cmd.grep(tokens, ""));
+                break;
+            case "gzip":
+            case "gunzip":
+            case "zcat":
+                output = cmd.gzip(tokens);
+                break;
+            case "head":
+                output = cmd.head(tokens, "");
+                break;
+            case "tail":
+                output = cmd.tail(tokens, "");
+                break;
+            case "updatedb":
+                output = cmd.updatedb(tokens);
+                break;
+            case "locate":
+                output = cmd.locate(tokens);
+                break;
+            case "index":
+                output = cmd.index(tokens);
+                break;
+            case "diff":
+                output = cmd.diff(tokens);
+                break;
+            case "dupes":
+                output = cmd.dupes(tokens);
+                break;
+            case "history":
+                output = cmd.history(tokens, history);
+                break;
+            case "cache":
+                output = cmd.cache(tokens);
+                break;
+            case "trash":
+                output = cmd.trash(tokens);
+                break;
+            case "memory":
+                output = cmd.memory(tokens);
+                break;
+            case "ramdisk":
+                output = cmd.ramdisk(tokens);
                 break;
             case "help":
                 System.out.println(cmd.help());
@@ -94,6 +226,7 @@ public class driverProgram {
                 System.out.println(output);
             }
         }
+        profiler.end(event, output == null || output.isEmpty() ? 0 : profiler.utf8Length(output) + 1);
 
     }
 }
@@ -0,0 +1,300 @@
+package org.os;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+
+/**
+ * Finds files with identical contents under a directory, for the dupes command.
+ * <p>
+ * Reading every file of a big tree would take hours, so files are ruled out in
+ * stages that each cost more I/O than the one before. The tree is walked in
+ * parallel and only the sizes are collected: a file with a size no other file has
+ * is never opened. Files that share a size are then hashed on their first and last
+ * block only, which separates almost all of them with two small reads. Only the
+ * files still together after that are hashed in full, in parallel, and the ones
+ * with the same full hash are reported as duplicates.
+ * <p>
+ * Empty files are not reported, and paths that are already hard links to the same
+ * file count once, so running 'dupes --link' twice finds nothing the second time.
+ */
+public class duplicateFinder {
+
+    // Bytes hashed at each end of a file in the partial stage
+    private static final int BLOCK = 4096;
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BLOCK));
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private duplicateFinder() {
+    }
+
+    /**
+     * A set of files with the same contents, sorted by path.
+     */
+    public static class group {
+        public final long size;
+        public final List<Path> files;
+        private final List<FileTime> modified;
+
+        private group(long size, List<Path> files, List<FileTime> modified) {
+            this.size = size;
+            this.files = files;
+            this.modified = modified;
+        }
+
+        /**
+         * @return the bytes taken by all the copies but one
+         */
+        public long wasted() {
+            return size * (files.size() - 1);
+        }
+    }
+
+    /**
+     * What a search found, and how many files each stage had to look at.
+     */
+    public static class result {
+        public final List<group> groups;
+        public long files;
+        public long sameSize;
+        public long fullyHashed;
+
+        private result(List<group> groups) {
+            this.groups = groups;
+        }
+    }
+
+    /**
+     * Finds the duplicate files under a directory. Symbolic links are not followed.
+     *
+     * @return the groups of identical files, biggest waste first
+     */
+    public static result find(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            throw new NotDirectoryException(dir.toString());
+        }
+        ConcurrentLinkedQueue<entry> found = new ConcurrentLinkedQueue<>();
+        ForkJoinPool.commonPool().invoke(new walker(dir, found));
+
+        // Stage 1: only sizes shared by several files are worth opening
+        Map<Long, List<entry>> bySize = new HashMap<>();
+        for (entry entry : found) {
+            bySize.computeIfAbsent(entry.size, size -> new ArrayList<>()).add(entry);
+        }
+        List<List<entry>> candidates = new ArrayList<>();
+        long sameSize = 0;
+        for (List<entry> entries : bySize.values()) {
+            List<entry> distinct = distinctFiles(entries);
+            if (distinct.size() > 1) {
+                candidates.add(distinct);
+                sameSize += distinct.size();
+            }
+        }
+
+        // Stage 2: hash the first and last block of each candidate, in parallel
+        candidates.parallelStream().flatMap(List::stream).forEach(entry -> entry.hash = partialHash(entry));
+        List<List<entry>> partial = new ArrayList<>();
+        for (List<entry> entries : candidates) {
+            partial.addAll(sameHash(entries));
+        }
+
+        // Stage 3: hash whole files, unless the partial hash already read all of them
+        List<entry> toHash = new ArrayList<>();
+        for (List<entry> entries : partial) {
+            if (entries.get(0).size > 2 * BLOCK) {
+                toHash.addAll(entries);
+            }
+        }
+        fileHasher hasher;
+        try {
+            hasher = new fileHasher("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        List<Future<String>> sums = hasher.hashAll(toHash.stream().map(entry -> entry.path).collect(Collectors.toList()));
+        for (int i = 0; i < toHash.size(); i++) {
+            toHash.get(i).hash = fileHasher.await(sums.get(i));
+        }
+
+        List<group> groups = new ArrayList<>();
+        for (List<entry> entries : partial) {
+            for (List<entry> same : sameHash(entries)) {
+                same.sort(Comparator.comparing(entry -> entry.path.toString()));
+                groups.add(new group(same.get(0).size,
+                        same.stream().map(entry -> entry.path).collect(Collectors.toUnmodifiableList()),
+                        same.stream().map(entry -> entry.modified).collect(Collectors.toUnmodifiableList())));
+            }
+        }
+        groups.sort(Comparator.comparingLong(group::wasted).reversed()
+                .thenComparing(group -> group.files.get(0).toString()));
+
+        result result = new result(groups);
+        result.files = found.size();
+        result.sameSize = sameSize;
+        result.fullyHashed = toHash.size();
+        return result;
+    }
+
+    /**
+     * Replaces every file of a group but the first with a hard link to the first.
+     * Each link is made under a temporary name and renamed over the duplicate, so
+     * the duplicate is never missing. Files modified since they were hashed are left
+     * alone.
+     *
+     * @return the number of files replaced
+     * @throws IOException when a link cannot be made, e.g. across file systems
+     */
+    public static int link(group group) throws IOException {
+        Path original = group.files.get(0);
+        if (!Files.getLastModifiedTime(original, LinkOption.NOFOLLOW_LINKS).equals(group.modified.get(0))) {
+            return 0;
+        }
+        int linked = 0;
+        for (int i = 1; i < group.files.size(); i++) {
+            Path duplicate = group.files.get(i);
+            if (!Files.getLastModifiedTime(duplicate, LinkOption.NOFOLLOW_LINKS).equals(group.modified.get(i))) {
+                continue;
+            }
+            Path temporary = duplicate.resolveSibling("." + duplicate.getFileName() + ".plutos-link");
+            Files.createLink(temporary, original);
+            try {
+                Files.move(temporary, duplicate, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.deleteIfExists(temporary);
+                throw e;
+            }
+            linked++;
+        }
+        return linked;
+    }
+
+    // Keeps one path per file, paths that are hard links to the same file are not duplicates
+    private static List<entry> distinctFiles(List<entry> entries) {
+        if (entries.size() < 2) {
+            return entries;
+        }
+        Map<Object, entry> byKey = new HashMap<>();
+        List<entry> distinct = new ArrayList<>();
+        for (entry entry : entries) {
+            if (entry.key == null) {
+                distinct.add(entry);
+                continue;
+            }
+            entry seen = byKey.get(entry.key);
+            if (seen == null || entry.path.toString().compareTo(seen.path.toString()) < 0) {
+                byKey.put(entry.key, entry);
+            }
+        }
+        distinct.addAll(byKey.values());
+        return distinct;
+    }
+
+    // Splits entries into the groups of two or more with the same hash; unreadable files drop out
+    private static List<List<entry>> sameHash(List<entry> entries) {
+        Map<String, List<entry>> byHash = new HashMap<>();
+        for (entry entry : entries) {
+            if (entry.hash != null) {
+                byHash.computeIfAbsent(entry.hash, hash -> new ArrayList<>()).add(entry);
+            }
+        }
+        List<List<entry>> groups = new ArrayList<>();
+        for (List<entry> group : byHash.values()) {
+            if (group.size() > 1) {
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+
+    // Hash of the first and the last block, or of the whole file when it is not bigger than both
+    private static String partialHash(entry entry) {
+        MessageDigest digest = DIGESTS.get();
+        ByteBuffer buffer = BUFFERS.get();
+        try (FileChannel channel = FileChannel.open(entry.path, StandardOpenOption.READ)) {
+            long tail = Math.max(BLOCK, entry.size - BLOCK);
+            for (long position : new long[]{0, tail}) {
+                buffer.clear();
+                while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+                    // keep reading until the block is full or the file ends
+                }
+                buffer.flip();
+                digest.update(buffer);
+            }
+        } catch (IOException e) {
+            digest.reset();
+            return null;
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static class entry {
+        final Path path;
+        final long size;
+        final FileTime modified;
+        // Identifies the file itself (device and inode), null if the file system has no such thing
+        final Object key;
+        String hash;
+
+        entry(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime();
+            this.key = attributes.fileKey();
+        }
+    }
+
+    // Lists one directory and forks a task for each subdirectory
+    private static class walker extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final Queue<entry> found;
+
+        walker(Path dir, Queue<entry> found) {
+            this.dir = dir;
+            this.found = found;
+        }
+
+        @Override
+        protected void compute() {
+            List<walker> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    if (attributes.isDirectory()) {
+                        subdirectories.add(new walker(entry, found));
+                    } else if (attributes.isRegularFile() && attributes.size() > 0) {
+                        found.add(new entry(entry, attributes));
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                return; // unreadable directories are skipped, like find does
+            }
+            invokeAll(subdirectories);
+        }
+    }
+}
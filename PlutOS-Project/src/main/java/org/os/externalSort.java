@@ -0,0 +1,313 @@
+package org.os;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Sorts lines of text within a fixed memory budget.
+ * <p>
+ * Lines are buffered until half of the budget is used, then the chunk is sorted
+ * with {@link Arrays#parallelSort} and spilled to a temporary run file on a
+ * background thread while the next chunk is being read. When the input ends the
+ * runs are merged with a heap (k-way merge). Inputs that fit in a single chunk
+ * never touch the disk.
+ * <p>
+ * The chunks also take their memory from the {@link memoryGovernor}, so a chunk
+ * is spilled early, however small it is, when the pipes running at the same time
+ * have used up the shared budget.
+ */
+class externalSort implements Closeable {
+
+    // Upper bound of runs merged in a single pass, keeps open file handles bounded
+    static final int MAX_FAN_IN = 64;
+
+    // Rough per-line overhead of a String held in a list (header, array, reference)
+    static final long LINE_OVERHEAD = 56;
+
+    private final Comparator<String> order;
+    private final Comparator<String> key;
+    private final boolean unique;
+    private final long chunkLimit;
+    private final List<spillFile> runs = new ArrayList<>();
+    private final memoryGovernor.reservation memory;
+
+    private List<String> chunk = new ArrayList<>();
+    private long used;
+    // Memory of the chunk being spilled, held until it is written
+    private long spilling;
+    private Future<spillFile> pending;
+    private ExecutorService spiller;
+
+    /**
+     * @param key          compares the sort keys of two lines
+     * @param reverse      sort in descending order
+     * @param unique       keep only the first of lines with equal keys
+     * @param memoryBudget maximum bytes of lines kept in memory at once
+     */
+    externalSort(Comparator<String> key, boolean reverse, boolean unique, long memoryBudget) {
+        this.key = key;
+        this.unique = unique;
+        // Whole line is the last-resort comparison, like coreutils sort
+        Comparator<String> order = unique ? key : key.thenComparing(Comparator.naturalOrder());
+        this.order = reverse ? order.reversed() : order;
+        this.chunkLimit = Math.max(64 * 1024, memoryBudget / 2);
+        this.memory = memoryGovernor.reserve(true);
+    }
+
+    /**
+     * Buffers one line, spilling the current chunk to a sorted run when it
+     * outgrows its share of the memory budget.
+     *
+     * @param line line to sort, without its terminator
+     */
+    void add(String line) throws IOException {
+        chunk.add(line);
+        used += LINE_OVERHEAD + 2L * line.length();
+        if (used >= chunkLimit || !hasMemory()) {
+            // Only one chunk is spilled at a time so memory stays within the budget
+            if (pending != null) {
+                runs.add(await(pending));
+            }
+            String[] lines = chunk.toArray(new String[0]);
+            pending = spiller().submit(() -> spill(lines));
+            chunk = new ArrayList<>();
+            spilling = used;
+            used = 0;
+            memory.trim(spilling);
+        }
+    }
+
+    // Whether the governor lets the chunk grow, once the chunk being spilled is written if need be
+    private boolean hasMemory() throws IOException {
+        if (memory.cover(used + spilling)) {
+            return true;
+        }
+        if (pending == null) {
+            return false;
+        }
+        runs.add(await(pending));
+        pending = null;
+        spilling = 0;
+        return memory.cover(used);
+    }
+
+    /**
+     * Sorts whatever is still buffered, merges it with the spilled runs and
+     * passes the result on. Merging stops as soon as the sink wants no more lines.
+     *
+     * @param out receives the sorted lines
+     */
+    void writeTo(lineSink out) throws IOException {
+        if (pending != null) {
+            runs.add(await(pending));
+            pending = null;
+            spilling = 0;
+            memory.trim(used);
+        }
+        String[] last = chunk.toArray(new String[0]);
+        chunk = new ArrayList<>();
+        used = 0;
+        Arrays.parallelSort(last, order);
+        if (runs.isEmpty()) {
+            writeLines(Arrays.asList(last).iterator(), out);
+            return;
+        }
+        if (last.length > 0) {
+            runs.add(writeRun(last));
+        }
+        while (runs.size() > MAX_FAN_IN) {
+            mergePass();
+        }
+        try (runMerger merger = new runMerger(runs, order)) {
+            writeLines(merger, out);
+        }
+    }
+
+    /**
+     * Stops the spill thread and deletes every run file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (spiller != null) {
+            spiller.shutdownNow();
+        }
+        if (pending != null) {
+            try {
+                runs.add(await(pending));
+            } catch (IOException ignored) {
+            }
+            pending = null;
+        }
+        for (spillFile run : runs) {
+            run.close();
+        }
+        runs.clear();
+        memory.close();
+    }
+
+    private ExecutorService spiller() {
+        if (spiller == null) {
+            spiller = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "sort-spill");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return spiller;
+    }
+
+    /**
+     * @return number of sorted runs currently spilled to disk
+     */
+    int spilledRuns() {
+        return runs.size();
+    }
+
+    private spillFile spill(String[] lines) throws IOException {
+        Arrays.parallelSort(lines, order);
+        return writeRun(lines);
+    }
+
+    private spillFile writeRun(String[] lines) throws IOException {
+        spillFile run = new spillFile("plutos-sort");
+        try {
+            // Runs keep duplicates, -u is applied once while merging
+            for (String line : lines) {
+                run.write(line);
+            }
+        } catch (IOException e) {
+            run.close();
+            throw e;
+        }
+        return run;
+    }
+
+    // Merges the oldest runs into one so the final merge stays under MAX_FAN_IN
+    private void mergePass() throws IOException {
+        List<spillFile> group = new ArrayList<>(runs.subList(0, MAX_FAN_IN));
+        spillFile merged = new spillFile("plutos-sort");
+        try (runMerger merger = new runMerger(group, order)) {
+            while (merger.hasNext()) {
+                merged.write(merger.next());
+            }
+        } catch (UncheckedIOException e) {
+            merged.close();
+            throw e.getCause();
+        } catch (IOException e) {
+            merged.close();
+            throw e;
+        }
+        for (spillFile run : group) {
+            run.close();
+        }
+        runs.subList(0, MAX_FAN_IN).clear();
+        // The merged run holds the oldest lines, first in line so ties keep their input order
+        runs.add(0, merged);
+    }
+
+    private void writeLines(Iterator<String> lines, lineSink out) throws IOException {
+        String previous = null;
+        try {
+            while (lines.hasNext()) {
+                String line = lines.next();
+                if (unique && previous != null && key.compare(previous, line) == 0) {
+                    continue;
+                }
+                if (!out.accept(line)) {
+                    return;
+                }
+                previous = line;
+            }
+        } catch (UncheckedIOException e) {
+            // a run file could not be read back
+            throw e.getCause();
+        }
+    }
+
+    private static spillFile await(Future<spillFile> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("sort interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Heap based k-way merge over sorted run files.
+     */
+    private static class runMerger implements Iterator<String>, Closeable {
+        private final PriorityQueue<cursor> heap;
+        private final List<spillFile.reader> readers = new ArrayList<>();
+
+        runMerger(List<spillFile> runs, Comparator<String> order) throws IOException {
+            // Ties are broken by run index so equal lines keep their input order
+            heap = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) -> {
+                int c = order.compare(a.line, b.line);
+                return c != 0 ? c : Integer.compare(a.index, b.index);
+            });
+            try {
+                for (int i = 0; i < runs.size(); i++) {
+                    spillFile.reader reader = runs.get(i).read();
+                    readers.add(reader);
+                    String first = reader.readLine();
+                    if (first != null) {
+                        heap.add(new cursor(reader, first, i));
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heap.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            cursor top = heap.poll();
+            if (top == null) {
+                throw new NoSuchElementException();
+            }
+            String line = top.line;
+            try {
+                String following = top.reader.readLine();
+                if (following != null) {
+                    top.line = following;
+                    heap.add(top);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return line;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (spillFile.reader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private static class cursor {
+        final spillFile.reader reader;
+        final int index;
+        String line;
+
+        cursor(spillFile.reader reader, String line, int index) {
+            this.reader = reader;
+            this.line = line;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,582 @@
+package org.os;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Compares files line by line, and directory trees file by file, for the diff command.
+ * <p>
+ * Both files are read at the same time and their common beginning is skipped
+ * without being kept in memory. The rest of each file becomes an array of line
+ * numbers, equal lines getting the same number, so the comparison works on ints
+ * and every distinct line is stored once. The common end is trimmed, lines that
+ * appear in only one of the files are marked as changed right away, and what is
+ * left goes through Myers' O(ND) algorithm in its linear space version: the middle
+ * snake of the edit path is found by searching from both ends at once, then both
+ * halves are solved the same way. Memory stays proportional to the number of
+ * lines, whatever the number of differences. Files that have almost nothing in
+ * common stop searching for the shortest script after a few thousand edits, like
+ * GNU diff does, so they cost seconds rather than hours.
+ * <p>
+ * Trees are walked in parallel. Files with the same size and modification time are
+ * taken as equal without being read, files with the same size are compared byte by
+ * byte before any line is split, and only the files that differ are diffed.
+ */
+class fileDiff {
+
+    // Lines of context around the changes of a unified diff
+    private static final int CONTEXT = 3;
+
+    private final boolean unified;
+    private final String nameA;
+    private final String nameB;
+
+    // Distinct lines of both files, indexed by line number
+    private final Map<String, Integer> numbers = new HashMap<>();
+    private final List<String> lines = new ArrayList<>();
+
+    // Last lines of the common beginning, kept for the context of the first hunk
+    private final ArrayDeque<String> prefixTail = new ArrayDeque<>();
+    private int prefix;
+
+    private int[] a;
+    private int[] b;
+    private boolean[] deleted;
+    private boolean[] inserted;
+
+    // Myers' search state, and the split point it found
+    private int[] forward;
+    private int[] backward;
+    private int offset;
+    private int tooExpensive;
+    private int splitA;
+    private int splitB;
+
+    private fileDiff(boolean unified, String nameA, String nameB) {
+        this.unified = unified;
+        this.nameA = nameA;
+        this.nameB = nameB;
+    }
+
+    /**
+     * Compares two files and writes their differences, nothing if they are equal.
+     * Files ending in .gz are compared decompressed.
+     *
+     * @param unified unified format (-u) instead of the normal one
+     * @param nameA   name of the first file in the output
+     * @param nameB   name of the second file in the output
+     */
+    static void files(Path fileA, Path fileB, String nameA, String nameB, boolean unified, lineSink out)
+            throws IOException {
+        if (Files.size(fileA) == Files.size(fileB) && Files.mismatch(fileA, fileB) == -1) {
+            return;
+        }
+        if (isBinary(fileA) || isBinary(fileB)) {
+            out.accept("Binary files " + nameA + " and " + nameB + " differ");
+            return;
+        }
+        // The distinct lines, as Strings, take about twice the bytes of the files; the
+        // comparison cannot spill, so it waits for the memory governor instead
+        try (memoryGovernor.reservation memory = memoryGovernor.reserve(false)) {
+            memory.cover(2 * (Files.size(fileA) + Files.size(fileB)));
+            fileDiff diff = new fileDiff(unified, nameA, nameB);
+            try (BufferedReader readerA = cmd.openReader(fileA); BufferedReader readerB = cmd.openReader(fileB)) {
+                diff.read(readerA, readerB);
+            }
+            diff.compare();
+            diff.print(out);
+        }
+    }
+
+    /**
+     * Compares two directory trees (diff -r) and writes the differences of every pair
+     * of files, and the names found in only one of them, in path order.
+     *
+     * @param nameA name of the first directory in the output
+     * @param nameB name of the second directory in the output
+     */
+    static void trees(Path dirA, Path dirB, String nameA, String nameB, boolean unified, lineSink out)
+            throws IOException {
+        for (String line : new treeTask(dirA, dirB, nameA, nameB, unified).invoke()) {
+            if (!out.accept(line)) {
+                return;
+            }
+        }
+    }
+
+    private static boolean isBinary(Path file) throws IOException {
+        try (InputStream in = cmd.gunzipIfNeeded(cmd.entryName(file), Files.newInputStream(file))) {
+            return contentIndex.isBinary(in);
+        }
+    }
+
+    // Skips the common beginning, then numbers the remaining lines of both files
+    private void read(BufferedReader readerA, BufferedReader readerB) throws IOException {
+        String lineA = readerA.readLine();
+        String lineB = readerB.readLine();
+        while (lineA != null && lineA.equals(lineB)) {
+            prefix++;
+            prefixTail.addLast(lineA);
+            if (prefixTail.size() > CONTEXT) {
+                prefixTail.removeFirst();
+            }
+            lineA = readerA.readLine();
+            lineB = readerB.readLine();
+        }
+        a = number(lineA, readerA);
+        b = number(lineB, readerB);
+    }
+
+    private int[] number(String first, BufferedReader reader) throws IOException {
+        int[] numbered = new int[1024];
+        int count = 0;
+        for (String line = first; line != null; line = reader.readLine()) {
+            if (count == numbered.length) {
+                numbered = Arrays.copyOf(numbered, count * 2);
+            }
+            Integer number = numbers.get(line);
+            if (number == null) {
+                number = lines.size();
+                numbers.put(line, number);
+                lines.add(line);
+            }
+            numbered[count++] = number;
+        }
+        return Arrays.copyOf(numbered, count);
+    }
+
+    // Marks every line of a that is not in b as deleted, and every line of b not in a as inserted
+    private void compare() {
+        deleted = new boolean[a.length];
+        inserted = new boolean[b.length];
+        int end = 0;
+        while (end < a.length && end < b.length && a[a.length - 1 - end] == b[b.length - 1 - end]) {
+            end++;
+        }
+
+        // A line that is not in the other file cannot be matched, no need to search for it
+        int[] inA = new int[lines.size()];
+        int[] inB = new int[lines.size()];
+        for (int i = 0; i < a.length - end; i++) {
+            inA[a[i]]++;
+        }
+        for (int i = 0; i < b.length - end; i++) {
+            inB[b[i]]++;
+        }
+        int[] keptA = keep(a, a.length - end, inB, deleted);
+        int[] keptB = keep(b, b.length - end, inA, inserted);
+
+        int[] sequenceA = new int[keptA.length];
+        int[] sequenceB = new int[keptB.length];
+        for (int i = 0; i < keptA.length; i++) {
+            sequenceA[i] = a[keptA[i]];
+        }
+        for (int i = 0; i < keptB.length; i++) {
+            sequenceB[i] = b[keptB[i]];
+        }
+        offset = (sequenceA.length + sequenceB.length + 1) / 2 + 1;
+        // About the square root of the number of lines, at least 4096, as GNU diff does
+        tooExpensive = 1;
+        for (int diagonals = sequenceA.length + sequenceB.length + 3; diagonals != 0; diagonals >>= 2) {
+            tooExpensive <<= 1;
+        }
+        tooExpensive = Math.max(4096, tooExpensive);
+        forward = new int[2 * offset + 1];
+        backward = new int[2 * offset + 1];
+        solve(sequenceA, sequenceB, keptA, keptB, 0, sequenceA.length, 0, sequenceB.length);
+    }
+
+    // Positions of the lines among the first 'length' that also occur in the other file; marks the others
+    private static int[] keep(int[] numbered, int length, int[] inOther, boolean[] changed) {
+        int[] kept = new int[length];
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            if (inOther[numbered[i]] > 0) {
+                kept[count++] = i;
+            } else {
+                changed[i] = true;
+            }
+        }
+        return Arrays.copyOf(kept, count);
+    }
+
+    // Finds a shortest edit script between sa[aLo, aHi) and sb[bLo, bHi) by divide and conquer
+    private void solve(int[] sa, int[] sb, int[] positionsA, int[] positionsB, int aLo, int aHi, int bLo, int bHi) {
+        while (aLo < aHi && bLo < bHi && sa[aLo] == sb[bLo]) {
+            aLo++;
+            bLo++;
+        }
+        while (aLo < aHi && bLo < bHi && sa[aHi - 1] == sb[bHi - 1]) {
+            aHi--;
+            bHi--;
+        }
+        if (aLo == aHi) {
+            for (int j = bLo; j < bHi; j++) {
+                inserted[positionsB[j]] = true;
+            }
+        } else if (bLo == bHi) {
+            for (int i = aLo; i < aHi; i++) {
+                deleted[positionsA[i]] = true;
+            }
+        } else {
+            // Both ends differ, so at least two edits are left and both halves are smaller
+            middleSnake(sa, sb, aLo, aHi, bLo, bHi);
+            int x = splitA;
+            int y = splitB;
+            solve(sa, sb, positionsA, positionsB, aLo, x, bLo, y);
+            solve(sa, sb, positionsA, positionsB, x, aHi, y, bHi);
+        }
+    }
+
+    // Searches for the shortest edit path from both corners until the two searches meet
+    private void middleSnake(int[] sa, int[] sb, int aLo, int aHi, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        for (int d = 0; d <= (n + m + 1) / 2; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])
+                        ? forward[offset + k + 1] : forward[offset + k - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && sa[aLo + x] == sb[bLo + y]) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+                int reverse = delta - k;
+                if (odd && reverse >= -(d - 1) && reverse <= d - 1 && x + backward[offset + reverse] >= n) {
+                    splitA = aLo + x;
+                    splitB = bLo + y;
+                    return;
+                }
+            }
+            for (int k = -d; k <= d; k += 2) {
+                // x and y count the lines taken from the ends
+                int x = k == -d || (k != d && backward[offset + k - 1] < backward[offset + k + 1])
+                        ? backward[offset + k + 1] : backward[offset + k - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && sa[aHi - 1 - x] == sb[bHi - 1 - y]) {
+                    x++;
+                    y++;
+                }
+                backward[offset + k] = x;
+                int ahead = delta - k;
+                if (!odd && ahead >= -d && ahead <= d && x + forward[offset + ahead] >= n) {
+                    splitA = aHi - x;
+                    splitB = bHi - y;
+                    return;
+                }
+            }
+            if (d >= tooExpensive && furthestPoint(n, m, d, aLo, aHi, bLo, bHi)) {
+                return;
+            }
+        }
+        throw new IllegalStateException("edit paths did not meet");
+    }
+
+    // Like GNU diff without --minimal, gives up on the shortest path after too many edits and
+    // splits at the point either search got furthest to; the diff is then valid but may be longer
+    private boolean furthestPoint(int n, int m, int d, int aLo, int aHi, int bLo, int bHi) {
+        int bestForward = -1;
+        int forwardX = 0;
+        int bestBackward = -1;
+        int backwardX = 0;
+        for (int k = -d; k <= d; k += 2) {
+            int x = Math.min(forward[offset + k], n);
+            if (x - k >= 0 && x - k <= m && 2 * x - k > bestForward) {
+                bestForward = 2 * x - k;
+                forwardX = x;
+            }
+            x = Math.min(backward[offset + k], n);
+            if (x - k >= 0 && x - k <= m && 2 * x - k > bestBackward) {
+                bestBackward = 2 * x - k;
+                backwardX = x;
+            }
+        }
+        if (bestForward >= bestBackward && bestForward > 0 && bestForward < n + m) {
+            splitA = aLo + forwardX;
+            splitB = bLo + bestForward - forwardX;
+            return true;
+        }
+        if (bestBackward > 0 && bestBackward < n + m) {
+            splitA = aHi - backwardX;
+            splitB = bHi - (bestBackward - backwardX);
+            return true;
+        }
+        return false;
+    }
+
+    private String lineA(int i) {
+        return i < prefix ? prefixLine(i) : lines.get(a[i - prefix]);
+    }
+
+    private String lineB(int j) {
+        return j < prefix ? prefixLine(j) : lines.get(b[j - prefix]);
+    }
+
+    // Only the last few lines of the common beginning are kept, the context never reaches further back
+    private String prefixLine(int i) {
+        Iterator<String> kept = prefixTail.iterator();
+        for (int skip = i - (prefix - prefixTail.size()); skip > 0; skip--) {
+            kept.next();
+        }
+        return kept.next();
+    }
+
+    private boolean isDeleted(int i) {
+        return i >= prefix && deleted[i - prefix];
+    }
+
+    private boolean isInserted(int j) {
+        return j >= prefix && inserted[j - prefix];
+    }
+
+    private void print(lineSink out) throws IOException {
+        List<int[]> changes = changes();
+        if (changes.isEmpty()) {
+            return; // only the compressed bytes differ
+        }
+        if (unified) {
+            printUnified(changes, out);
+        } else {
+            printNormal(changes, out);
+        }
+    }
+
+    // Changed blocks as {first line of a, end in a, first line of b, end in b}, in file order
+    private List<int[]> changes() {
+        List<int[]> changes = new ArrayList<>();
+        int totalA = prefix + a.length;
+        int totalB = prefix + b.length;
+        int i = prefix;
+        int j = prefix;
+        while (i < totalA || j < totalB) {
+            if (i < totalA && j < totalB && !isDeleted(i) && !isInserted(j)) {
+                i++;
+                j++;
+                continue;
+            }
+            int startA = i;
+            int startB = j;
+            while (i < totalA && isDeleted(i)) {
+                i++;
+            }
+            while (j < totalB && isInserted(j)) {
+                j++;
+            }
+            changes.add(new int[]{startA, i, startB, j});
+        }
+        return changes;
+    }
+
+    private void printNormal(List<int[]> changes, lineSink out) throws IOException {
+        for (int[] change : changes) {
+            boolean deletes = change[1] > change[0];
+            boolean inserts = change[3] > change[2];
+            String command = deletes && inserts ? "c" : deletes ? "d" : "a";
+            // A side without lines is named by the line after which the change goes
+            String rangeA = deletes ? range(change[0] + 1, change[1]) : String.valueOf(change[0]);
+            String rangeB = inserts ? range(change[2] + 1, change[3]) : String.valueOf(change[2]);
+            if (!out.accept(rangeA + command + rangeB)) {
+                return;
+            }
+            for (int i = change[0]; i < change[1]; i++) {
+                if (!out.accept("< " + lineA(i))) {
+                    return;
+                }
+            }
+            if (deletes && inserts && !out.accept("---")) {
+                return;
+            }
+            for (int j = change[2]; j < change[3]; j++) {
+                if (!out.accept("> " + lineB(j))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static String range(int first, int last) {
+        return first == last ? String.valueOf(first) : first + "," + last;
+    }
+
+    private void printUnified(List<int[]> changes, lineSink out) throws IOException {
+        if (!out.accept("--- " + nameA) || !out.accept("+++ " + nameB)) {
+            return;
+        }
+        int totalA = prefix + a.length;
+        int next = 0;
+        while (next < changes.size()) {
+            // Changes closer than twice the context share one hunk
+            int last = next;
+            while (last + 1 < changes.size() && changes.get(last + 1)[0] - changes.get(last)[1] <= 2 * CONTEXT) {
+                last++;
+            }
+            int[] first = changes.get(next);
+            int[] end = changes.get(last);
+            int before = Math.min(CONTEXT, first[0]);
+            int after = Math.min(CONTEXT, totalA - end[1]);
+            int startA = first[0] - before;
+            int startB = first[2] - before;
+            int countA = end[1] + after - startA;
+            int countB = end[3] + after - startB;
+            if (!out.accept("@@ -" + hunkRange(startA, countA) + " +" + hunkRange(startB, countB) + " @@")) {
+                return;
+            }
+
+            int i = startA;
+            int j = startB;
+            for (int c = next; c <= last; c++) {
+                int[] change = changes.get(c);
+                for (; i < change[0]; i++, j++) {
+                    if (!out.accept(" " + lineA(i))) {
+                        return;
+                    }
+                }
+                for (; i < change[1]; i++) {
+                    if (!out.accept("-" + lineA(i))) {
+                        return;
+                    }
+                }
+                for (; j < change[3]; j++) {
+                    if (!out.accept("+" + lineB(j))) {
+                        return;
+                    }
+                }
+            }
+            for (int k = 0; k < after; k++, i++) {
+                if (!out.accept(" " + lineA(i))) {
+                    return;
+                }
+            }
+            next = last + 1;
+        }
+    }
+
+    // Empty ranges are named by the line before them, like GNU diff does
+    private static String hunkRange(int start, int count) {
+        if (count == 0) {
+            return start + ",0";
+        }
+        return count == 1 ? String.valueOf(start + 1) : (start + 1) + "," + count;
+    }
+
+    // Compares one pair of directories, forking a task per subdirectory and per file pair that must be read
+    private static class treeTask extends RecursiveTask<List<String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dirA;
+        private final Path dirB;
+        private final String nameA;
+        private final String nameB;
+        private final boolean unified;
+
+        treeTask(Path dirA, Path dirB, String nameA, String nameB, boolean unified) {
+            this.dirA = dirA;
+            this.dirB = dirB;
+            this.nameA = nameA;
+            this.nameB = nameB;
+            this.unified = unified;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected List<String> compute() {
+            TreeMap<String, BasicFileAttributes> entriesA = list(dirA);
+            TreeMap<String, BasicFileAttributes> entriesB = list(dirB);
+            TreeSet<String> names = new TreeSet<>(entriesA.keySet());
+            names.addAll(entriesB.keySet());
+
+            // Results in name order: either lines ready now, or a task still running
+            List<Object> results = new ArrayList<>();
+            for (String name : names) {
+                BasicFileAttributes attributesA = entriesA.get(name);
+                BasicFileAttributes attributesB = entriesB.get(name);
+                String childA = nameA + "/" + name;
+                String childB = nameB + "/" + name;
+                if (attributesB == null) {
+                    results.add(List.of("Only in " + nameA + ": " + name));
+                } else if (attributesA == null) {
+                    results.add(List.of("Only in " + nameB + ": " + name));
+                } else if (attributesA.isDirectory() && attributesB.isDirectory()) {
+                    results.add(new treeTask(dirA.resolve(name), dirB.resolve(name), childA, childB, unified).fork());
+                } else if (attributesA.isDirectory() || attributesB.isDirectory()) {
+                    results.add(List.of("File " + childA + " is a " + kind(attributesA) + " while file " + childB
+                            + " is a " + kind(attributesB)));
+                } else if (attributesA.isRegularFile() && attributesB.isRegularFile()
+                        && !(attributesA.size() == attributesB.size()
+                        && attributesA.lastModifiedTime().equals(attributesB.lastModifiedTime()))) {
+                    Path fileA = dirA.resolve(name);
+                    Path fileB = dirB.resolve(name);
+                    results.add(new RecursiveTask<List<String>>() {
+                        @Override
+                        protected List<String> compute() {
+                            return compareFiles(fileA, fileB, childA, childB, unified);
+                        }
+                    }.fork());
+                }
+            }
+
+            List<String> output = new ArrayList<>();
+            for (Object result : results) {
+                if (result instanceof RecursiveTask) {
+                    output.addAll(((RecursiveTask<List<String>>) result).join());
+                } else {
+                    output.addAll((List<String>) result);
+                }
+            }
+            return output;
+        }
+
+        private static List<String> compareFiles(Path fileA, Path fileB, String nameA, String nameB, boolean unified) {
+            List<String> output = new ArrayList<>();
+            try {
+                files(fileA, fileB, nameA, nameB, unified, line -> {
+                    if (output.isEmpty()) {
+                        output.add("diff -r" + (unified ? "u " : " ") + nameA + " " + nameB);
+                    }
+                    return output.add(line);
+                });
+            } catch (IOException e) {
+                output.add("diff: " + nameA + ": " + e.getMessage());
+            }
+            // A binary file is its own header
+            if (output.size() == 2 && output.get(1).startsWith("Binary files ")) {
+                output.remove(0);
+            }
+            return output;
+        }
+
+        private static String kind(BasicFileAttributes attributes) {
+            if (attributes.isDirectory()) {
+                return "directory";
+            }
+            return attributes.isRegularFile() ? "regular file" : "special file";
+        }
+
+        private static TreeMap<String, BasicFileAttributes> list(Path dir) {
+            TreeMap<String, BasicFileAttributes> entries = new TreeMap<>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                for (Path child : children) {
+                    try {
+                        entries.put(cmd.entryName(child),
+                                Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+                    } catch (IOException e) {
+                        // vanished while listing
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                // an unreadable directory compares as empty
+            }
+            return entries;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.os;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+
+/**
+ * Computes checksums of many files in parallel.
+ * <p>
+ * Files are hashed on a shared, bounded pool of worker threads. Each worker keeps
+ * its own digest instance and its own direct read buffer, so nothing is allocated
+ * per file. Large files are memory-mapped in windows and fed to the digest
+ * without copying them onto the Java heap.
+ */
+class fileHasher {
+
+    // Files at least this big are mapped instead of read
+    private static final long MAP_THRESHOLD = 4 << 20;
+
+    // Mapping window, keeps address space use bounded for huge files
+    private static final long MAP_WINDOW = 64 << 20;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "checksum-worker");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private final Supplier<hash> factory;
+    private final ThreadLocal<hash> hashes;
+
+    /**
+     * @return the algorithm of a checksum command ("sha256sum", "md5sum", "crc32c"), or null for other names
+     */
+    static String algorithmOf(String command) {
+        return switch (command.toLowerCase()) {
+            case "sha256sum" -> "SHA-256";
+            case "md5sum" -> "MD5";
+            case "crc32c" -> "CRC32C";
+            default -> null;
+        };
+    }
+
+    /**
+     * @param algorithm "SHA-256", "MD5" or "CRC32C"
+     */
+    fileHasher(String algorithm) throws NoSuchAlgorithmException {
+        if (algorithm.equals("CRC32C")) {
+            factory = () -> new crcHash(new CRC32C());
+        } else {
+            MessageDigest.getInstance(algorithm); // fail fast on unknown names
+            factory = () -> {
+                try {
+                    return new digestHash(MessageDigest.getInstance(algorithm));
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+        }
+        hashes = ThreadLocal.withInitial(factory);
+    }
+
+    /**
+     * Hashes the files in parallel.
+     *
+     * @param files files to hash
+     * @return one future per file, in the same order, holding the hex checksum
+     */
+    List<Future<String>> hashAll(List<Path> files) {
+        List<Future<String>> results = new ArrayList<>(files.size());
+        for (Path file : files) {
+            results.add(POOL.submit(() -> hash(file)));
+        }
+        return results;
+    }
+
+    /**
+     * Starts a checksum of data that arrives piece by piece (e.g. from a pipe).
+     */
+    incremental start() {
+        return new incremental(factory.get());
+    }
+
+    /**
+     * A checksum being fed by a single caller.
+     */
+    static class incremental {
+        private final hash hash;
+
+        private incremental(hash hash) {
+            this.hash = hash;
+        }
+
+        void update(byte[] data) {
+            hash.update(ByteBuffer.wrap(data));
+        }
+
+        void update(byte[] data, int offset, int length) {
+            hash.update(ByteBuffer.wrap(data, offset, length));
+        }
+
+        /**
+         * @return the hex checksum of everything passed to update
+         */
+        String finish() {
+            return HexFormat.of().formatHex(hash.finish());
+        }
+    }
+
+    private String hash(Path file) throws IOException {
+        hash hash = hashes.get();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            // Only files on disk can be mapped, archive entries are read like small files
+            if (size >= MAP_THRESHOLD && file.getFileSystem() == FileSystems.getDefault()) {
+                for (long position = 0; position < size; position += MAP_WINDOW) {
+                    MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(MAP_WINDOW, size - position));
+                    hash.update(window);
+                }
+            } else {
+                ByteBuffer buffer = BUFFERS.get();
+                buffer.clear();
+                while (channel.read(buffer) >= 0) {
+                    buffer.flip();
+                    hash.update(buffer);
+                    buffer.clear();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            hash.finish(); // leave the reused instance clean for the next file
+            throw e;
+        }
+        return HexFormat.of().formatHex(hash.finish());
+    }
+
+    /**
+     * Waits for a result of {@link #hashAll}.
+     *
+     * @return the checksum, or null when the file could not be read
+     */
+    static String await(Future<String> result) {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private interface hash {
+        void update(ByteBuffer data);
+
+        // Returns the checksum and resets the instance for reuse
+        byte[] finish();
+    }
+
+    private static class digestHash implements hash {
+        private final MessageDigest digest;
+
+        digestHash(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void update(ByteBuffer data) {
+            digest.update(data);
+        }
+
+        @Override
+        public byte[] finish() {
+            return digest.digest();
+        }
+    }
+
+    private static class crcHash implements hash {
+        private final CRC32C crc;
+
+        crcHash(CRC32C crc) {
+            this.crc = crc;
+        }
+
+        @Override
+        public void update(ByteBuffer data) {
+            crc.update(data);
+        }
+
+        @Override
+        public byte[] finish() {
+            long value = crc.getValue();
+            crc.reset();
+            return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        }
+    }
+}
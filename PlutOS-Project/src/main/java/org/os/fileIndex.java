@@ -0,0 +1,502 @@
+package org.os;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+/**
+ * A file name index for locate, built by updatedb (the same idea as mlocate).
+ * <p>
+ * The index holds one group per directory: its path, its modification time and
+ * the names of its entries. Paths and names are front-coded, each one stores only
+ * how many bytes it shares with the previous one and the bytes that differ, which
+ * makes the file a fraction of the size of the plain path list. Front coding
+ * restarts every {@link #BLOCK_BYTES} bytes and the start of every block is kept
+ * in a table at the end of the file, so a lookup scans the memory-mapped blocks
+ * on all cores and builds a String only for the paths that match.
+ * <p>
+ * A directory's modification time changes whenever an entry is added to it or
+ * removed from it. updatedb therefore only lists directories whose time differs
+ * from the one in the previous index; the entries of the others are copied from
+ * it, which turns a rebuild into one stat per directory.
+ */
+public class fileIndex {
+
+    private static final int MAGIC = 0x504c4442;
+    private static final int VERSION = 1;
+
+    // Header: [int magic][int version][long entries][long directories][long block table][int blocks][int unused]
+    private static final int HEADER = 40;
+
+    private static final int BLOCK_BYTES = 64 * 1024;
+
+    private final ByteBuffer data;
+    private final long entries;
+    private final long directories;
+    private final int[] blocks;
+    private final int bodyEnd;
+
+    private fileIndex(ByteBuffer data) throws IOException {
+        this.data = data;
+        if (data.capacity() < HEADER || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+            throw new IOException("not a locate index");
+        }
+        entries = data.getLong(8);
+        directories = data.getLong(16);
+        bodyEnd = (int) data.getLong(24);
+        blocks = new int[data.getInt(32)];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = (int) data.getLong(bodyEnd + i * Long.BYTES);
+        }
+    }
+
+    /**
+     * Opens an index written by {@link #update}.
+     */
+    public static fileIndex open(Path db) throws IOException {
+        return new fileIndex(load(db, "locate index"));
+    }
+
+    // The whole of an index file (locate or grep), named 'kind' in errors
+    static ByteBuffer load(Path file, String kind) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(kind + " is larger than 2 GiB");
+            }
+            // Only files on disk can be mapped, an index on a ramdisk is read into memory
+            if (file.getFileSystem() == FileSystems.getDefault()) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading until the buffer is full
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * @return number of paths in the index
+     */
+    public long entries() {
+        return entries;
+    }
+
+    /**
+     * @return number of directories in the index
+     */
+    public long directories() {
+        return directories;
+    }
+
+    /**
+     * What a run of updatedb did.
+     */
+    public static class stats {
+        public long entries;
+        public long directories;
+        public long listed;
+        public long unchanged;
+    }
+
+    /**
+     * Indexes every file and directory under a root, reusing the previous index
+     * for the directories that have not changed since.
+     *
+     * @param root directory to index
+     * @param db   index file, replaced atomically once the new one is complete
+     */
+    public static stats update(Path root, Path db) throws IOException {
+        root = root.toAbsolutePath().normalize();
+        Map<String, previous> old = new HashMap<>();
+        fileIndex oldIndex = null;
+        if (Files.exists(db)) {
+            try {
+                oldIndex = open(db);
+                oldIndex.directories(old);
+            } catch (IOException | RuntimeException e) {
+                // a damaged index is simply rebuilt from scratch
+                old.clear();
+                oldIndex = null;
+            }
+        }
+
+        stats stats = new stats();
+        List<Long> blocks = new ArrayList<>();
+        Path temp = db.resolveSibling(db.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.write(new byte[HEADER]);
+            byte[] previousDir = new byte[0];
+            long blockStart = 0;
+
+            // Depth-first with sorted siblings, so consecutive directory paths share long prefixes
+            Deque<Path> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                Path dir = stack.pop();
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(dir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    continue; // removed while indexing
+                }
+                long modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+                String dirName = dir.toString();
+                previous known = old.get(dirName);
+                List<entry> children;
+                if (known != null && known.modified == modified) {
+                    children = oldIndex.children(known.childrenAt);
+                    stats.unchanged++;
+                } else {
+                    children = list(dir);
+                    stats.listed++;
+                }
+
+                if (blocks.isEmpty() || out.size() - blockStart >= BLOCK_BYTES) {
+                    blockStart = out.size();
+                    blocks.add(blockStart);
+                    previousDir = new byte[0];
+                }
+                byte[] path = dirName.getBytes(StandardCharsets.UTF_8);
+                writeFrontCoded(out, previousDir, path);
+                previousDir = path;
+                writeVarint(out, modified);
+                writeVarint(out, children.size());
+                byte[] previousName = new byte[0];
+                for (entry child : children) {
+                    byte[] name = child.name.getBytes(StandardCharsets.UTF_8);
+                    out.writeByte(child.directory ? 1 : 0);
+                    writeFrontCoded(out, previousName, name);
+                    previousName = name;
+                }
+                stats.directories++;
+                stats.entries += children.size();
+
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    if (children.get(i).directory) {
+                        stack.push(dir.resolve(children.get(i).name));
+                    }
+                }
+            }
+
+            long blockTable = out.size();
+            for (long block : blocks) {
+                out.writeLong(block);
+            }
+            if (out.size() == Integer.MAX_VALUE) {
+                throw new IOException("locate index is larger than 2 GiB");
+            }
+
+            out.flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putInt(VERSION).putLong(stats.entries).putLong(stats.directories)
+                    .putLong(blockTable).putInt(blocks.size()).putInt(0).flip();
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, db, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return stats;
+    }
+
+    /**
+     * Builds a matcher for {@link #locate}.
+     *
+     * @param pattern    text to find in the path; with '*', '?' or '[' a glob the whole path must match
+     * @param ignoreCase ignore the case of ASCII letters
+     * @param regex      the pattern is a regular expression to find in the path
+     */
+    public static matcher matcher(String pattern, boolean ignoreCase, boolean regex) {
+        int flags = ignoreCase ? Pattern.CASE_INSENSITIVE : 0;
+        if (regex) {
+            Pattern compiled = Pattern.compile(pattern, flags);
+            return (path, length, from) -> compiled.matcher(new String(path, 0, length, StandardCharsets.UTF_8)).find();
+        }
+        if (pattern.contains("*") || pattern.contains("?") || pattern.contains("[")) {
+            Pattern compiled = Pattern.compile(globToRegex(pattern), flags);
+            return (path, length, from) -> compiled.matcher(new String(path, 0, length, StandardCharsets.UTF_8)).matches();
+        }
+        byte[] needle = pattern.getBytes(StandardCharsets.UTF_8);
+        if (ignoreCase) {
+            for (int i = 0; i < needle.length; i++) {
+                needle[i] = lower(needle[i]);
+            }
+        }
+        return new literal(needle, ignoreCase);
+    }
+
+    /**
+     * Tests paths of the index, given as UTF-8 bytes in a reused buffer.
+     */
+    public interface matcher {
+        /**
+         * @param path   UTF-8 bytes of the path
+         * @param length length of the path
+         * @param from   bytes before this position were already tested without a match,
+         *               matchers that can only match whole paths ignore it
+         */
+        boolean matches(byte[] path, int length, int from);
+    }
+
+    /**
+     * Finds the indexed paths that match.
+     *
+     * @param limit most paths wanted; the scan stops once they are found
+     * @return the first paths in index order (directories depth first, names sorted)
+     */
+    public List<String> locate(matcher matcher, long limit) {
+        // With a limit the blocks are scanned a wave of one per core at a time, in order
+        int wave = limit == Long.MAX_VALUE ? Math.max(1, blocks.length) : Runtime.getRuntime().availableProcessors();
+        List<String> matches = new ArrayList<>();
+        for (int from = 0; from < blocks.length && matches.size() < limit; from += wave) {
+            long wanted = limit - matches.size();
+            IntStream.range(from, Math.min(blocks.length, from + wave))
+                    .parallel()
+                    .mapToObj(block -> scan(block, matcher, wanted))
+                    .flatMap(List::stream)
+                    .limit(wanted)
+                    .forEachOrdered(matches::add);
+        }
+        return matches;
+    }
+
+    // Decodes one block and collects its matching paths, no more than the limit
+    private List<String> scan(int block, matcher matcher, long limit) {
+        List<String> matches = new ArrayList<>();
+        cursor in = new cursor(data, blocks[block]);
+        int end = block + 1 < blocks.length ? blocks[block + 1] : bodyEnd;
+        byte[] path = new byte[256];
+        int dirLength = 0;
+        while (in.position < end && matches.size() < limit) {
+            // The directory is decoded in place, then each name is decoded right after it
+            int shared = in.varint();
+            int length = in.varint();
+            dirLength = shared + length;
+            path = grow(path, dirLength + 1);
+            in.read(path, shared, length);
+            in.varlong(); // modification time
+            int count = in.varint();
+            int base = dirLength == 1 && path[0] == '/' ? 1 : dirLength + 1;
+            path[dirLength] = '/';
+            // If the directory itself matches, every entry in it does; otherwise
+            // only the part of each path from the end of the directory is searched
+            boolean all = matcher instanceof literal && matcher.matches(path, base, 0);
+            int nameLength = 0;
+            for (int i = 0; i < count && matches.size() < limit; i++) {
+                in.get(); // type
+                shared = in.varint();
+                length = in.varint();
+                nameLength = shared + length;
+                path = grow(path, base + nameLength);
+                in.read(path, base + shared, length);
+                if (all || matcher.matches(path, base + nameLength, base)) {
+                    matches.add(new String(path, 0, base + nameLength, StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return matches;
+    }
+
+    // Collects the modification time of every directory and where its entries are stored
+    private void directories(Map<String, previous> into) {
+        for (int block = 0; block < blocks.length; block++) {
+            cursor in = new cursor(data, blocks[block]);
+            int end = block + 1 < blocks.length ? blocks[block + 1] : bodyEnd;
+            byte[] path = new byte[256];
+            while (in.position < end) {
+                int shared = in.varint();
+                int length = in.varint();
+                path = grow(path, shared + length);
+                in.read(path, shared, length);
+                long modified = in.varlong();
+                int childrenAt = in.position;
+                into.put(new String(path, 0, shared + length, StandardCharsets.UTF_8), new previous(modified, childrenAt));
+                int count = in.varint();
+                for (int i = 0; i < count; i++) {
+                    in.get();
+                    in.varint();
+                    int nameLength = in.varint();
+                    in.position += nameLength;
+                }
+            }
+        }
+    }
+
+    private List<entry> children(int position) {
+        cursor in = new cursor(data, position);
+        int count = in.varint();
+        List<entry> children = new ArrayList<>(count);
+        byte[] name = new byte[256];
+        for (int i = 0; i < count; i++) {
+            boolean directory = in.get() == 1;
+            int shared = in.varint();
+            int length = in.varint();
+            name = grow(name, shared + length);
+            in.read(name, shared, length);
+            children.add(new entry(new String(name, 0, shared + length, StandardCharsets.UTF_8), directory));
+        }
+        return children;
+    }
+
+    private static List<entry> list(Path dir) {
+        List<entry> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path child : stream) {
+                // Links to directories are listed but not followed, like find does
+                children.add(new entry(child.getFileName().toString(),
+                        Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)));
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            // unreadable directories are indexed as empty
+        }
+        children.sort(Comparator.comparing(e -> e.name));
+        return children;
+    }
+
+    // Writes the bytes the name shares with the previous one, then the rest
+    static void writeFrontCoded(DataOutputStream out, byte[] previous, byte[] current) throws IOException {
+        int shared = 0;
+        int max = Math.min(previous.length, current.length);
+        while (shared < max && previous[shared] == current[shared]) {
+            shared++;
+        }
+        writeVarint(out, shared);
+        writeVarint(out, current.length - shared);
+        out.write(current, shared, current.length - shared);
+    }
+
+    static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    // Finds a text in the paths without decoding them
+    private static class literal implements matcher {
+        private final byte[] needle;
+        private final boolean ignoreCase;
+
+        literal(byte[] needle, boolean ignoreCase) {
+            this.needle = needle;
+            this.ignoreCase = ignoreCase;
+        }
+
+        @Override
+        public boolean matches(byte[] path, int length, int from) {
+            // A match that ends before 'from' would already have been found in the directory
+            outer:
+            for (int i = Math.max(0, from - needle.length + 1); i <= length - needle.length; i++) {
+                for (int j = 0; j < needle.length; j++) {
+                    byte b = path[i + j];
+                    if ((ignoreCase ? lower(b) : b) != needle[j]) {
+                        continue outer;
+                    }
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static byte lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+    }
+
+    static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inClass = false;
+        for (char c : glob.toCharArray()) {
+            if (inClass) {
+                // [!abc] is the glob spelling of [^abc]
+                boolean negation = c == '!' && regex.charAt(regex.length() - 1) == '[';
+                regex.append(negation ? "^" : c == '\\' ? "\\\\" : String.valueOf(c));
+                inClass = c != ']';
+            } else if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else if (c == '[') {
+                regex.append('[');
+                inClass = true;
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+
+    private static byte[] grow(byte[] buffer, int needed) {
+        return needed <= buffer.length ? buffer : Arrays.copyOf(buffer, Math.max(needed, buffer.length * 2));
+    }
+
+    private static class entry {
+        final String name;
+        final boolean directory;
+
+        entry(String name, boolean directory) {
+            this.name = name;
+            this.directory = directory;
+        }
+    }
+
+    private static class previous {
+        final long modified;
+        final int childrenAt;
+
+        previous(long modified, int childrenAt) {
+            this.modified = modified;
+            this.childrenAt = childrenAt;
+        }
+    }
+
+    // Reads varints and bytes at an explicit position, so several readers can share a buffer
+    static class cursor {
+        private final ByteBuffer data;
+        int position;
+
+        cursor(ByteBuffer data, int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        byte get() {
+            return data.get(position++);
+        }
+
+        int varint() {
+            return (int) varlong();
+        }
+
+        long varlong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data.get(position++);
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        void read(byte[] into, int offset, int length) {
+            data.get(position, into, offset, length);
+            position += length;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package org.os;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One entry of a file listing (ls, find, du) with its attributes, passed through
+ * a pipe as an object instead of as text.
+ * <p>
+ * The attributes come from the single stat done when the entry is listed (on
+ * Linux that includes the permissions). The record stages 'where', 'sort-by',
+ * 'select' and 'to-json' filter, sort and print by field without formatting the
+ * listing, parsing it back or looking at the file again. Every other stage gets
+ * the line the listing command prints.
+ */
+class fileRecord {
+
+    static final List<String> FIELDS = List.of("path", "name", "type", "size", "mtime", "mode");
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    final Path path;
+    // file, dir, link or other
+    final String type;
+    final long size;
+    final FileTime mtime;
+    // rwxr-xr-x, or null where the file system does not report permissions
+    final String mode;
+    // Whether the entry, or the target of the link, is a directory
+    final boolean directory;
+
+    private final String line;
+    // Fields chosen by 'select', null for the listing's own line
+    private final List<String> shown;
+
+    private fileRecord(Path path, String type, long size, FileTime mtime, String mode, boolean directory,
+                       String line, List<String> shown) {
+        this.path = path;
+        this.type = type;
+        this.size = size;
+        this.mtime = mtime;
+        this.mode = mode;
+        this.directory = directory;
+        this.line = line;
+        this.shown = shown;
+    }
+
+    /**
+     * Makes the record of an entry from attributes read without following links.
+     *
+     * @param directory whether the entry or the target of the link is a directory
+     */
+    static fileRecord of(Path path, BasicFileAttributes attributes, boolean directory) {
+        String type = attributes.isSymbolicLink() ? "link" : attributes.isDirectory() ? "dir"
+                : attributes.isRegularFile() ? "file" : "other";
+        String mode = attributes instanceof PosixFileAttributes
+                ? PosixFilePermissions.toString(((PosixFileAttributes) attributes).permissions()) : null;
+        return new fileRecord(path, type, attributes.size(), attributes.lastModifiedTime(), mode, directory,
+                session.display(path), null);
+    }
+
+    /**
+     * Reads the attributes of an entry, stat'ing links a second time to see where they point.
+     */
+    static fileRecord stat(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        boolean directory = attributes.isSymbolicLink() ? Files.isDirectory(path) : attributes.isDirectory();
+        return of(path, attributes, directory);
+    }
+
+    /**
+     * @return the same entry with another size, as summed up by du
+     */
+    fileRecord withSize(long size) {
+        return new fileRecord(path, type, size, mtime, mode, directory, line, shown);
+    }
+
+    /**
+     * @return the same entry, printed as the given line by stages that do not take records
+     */
+    fileRecord withLine(String line) {
+        return new fileRecord(path, type, size, mtime, mode, directory, line, shown);
+    }
+
+    /**
+     * @return the same entry, printed and converted to JSON with only the given fields
+     */
+    fileRecord select(List<String> fields) {
+        return new fileRecord(path, type, size, mtime, mode, directory, line, fields);
+    }
+
+    /**
+     * @return the line printed for this entry: the listing's line, or the selected fields separated by tabs
+     */
+    String line() {
+        if (shown == null) {
+            return line;
+        }
+        StringBuilder text = new StringBuilder();
+        for (String field : shown) {
+            if (text.length() > 0) {
+                text.append('\t');
+            }
+            text.append(text(field));
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return one field as text
+     */
+    String text(String field) {
+        return switch (field) {
+            case "path" -> session.display(path);
+            case "name" -> cmd.entryName(path);
+            case "type" -> type;
+            case "size" -> Long.toString(size);
+            case "mtime" -> TIME.format(LocalDateTime.ofInstant(mtime.toInstant(), ZoneId.systemDefault()));
+            case "mode" -> mode == null ? "-" : mode;
+            default -> throw new IllegalArgumentException("Unknown field: " + field);
+        };
+    }
+
+    /**
+     * @return the record as a JSON object on one line
+     */
+    String json() {
+        StringBuilder json = new StringBuilder("{");
+        for (String field : shown == null ? FIELDS : shown) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            quote(field, json).append(':');
+            switch (field) {
+                case "size" -> json.append(size);
+                case "mtime" -> quote(mtime.toInstant().toString(), json);
+                case "mode" -> {
+                    if (mode == null) {
+                        json.append("null");
+                    } else {
+                        quote(mode, json);
+                    }
+                }
+                default -> quote(text(field), json);
+            }
+        }
+        return json.append('}').toString();
+    }
+
+    /**
+     * @return the names of the fields, checked
+     * @throws IllegalArgumentException for a name that is not a field
+     */
+    static List<String> fields(List<String> names) {
+        for (String name : names) {
+            if (!FIELDS.contains(name)) {
+                throw new IllegalArgumentException("Unknown field: " + name + " (fields: " + String.join(", ", FIELDS) + ")");
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return the order of records by a field: numbers by value, times by age, text alphabetically
+     */
+    static Comparator<fileRecord> order(String field) {
+        return switch (fields(List.of(field)).get(0)) {
+            case "size" -> Comparator.comparingLong(r -> r.size);
+            case "mtime" -> Comparator.comparing(r -> r.mtime);
+            default -> Comparator.comparing(r -> r.text(field));
+        };
+    }
+
+    private static StringBuilder quote(String text, StringBuilder json) {
+        json.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        return json.append('"');
+    }
+
+    /**
+     * A test on one field, as written after 'where': 'size > 1M', 'mtime > 2d'
+     * (changed in the last two days), 'mtime < 2024-01-31', 'type = dir',
+     * 'name ~ *.txt' (a glob).
+     */
+    static class condition {
+        private static final Pattern SYNTAX = Pattern.compile("(\\w+)\\s*(>=|<=|!=|==|=|>|<|~)\\s*(.+)");
+        private static final Pattern AGE = Pattern.compile("(\\d+)([smhdw])");
+        private static final Pattern SIZE = Pattern.compile("(\\d+)([KMGT]?)B?", Pattern.CASE_INSENSITIVE);
+
+        private final String field;
+        private final String operator;
+        private final String value;
+        private final long number;
+        private final FileTime time;
+        private final Pattern glob;
+
+        private condition(String field, String operator, String value) {
+            this.field = field;
+            this.operator = operator;
+            this.value = value;
+            boolean measured = field.equals("size") || field.equals("mtime");
+            if (operator.equals("~") && measured) {
+                throw new IllegalArgumentException("'~' matches text fields against a glob, not " + field);
+            }
+            number = field.equals("size") ? size(value) : 0;
+            time = field.equals("mtime") ? time(value) : null;
+            glob = operator.equals("~") ? Pattern.compile(fileIndex.globToRegex(value)) : null;
+        }
+
+        /**
+         * @param words the words after 'where'
+         * @throws IllegalArgumentException when they are not FIELD OPERATOR VALUE
+         */
+        static condition parse(List<String> words) {
+            Matcher matcher = SYNTAX.matcher(String.join(" ", words).trim());
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("usage: where FIELD (= != < <= > >= ~) VALUE");
+            }
+            String field = fields(List.of(matcher.group(1).toLowerCase(Locale.ROOT))).get(0);
+            return new condition(field, matcher.group(2), matcher.group(3).trim());
+        }
+
+        boolean test(fileRecord record) {
+            if (glob != null) {
+                return glob.matcher(record.text(field)).matches();
+            }
+            int compared = switch (field) {
+                case "size" -> Long.compare(record.size, number);
+                case "mtime" -> record.mtime.compareTo(time);
+                default -> record.text(field).compareTo(value);
+            };
+            return switch (operator) {
+                case "=", "==" -> compared == 0;
+                case "!=" -> compared != 0;
+                case "<" -> compared < 0;
+                case "<=" -> compared <= 0;
+                case ">" -> compared > 0;
+                default -> compared >= 0;
+            };
+        }
+
+        // Bytes, with an optional binary K, M, G or T suffix
+        private static long size(String value) {
+            Matcher matcher = SIZE.matcher(value);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Not a size: " + value);
+            }
+            int shift = switch (matcher.group(2).toUpperCase(Locale.ROOT)) {
+                case "K" -> 10;
+                case "M" -> 20;
+                case "G" -> 30;
+                case "T" -> 40;
+                default -> 0;
+            };
+            return Long.parseLong(matcher.group(1)) << shift;
+        }
+
+        // A date, a date and time, or an age (30m, 2h, 3d, 1w) before now
+        private static FileTime time(String value) {
+            Matcher age = AGE.matcher(value);
+            if (age.matches()) {
+                long amount = Long.parseLong(age.group(1));
+                Duration duration = switch (age.group(2)) {
+                    case "s" -> Duration.ofSeconds(amount);
+                    case "m" -> Duration.ofMinutes(amount);
+                    case "h" -> Duration.ofHours(amount);
+                    case "d" -> Duration.ofDays(amount);
+                    default -> Duration.ofDays(7 * amount);
+                };
+                return FileTime.from(Instant.now().minus(duration));
+            }
+            try {
+                LocalDateTime local = value.contains("T") || value.contains(" ")
+                        ? LocalDateTime.parse(value.replace(' ', 'T')) : LocalDate.parse(value).atStartOfDay();
+                return FileTime.from(local.atZone(ZoneId.systemDefault()).toInstant());
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Not a date or age: " + value);
+            }
+        }
+    }
+}
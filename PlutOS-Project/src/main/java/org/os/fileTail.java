@@ -0,0 +1,147 @@
+package org.os;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Reads the end of a file without reading the whole file.
+ * <p>
+ * The file is opened as a {@link SeekableByteChannel} and read backwards one
+ * block at a time until enough line breaks have been seen, so the cost depends
+ * on the size of the tail and not on the size of the file.
+ */
+public class fileTail {
+
+    private static final int BLOCK_SIZE = 8192;
+
+    // How long follow waits for a watch event before checking the size anyway
+    private static final long POLL_MILLIS = 500;
+
+    /**
+     * Returns the last lines of a file.
+     *
+     * @param file  file to read
+     * @param lines number of lines to return
+     * @return the last lines, including their line terminators
+     */
+    public static String lastLines(Path file, long lines) throws IOException {
+        try (SeekableByteChannel channel = Files.newByteChannel(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (lines <= 0 || size == 0) {
+                return "";
+            }
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+            long end = size;
+            long start = 0;
+            long found = 0;
+            boolean trailing = true;
+            outer:
+            while (end > 0) {
+                long position = Math.max(0, end - BLOCK_SIZE);
+                int length = (int) (end - position);
+                block.clear().limit(length);
+                channel.position(position);
+                while (block.hasRemaining() && channel.read(block) >= 0) {
+                    // keep reading until the block is full
+                }
+                for (int i = length - 1; i >= 0; i--) {
+                    if (block.get(i) != '\n') {
+                        trailing = false;
+                        continue;
+                    }
+                    // A newline that ends the file terminates the last line, it does not start one
+                    if (trailing) {
+                        trailing = false;
+                        continue;
+                    }
+                    if (++found == lines) {
+                        start = position + i + 1;
+                        break outer;
+                    }
+                }
+                end = position;
+            }
+            return read(channel, start, size - start);
+        }
+    }
+
+    /**
+     * Returns the last bytes of a file.
+     *
+     * @param file  file to read
+     * @param bytes number of bytes to return
+     * @return the tail of the file decoded as UTF-8
+     */
+    public static String lastBytes(Path file, long bytes) throws IOException {
+        try (SeekableByteChannel channel = Files.newByteChannel(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = Math.max(0, size - Math.max(0, bytes));
+            // Like head -c, no character is cut in half: a start inside one moves on to the next
+            ByteBuffer lead = ByteBuffer.allocate((int) Math.min(3, size - start));
+            channel.position(start);
+            while (lead.hasRemaining() && channel.read(lead) >= 0) {
+                // read the bytes a character may continue with
+            }
+            start += lineBlock.characterStart(lead.array(), 0, lead.position());
+            return read(channel, start, size - start);
+        }
+    }
+
+    /**
+     * Prints data appended to a file until told to stop. Changes are picked up
+     * through a {@link WatchService} on the parent directory, and the size is also
+     * polled because some file systems never deliver modify events. Only bytes
+     * after the last printed position are read.
+     *
+     * @param file     file to follow
+     * @param position offset to start printing from, usually the current size
+     * @param out      where appended data is printed
+     * @param stop     checked between events, following ends once it returns true
+     */
+    public static void follow(Path file, long position, PrintStream out, BooleanSupplier stop) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        try (WatchService watcher = dir.getFileSystem().newWatchService()) {
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+            while (!stop.getAsBoolean()) {
+                WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+                if (!Files.exists(file)) {
+                    continue;
+                }
+                long size = Files.size(file);
+                if (size < position) {
+                    out.println("tail: " + file.getFileName() + ": file truncated");
+                    position = 0;
+                }
+                if (size > position) {
+                    try (SeekableByteChannel channel = Files.newByteChannel(file, StandardOpenOption.READ)) {
+                        out.print(read(channel, position, size - position));
+                        out.flush();
+                    }
+                    position = size;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String read(SeekableByteChannel channel, long start, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, Integer.MAX_VALUE - 8));
+        channel.position(start);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // read until the requested range is complete or the file ends
+        }
+        buffer.flip();
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+}
@@ -0,0 +1,229 @@
+package org.os;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A batch of lines as raw UTF-8 bytes, the way they flow between pipe stages.
+ * <p>
+ * Decoding every line into a String costs a char array twice the size of the
+ * line, plus the UTF-16 conversion, and grep, head, uniq and wc never need the
+ * characters: they can match, count and compare the bytes. So files are read
+ * into a shared byte buffer and a line is just its start and end offsets in it,
+ * kept in two int arrays, with the length of its line break in a third. A block is only valid during the
+ * {@link lineSink#acceptBlock} call that hands it over; a stage that drops lines
+ * passes on a view of the same bytes with its own offsets, and only stages that
+ * need characters (sort, tail) decode lines, through {@link #line}.
+ * <p>
+ * The buffers of finished reads go back to a small pool and are reused.
+ */
+class lineBlock {
+
+    // Bytes read at a time, as much as a BufferedReader, so a pipe that stops early reads no more
+    static final int SIZE = 8 * 1024;
+
+    private static final int POOLED = 16;
+
+    private static final ConcurrentLinkedQueue<lineBlock> POOL = new ConcurrentLinkedQueue<>();
+
+    byte[] data;
+    int[] starts;
+    int[] ends;
+    // Bytes of the line break after each line: 0 for a last line without one, 1 for '\n', 2 for "\r\n"
+    int[] breaks;
+    int count;
+
+    private lineBlock(byte[] data, int lines) {
+        this.data = data;
+        this.starts = new int[lines];
+        this.ends = new int[lines];
+        this.breaks = new int[lines];
+    }
+
+    /**
+     * @return an empty view onto the lines of other blocks, sized for about that many lines
+     */
+    static lineBlock view(int lines) {
+        return new lineBlock(null, Math.max(lines, 16));
+    }
+
+    /**
+     * @return a block of one line, for stages that handle text lines as bytes
+     */
+    static lineBlock of(String line) {
+        byte[] data = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        lineBlock block = new lineBlock(data, 1);
+        block.push(0, data.length - 1, 1);
+        return block;
+    }
+
+    /**
+     * Makes this view show no lines of a block yet.
+     */
+    void reset(lineBlock of) {
+        data = of.data;
+        count = 0;
+    }
+
+    /**
+     * Adds line i of the block this view was reset to.
+     */
+    void add(lineBlock of, int i) {
+        push(of.starts[i], of.ends[i], of.breaks[i]);
+    }
+
+    /**
+     * Adds the first bytes of line i of the block this view was reset to, without its line break.
+     */
+    void add(lineBlock of, int i, int length) {
+        push(of.starts[i], of.starts[i] + length, 0);
+    }
+
+    /**
+     * @return the longest part of the first length bytes from 'from' that does not end inside a UTF-8 character
+     */
+    static int wholeCharacters(byte[] data, int from, int length) {
+        int start = from + length - 1;
+        while (start > from && from + length - start < 4 && (data[start] & 0xC0) == 0x80) {
+            start--;
+        }
+        if (start < from) {
+            return 0;
+        }
+        int lead = data[start] & 0xFF;
+        int size = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : lead >= 0xC0 ? 2 : 1;
+        return start + size <= from + length ? length : start - from;
+    }
+
+    /**
+     * @return the first position from 'from' on that is not inside a UTF-8 character, at most 'to'
+     */
+    static int characterStart(byte[] data, int from, int to) {
+        int start = from;
+        while (start < to && start - from < 3 && (data[start] & 0xC0) == 0x80) {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * @return line i decoded, for stages that need characters
+     */
+    String line(int i) {
+        return new String(data, starts[i], ends[i] - starts[i], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return true if line i ended with a '\n', which 'wc -l' counts
+     */
+    boolean endsWithNewline(int i) {
+        return breaks[i] > 0 && data[ends[i] + breaks[i] - 1] == '\n';
+    }
+
+    /**
+     * @return true if line i contains the bytes of the pattern
+     */
+    boolean contains(int i, byte[] pattern) {
+        if (pattern.length == 0) {
+            return true;
+        }
+        byte first = pattern[0];
+        int last = ends[i] - pattern.length;
+        for (int at = starts[i]; at <= last; at++) {
+            if (data[at] != first) {
+                continue;
+            }
+            int k = 1;
+            while (k < pattern.length && data[at + k] == pattern[k]) {
+                k++;
+            }
+            if (k == pattern.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if line i holds the same bytes as the given range
+     */
+    boolean equals(int i, byte[] other, int from, int to) {
+        return Arrays.equals(data, starts[i], ends[i], other, from, to);
+    }
+
+    /**
+     * Reads a stream line by line ('\n' or "\r\n" endings) and pushes the lines in blocks.
+     *
+     * @return false once the sink stopped accepting lines
+     */
+    static boolean pump(InputStream in, lineSink out) throws IOException {
+        lineBlock block = POOL.poll();
+        if (block == null) {
+            block = new lineBlock(new byte[SIZE], 256);
+        }
+        try {
+            int filled = 0;
+            while (true) {
+                if (filled == block.data.length) {
+                    // A line longer than the buffer: make room for it
+                    block.data = Arrays.copyOf(block.data, block.data.length * 2);
+                }
+                int read = in.read(block.data, filled, block.data.length - filled);
+                if (read < 0) {
+                    break;
+                }
+                int scanned = filled;
+                filled += read;
+                int done = block.split(scanned, filled);
+                if (block.count > 0 && !out.acceptBlock(block)) {
+                    return false;
+                }
+                // Move the unfinished last line to the front of the buffer
+                System.arraycopy(block.data, done, block.data, 0, filled - done);
+                filled -= done;
+            }
+            if (filled > 0) {
+                // The last line had no line break
+                block.count = 0;
+                boolean cr = block.data[filled - 1] == '\r';
+                block.push(0, cr ? filled - 1 : filled, cr ? 1 : 0);
+                return out.acceptBlock(block);
+            }
+            return true;
+        } finally {
+            if (block.data.length == SIZE && POOL.size() < POOLED) {
+                block.count = 0;
+                POOL.offer(block);
+            }
+        }
+    }
+
+    // Records the complete lines in data[0, filled), the new bytes start at 'from'; returns where the rest starts
+    private int split(int from, int filled) {
+        count = 0;
+        int start = 0;
+        for (int at = from; at < filled; at++) {
+            if (data[at] == '\n') {
+                boolean cr = at > start && data[at - 1] == '\r';
+                push(start, cr ? at - 1 : at, cr ? 2 : 1);
+                start = at + 1;
+            }
+        }
+        return start;
+    }
+
+    private void push(int start, int end, int lineBreak) {
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+            breaks = Arrays.copyOf(breaks, count * 2);
+        }
+        starts[count] = start;
+        ends[count] = end;
+        breaks[count] = lineBreak;
+        count++;
+    }
+}
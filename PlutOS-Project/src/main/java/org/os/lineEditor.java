@@ -0,0 +1,311 @@
+package org.os;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.util.List;
+
+/**
+ * Reads command lines from a terminal with access to the command history.
+ * <p>
+ * Up and Down walk through earlier commands and Ctrl-R searches them backwards as
+ * in bash: each key typed narrows the search, Ctrl-R again jumps to an older
+ * match, Enter runs the match and any other key leaves it on the line to edit.
+ * Tab completes command names at the start of the line and file names after
+ * that, a second Tab lists the candidates when there is more than one.
+ * The terminal is switched out of canonical mode with 'stty' only while a line is
+ * being read, so commands still see a normal terminal.
+ */
+class lineEditor {
+
+    private static final int CTRL_D = 4;
+    private static final int CTRL_G = 7;
+    private static final int BACKSPACE = 8;
+    private static final int TAB = 9;
+    private static final int CTRL_R = 18;
+    private static final int ESCAPE = 27;
+    private static final int DELETE = 127;
+
+    // Candidates listed after a second Tab, like bash's completion-query-items
+    private static final int MAX_LISTED = 100;
+
+    private final commandHistory history;
+    private final pathCompleter completer;
+    private final String savedMode;
+    private final InputStream in = System.in;
+
+    private lineEditor(commandHistory history, pathCompleter completer, String savedMode) {
+        this.history = history;
+        this.completer = completer;
+        this.savedMode = savedMode;
+    }
+
+    /**
+     * @return an editor, or null when not running on a terminal 'stty' can drive
+     */
+    static lineEditor open(commandHistory history, pathCompleter completer) {
+        if (System.console() == null) {
+            return null;
+        }
+        try {
+            return new lineEditor(history, completer, stty("-g"));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads one line.
+     *
+     * @param prompt shown before the line
+     * @return the line, or null at end of input (Ctrl-D on an empty line)
+     */
+    String readLine(String prompt) throws IOException {
+        stty("-icanon -echo min 1");
+        try {
+            return edit(prompt);
+        } finally {
+            stty(savedMode);
+        }
+    }
+
+    private String edit(String prompt) throws IOException {
+        StringBuilder line = new StringBuilder();
+        long browsing = history.end();
+        boolean tabbed = false;
+        // Most Tabs complete in the current directory, list it while the user types
+        completer.prefetch(session.cwd());
+        System.out.print(prompt);
+        while (true) {
+            int c = read();
+            boolean tab = c == TAB;
+            switch (c) {
+                case -1:
+                    System.out.println();
+                    return line.length() == 0 ? null : line.toString();
+                case '\n':
+                case '\r':
+                    System.out.println();
+                    return line.toString();
+                case CTRL_D:
+                    if (line.length() == 0) {
+                        System.out.println();
+                        return null;
+                    }
+                    break;
+                case BACKSPACE:
+                case DELETE:
+                    if (line.length() > 0) {
+                        line.setLength(line.offsetByCodePoints(line.length(), -1));
+                        redraw(prompt, line);
+                    }
+                    break;
+                case TAB:
+                    complete(prompt, line, tabbed);
+                    break;
+                case CTRL_R:
+                    if (reverseSearch(line)) {
+                        System.out.println();
+                        return line.toString();
+                    }
+                    redraw(prompt, line);
+                    break;
+                case ESCAPE:
+                    // Arrow keys arrive as ESC [ A (up) and ESC [ B (down)
+                    if (read() != '[') {
+                        break;
+                    }
+                    int key = read();
+                    if (key == 'A') {
+                        long previous = history.previous(browsing);
+                        if (previous >= 0) {
+                            browsing = previous;
+                            line.setLength(0);
+                            line.append(history.entry(previous));
+                            redraw(prompt, line);
+                        }
+                    } else if (key == 'B' && browsing < history.end()) {
+                        long next = history.next(browsing);
+                        browsing = next < 0 ? history.end() : next;
+                        line.setLength(0);
+                        if (next >= 0) {
+                            line.append(history.entry(next));
+                        }
+                        redraw(prompt, line);
+                    }
+                    break;
+                default:
+                    if (c >= ' ') {
+                        line.appendCodePoint(c);
+                        System.out.print(Character.toString(c));
+                    }
+            }
+            tabbed = tab;
+        }
+    }
+
+    // Completes the word before the cursor, or lists the candidates on a second Tab
+    private void complete(String prompt, StringBuilder line, boolean list) {
+        int start = line.lastIndexOf(" ") + 1;
+        String word = line.substring(start);
+        String dirPart = "";
+        String name = word;
+        List<String> candidates;
+        String before = line.substring(0, start).trim();
+        if (before.isEmpty()) {
+            candidates = completer.commands(word);
+        } else if (before.endsWith("|")) {
+            candidates = completer.pipeCommands(word);
+        } else {
+            int slash = word.lastIndexOf('/');
+            dirPart = word.substring(0, slash + 1);
+            name = word.substring(slash + 1);
+            try {
+                candidates = completer.complete(dirPart.isEmpty() ? session.cwd() : session.resolve(dirPart), name);
+            } catch (IOException | InvalidPathException e) {
+                return;
+            }
+        }
+
+        if (candidates.size() == 1) {
+            String match = candidates.get(0);
+            line.setLength(start);
+            line.append(dirPart).append(match);
+            // Directories stay open for the next name, files are done
+            if (!match.endsWith("/")) {
+                line.append(' ');
+            }
+            redraw(prompt, line);
+            return;
+        }
+        String common = pathCompleter.commonPrefix(candidates);
+        if (common.length() > name.length()) {
+            line.setLength(start);
+            line.append(dirPart).append(common);
+            redraw(prompt, line);
+        } else if (list && !candidates.isEmpty()) {
+            System.out.println();
+            System.out.println(String.join("  ", candidates.subList(0, Math.min(MAX_LISTED, candidates.size()))));
+            if (candidates.size() > MAX_LISTED) {
+                System.out.println("... and " + (candidates.size() - MAX_LISTED) + " more");
+            }
+            redraw(prompt, line);
+        }
+    }
+
+    // Runs an incremental search, returns true when Enter accepted the match
+    private boolean reverseSearch(StringBuilder line) throws IOException {
+        StringBuilder query = new StringBuilder();
+        String original = line.toString();
+        String match = "";
+        long position = -1;
+        boolean failed = false;
+        while (true) {
+            System.out.print("\r\u001B[K" + (failed ? "(failed reverse-i-search)`" : "(reverse-i-search)`")
+                    + query + "': " + match);
+            int c = read();
+            if (c == CTRL_R) {
+                if (position >= 0) {
+                    // Skip older copies of the same command
+                    long older = position;
+                    do {
+                        older = history.search(query.toString(), older);
+                    } while (older >= 0 && history.entry(older).equals(match));
+                    failed = older < 0;
+                    if (!failed) {
+                        position = older;
+                        match = history.entry(older);
+                    }
+                }
+                continue;
+            }
+            boolean typed = c >= ' ' && c != DELETE;
+            if (typed || c == BACKSPACE || c == DELETE) {
+                if (typed) {
+                    query.appendCodePoint(c);
+                } else if (query.length() > 0) {
+                    query.setLength(query.offsetByCodePoints(query.length(), -1));
+                }
+                // A longer query can still match the current command, a shorter one starts over
+                long before = typed && position >= 0 ? position + 1 : history.end();
+                long found = query.length() == 0 ? -1 : history.search(query.toString(), before);
+                failed = found < 0 && query.length() > 0;
+                if (found >= 0) {
+                    position = found;
+                    match = history.entry(found);
+                }
+                continue;
+            }
+            if (c == CTRL_G || c == -1) {
+                line.setLength(0);
+                line.append(original);
+                return false;
+            }
+            line.setLength(0);
+            line.append(match.isEmpty() ? original : match);
+            if (c == ESCAPE) {
+                // Drop the rest of an arrow key sequence
+                if (in.available() > 0 && read() == '[') {
+                    read();
+                }
+            }
+            return c == '\n' || c == '\r';
+        }
+    }
+
+    private static void redraw(String prompt, CharSequence line) {
+        System.out.print("\r\u001B[K" + prompt + line);
+    }
+
+    // Reads one UTF-8 encoded character, byte by byte so nothing is read ahead of the line
+    private int read() throws IOException {
+        int first = in.read();
+        if (first < 0x80) {
+            return first;
+        }
+        int more = first >= 0xF0 ? 3 : first >= 0xE0 ? 2 : 1;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4);
+        bytes.write(first);
+        for (int i = 0; i < more; i++) {
+            int b = in.read();
+            if (b < 0) {
+                return -1;
+            }
+            bytes.write(b);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8).codePointAt(0);
+    }
+
+    /**
+     * @return rows and columns of the terminal, or null when not running on one
+     */
+    static int[] terminalSize() {
+        if (System.console() == null) {
+            return null;
+        }
+        try {
+            String[] size = stty("size").split("\\s+");
+            return new int[]{Integer.parseInt(size[0]), Integer.parseInt(size[1])};
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static String stty(String args) throws IOException {
+        Process process = new ProcessBuilder("sh", "-c", "stty " + args + " < /dev/tty")
+                .redirectErrorStream(true)
+                .start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("stty failed: " + output);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("stty interrupted");
+        }
+        return output;
+    }
+}
@@ -0,0 +1,60 @@
+package org.os;
+
+import java.io.IOException;
+
+/**
+ * Receives the lines flowing through a pipe.
+ * <p>
+ * A sink that has seen enough returns false from {@link #accept}. Whoever feeds
+ * it must then stop producing lines, which is how a pipe like
+ * 'cat big.log | grep X | head -5' stops reading big.log after the fifth match
+ * (the same idea as SIGPIPE in a real shell).
+ */
+public interface lineSink {
+
+    /**
+     * @param line one line, without its terminator
+     * @return true if more lines are wanted, false once upstream should stop
+     */
+    boolean accept(String line) throws IOException;
+
+    /**
+     * Takes a batch of lines as UTF-8 bytes. Stages that can work on bytes override
+     * this to skip decoding; by default every line is decoded and passed to {@link #accept}.
+     *
+     * @param block lines only valid during this call
+     * @return true if more lines are wanted, false once upstream should stop
+     */
+    default boolean acceptBlock(lineBlock block) throws IOException {
+        for (int i = 0; i < block.count; i++) {
+            if (!accept(block.line(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Takes one entry of a file listing (ls, find, du). Record stages (where, sort-by,
+     * select, to-json) override this to work on its fields; by default the line the
+     * listing prints for it is passed to {@link #accept}.
+     *
+     * @return true if more lines are wanted, false once upstream should stop
+     */
+    default boolean acceptRecord(fileRecord record) throws IOException {
+        return accept(record.line());
+    }
+
+    /**
+     * Called once after the last line, lets buffering stages (sort, tail) emit their output.
+     */
+    default void finish() throws IOException {
+    }
+
+    /**
+     * Called instead of {@link #finish} when the pipe fails on the way, lets stages give
+     * back what they hold (memory, spill files, threads) without emitting anything.
+     */
+    default void abort() {
+    }
+}
@@ -0,0 +1,190 @@
+package org.os;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts distinct lines without keeping a Java object per line.
+ * <p>
+ * Line bytes and their counters live in an append-only arena of direct (off-heap)
+ * buffers. The hash table itself is two primitive arrays with open addressing
+ * and linear probing: the 64-bit hash of each line and the arena address of its
+ * record. Tens of millions of lines therefore cost a few large arrays instead of
+ * millions of Strings and map entries for the garbage collector to trace.
+ * <p>
+ * A table cannot spill to disk, so it waits for the {@link memoryGovernor} before
+ * it grows, and gives its memory back on {@link #close}.
+ */
+class lineTable implements java.io.Closeable {
+
+    private static final int CHUNK_SIZE = 4 << 20;
+
+    // Record layout in the arena: [long count][int length][bytes]
+    private static final int HEADER = Long.BYTES + Integer.BYTES;
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private long[] hashes;
+    private long[] addresses;
+    private int mask;
+    private int size;
+    private final memoryGovernor.reservation memory = memoryGovernor.reserve(false);
+
+    lineTable() {
+        hashes = new long[1 << 10];
+        addresses = new long[1 << 10];
+        mask = hashes.length - 1;
+    }
+
+    /**
+     * Counts one occurrence of a line.
+     *
+     * @param line UTF-8 bytes of the line
+     * @return true if the line was seen for the first time
+     */
+    boolean add(byte[] line) {
+        return add(line, 0, line.length);
+    }
+
+    /**
+     * Counts one occurrence of the line held in part of a buffer, copying it only if it is new.
+     *
+     * @return true if the line was seen for the first time
+     */
+    boolean add(byte[] data, int from, int to) {
+        long hash = hash(data, from, to);
+        int slot = (int) hash & mask;
+        while (hashes[slot] != 0) {
+            if (hashes[slot] == hash && same(addresses[slot], data, from, to)) {
+                ByteBuffer chunk = chunks.get((int) (addresses[slot] >>> 32));
+                int position = (int) addresses[slot];
+                chunk.putLong(position, chunk.getLong(position) + 1);
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        hashes[slot] = hash;
+        addresses[slot] = append(data, from, to);
+        if (++size * 2 > hashes.length) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * @return number of distinct lines
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Visits every distinct line in the order it was first seen.
+     *
+     * @param visitor receives each line with its count, returns false to stop
+     */
+    void forEach(visitor visitor) {
+        for (ByteBuffer chunk : chunks) {
+            int position = 0;
+            while (position < chunk.position()) {
+                long count = chunk.getLong(position);
+                int length = chunk.getInt(position + Long.BYTES);
+                byte[] line = new byte[length];
+                chunk.get(position + HEADER, line);
+                if (!visitor.visit(line, count)) {
+                    return;
+                }
+                position += HEADER + length;
+            }
+        }
+    }
+
+    interface visitor {
+        boolean visit(byte[] line, long count);
+    }
+
+    private long append(byte[] data, int from, int to) {
+        int needed = HEADER + to - from;
+        ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || chunk.remaining() < needed) {
+            // Lines longer than a chunk get a chunk of their own
+            int capacity = Math.max(CHUNK_SIZE, needed);
+            memory.cover(footprint() + capacity);
+            chunk = ByteBuffer.allocateDirect(capacity);
+            chunks.add(chunk);
+        }
+        long address = ((long) (chunks.size() - 1) << 32) | chunk.position();
+        chunk.putLong(1).putInt(to - from).put(data, from, to - from);
+        return address;
+    }
+
+    private boolean same(long address, byte[] data, int from, int to) {
+        ByteBuffer chunk = chunks.get((int) (address >>> 32));
+        int position = (int) address;
+        if (chunk.getInt(position + Long.BYTES) != to - from) {
+            return false;
+        }
+        position += HEADER - from;
+        for (int i = from; i < to; i++) {
+            if (chunk.get(position + i) != data[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Rehashing only moves the primitive slots, the arena is never touched
+    private void grow() {
+        // The old and new slots exist side by side while rehashing
+        memory.cover(footprint() + 32L * hashes.length);
+        long[] oldHashes = hashes;
+        long[] oldAddresses = addresses;
+        hashes = new long[oldHashes.length * 2];
+        addresses = new long[oldHashes.length * 2];
+        mask = hashes.length - 1;
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] == 0) {
+                continue;
+            }
+            int slot = (int) oldHashes[i] & mask;
+            while (hashes[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            hashes[slot] = oldHashes[i];
+            addresses[slot] = oldAddresses[i];
+        }
+        memory.trim(footprint());
+    }
+
+    // Bytes of the arena and the slots
+    private long footprint() {
+        long arena = 0;
+        for (ByteBuffer chunk : chunks) {
+            arena += chunk.capacity();
+        }
+        return arena + 16L * hashes.length;
+    }
+
+    /**
+     * Gives the table's memory back to the governor. The table must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        memory.close();
+    }
+
+    // FNV-1a followed by a murmur3 finalizer; 0 marks an empty slot so it is never returned
+    static long hash(byte[] data, int from, int to) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = from; i < to; i++) {
+            h ^= data[i];
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+}
@@ -0,0 +1,174 @@
+package org.os;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares one memory budget between every pipe stage that buffers lines (sort,
+ * tail, uniq --all, diff), in every session and xargs worker of the process.
+ * <p>
+ * A stage asks for memory in grains through a {@link reservation} before its
+ * buffer grows. Its first grain waits until other stages free enough memory, so
+ * new pipes are held back while the budget is used up. After that, a stage that
+ * can spill is denied further memory at once and writes its buffer to a temporary
+ * file ({@link spillFile}), going on with an empty one; many heavy pipes at once
+ * therefore spill more and run slower instead of running the JVM out of heap. A
+ * stage that cannot spill waits for every grain. A wait gives up after a while
+ * and takes the memory anyway, and that stage stops waiting from then on, so stages
+ * that hold memory while waiting for more cannot block each other forever.
+ */
+class memoryGovernor {
+
+    // Memory is reserved in steps of this many bytes
+    static final long GRAIN = 64 * 1024;
+
+    // Longest wait for memory before a stage goes over the budget
+    private static final long MAX_WAIT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private static long budget = Runtime.getRuntime().maxMemory() / 2;
+    private static long used;
+    private static long peak;
+    private static long denied;
+    private static long waits;
+    private static long overcommits;
+
+    private memoryGovernor() {
+    }
+
+    /**
+     * Memory held by one stage, given back by {@link #close}.
+     */
+    static class reservation implements Closeable {
+        private final boolean canSpill;
+        private boolean overcommitted;
+        private long held;
+
+        private reservation(boolean canSpill) {
+            this.canSpill = canSpill;
+        }
+
+        /**
+         * Makes sure this stage holds at least the given number of bytes.
+         *
+         * @return false when the memory was denied; the stage should spill
+         */
+        boolean cover(long bytes) {
+            if (bytes <= held) {
+                return true;
+            }
+            long needed = (bytes - held + GRAIN - 1) / GRAIN * GRAIN;
+            if (held > 0 && canSpill) {
+                if (!tryAcquire(needed)) {
+                    return false;
+                }
+            } else if (overcommitted) {
+                take(needed);
+            } else {
+                overcommitted = !acquire(needed, held);
+            }
+            held += needed;
+            return true;
+        }
+
+        /**
+         * Gives back what is held beyond the given number of bytes.
+         */
+        void trim(long bytes) {
+            long keep = (bytes + GRAIN - 1) / GRAIN * GRAIN;
+            if (held > keep) {
+                release(held - keep);
+                held = keep;
+            }
+        }
+
+        /**
+         * @return bytes this stage holds
+         */
+        long held() {
+            return held;
+        }
+
+        @Override
+        public void close() {
+            trim(0);
+        }
+    }
+
+    /**
+     * Opens the reservation of a stage.
+     *
+     * @param canSpill whether the stage can write its buffer to disk when denied memory
+     */
+    static reservation reserve(boolean canSpill) {
+        return new reservation(canSpill);
+    }
+
+    /**
+     * Sets the budget shared by all stages. Stages already over it only give memory back.
+     */
+    static synchronized void setBudget(long bytes) {
+        budget = bytes;
+        memoryGovernor.class.notifyAll();
+    }
+
+    static synchronized long budget() {
+        return budget;
+    }
+
+    /**
+     * @return budget, use and pressure of the stages so far, one value per line
+     */
+    static synchronized String stats() {
+        return String.format("budget:      %d bytes%nin use:      %d bytes%npeak:        %d bytes"
+                + "%ndenied:      %d (stages spilled to disk)%nwaits:       %d%novercommits: %d",
+                budget, used, peak, denied, waits, overcommits);
+    }
+
+    private static synchronized boolean tryAcquire(long bytes) {
+        if (used + bytes > budget) {
+            denied++;
+            return false;
+        }
+        take(bytes);
+        return true;
+    }
+
+    // Waits for the memory other stages hold; false if it was taken over the budget after all
+    private static synchronized boolean acquire(long bytes, long held) {
+        boolean within = true;
+        if (used - held + bytes > budget && used - held > 0) {
+            waits++;
+            long deadline = System.nanoTime() + MAX_WAIT_NANOS;
+            // Whatever is alone within the budget gets its memory, however large
+            while (used - held + bytes > budget && used - held > 0) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    within = false;
+                    break;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(memoryGovernor.class, left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    within = false;
+                    break;
+                }
+            }
+        }
+        if (!within) {
+            overcommits++;
+        }
+        take(bytes);
+        return within;
+    }
+
+    private static synchronized void take(long bytes) {
+        used += bytes;
+        peak = Math.max(peak, used);
+    }
+
+    private static synchronized void release(long bytes) {
+        used -= bytes;
+        memoryGovernor.class.notifyAll();
+    }
+}
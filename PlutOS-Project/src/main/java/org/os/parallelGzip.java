@@ -0,0 +1,131 @@
+package org.os;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Gzip compression that scales with the number of cores (like pigz).
+ * <p>
+ * The input is cut into fixed-size blocks and every block is compressed on a
+ * worker thread into a complete gzip member of its own. Members are written in
+ * input order, and a file made of concatenated members is a standard gzip file
+ * that gunzip, zcat and {@link GZIPInputStream} read as one stream. Each worker
+ * reuses its {@link Deflater}, and only a bounded number of blocks is in flight
+ * so memory does not depend on the input size.
+ */
+class parallelGzip {
+
+    private static final int BLOCK_SIZE = 1 << 20;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS, r -> {
+        Thread t = new Thread(r, "gzip-worker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Raw deflate (nowrap), the gzip header and trailer are written by hand
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    /**
+     * Compresses a stream into a multi-member gzip stream.
+     *
+     * @param in    data to compress
+     * @param out   receives the gzip stream
+     * @param level compression level, 1 (fastest) to 9 (smallest)
+     */
+    static void compress(InputStream in, OutputStream out, int level) throws IOException {
+        ArrayDeque<Future<byte[]>> inflight = new ArrayDeque<>();
+        boolean empty = true;
+        try {
+            while (true) {
+                byte[] block = in.readNBytes(BLOCK_SIZE);
+                if (block.length == 0) {
+                    break;
+                }
+                empty = false;
+                inflight.add(POOL.submit(() -> member(block, level)));
+                // Two blocks per worker keeps every core busy while bounding memory
+                if (inflight.size() >= THREADS * 2) {
+                    out.write(await(inflight.poll()));
+                }
+            }
+            while (!inflight.isEmpty()) {
+                out.write(await(inflight.poll()));
+            }
+        } finally {
+            for (Future<byte[]> pending : inflight) {
+                pending.cancel(true);
+            }
+        }
+        if (empty) {
+            // An empty file still becomes a valid gzip file
+            out.write(member(new byte[0], level));
+        }
+        out.flush();
+    }
+
+    /**
+     * Decompresses a gzip stream made of one or more members.
+     */
+    static void decompress(InputStream in, OutputStream out) throws IOException {
+        try (GZIPInputStream gzip = new GZIPInputStream(in, 64 * 1024)) {
+            gzip.transferTo(out);
+        }
+        out.flush();
+    }
+
+    // Compresses one block into a complete gzip member: header, deflate data, CRC32 and size
+    private static byte[] member(byte[] data, int level) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(data);
+        deflater.finish();
+
+        // Worst case of deflate is a little over the input size (stored blocks)
+        byte[] buffer = new byte[10 + data.length + (data.length >> 12) + (data.length >> 14) + 64 + 8];
+        buffer[0] = 0x1f;
+        buffer[1] = (byte) 0x8b;
+        buffer[2] = 8; // deflate
+        buffer[9] = 3; // unix
+        int length = 10;
+        while (!deflater.finished()) {
+            if (length == buffer.length - 8) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            length += deflater.deflate(buffer, length, buffer.length - 8 - length);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        writeIntLE(buffer, length, (int) crc.getValue());
+        writeIntLE(buffer, length + 4, data.length);
+        return Arrays.copyOf(buffer, length + 8);
+    }
+
+    private static void writeIntLE(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >>> 8);
+        buffer[offset + 2] = (byte) (value >>> 16);
+        buffer[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("gzip interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package org.os;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Completes command and file names for the line editor.
+ * <p>
+ * The names in a directory are listed once, on a background thread, into a sorted
+ * array. Completing a prefix is then two binary searches for the range of names
+ * that start with it, and the longest common prefix of that range is the common
+ * prefix of its first and last name, so a Tab costs the same in a directory of
+ * 100 000 entries as in one of ten. Listings are kept for the most recently used
+ * directories and thrown away when the directory changes: a watch service
+ * refreshes them in the background, and the modification time of the directory
+ * is checked before a listing is used, for file systems that cannot be watched.
+ */
+public class pathCompleter {
+
+    private static final int MAX_DIRECTORIES = 64;
+
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "completion-worker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String[] commands;
+    // The commands and the stages that only work after a '|'
+    private final String[] pipeCommands;
+
+    // Most recently used listings, in access order
+    private final Map<Path, listing> listings = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, listing> eldest) {
+            if (size() > MAX_DIRECTORIES) {
+                eldest.getValue().cancel();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final Map<FileSystem, WatchService> watchers = new HashMap<>();
+
+    /**
+     * @param commands names of the built-in commands
+     */
+    public pathCompleter(String[] commands) {
+        this(commands, new String[0]);
+    }
+
+    /**
+     * @param commands names of the built-in commands
+     * @param stages   names of the pipe stages that cannot start a line
+     */
+    public pathCompleter(String[] commands, String[] stages) {
+        this.commands = commands.clone();
+        Arrays.sort(this.commands);
+        pipeCommands = Arrays.copyOf(this.commands, commands.length + stages.length);
+        System.arraycopy(stages, 0, pipeCommands, commands.length, stages.length);
+        Arrays.sort(pipeCommands);
+    }
+
+    /**
+     * @return the commands whose name starts with the prefix, sorted
+     */
+    public List<String> commands(String prefix) {
+        return range(commands, prefix);
+    }
+
+    /**
+     * @return the commands and pipe stages whose name starts with the prefix, sorted, for the word after a '|'
+     */
+    public List<String> pipeCommands(String prefix) {
+        return range(pipeCommands, prefix);
+    }
+
+    /**
+     * Lists the names in a directory that start with a prefix. Hidden names are
+     * only included when the prefix starts with '.'.
+     *
+     * @param dir    directory to look in
+     * @param prefix beginning of the name
+     * @return matching names, sorted, with a '/' after the names of directories
+     */
+    public List<String> complete(Path dir, String prefix) {
+        listing listing;
+        synchronized (listings) {
+            invalidateChanged();
+            listing = listings.get(dir);
+            if (listing == null || listing.isStale()) {
+                listing = fill(dir);
+            }
+        }
+        names names = listing.await();
+        return range(prefix.startsWith(".") ? names.hidden : names.visible, prefix);
+    }
+
+    /**
+     * Starts listing a directory in the background if it is not cached yet.
+     */
+    public void prefetch(Path dir) {
+        synchronized (listings) {
+            invalidateChanged();
+            listing listing = listings.get(dir);
+            if (listing == null || listing.isStale()) {
+                fill(dir);
+            }
+        }
+    }
+
+    /**
+     * @return the longest prefix shared by all the names
+     */
+    public static String commonPrefix(List<String> names) {
+        if (names.isEmpty()) {
+            return "";
+        }
+        // The names are sorted, so the first and the last one differ the soonest
+        String first = names.get(0);
+        String last = names.get(names.size() - 1);
+        int n = 0;
+        while (n < first.length() && n < last.length() && first.charAt(n) == last.charAt(n)) {
+            n++;
+        }
+        return first.substring(0, n);
+    }
+
+    private static List<String> range(String[] sorted, String prefix) {
+        int from = lowerBound(sorted, prefix);
+        int to = lowerBound(sorted, prefix + Character.MAX_VALUE);
+        return Collections.unmodifiableList(Arrays.asList(sorted).subList(from, to));
+    }
+
+    private static int lowerBound(String[] sorted, String key) {
+        int from = 0;
+        int to = sorted.length;
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (sorted[mid].compareTo(key) < 0) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    // Starts a new listing of a directory, replacing the cached one
+    private listing fill(Path dir) {
+        listing old = listings.remove(dir);
+        if (old != null) {
+            old.cancel();
+        }
+        // Watch before listing, so a change made while listing is not missed
+        WatchKey key = watch(dir);
+        FileTime modified = lastModified(dir);
+        listing listing = new listing(key, modified, dir, POOL.submit(() -> list(dir)));
+        listings.put(dir, listing);
+        return listing;
+    }
+
+    // Drops the listings of directories the watch services reported as changed, and refills them
+    private void invalidateChanged() {
+        for (WatchService watcher : watchers.values()) {
+            WatchKey key;
+            while ((key = watcher.poll()) != null) {
+                key.pollEvents();
+                key.cancel();
+                if (key.watchable() instanceof Path && listings.containsKey((Path) key.watchable())) {
+                    fill((Path) key.watchable());
+                }
+            }
+        }
+    }
+
+    private WatchKey watch(Path dir) {
+        try {
+            WatchService watcher = watchers.get(dir.getFileSystem());
+            if (watcher == null) {
+                watcher = dir.getFileSystem().newWatchService();
+                watchers.put(dir.getFileSystem(), watcher);
+            }
+            return dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException | UnsupportedOperationException e) {
+            // archives cannot be watched, the modification time check still applies
+            return null;
+        }
+    }
+
+    private static FileTime lastModified(Path dir) {
+        try {
+            return Files.getLastModifiedTime(dir);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static names list(Path dir) {
+        List<String> visible = new ArrayList<>();
+        List<String> hidden = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                String name = cmd.entryName(entry);
+                if (Files.isDirectory(entry)) {
+                    name += "/";
+                }
+                (name.startsWith(".") ? hidden : visible).add(name);
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            // nothing to complete in a directory that cannot be read
+        }
+        String[] v = visible.toArray(new String[0]);
+        String[] h = hidden.toArray(new String[0]);
+        Arrays.parallelSort(v);
+        Arrays.parallelSort(h);
+        return new names(v, h);
+    }
+
+    private static class names {
+        final String[] visible;
+        final String[] hidden;
+
+        names(String[] visible, String[] hidden) {
+            this.visible = visible;
+            this.hidden = hidden;
+        }
+    }
+
+    private static class listing {
+        private final WatchKey key;
+        private final FileTime modified;
+        private final Path dir;
+        private final Future<names> names;
+
+        listing(WatchKey key, FileTime modified, Path dir, Future<names> names) {
+            this.key = key;
+            this.modified = modified;
+            this.dir = dir;
+            this.names = names;
+        }
+
+        boolean isStale() {
+            return !Objects.equals(modified, lastModified(dir));
+        }
+
+        names await() {
+            try {
+                return names.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | CancellationException e) {
+                // treated like an empty directory
+            }
+            return new names(new String[0], new String[0]);
+        }
+
+        void cancel() {
+            if (key != null) {
+                key.cancel();
+            }
+            names.cancel(true);
+        }
+    }
+}
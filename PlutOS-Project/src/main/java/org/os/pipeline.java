@@ -0,0 +1,1205 @@
+package org.os;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Runs commands separated by pipes ("|") as a chain of streaming stages.
+ * <p>
+ * The producing command pushes its lines one at a time through every filter
+ * into the output, so nothing is buffered between stages except by commands
+ * that need all of their input (sort, tail). Once a stage has seen enough it
+ * returns false from {@link lineSink#accept} and every stage before it stops,
+ * down to the producer, which stops reading files or walking directories.
+ */
+public class pipeline {
+
+    // Accepts nothing: output of a stage whose consumer ignores its input
+    private static final lineSink CLOSED = line -> false;
+
+    private static final byte[] NEWLINE = {'\n'};
+
+    // Rough heap size of a buffered record and its path
+    private static final long RECORD_BYTES = 256;
+
+    private final List<String[]> stages = new ArrayList<>();
+    private final LongAdder bytesRead;
+
+    // Where stages report errors; the terminal, as it is when the error happens
+    private Consumer<String> errors = message -> System.out.println(message);
+
+    /**
+     * @param input A string of commands separated by pipes.
+     */
+    public pipeline(String input) {
+        bytesRead = new LongAdder();
+        for (String command : cmd.pipe(input)) {
+            stages.add(command.trim().split("\\s+"));
+        }
+    }
+
+    // One xargs run: counts its reads into the parent pipe, its errors go to the run's own output
+    private pipeline(pipeline parent, Consumer<String> errors) {
+        bytesRead = parent.bytesRead;
+        this.errors = errors;
+    }
+
+    /**
+     * Sends the errors of the stages, and the messages of commands run only for
+     * their side effects (mkdir, touch), to a consumer instead of the terminal.
+     *
+     * @return this pipe
+     */
+    public pipeline reportTo(Consumer<String> errors) {
+        this.errors = errors;
+        return this;
+    }
+
+    /**
+     * Runs every stage and pushes the output of the last one into the sink.
+     *
+     * @param out Receives the output of the pipe, line by line.
+     */
+    public void run(lineSink out) throws IOException {
+        int source = 0;
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            if (isSource(stages.get(i))) {
+                source = i;
+                break;
+            }
+        }
+
+        // With a flight recording running, every stage gets an event and the lines
+        // flowing into each stage are metered
+        boolean profiled = new profiler.stageEvent().isEnabled();
+        meter[] meters = new meter[stages.size() + 1];
+
+        // Nobody reads the output of stages before the last producer (like a real
+        // command that ignores stdin), they only run for their side effects
+        for (int i = 0; i < source; i++) {
+            profiler.stageEvent event = profiled ? begin(i) : null;
+            long read = bytesRead();
+            long started = System.nanoTime();
+            produce(stages.get(i), CLOSED);
+            if (event != null) {
+                event.bytesIn = bytesRead() - read;
+                event.selfTime = System.nanoTime() - started;
+                event.commit();
+            }
+        }
+
+        profiler.stageEvent[] events = new profiler.stageEvent[stages.size()];
+        lineSink chain = profiled ? meters[stages.size()] = new meter(out) : out;
+        for (int i = stages.size() - 1; i > source; i--) {
+            events[i] = profiled ? begin(i) : null;
+            chain = filter(stages.get(i), chain);
+            chain = profiled ? meters[i] = new meter(chain) : chain;
+        }
+        events[source] = profiled ? begin(source) : null;
+        long read = bytesRead();
+        long started = System.nanoTime();
+        boolean finished = false;
+        try {
+            if (isSource(stages.get(source))) {
+                produce(stages.get(source), chain);
+            } else {
+                chain = filter(stages.get(source), chain);
+                chain = profiled ? meters[source] = new meter(chain) : chain;
+            }
+            chain.finish();
+            finished = true;
+        } finally {
+            if (!finished) {
+                chain.abort();
+            }
+        }
+
+        if (profiled) {
+            for (int i = source; i < stages.size(); i++) {
+                profiler.stageEvent event = events[i];
+                if (meters[i] != null) {
+                    event.linesIn = meters[i].lines;
+                    event.bytesIn = meters[i].bytes;
+                    event.selfTime = meters[i].nanos - meters[i + 1].nanos;
+                } else {
+                    event.bytesIn = bytesRead() - read;
+                    event.selfTime = System.nanoTime() - started - meters[i + 1].nanos;
+                }
+                event.linesOut = meters[i + 1].lines;
+                event.bytesOut = meters[i + 1].bytes;
+                event.commit();
+            }
+        }
+    }
+
+    private profiler.stageEvent begin(int index) {
+        profiler.stageEvent event = new profiler.stageEvent();
+        String[] tokens = stages.get(index);
+        event.stage = index;
+        event.command = tokens[0];
+        event.arguments = String.join(" ", Arrays.asList(tokens).subList(1, tokens.length));
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @return number of bytes read from files by the stages of this pipe so far
+     */
+    public long bytesRead() {
+        return bytesRead.sum();
+    }
+
+    // Producers ignore the previous stage and generate lines of their own
+    private boolean isSource(String[] tokens) {
+        return switch (tokens[0].toLowerCase()) {
+            case "grep" -> tokens.length > 2;
+            case "cat" -> tokens.length > 1;
+            case "head", "tail" -> !cmd.countOptions.parse(tokens, true).files.isEmpty();
+            case "sort" -> !cmd.sortOptions.parse(tokens).files.isEmpty();
+            case "uniq" -> !cmd.uniqOptions.parse(tokens).files.isEmpty();
+            case "wc" -> !cmd.wcOptions.parse(tokens).files.isEmpty();
+            case "sha256sum", "md5sum", "crc32c" -> tokens.length > 1;
+            case "zcat" -> tokens.length > 1;
+            case "xargs", "where", "sort-by", "select", "to-json" -> false;
+            default -> true;
+        };
+    }
+
+    private void produce(String[] tokens, lineSink out) throws IOException {
+        String commandName = tokens[0].toLowerCase();
+        switch (commandName) {
+            case "ls": {
+                String error = cmd.ls(tokens, out);
+                if (error != null) {
+                    errors.accept(error);
+                }
+                break;
+            }
+            case "find": {
+                String error = cmd.find(tokens, out);
+                if (error != null) {
+                    errors.accept(error);
+                }
+                break;
+            }
+            case "du": {
+                String error = cmd.du(tokens, out);
+                if (error != null) {
+                    errors.accept(error);
+                }
+                break;
+            }
+            case "pwd":
+                out.accept(cmd.pwd());
+                break;
+            case "cat":
+                catFiles(Arrays.asList(tokens).subList(1, tokens.length), out);
+                break;
+            case "head":
+                emit(cmd.head(tokens, ""), out);
+                break;
+            case "tail": {
+                cmd.countOptions options = cmd.countOptions.parse(tokens, true);
+                if (options.follow && options.error == null && options.files.size() == 1) {
+                    Path file = session.resolve(options.files.get(0));
+                    emit(fileTail.lastLines(file, options.lines), out);
+                    follow(file, out);
+                } else {
+                    emit(cmd.tail(tokens, ""), out);
+                }
+                break;
+            }
+            case "sort": {
+                cmd.sortOptions options = cmd.sortOptions.parse(tokens);
+                if (options.error != null) {
+                    errors.accept(options.error);
+                    break;
+                }
+                lineSink sorter = sortStage(options, out);
+                boolean finished = false;
+                try {
+                    catFiles(options.files, sorter);
+                    sorter.finish();
+                    finished = true;
+                } finally {
+                    if (!finished) {
+                        sorter.abort();
+                    }
+                }
+                break;
+            }
+            case "uniq": {
+                cmd.uniqOptions options = cmd.uniqOptions.parse(tokens);
+                if (options.error != null) {
+                    errors.accept(options.error);
+                    break;
+                }
+                lineSink uniq = uniqStage(options, out);
+                boolean finished = false;
+                try {
+                    catFiles(options.files, uniq);
+                    uniq.finish();
+                    finished = true;
+                } finally {
+                    if (!finished) {
+                        uniq.abort();
+                    }
+                }
+                break;
+            }
+            case "wc":
+                emit(cmd.wc(tokens, ""), out);
+                break;
+            case "sha256sum":
+            case "md5sum":
+            case "crc32c":
+                emit(cmd.checksum(tokens, ""), out);
+                break;
+            case "grep": {
+                if (tokens[1].equals("-r")) {
+                    emit(cmd.grep(tokens, ""), out);
+                    break;
+                }
+                boolean prefix = tokens.length > 3;
+                try (readAhead files = new readAhead(Arrays.asList(tokens).subList(2, tokens.length))) {
+                    for (int i = 2; i < tokens.length; i++) {
+                        String fileName = tokens[i];
+                        lineSink matches = grepStage(tokens[1], prefix ? line -> out.accept(fileName + ":" + line) : out);
+                        if (!catFile(fileName, files, false, matches)) {
+                            break;
+                        }
+                    }
+                }
+                break;
+            }
+            case "zcat":
+                catFiles(Arrays.asList(tokens).subList(1, tokens.length), true, out);
+                break;
+            case "gzip":
+            case "gunzip": {
+                String result = cmd.gzip(tokens);
+                if (!result.isEmpty()) {
+                    errors.accept(result.stripTrailing());
+                }
+                break;
+            }
+            case "locate":
+                emit(cmd.locate(tokens), out);
+                break;
+            case "diff": {
+                String error = cmd.diff(tokens, out);
+                if (error != null) {
+                    errors.accept(error);
+                }
+                break;
+            }
+            case "rm":
+                emit(cmd.rm(tokens), out);
+                break;
+            case "rmdir":
+                emit(cmd.rmdir(tokens), out);
+                break;
+            case "mkdir":
+                errors.accept(cmd.mkdirCommand(tokens));
+                break;
+            case "touch":
+                errors.accept(cmd.touchCommand(tokens));
+                break;
+            default:
+                errors.accept("Unknown command in pipe: " + commandName);
+                break;
+        }
+    }
+
+    // Filters transform the lines of the previous stage
+    private lineSink filter(String[] tokens, lineSink out) {
+        String commandName = tokens[0].toLowerCase();
+        switch (commandName) {
+            case "grep":
+                return grepStage(tokens.length > 1 ? tokens[1] : "", out);
+            case "cat":
+                return new stage(out) {
+                    @Override
+                    public boolean accept(String line) throws IOException {
+                        return out.accept(line);
+                    }
+
+                    @Override
+                    public boolean acceptBlock(lineBlock block) throws IOException {
+                        return out.acceptBlock(block);
+                    }
+
+                    @Override
+                    public boolean acceptRecord(fileRecord record) throws IOException {
+                        return out.acceptRecord(record);
+                    }
+                };
+            case "head": {
+                cmd.countOptions options = cmd.countOptions.parse(tokens, false);
+                if (options.error != null) {
+                    errors.accept(options.error);
+                    return CLOSED;
+                }
+                return headStage(options, out);
+            }
+            case "tail": {
+                cmd.countOptions options = cmd.countOptions.parse(tokens, false);
+                if (options.error != null) {
+                    errors.accept(options.error);
+                    return CLOSED;
+                }
+                return tailStage(options, out);
+            }
+            case "sort": {
+                cmd.sortOptions options = cmd.sortOptions.parse(tokens);
+                if (options.error != null) {
+                    errors.accept(options.error);
+                    return CLOSED;
+                }
+                return sortStage(options, out);
+            }
+            case "uniq": {
+                cmd.uniqOptions options = cmd.uniqOptions.parse(tokens);
+                if (options.error != null) {
+                    errors.accept(options.error);
+                    return CLOSED;
+                }
+                return uniqStage(options, out);
+            }
+            case "wc": {
+                cmd.wcOptions options = cmd.wcOptions.parse(tokens);
+                if (options.error != null) {
+                    errors.accept(options.error);
+                    return CLOSED;
+                }
+                cmd.wcCounter counter = new cmd.wcCounter();
+                return new stage(out) {
+                    @Override
+                    public boolean accept(String line) {
+                        return counter.accept(line);
+                    }
+
+                    @Override
+                    public boolean acceptBlock(lineBlock block) {
+                        return counter.acceptBlock(block);
+                    }
+
+                    @Override
+                    public void finish() throws IOException {
+                        out.accept(options.format(counter.counts, null));
+                        out.finish();
+                    }
+                };
+            }
+            case "sha256sum":
+            case "md5sum":
+            case "crc32c": {
+                // Hash the piped text as it streams by, the way coreutils hashes stdin
+                fileHasher.incremental hash;
+                try {
+                    hash = new fileHasher(fileHasher.algorithmOf(commandName)).start();
+                } catch (java.security.NoSuchAlgorithmException e) {
+                    errors.accept("Error: " + e.getMessage());
+                    return CLOSED;
+                }
+                return new stage(out) {
+                    @Override
+                    public boolean accept(String line) {
+                        hash.update((line + "\n").getBytes(StandardCharsets.UTF_8));
+                        return true;
+                    }
+
+                    @Override
+                    public boolean acceptBlock(lineBlock block) {
+                        for (int i = 0; i < block.count; i++) {
+                            hash.update(block.data, block.starts[i], block.ends[i] - block.starts[i]);
+                            hash.update(NEWLINE);
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public void finish() throws IOException {
+                        out.accept(hash.finish() + "  -");
+                        out.finish();
+                    }
+                };
+            }
+            case "xargs": {
+                cmd.xargsOptions options = cmd.xargsOptions.parse(tokens);
+                if (options.error != null) {
+                    errors.accept(options.error);
+                    return CLOSED;
+                }
+                return xargsStage(options, out);
+            }
+            case "where":
+            case "sort-by":
+            case "select":
+            case "to-json":
+                try {
+                    return recordFilter(tokens, out);
+                } catch (IllegalArgumentException e) {
+                    errors.accept("Error: " + commandName + ": " + e.getMessage());
+                    return CLOSED;
+                }
+            default:
+                errors.accept("Unknown command in pipe: " + commandName);
+                return CLOSED;
+        }
+    }
+
+    // The stages working on the records of ls, find and du
+    private lineSink recordFilter(String[] tokens, lineSink out) {
+        List<String> words = Arrays.asList(tokens).subList(1, tokens.length);
+        String name = tokens[0].toLowerCase();
+        switch (name) {
+            case "where": {
+                fileRecord.condition condition = fileRecord.condition.parse(words);
+                return new recordStage(name, out) {
+                    @Override
+                    public boolean acceptRecord(fileRecord record) throws IOException {
+                        return !condition.test(record) || out.acceptRecord(record);
+                    }
+                };
+            }
+            case "select": {
+                List<String> fields = new ArrayList<>();
+                for (String word : words) {
+                    for (String field : word.split(",")) {
+                        if (!field.isEmpty()) {
+                            fields.add(field.toLowerCase());
+                        }
+                    }
+                }
+                if (fields.isEmpty()) {
+                    throw new IllegalArgumentException("usage: select FIELD[,FIELD...]");
+                }
+                List<String> shown = List.copyOf(fileRecord.fields(fields));
+                return new recordStage(name, out) {
+                    @Override
+                    public boolean acceptRecord(fileRecord record) throws IOException {
+                        return out.acceptRecord(record.select(shown));
+                    }
+                };
+            }
+            case "to-json":
+                if (!words.isEmpty()) {
+                    throw new IllegalArgumentException("usage: to-json");
+                }
+                return new recordStage(name, out) {
+                    @Override
+                    public boolean acceptRecord(fileRecord record) throws IOException {
+                        return out.accept(record.json());
+                    }
+                };
+            default:
+                return sortByStage(words, out);
+        }
+    }
+
+    // Buffers the records and passes them on in order of one or more fields, e.g. 'sort-by type,size -r'
+    private lineSink sortByStage(List<String> words, lineSink out) {
+        boolean reverse = false;
+        Comparator<fileRecord> order = null;
+        for (String word : words) {
+            if (word.equals("-r")) {
+                reverse = true;
+                continue;
+            }
+            for (String field : word.split(",")) {
+                if (!field.isEmpty()) {
+                    Comparator<fileRecord> next = fileRecord.order(field.toLowerCase());
+                    order = order == null ? next : order.thenComparing(next);
+                }
+            }
+        }
+        if (order == null) {
+            throw new IllegalArgumentException("usage: sort-by FIELD[,FIELD...] [-r]");
+        }
+        Comparator<fileRecord> sorted = reverse ? order.reversed() : order;
+        return new recordStage("sort-by", out) {
+            final List<fileRecord> records = new ArrayList<>();
+            final memoryGovernor.reservation memory = memoryGovernor.reserve(false);
+
+            @Override
+            public boolean acceptRecord(fileRecord record) {
+                memory.cover((records.size() + 1L) * RECORD_BYTES);
+                records.add(record);
+                return true;
+            }
+
+            @Override
+            public void finish() throws IOException {
+                records.sort(sorted);
+                try {
+                    for (fileRecord record : records) {
+                        if (!out.acceptRecord(record)) {
+                            break;
+                        }
+                    }
+                } finally {
+                    records.clear();
+                    memory.close();
+                }
+                out.finish();
+            }
+
+            @Override
+            public void abort() {
+                records.clear();
+                memory.close();
+                out.abort();
+            }
+        };
+    }
+
+    private static lineSink grepStage(String pattern, lineSink out) {
+        byte[] bytes = pattern.getBytes(StandardCharsets.UTF_8);
+        return new stage(out) {
+            final lineBlock matches = lineBlock.view(1024);
+
+            @Override
+            public boolean accept(String line) throws IOException {
+                return !line.contains(pattern) || out.accept(line);
+            }
+
+            // UTF-8 bytes contain the pattern's bytes exactly where the text contains the pattern
+            @Override
+            public boolean acceptBlock(lineBlock block) throws IOException {
+                matches.reset(block);
+                for (int i = 0; i < block.count; i++) {
+                    if (block.contains(i, bytes)) {
+                        matches.add(block, i);
+                    }
+                }
+                return matches.count == 0 || out.acceptBlock(matches);
+            }
+        };
+    }
+
+    // Runs a command per batch of input lines on a pool of P threads. The output of each run,
+    // errors included, is collected and passed on whole, in input order, as soon as the runs before it are done
+    private lineSink xargsStage(cmd.xargsOptions options, lineSink out) {
+        session caller = session.current();
+        ExecutorService pool = Executors.newFixedThreadPool(options.parallel, r -> {
+            Thread t = new Thread(r, "xargs-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        ArrayDeque<Future<List<String>>> running = new ArrayDeque<>();
+        List<String> batch = new ArrayList<>();
+        return new stage(out) {
+            @Override
+            public boolean accept(String line) throws IOException {
+                String argument = line.strip();
+                if (argument.isEmpty()) {
+                    return true;
+                }
+                batch.add(argument);
+                if (options.replace != null || batch.size() == options.maxArgs) {
+                    submit();
+                }
+                return passOn(false);
+            }
+
+            @Override
+            public void finish() throws IOException {
+                // Nothing runs without input, like 'xargs -r'
+                if (!batch.isEmpty()) {
+                    submit();
+                }
+                passOn(true);
+                pool.shutdownNow();
+                out.finish();
+            }
+
+            @Override
+            public void abort() {
+                running.forEach(run -> run.cancel(true));
+                running.clear();
+                pool.shutdownNow();
+                out.abort();
+            }
+
+            private void submit() {
+                String[] command = options.invocation(batch);
+                batch.clear();
+                running.add(pool.submit(() -> {
+                    List<String> lines = new ArrayList<>();
+                    session.use(caller);
+                    try {
+                        new pipeline(pipeline.this, lines::add).produce(command, lines::add);
+                    } catch (IOException e) {
+                        lines.add("Error: " + e.getMessage());
+                    } finally {
+                        session.use(null);
+                    }
+                    return lines;
+                }));
+            }
+
+            // Waits for the oldest run when told to, or when too many runs are ahead of the output
+            private boolean passOn(boolean all) throws IOException {
+                while (!running.isEmpty()
+                        && (all || running.peek().isDone() || running.size() > 2 * options.parallel)) {
+                    for (String line : await(running.poll())) {
+                        if (!out.accept(line)) {
+                            running.forEach(run -> run.cancel(true));
+                            running.clear();
+                            pool.shutdownNow();
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
+    private static List<String> await(Future<List<String>> run) throws IOException {
+        try {
+            return run.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("xargs interrupted");
+        } catch (ExecutionException e) {
+            return List.of("Error: " + e.getCause().getMessage());
+        }
+    }
+
+    private static lineSink headStage(cmd.countOptions options, lineSink out) {
+        return new stage(out) {
+            long lines = options.lines;
+            long bytes = options.bytes;
+
+            @Override
+            public boolean accept(String line) throws IOException {
+                if (bytes >= 0) {
+                    return acceptBlock(lineBlock.of(line));
+                }
+                if (lines <= 0) {
+                    return false;
+                }
+                lines--;
+                // Tell upstream to stop as soon as the last wanted line went through
+                return out.accept(line) && lines > 0;
+            }
+
+            @Override
+            public boolean acceptBlock(lineBlock block) throws IOException {
+                if (bytes >= 0) {
+                    return acceptBytes(block);
+                }
+                if (lines <= 0) {
+                    return false;
+                }
+                if (block.count <= lines) {
+                    lines -= block.count;
+                    return out.acceptBlock(block) && lines > 0;
+                }
+                // Pass on only the first lines of the block
+                lineBlock first = lineBlock.view((int) lines);
+                first.reset(block);
+                while (first.count < lines) {
+                    first.add(block, first.count);
+                }
+                lines = 0;
+                out.acceptBlock(first);
+                return false;
+            }
+
+            // Counts each line and its '\n'; the line the count ends in is cut on a character boundary
+            private boolean acceptBytes(lineBlock block) throws IOException {
+                if (bytes <= 0) {
+                    return false;
+                }
+                lineBlock first = lineBlock.view(block.count);
+                first.reset(block);
+                for (int i = 0; i < block.count && bytes > 0; i++) {
+                    long length = block.ends[i] - block.starts[i] + 1L;
+                    if (length > bytes) {
+                        first.add(block, i, lineBlock.wholeCharacters(block.data, block.starts[i], (int) bytes));
+                        bytes = 0;
+                    } else {
+                        first.add(block, i);
+                        bytes -= length;
+                    }
+                }
+                return out.acceptBlock(first) && bytes > 0;
+            }
+
+            @Override
+            public boolean acceptRecord(fileRecord record) throws IOException {
+                if (bytes >= 0) {
+                    return accept(record.line());
+                }
+                if (lines <= 0) {
+                    return false;
+                }
+                lines--;
+                return out.acceptRecord(record) && lines > 0;
+            }
+        };
+    }
+
+    private static lineSink tailStage(cmd.countOptions options, lineSink out) {
+        return new stage(out) {
+            final ArrayDeque<String> last = new ArrayDeque<>();
+            final memoryGovernor.reservation memory = memoryGovernor.reserve(true);
+            long bytes;
+            long held;
+            // Once the governor denies memory every line goes here, the last ones are picked at the end
+            spillFile spill;
+            long spilledBytes;
+
+            @Override
+            public boolean accept(String line) throws IOException {
+                if (spill != null) {
+                    toSpill(line);
+                    return true;
+                }
+                last.addLast(line);
+                held += externalSort.LINE_OVERHEAD + 2L * line.length();
+                if (options.bytes >= 0) {
+                    bytes += line.getBytes(StandardCharsets.UTF_8).length + 1L;
+                    while (!last.isEmpty() && bytes - (last.peekFirst().getBytes(StandardCharsets.UTF_8).length + 1L) >= options.bytes) {
+                        String gone = last.removeFirst();
+                        bytes -= gone.getBytes(StandardCharsets.UTF_8).length + 1L;
+                        held -= externalSort.LINE_OVERHEAD + 2L * gone.length();
+                    }
+                } else if (last.size() > options.lines) {
+                    held -= externalSort.LINE_OVERHEAD + 2L * last.removeFirst().length();
+                }
+                if (!memory.cover(held)) {
+                    spill = new spillFile("plutos-tail");
+                    for (String kept : last) {
+                        toSpill(kept);
+                    }
+                    last.clear();
+                    bytes = 0;
+                    held = 0;
+                    memory.trim(0);
+                }
+                return true;
+            }
+
+            private void toSpill(String line) throws IOException {
+                byte[] data = line.getBytes(StandardCharsets.UTF_8);
+                spill.write(data, 0, data.length);
+                spilledBytes += data.length + 1L;
+            }
+
+            @Override
+            public void finish() throws IOException {
+                try {
+                    if (spill == null || readSpill()) {
+                        emitLast();
+                    }
+                } finally {
+                    memory.close();
+                    if (spill != null) {
+                        spill.close();
+                    }
+                }
+                out.finish();
+            }
+
+            @Override
+            public void abort() {
+                memory.close();
+                if (spill != null) {
+                    try {
+                        spill.close();
+                    } catch (IOException ignored) {
+                        // the pipe failed already, a temporary file left behind is removed at exit
+                    }
+                }
+                out.abort();
+            }
+
+            // Skips the spilled lines before the last ones; false if they were passed on already
+            private boolean readSpill() throws IOException {
+                try (spillFile.reader lines = spill.read()) {
+                    if (options.bytes < 0) {
+                        for (long skip = spill.lines() - options.lines; skip > 0; skip--) {
+                            lines.skipLine();
+                        }
+                        String line;
+                        while ((line = lines.readLine()) != null) {
+                            if (!out.accept(line)) {
+                                break;
+                            }
+                        }
+                        return false;
+                    }
+                    long remaining = spilledBytes;
+                    String line;
+                    while ((line = lines.readLine()) != null) {
+                        long length = line.getBytes(StandardCharsets.UTF_8).length + 1L;
+                        if (last.isEmpty() && remaining - length >= options.bytes) {
+                            remaining -= length;
+                            continue;
+                        }
+                        last.addLast(line);
+                    }
+                    return true;
+                }
+            }
+
+            private void emitLast() throws IOException {
+                if (options.bytes >= 0) {
+                    String text = String.join("\n", last) + (last.isEmpty() ? "" : "\n");
+                    emit(cmd.tail(new String[]{"tail", "-c", String.valueOf(options.bytes)}, text), out);
+                } else {
+                    for (String line : last) {
+                        if (!out.accept(line)) {
+                            break;
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    private static lineSink sortStage(cmd.sortOptions options, lineSink out) {
+        externalSort sorter = options.newSorter();
+        return new stage(out) {
+            @Override
+            public boolean accept(String line) throws IOException {
+                sorter.add(line);
+                return true;
+            }
+
+            @Override
+            public void finish() throws IOException {
+                try {
+                    sorter.writeTo(out);
+                } finally {
+                    sorter.close();
+                }
+                out.finish();
+            }
+
+            @Override
+            public void abort() {
+                try {
+                    sorter.close();
+                } catch (IOException ignored) {
+                    // the pipe failed already, a run file left behind is removed at exit
+                }
+                out.abort();
+            }
+        };
+    }
+
+    static lineSink uniqStage(cmd.uniqOptions options, lineSink out) {
+        if (options.all) {
+            return new stage(out) {
+                final lineTable table = new lineTable();
+                // Without -c/-d/-u a line can be printed the first time it is seen
+                final boolean streaming = !options.count && !options.repeated && !options.single;
+
+                @Override
+                public boolean accept(String line) throws IOException {
+                    boolean fresh = table.add(line.getBytes(StandardCharsets.UTF_8));
+                    return !(streaming && fresh) || out.accept(line);
+                }
+
+                // The table copies a line's bytes only the first time it sees the line
+                @Override
+                public boolean acceptBlock(lineBlock block) throws IOException {
+                    for (int i = 0; i < block.count; i++) {
+                        boolean fresh = table.add(block.data, block.starts[i], block.ends[i]);
+                        if (streaming && fresh && !out.accept(block.line(i))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+
+                @Override
+                public void finish() throws IOException {
+                    if (!streaming) {
+                        IOException[] failure = {null};
+                        table.forEach((bytes, count) -> {
+                            if (!options.keeps(count)) {
+                                return true;
+                            }
+                            try {
+                                return out.accept(options.format(new String(bytes, StandardCharsets.UTF_8), count));
+                            } catch (IOException e) {
+                                failure[0] = e;
+                                return false;
+                            }
+                        });
+                        if (failure[0] != null) {
+                            throw failure[0];
+                        }
+                    }
+                    table.close();
+                    out.finish();
+                }
+
+                @Override
+                public void abort() {
+                    table.close();
+                    out.abort();
+                }
+            };
+        }
+        return new stage(out) {
+            // The previous line as UTF-8 bytes, decoded only when it is printed
+            byte[] previous = new byte[256];
+            int length = -1;
+            long count;
+
+            @Override
+            public boolean accept(String line) throws IOException {
+                byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                return next(bytes, 0, bytes.length);
+            }
+
+            @Override
+            public boolean acceptBlock(lineBlock block) throws IOException {
+                for (int i = 0; i < block.count; i++) {
+                    if (!next(block.data, block.starts[i], block.ends[i])) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public void finish() throws IOException {
+                flush();
+                out.finish();
+            }
+
+            private boolean next(byte[] data, int from, int to) throws IOException {
+                if (length >= 0 && Arrays.equals(previous, 0, length, data, from, to)) {
+                    count++;
+                    return true;
+                }
+                boolean more = flush();
+                if (previous.length < to - from) {
+                    previous = new byte[Math.max(to - from, previous.length * 2)];
+                }
+                System.arraycopy(data, from, previous, 0, to - from);
+                length = to - from;
+                count = 1;
+                return more;
+            }
+
+            private boolean flush() throws IOException {
+                if (length < 0 || !options.keeps(count)) {
+                    return true;
+                }
+                return out.accept(options.format(new String(previous, 0, length, StandardCharsets.UTF_8), count));
+            }
+        };
+    }
+
+    private void catFiles(List<String> files, lineSink out) throws IOException {
+        catFiles(files, false, out);
+    }
+
+    // The next files are opened while the current one is read
+    private void catFiles(List<String> fileNames, boolean gzip, lineSink out) throws IOException {
+        try (readAhead files = new readAhead(fileNames)) {
+            for (String fileName : fileNames) {
+                if (!catFile(fileName, files, gzip, out)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Pushes the lines of the next file, returns false once the sink stopped accepting them
+    private boolean catFile(String fileName, readAhead files, boolean gzip, lineSink out) throws IOException {
+        InputStream raw;
+        try {
+            raw = new countingStream(files.next());
+        } catch (NoSuchFileException e) {
+            errors.accept("Error: " + fileName + " does not exist.");
+            return true;
+        }
+        // Lines are handed on as raw bytes; only stages that need text decode them
+        try (raw; InputStream in = gzip ? new java.util.zip.GZIPInputStream(raw, 64 * 1024)
+                : cmd.gunzipIfNeeded(fileName, raw)) {
+            return lineBlock.pump(in, out);
+        }
+    }
+
+    // Keeps pushing lines appended to the file until the pipe is done or Enter is pressed
+    private static void follow(Path file, lineSink out) throws IOException {
+        boolean[] done = {false};
+        ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        OutputStream splitter = new OutputStream() {
+            @Override
+            public void write(int b) {
+                if (done[0]) {
+                    return;
+                }
+                if (b != '\n') {
+                    partial.write(b);
+                    return;
+                }
+                try {
+                    done[0] = !out.accept(partial.toString(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    done[0] = true;
+                }
+                partial.reset();
+            }
+        };
+        PrintStream lines = new PrintStream(new BufferedOutputStream(splitter), true, StandardCharsets.UTF_8);
+        fileTail.follow(file, Files.size(file), lines, () -> done[0] || cmd.enterPressed());
+    }
+
+    // Pushes text line by line, dropping the empty string after a final '\n'
+    private static void emit(String text, lineSink out) throws IOException {
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            if (end < 0) {
+                end = text.length();
+            }
+            if (!out.accept(text.substring(start, end))) {
+                return;
+            }
+            start = end + 1;
+        }
+    }
+
+    // Counts the lines and bytes going into a stage, and the time spent in it and the stages after it
+    private static class meter implements lineSink {
+        final lineSink next;
+        long lines;
+        long bytes;
+        long nanos;
+
+        meter(lineSink next) {
+            this.next = next;
+        }
+
+        @Override
+        public boolean accept(String line) throws IOException {
+            long started = System.nanoTime();
+            lines++;
+            bytes += profiler.utf8Length(line) + 1;
+            boolean more = next.accept(line);
+            nanos += System.nanoTime() - started;
+            return more;
+        }
+
+        @Override
+        public boolean acceptBlock(lineBlock block) throws IOException {
+            long started = System.nanoTime();
+            lines += block.count;
+            for (int i = 0; i < block.count; i++) {
+                bytes += block.ends[i] - block.starts[i] + 1;
+            }
+            boolean more = next.acceptBlock(block);
+            nanos += System.nanoTime() - started;
+            return more;
+        }
+
+        @Override
+        public boolean acceptRecord(fileRecord record) throws IOException {
+            long started = System.nanoTime();
+            lines++;
+            bytes += profiler.utf8Length(record.line()) + 1;
+            boolean more = next.acceptRecord(record);
+            nanos += System.nanoTime() - started;
+            return more;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            long started = System.nanoTime();
+            next.finish();
+            nanos += System.nanoTime() - started;
+        }
+
+        @Override
+        public void abort() {
+            next.abort();
+        }
+    }
+
+    /**
+     * A filter that forwards finish and abort to the next stage.
+     */
+    private abstract static class stage implements lineSink {
+        final lineSink out;
+
+        stage(lineSink out) {
+            this.out = out;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            out.finish();
+        }
+
+        @Override
+        public void abort() {
+            out.abort();
+        }
+    }
+
+    /**
+     * A stage that takes the records of a listing; plain lines are an error.
+     */
+    private abstract class recordStage extends stage {
+        private final String name;
+
+        recordStage(String name, lineSink out) {
+            super(out);
+            this.name = name;
+        }
+
+        @Override
+        public boolean accept(String line) {
+            errors.accept("Error: " + name + " takes the output of ls, find or du");
+            return false;
+        }
+    }
+
+    // Counts the bytes stages actually pull from disk
+    private class countingStream extends FilterInputStream {
+        countingStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                bytesRead.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                bytesRead.add(n);
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.os;
+
+import jdk.jfr.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Measures commands: Java Flight Recorder events for every command and pipe
+ * stage, and the 'time' built-in.
+ * <p>
+ * The events cost nothing until a recording is running (start the shell with
+ * -XX:StartFlightRecording, or attach with 'jcmd PID JFR.start'); only then are
+ * the bytes and files counted. They show up in JDK Mission Control, or with
+ * 'jfr print --categories PlutOS recording.jfr', next to the GC, I/O and lock
+ * events of the same moment, so a slow command in a real session can be looked
+ * at afterwards without adding an agent.
+ * <p>
+ * 'time COMMAND' runs a command and prints its wall time, the CPU time (user and
+ * system) of the shell thread and of the whole process, whose worker threads do
+ * the parallel hashing, compressing and read-ahead, and the bytes allocated by all
+ * threads while it ran.
+ */
+class profiler {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final Path IO_STATS = Path.of("/proc/self/io");
+
+    private profiler() {
+    }
+
+    @Name("org.os.Command")
+    @Label("Command")
+    @Category("PlutOS")
+    @Description("A command line run by the shell")
+    static class commandEvent extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Arguments")
+        String arguments;
+
+        @Label("Bytes In")
+        @Description("Bytes read by the process while the command ran, -1 where the OS does not tell")
+        @DataAmount
+        long bytesIn;
+
+        @Label("Bytes Out")
+        @Description("UTF-8 bytes of the output")
+        @DataAmount
+        long bytesOut;
+
+        @Label("Files")
+        @Description("File names the command resolved")
+        long files;
+    }
+
+    @Name("org.os.PipeStage")
+    @Label("Pipe Stage")
+    @Category("PlutOS")
+    @Description("One command of a pipe; the stages of a pipe run interleaved, so each one spans the whole pipe")
+    static class stageEvent extends Event {
+        @Label("Stage")
+        int stage;
+
+        @Label("Command")
+        String command;
+
+        @Label("Arguments")
+        String arguments;
+
+        @Label("Lines In")
+        long linesIn;
+
+        @Label("Bytes In")
+        @Description("Bytes of the lines it received, or of the files a producing command read")
+        @DataAmount
+        long bytesIn;
+
+        @Label("Lines Out")
+        long linesOut;
+
+        @Label("Bytes Out")
+        @DataAmount
+        long bytesOut;
+
+        @Label("Self Time")
+        @Description("Time spent in this stage, not counting the stages after it")
+        @Timespan
+        long selfTime;
+    }
+
+    /**
+     * Starts the event of a command line.
+     *
+     * @return the event, or null when no recording wants it
+     */
+    static commandEvent begin(String[] tokens) {
+        commandEvent event = new commandEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.command = tokens[0];
+        event.arguments = String.join(" ", Arrays.asList(tokens).subList(1, tokens.length));
+        event.bytesIn = bytesRead();
+        event.files = session.resolved();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the event of a command line, if it was started.
+     *
+     * @param bytesOut UTF-8 bytes the command printed
+     */
+    static void end(commandEvent event, long bytesOut) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        long read = bytesRead();
+        event.bytesIn = read < 0 || event.bytesIn < 0 ? -1 : read - event.bytesIn;
+        event.bytesOut = bytesOut;
+        event.files = session.resolved() - event.files;
+        event.commit();
+    }
+
+    /**
+     * @return number of bytes a String takes in UTF-8
+     */
+    static long utf8Length(String text) {
+        long length = text.length();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                // surrogate pairs are 4 bytes for 2 chars
+                length += c < 0x800 ? 1 : Character.isSurrogate(c) ? 1 : 2;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Runs a command and measures it.
+     *
+     * @return wall time, CPU times and allocated bytes, one per line
+     */
+    static String time(Runnable command) {
+        long cpuBefore = THREADS.getCurrentThreadCpuTime();
+        long userBefore = THREADS.getCurrentThreadUserTime();
+        long processBefore = processCpuTime();
+        long allocatedBefore = allocatedBytes();
+        long started = System.nanoTime();
+
+        command.run();
+
+        long wall = System.nanoTime() - started;
+        long cpu = THREADS.getCurrentThreadCpuTime() - cpuBefore;
+        long user = THREADS.getCurrentThreadUserTime() - userBefore;
+        long process = processCpuTime() - processBefore;
+        long allocated = allocatedBytes() - allocatedBefore;
+        return String.format("real   %s%nuser   %s%nsys    %s%ncpu    %s (all threads)%nalloc  %s",
+                seconds(wall), seconds(user), seconds(cpu - user),
+                processBefore < 0 ? "n/a" : seconds(process),
+                allocatedBefore < 0 ? "n/a" : allocated + " bytes");
+    }
+
+    private static String seconds(long nanos) {
+        return String.format("%.3fs", nanos / 1e9);
+    }
+
+    // CPU time of every thread of the process, -1 if the JVM does not tell
+    private static long processCpuTime() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        return os instanceof com.sun.management.OperatingSystemMXBean
+                ? ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime() : -1;
+    }
+
+    // Bytes allocated so far by the live threads, -1 if the JVM does not tell
+    private static long allocatedBytes() {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        long total = 0;
+        for (long bytes : ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    // Bytes read by the process through system calls (rchar), -1 where there is no /proc
+    private static long bytesRead() {
+        try {
+            for (String line : Files.readAllLines(IO_STATS)) {
+                if (line.startsWith("rchar:")) {
+                    return Long.parseLong(line.substring(6).trim());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // not Linux
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,187 @@
+package org.os;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Reads a list of files in order while opening the next ones in the background.
+ * <p>
+ * cat and grep used to open a file only once they were done with the previous
+ * one, so every file paid the whole open and first read latency in turn, which
+ * adds up on network storage or with thousands of small files. Here a few worker
+ * threads open the next files ahead of the reader and read their first block,
+ * so when the reader gets to a file its beginning (all of it, for a small file) is
+ * already in memory, and the rest is read from the file as usual. Only a fixed
+ * number of files is prefetched at a time, which bounds both the open files and
+ * the memory used, and the files are still handed out strictly in list order.
+ */
+class readAhead implements Closeable {
+
+    // Files opened ahead of the reader
+    private static final int WINDOW = 8;
+
+    // Bytes read ahead from each file
+    private static final int BLOCK = 64 * 1024;
+
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(4, r -> {
+        Thread t = new Thread(r, "read-ahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final List<Path> files = new ArrayList<>();
+    // Why a name could not be resolved, per file, or null
+    private final List<IOException> errors = new ArrayList<>();
+    private final List<CompletableFuture<prefetched>> pending = new ArrayList<>();
+    private int next;
+    private volatile boolean closed;
+
+    /**
+     * Starts opening the first files.
+     *
+     * @param names file names, resolved against the current session
+     */
+    readAhead(List<String> names) {
+        for (String name : names) {
+            Path file = null;
+            IOException error = null;
+            try {
+                file = session.resolve(name);
+            } catch (IOException e) {
+                error = e;
+            }
+            files.add(file);
+            errors.add(error);
+            pending.add(null);
+        }
+        for (int i = 0; i < Math.min(WINDOW, files.size()); i++) {
+            prefetch(i);
+        }
+    }
+
+    /**
+     * @return true if {@link #next} has another file to hand out
+     */
+    boolean hasNext() {
+        return next < files.size();
+    }
+
+    /**
+     * Hands out the next file. The caller closes the stream.
+     *
+     * @return the contents of the next file in the list
+     * @throws IOException the error opening that file, e.g. NoSuchFileException
+     */
+    InputStream next() throws IOException {
+        int current = next++;
+        if (current + WINDOW < files.size()) {
+            prefetch(current + WINDOW);
+        }
+        CompletableFuture<prefetched> result = pending.set(current, null);
+        if (result == null) {
+            throw errors.get(current);
+        }
+        try {
+            return result.get().stream();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("read-ahead interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Hands out the next file as UTF-8 text, decompressing it if its name ends in .gz.
+     */
+    BufferedReader nextReader() throws IOException {
+        Path file = files.get(next);
+        InputStream in = next();
+        return new BufferedReader(new InputStreamReader(cmd.gunzipIfNeeded(cmd.entryName(file), in), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Stops reading ahead and closes the files opened for nothing.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (int i = next; i < pending.size(); i++) {
+            CompletableFuture<prefetched> result = pending.get(i);
+            if (result != null) {
+                // Closes the file now if it is open, or as soon as it is
+                result.thenAccept(opened -> {
+                    if (opened != null) {
+                        try {
+                            opened.channel.close();
+                        } catch (IOException e) {
+                            // nothing more to do with it
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private void prefetch(int index) {
+        Path file = files.get(index);
+        if (file == null) {
+            return;
+        }
+        pending.set(index, CompletableFuture.supplyAsync(() -> {
+            if (closed) {
+                return null; // the reader stopped before this file's turn
+            }
+            try {
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                try {
+                    // One byte more than a small file holds, so reaching its end shows
+                    ByteBuffer block = ByteBuffer.allocate((int) Math.min(BLOCK, channel.size() + 1));
+                    while (block.hasRemaining() && channel.read(block) > 0) {
+                        // fill the block unless the file ends first
+                    }
+                    block.flip();
+                    return new prefetched(channel, block);
+                } catch (IOException | RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, POOL));
+    }
+
+    // An open file whose first block is already read
+    private static class prefetched {
+        final FileChannel channel;
+        final ByteBuffer block;
+
+        prefetched(FileChannel channel, ByteBuffer block) {
+            this.channel = channel;
+            this.block = block;
+        }
+
+        // The block first, then the rest straight from the file
+        InputStream stream() throws IOException {
+            if (block.limit() < block.capacity()) {
+                // the whole file fit in the block
+                channel.close();
+                return new ByteArrayInputStream(block.array(), 0, block.limit());
+            }
+            return new SequenceInputStream(new ByteArrayInputStream(block.array(), 0, block.limit()),
+                    Channels.newInputStream(channel));
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package org.os;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the output of commands that only read files (cat, ls, grep, wc and the
+ * checksums), so running one again on unchanged files costs a few stat calls.
+ * <p>
+ * An entry is keyed on the current directory and the command line, and keeps the
+ * identity (device and inode), size and modification time of every file it read.
+ * A hit checks them all again and is thrown away when any of them changed. Outputs
+ * are only stored when their inputs were last modified more than a couple of
+ * seconds ago: a file changed twice within one timestamp tick could otherwise keep
+ * the same size and time, the same problem git solves the same way. Entries are
+ * weighed by the size of their output and the least recently used ones are evicted
+ * once the cache is over its budget.
+ * <p>
+ * The cache is off until 'cache on' is run.
+ */
+class resultCache {
+
+    // Inputs modified more recently than this are not trusted to show the next change
+    private static final long RACY_NANOS = 2_000_000_000L;
+
+    // Bytes a cached entry costs besides its output
+    private static final int ENTRY_OVERHEAD = 256;
+
+    static final long DEFAULT_BUDGET = Math.min(32L << 20, Runtime.getRuntime().maxMemory() / 8);
+
+    private static resultCache instance;
+
+    private final long budget;
+    private long weight;
+    private long hits;
+    private long misses;
+    private long stale;
+    private long evictions;
+
+    private final LinkedHashMap<String, entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private resultCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Turns the cache on with a memory budget, dropping whatever was cached before.
+     */
+    static synchronized void enable(long budget) {
+        instance = new resultCache(budget);
+    }
+
+    /**
+     * Turns the cache off and frees its entries.
+     */
+    static synchronized void disable() {
+        instance = null;
+    }
+
+    /**
+     * @return the cache in use, or null when it is off
+     */
+    static synchronized resultCache current() {
+        return instance;
+    }
+
+    /**
+     * Runs a command through the cache, if the cache is on and the command is one
+     * whose output only depends on the files it names.
+     *
+     * @param tokens  the command line
+     * @param command computes the output when there is no valid cached one
+     * @return the output
+     */
+    static String cached(String[] tokens, Supplier<String> command) {
+        resultCache cache = current();
+        List<Path> inputs = cache == null ? null : inputs(tokens);
+        if (inputs == null) {
+            return command.get();
+        }
+        String key = session.cwd().toUri() + "\n" + String.join("\0", tokens);
+        String output = cache.get(key);
+        if (output != null) {
+            return output;
+        }
+        long started = System.currentTimeMillis();
+        output = command.get();
+        if (!output.startsWith("Error")) {
+            cache.put(key, inputs, output, started);
+        }
+        return output;
+    }
+
+    // The files a command reads, or null for commands that cannot be cached
+    private static List<Path> inputs(String[] tokens) {
+        List<String> names = new ArrayList<>();
+        switch (tokens[0].toLowerCase()) {
+            case "cat":
+                names.addAll(Arrays.asList(tokens).subList(1, tokens.length));
+                break;
+            case "ls":
+                for (int i = 1; i < tokens.length; i++) {
+                    if (tokens[i].startsWith("-") && tokens[i].contains("r")) {
+                        return null; // would have to check every directory below
+                    }
+                    if (tokens[i].equals("--top") || tokens[i].startsWith("-")
+                            && (tokens[i].contains("S") || tokens[i].contains("t"))) {
+                        return null; // ordered by the entries' sizes and times, which the directory's time does not follow
+                    }
+                    if (!tokens[i].startsWith("-")) {
+                        names.add(tokens[i]);
+                    }
+                }
+                if (names.isEmpty()) {
+                    names.add(".");
+                }
+                break;
+            case "wc": {
+                cmd.wcOptions options = cmd.wcOptions.parse(tokens);
+                if (options.error != null || options.files.isEmpty()) {
+                    return null; // counts piped input
+                }
+                names.addAll(options.files);
+                break;
+            }
+            case "grep":
+                if (tokens.length < 3 || tokens[1].equals("-r")) {
+                    return null; // reads piped input, or a whole tree which has its own index
+                }
+                names.addAll(Arrays.asList(tokens).subList(2, tokens.length));
+                break;
+            case "sha256sum":
+            case "md5sum":
+            case "crc32c":
+                for (int i = 1; i < tokens.length; i++) {
+                    if (tokens[i].startsWith("-")) {
+                        return null; // -c reads the files listed in another file
+                    }
+                    names.add(tokens[i]);
+                }
+                break;
+            default:
+                return null;
+        }
+        if (names.isEmpty()) {
+            return null;
+        }
+        List<Path> inputs = new ArrayList<>();
+        for (String name : names) {
+            try {
+                inputs.add(session.resolve(name));
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return inputs;
+    }
+
+    private synchronized String get(String key) {
+        entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        for (int i = 0; i < entry.inputs.length; i++) {
+            if (!entry.stamps[i].equals(stamp.of(entry.inputs[i]))) {
+                remove(key);
+                stale++;
+                misses++;
+                return null;
+            }
+        }
+        hits++;
+        return entry.output;
+    }
+
+    private synchronized void put(String key, List<Path> inputs, String output, long started) {
+        long entryWeight = 2L * output.length() + ENTRY_OVERHEAD;
+        if (entryWeight > budget) {
+            return;
+        }
+        stamp[] stamps = new stamp[inputs.size()];
+        for (int i = 0; i < stamps.length; i++) {
+            stamps[i] = stamp.of(inputs.get(i));
+            if (stamps[i] == null || stamps[i].modified > started * 1_000_000L - RACY_NANOS) {
+                return;
+            }
+        }
+        remove(key);
+        entries.put(key, new entry(inputs.toArray(new Path[0]), stamps, output, entryWeight));
+        weight += entryWeight;
+        Iterator<entry> eldest = entries.values().iterator();
+        while (weight > budget && eldest.hasNext()) {
+            weight -= eldest.next().weight;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private void remove(String key) {
+        entry removed = entries.remove(key);
+        if (removed != null) {
+            weight -= removed.weight;
+        }
+    }
+
+    /**
+     * @return the most memory the cached outputs may take, in bytes
+     */
+    long budget() {
+        return budget;
+    }
+
+    /**
+     * @return hit rate and size of the cache, one value per line
+     */
+    synchronized String stats() {
+        long lookups = hits + misses;
+        return String.format("entries:   %d%nsize:      %d of %d bytes%nhits:      %d%nmisses:    %d (%d stale)"
+                        + "%nevictions: %d%nhit rate:  %.1f%%",
+                entries.size(), weight, budget, hits, misses, stale, evictions,
+                lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+    }
+
+    private static class entry {
+        final Path[] inputs;
+        final stamp[] stamps;
+        final String output;
+        final long weight;
+
+        entry(Path[] inputs, stamp[] stamps, String output, long weight) {
+            this.inputs = inputs;
+            this.stamps = stamps;
+            this.output = output;
+            this.weight = weight;
+        }
+    }
+
+    // What a file looked like: a different file, size or time means it changed
+    private static class stamp {
+        final Object key;
+        final long size;
+        final long modified;
+
+        private stamp(Object key, long size, long modified) {
+            this.key = key;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        // null when the file cannot be read
+        static stamp of(Path file) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                return new stamp(attributes.fileKey(), attributes.size(),
+                        attributes.lastModifiedTime().to(java.util.concurrent.TimeUnit.NANOSECONDS));
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof stamp)) {
+                return false;
+            }
+            stamp other = (stamp) o;
+            return size == other.size && modified == other.modified && Objects.equals(key, other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(key, size, modified);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package org.os;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The file system a shell works on, and its current directory.
+ * <p>
+ * Commands never touch {@link java.io.File} or "user.dir" directly, they resolve
+ * names through the session of the calling thread. The default session is the
+ * disk, with the current directory kept in the "user.dir" property. An
+ * in-memory session ({@link #inMemory()}) gives a ramdisk for scratch work with
+ * no disk I/O; tests use one each so they are fast and can run in parallel.
+ * <p>
+ * A name of the form 'app.jar!/dir/file' points inside a zip or jar archive: the
+ * archive is opened once as a zip {@link FileSystem} and its entries are read
+ * lazily, without extracting anything. 'cd app.jar!/' makes the archive the
+ * current directory, so ls, cat and grep then work on its entries directly.
+ * Archives are only browsed: commands that write resolve their names through
+ * {@link #resolveForWriting}, which refuses entries of an archive, and an archive
+ * that changed on disk is opened again the next time a name points into it.
+ * <p>
+ * A session may be used by several threads at once (xargs workers adopt the
+ * session of their pipe), so its archives and directory are kept under its lock.
+ */
+public class session implements Closeable {
+
+    private static final session DISK = new session(FileSystems.getDefault(), null);
+
+    private static final ThreadLocal<session> CURRENT = ThreadLocal.withInitial(() -> DISK);
+
+    // File names resolved by all sessions, for profiling
+    private static final LongAdder resolved = new LongAdder();
+
+    private final FileSystem fileSystem;
+    private final Path home;
+
+    // Current directory of sessions that are not on the disk
+    private Path dir;
+
+    // Current directory while inside an archive, null otherwise
+    private Path archiveDir;
+
+    // Archives opened so far, the archive file behind each of them, and its time when it was opened
+    private final Map<Path, FileSystem> archives = new HashMap<>();
+    private final Map<FileSystem, Path> archiveFiles = new HashMap<>();
+    private final Map<FileSystem, FileTime> archiveTimes = new HashMap<>();
+
+    private session(FileSystem fileSystem, Path home) {
+        this.fileSystem = fileSystem;
+        this.home = home;
+        this.dir = home;
+    }
+
+    /**
+     * @return the session on the real disk, shared by every thread by default
+     */
+    public static session disk() {
+        return DISK;
+    }
+
+    /**
+     * Creates a session on a new, empty in-memory file system whose current and
+     * home directory is '/work'. Everything is lost when the session is closed.
+     */
+    public static session inMemory() {
+        FileSystem fs = Jimfs.newFileSystem(Configuration.unix().toBuilder()
+                .setAttributeViews("basic", "owner", "posix", "unix")
+                .build());
+        return new session(fs, fs.getPath("/work"));
+    }
+
+    /**
+     * Makes a session the one used by commands running on the calling thread.
+     *
+     * @param session the session, or null to go back to the disk
+     */
+    public static void use(session session) {
+        if (session == null || session == DISK) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(session);
+        }
+    }
+
+    /**
+     * Closes the archives the session opened and, for an in-memory session, its
+     * file system, which the file system provider otherwise keeps for the life of
+     * the program. Closing the disk session only closes its archives.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (FileSystem archive : archives.values()) {
+            closeArchive(archive);
+        }
+        archives.clear();
+        archiveFiles.clear();
+        archiveTimes.clear();
+        archiveDir = null;
+        if (isInMemory()) {
+            fileSystem.close();
+        }
+    }
+
+    /**
+     * @return the session of the calling thread
+     */
+    public static session current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return the file system this session works on
+     */
+    public FileSystem fileSystem() {
+        return fileSystem;
+    }
+
+    /**
+     * @return true for sessions that live in memory
+     */
+    public boolean isInMemory() {
+        return fileSystem != FileSystems.getDefault();
+    }
+
+    /**
+     * @return the current directory
+     */
+    public static Path cwd() {
+        session s = current();
+        synchronized (s) {
+            if (s.archiveDir != null) {
+                Path archive = s.archiveFiles.get(s.archiveDir.getFileSystem());
+                try {
+                    // The archive may have changed since 'cd' went into it
+                    s.archiveDir = s.open(archive).getPath(s.archiveDir.toString());
+                    return s.archiveDir;
+                } catch (IOException e) {
+                    // The archive is gone, back to the directory it was in
+                    s.archiveDir = null;
+                    changeDir(archive.getParent());
+                }
+            }
+            return s.isInMemory() ? s.dir : Paths.get(System.getProperty("user.dir"));
+        }
+    }
+
+    /**
+     * @return the home directory ('~')
+     */
+    public static Path home() {
+        session s = current();
+        return s.isInMemory() ? s.home : Paths.get(System.getProperty("user.home"));
+    }
+
+    /**
+     * Makes a directory the current one.
+     */
+    public static void changeDir(Path dir) {
+        session s = current();
+        synchronized (s) {
+            if (s.archiveFiles.containsKey(dir.getFileSystem())) {
+                s.archiveDir = dir;
+                return;
+            }
+            s.archiveDir = null;
+            if (s.isInMemory()) {
+                s.dir = dir;
+            } else {
+                System.setProperty("user.dir", dir.toString());
+            }
+        }
+    }
+
+    /**
+     * Resolves a name typed by the user against the current directory.
+     * Absolute names always refer to the session's file system, even while inside an archive.
+     *
+     * @param name a file name, relative or absolute, optionally with 'archive!/entry'
+     * @return the path, inside an archive file system if the name points into one
+     * @throws IOException if an archive in the name cannot be opened
+     */
+    public static Path resolve(String name) throws IOException {
+        resolved.increment();
+        int bang = name.indexOf("!/");
+        if (bang < 0 && name.endsWith("!")) {
+            bang = name.length() - 1;
+        }
+        if (bang > 0) {
+            FileSystem archive = current().open(resolve(name.substring(0, bang)));
+            String entry = name.substring(bang + 1);
+            return archive.getPath(entry.isEmpty() ? "/" : entry).normalize();
+        }
+        if (name.startsWith("/")) {
+            return current().fileSystem.getPath(name);
+        }
+        return cwd().resolve(name);
+    }
+
+    /**
+     * Resolves the name of a file a command is about to create, change or delete.
+     *
+     * @throws AccessDeniedException if the name points into an archive, which can only be browsed
+     * @see #resolve(String)
+     */
+    public static Path resolveForWriting(String name) throws IOException {
+        return checkWritable(resolve(name));
+    }
+
+    /**
+     * @return the path, if it is not an entry of an archive
+     * @throws AccessDeniedException if it is, archives can only be browsed
+     */
+    public static Path checkWritable(Path path) throws AccessDeniedException {
+        if (current().archiveOf(path) != null) {
+            throw new AccessDeniedException(display(path), null, "archives are read-only");
+        }
+        return path;
+    }
+
+    /**
+     * @return number of file names resolved so far, by every thread
+     */
+    static long resolved() {
+        return resolved.sum();
+    }
+
+    /**
+     * @return how a path is shown to the user, 'archive!/entry' for archive entries
+     */
+    public static String display(Path path) {
+        Path archive = current().archiveOf(path);
+        return archive == null ? path.toString() : display(archive) + "!" + path;
+    }
+
+    /**
+     * @return the parent directory, leaving the archive when at its root
+     */
+    static Path parent(Path dir) {
+        Path parent = dir.getParent();
+        Path archive = current().archiveOf(dir);
+        if (parent == null && archive != null) {
+            return archive.toAbsolutePath().getParent();
+        }
+        return parent;
+    }
+
+    // The archive file a path is in, null for paths outside archives
+    private synchronized Path archiveOf(Path path) {
+        return archiveFiles.get(path.getFileSystem());
+    }
+
+    // Opens an archive as a zip file system, reusing it while the archive has not changed
+    private synchronized FileSystem open(Path archive) throws IOException {
+        Path key = archive.toAbsolutePath().normalize();
+        FileSystem fs = archives.get(key);
+        if (!Files.isRegularFile(key)) {
+            forget(fs);
+            throw new NoSuchFileException(display(key));
+        }
+        FileTime time = Files.getLastModifiedTime(key);
+        if (fs != null && fs.isOpen() && time.equals(archiveTimes.get(fs))) {
+            return fs;
+        }
+        forget(fs);
+        try {
+            fs = FileSystems.newFileSystem(key);
+        } catch (ProviderNotFoundException e) {
+            throw new IOException(display(key) + " is not a zip archive");
+        }
+        archives.put(key, fs);
+        archiveFiles.put(fs, key);
+        archiveTimes.put(fs, time);
+        return fs;
+    }
+
+    // Closes the file system of an archive that changed or is gone; its paths still tell which archive they are in
+    private synchronized void forget(FileSystem fs) throws IOException {
+        if (fs == null) {
+            return;
+        }
+        archives.remove(archiveFiles.get(fs));
+        archiveTimes.remove(fs);
+        closeArchive(fs);
+    }
+
+    private static void closeArchive(FileSystem fs) throws IOException {
+        try {
+            fs.close();
+        } catch (NoSuchFileException e) {
+            // the archive was deleted, which leaves nothing to release
+        }
+    }
+}
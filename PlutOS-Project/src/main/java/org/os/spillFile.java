@@ -0,0 +1,148 @@
+package org.os;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A temporary file of lines that did not fit in memory, written once and read
+ * back in order.
+ * <p>
+ * Each line is stored as its length (a variable-length integer, one byte for
+ * lines under 128 bytes) followed by its UTF-8 bytes. Reading a line back is one
+ * length and one bulk copy, with no search for line breaks, and lines may hold
+ * any character.
+ */
+class spillFile implements Closeable {
+
+    private static final int BUFFER = 64 * 1024;
+
+    private final Path file;
+    private DataOutputStream out;
+    private long lines;
+
+    /**
+     * Creates an empty spill file in the temporary directory.
+     */
+    spillFile(String prefix) throws IOException {
+        file = Files.createTempFile(prefix, ".spill");
+        file.toFile().deleteOnExit();
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), BUFFER));
+    }
+
+    /**
+     * Appends a line.
+     */
+    void write(String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Appends the line held in part of a buffer.
+     */
+    void write(byte[] data, int from, int to) throws IOException {
+        int length = to - from;
+        while (length >= 0x80) {
+            out.write(length & 0x7f | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+        out.write(data, from, to - from);
+        lines++;
+    }
+
+    /**
+     * @return number of lines written
+     */
+    long lines() {
+        return lines;
+    }
+
+    /**
+     * Finishes writing and opens the lines for reading, from the first one.
+     */
+    reader read() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        return new reader(new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER)));
+    }
+
+    /**
+     * Deletes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Reads the lines of a spill file back.
+     */
+    static class reader implements Closeable {
+        private final DataInputStream in;
+        private byte[] buffer = new byte[256];
+
+        private reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return the next line, or null after the last one
+         */
+        String readLine() throws IOException {
+            int length = readLength();
+            if (length < 0) {
+                return null;
+            }
+            if (buffer.length < length) {
+                buffer = Arrays.copyOf(buffer, Math.max(length, buffer.length * 2));
+            }
+            in.readFully(buffer, 0, length);
+            return new String(buffer, 0, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Skips the next line.
+         *
+         * @return its length in bytes, or -1 after the last line
+         */
+        int skipLine() throws IOException {
+            int length = readLength();
+            if (length > 0) {
+                in.skipNBytes(length);
+            }
+            return length;
+        }
+
+        private int readLength() throws IOException {
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.read();
+                if (b < 0) {
+                    if (shift == 0) {
+                        return -1;
+                    }
+                    throw new EOFException("truncated spill file");
+                }
+                length |= (b & 0x7f) << shift;
+                if (b < 0x80) {
+                    return length;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.os;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The orders of 'ls -S', '-t' and '-X', and the K first files of a whole tree in
+ * one of them ('ls -rS --top K': the biggest files under a directory).
+ * <p>
+ * Each directory is listed by a fork/join task of its own, which keeps the best K
+ * files of its directory in a bounded heap whose head is the worst of them, so a
+ * file that does not beat it is dropped at once. Before it forks the tasks of its
+ * subdirectories, a task merges its heap into the one heap of the whole walk and
+ * drops it. The tree is read once, in parallel, and memory stays at K records for
+ * the walk plus K per running task however many files and directories there are.
+ */
+class topEntries {
+
+    static final Comparator<fileRecord> BY_NAME = Comparator.comparing(r -> cmd.entryName(r.path));
+
+    // Biggest first
+    static final Comparator<fileRecord> BY_SIZE =
+            Comparator.<fileRecord>comparingLong(r -> r.size).reversed().thenComparing(BY_NAME);
+
+    // Newest first
+    static final Comparator<fileRecord> BY_TIME =
+            Comparator.<fileRecord, FileTime>comparing(r -> r.mtime).reversed().thenComparing(BY_NAME);
+
+    // By extension, then name; names without one come first
+    static final Comparator<fileRecord> BY_EXTENSION =
+            Comparator.<fileRecord, String>comparing(r -> extension(cmd.entryName(r.path))).thenComparing(BY_NAME);
+
+    private topEntries() {
+    }
+
+    /**
+     * Finds the first files of a directory, or of its whole tree, in an order.
+     * Directories are looked into but not ranked; symbolic links are not followed.
+     *
+     * @param hidden    whether hidden files and directories count
+     * @param recursive whether to look under the subdirectories too
+     * @return at most k files, in order
+     */
+    static List<fileRecord> find(Path dir, boolean hidden, boolean recursive, Comparator<fileRecord> order, int k) {
+        PriorityQueue<fileRecord> best = new PriorityQueue<>(k + 1, order.reversed());
+        ForkJoinPool.commonPool().invoke(new walker(dir, hidden, recursive, order, k, best));
+        List<fileRecord> sorted = new ArrayList<>(best);
+        sorted.sort(order);
+        return sorted;
+    }
+
+    static String extension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot <= 0 ? "" : name.substring(dot + 1);
+    }
+
+    // Lists one directory and forks a task for each subdirectory
+    private static class walker extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final boolean hidden;
+        private final boolean recursive;
+        private final Comparator<fileRecord> order;
+        private final int k;
+        // The best files of the whole walk, shared by every task
+        private final PriorityQueue<fileRecord> all;
+
+        walker(Path dir, boolean hidden, boolean recursive, Comparator<fileRecord> order, int k,
+               PriorityQueue<fileRecord> all) {
+            this.dir = dir;
+            this.hidden = hidden;
+            this.recursive = recursive;
+            this.order = order;
+            this.k = k;
+            this.all = all;
+        }
+
+        @Override
+        protected void compute() {
+            // The head is the worst file kept, the first to go
+            PriorityQueue<fileRecord> best = new PriorityQueue<>(k + 1, order.reversed());
+            List<walker> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    if (!hidden && Files.isHidden(entry)) {
+                        continue;
+                    }
+                    fileRecord record;
+                    try {
+                        record = fileRecord.stat(entry);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    if (!record.type.equals("dir")) {
+                        offer(best, record);
+                    } else if (recursive) {
+                        subdirectories.add(new walker(entry, hidden, true, order, k, all));
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                // unreadable directories are skipped, like ls does
+            }
+            synchronized (all) {
+                for (fileRecord record : best) {
+                    offer(all, record);
+                }
+            }
+            best = null; // gone before the subdirectories are walked
+            invokeAll(subdirectories);
+        }
+
+        private void offer(PriorityQueue<fileRecord> best, fileRecord record) {
+            if (best.size() < k) {
+                best.add(record);
+            } else if (order.compare(record, best.peek()) < 0) {
+                best.poll();
+                best.add(record);
+            }
+        }
+    }
+}
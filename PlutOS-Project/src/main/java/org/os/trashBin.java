@@ -0,0 +1,401 @@
+package org.os;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Deletes files and directories by renaming them into a trash directory, and
+ * really deletes them later on a background thread.
+ * <p>
+ * 'rm -r' on a big tree has to unlink every file before it returns; a rename is a
+ * single operation however big the tree is, so 'rm --trash' returns at once. A
+ * rename only works within one volume, so every volume has a trash of its own:
+ * '~/.plutos_trash' for the volume of the home directory and '.plutos_trash' at
+ * the top of any other volume. Each trashed entry is kept in 'files', next to a
+ * small record in 'info' with its original path and deletion time (the layout of
+ * the freedesktop.org trash), so it can be listed and restored. Entries older than
+ * the retention time, and everything when the trash is emptied, are first renamed
+ * into 'purge', after which a low priority thread deletes them at a limited rate of
+ * files per second, so the purge does not starve the disk for the user's commands.
+ */
+class trashBin {
+
+    private static final String TRASH = ".plutos_trash";
+
+    // Files the purge deletes per second at most
+    private static final int DELETES_PER_SECOND = 2000;
+
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+
+    // Whether plain 'rm' uses the trash
+    static volatile boolean byDefault;
+
+    // How long trashed entries can be restored
+    static volatile Duration keep = Duration.ofHours(1);
+
+    // Every trash used so far, checked by the purge thread
+    private static final Set<Path> roots = ConcurrentHashMap.newKeySet();
+    private static final Map<FileStore, Path> rootOfStore = new ConcurrentHashMap<>();
+
+    private static final Object wakeUp = new Object();
+    private static Thread purger;
+    private static boolean work;
+
+    // Start and count of the current batch of deletes, for the rate limit
+    private static long batchStarted;
+    private static int batchDeleted;
+
+    private trashBin() {
+    }
+
+    /**
+     * A trashed file or directory.
+     */
+    static class entry {
+        final Path root;
+        final String id;
+        final Path original;
+        final LocalDateTime deleted;
+
+        entry(Path root, String id, Path original, LocalDateTime deleted) {
+            this.root = root;
+            this.id = id;
+            this.original = original;
+            this.deleted = deleted;
+        }
+
+        @Override
+        public String toString() {
+            return DATE.format(deleted).replace('T', ' ') + "  " + session.display(original) + "  (" + id + ")";
+        }
+    }
+
+    /**
+     * Moves a file or directory into the trash of its volume.
+     *
+     * @throws IOException when it cannot be renamed, e.g. the volume has no writable top directory
+     */
+    static void trash(Path file) throws IOException {
+        file = file.toAbsolutePath().normalize();
+        Path root = rootFor(file);
+        if (root.startsWith(file)) {
+            throw new IOException("Cannot move " + cmd.entryName(file) + " into its own trash");
+        }
+        Files.createDirectories(root.resolve("files"));
+        Files.createDirectories(root.resolve("info"));
+        Files.createDirectories(root.resolve("purge"));
+        roots.add(root);
+
+        // Creating the info record claims the name in the trash
+        String name = cmd.entryName(file);
+        String id = name;
+        Path info;
+        for (int n = 2; ; n++) {
+            info = root.resolve("info").resolve(id + ".trashinfo");
+            try {
+                Files.writeString(info, "[Trash Info]\nPath=" + file + "\nDeletionDate="
+                        + DATE.format(LocalDateTime.now()) + "\n", StandardOpenOption.CREATE_NEW);
+                break;
+            } catch (FileAlreadyExistsException e) {
+                id = name + "." + n;
+            }
+        }
+        try {
+            Files.move(file, root.resolve("files").resolve(id), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(info);
+            throw e;
+        }
+        wake();
+    }
+
+    /**
+     * @return the entries in the trash of the home directory's volume, the current
+     * directory's volume and every other trash used so far, oldest first
+     */
+    static List<entry> list() {
+        List<entry> entries = new ArrayList<>();
+        for (Path root : knownRoots()) {
+            try (DirectoryStream<Path> infos = Files.newDirectoryStream(root.resolve("info"), "*.trashinfo")) {
+                for (Path info : infos) {
+                    entry entry = read(root, info);
+                    if (entry != null) {
+                        entries.add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                // a trash that is gone or unreadable has nothing to list
+            }
+        }
+        entries.sort(Comparator.comparing((entry e) -> e.deleted).thenComparing(e -> e.id));
+        return entries;
+    }
+
+    /**
+     * Moves the most recently trashed entry with that id or original path back where it was.
+     *
+     * @return the path it was restored to
+     * @throws IOException when there is no such entry or its original path is taken
+     */
+    static Path restore(String what) throws IOException {
+        Path path = null;
+        try {
+            path = session.resolve(what).toAbsolutePath().normalize();
+        } catch (IOException | InvalidPathException e) {
+            // not a path, maybe an id
+        }
+        List<entry> entries = list();
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            entry entry = entries.get(i);
+            if (!entry.id.equals(what) && !entry.original.equals(path)) {
+                continue;
+            }
+            if (Files.exists(entry.original, LinkOption.NOFOLLOW_LINKS)) {
+                throw new FileAlreadyExistsException(session.display(entry.original) + " already exists");
+            }
+            Files.move(entry.root.resolve("files").resolve(entry.id), entry.original, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(entry.root.resolve("info").resolve(entry.id + ".trashinfo"));
+            return entry.original;
+        }
+        throw new NoSuchFileException(what + " is not in the trash");
+    }
+
+    /**
+     * Hands every trashed entry to the purge thread.
+     *
+     * @return the number of entries that will be deleted
+     */
+    static int empty() {
+        int count = 0;
+        for (entry entry : list()) {
+            if (expire(entry)) {
+                count++;
+            }
+        }
+        wake();
+        return count;
+    }
+
+    /**
+     * @return the trash directory of the volume holding a path
+     */
+    static Path rootFor(Path file) throws IOException {
+        Path existing = file;
+        while (!Files.exists(existing, LinkOption.NOFOLLOW_LINKS) && existing.getParent() != null) {
+            existing = existing.getParent();
+        }
+        FileStore store = Files.getFileStore(existing);
+        Path known = rootOfStore.get(store);
+        if (known != null) {
+            return known;
+        }
+        Path home = session.home();
+        Path root;
+        if (home.getFileSystem() == file.getFileSystem() && Files.isDirectory(home)
+                && Files.getFileStore(home).equals(store)) {
+            root = home.resolve(TRASH);
+        } else {
+            // The topmost directory still on the same volume
+            Path top = existing.toAbsolutePath();
+            while (top.getParent() != null && Files.getFileStore(top.getParent()).equals(store)) {
+                top = top.getParent();
+            }
+            root = top.resolve(TRASH);
+        }
+        rootOfStore.put(store, root);
+        return root;
+    }
+
+    // The trashes of the home and current directory, and every other one used so far
+    private static Set<Path> knownRoots() {
+        Set<Path> known = new LinkedHashSet<>();
+        for (Path dir : List.of(session.home(), session.cwd())) {
+            try {
+                known.add(rootFor(dir));
+            } catch (IOException e) {
+                // no trash there
+            }
+        }
+        FileSystem fileSystem = session.cwd().getFileSystem();
+        for (Path root : roots) {
+            if (root.getFileSystem() == fileSystem) {
+                known.add(root);
+            }
+        }
+        known.removeIf(root -> !Files.isDirectory(root.resolve("info")));
+        // Trashes left by earlier sessions are purged from now on too
+        roots.addAll(known);
+        return known;
+    }
+
+    private static entry read(Path root, Path info) {
+        try {
+            String original = null;
+            LocalDateTime deleted = null;
+            for (String line : Files.readAllLines(info)) {
+                if (line.startsWith("Path=")) {
+                    original = line.substring(5);
+                } else if (line.startsWith("DeletionDate=")) {
+                    deleted = LocalDateTime.parse(line.substring(13), DATE);
+                }
+            }
+            if (original == null || deleted == null) {
+                return null;
+            }
+            String name = info.getFileName().toString();
+            return new entry(root, name.substring(0, name.length() - ".trashinfo".length()),
+                    root.getFileSystem().getPath(original), deleted);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Moves an entry into the purge directory; false if it is already gone (restored or purged)
+    private static boolean expire(entry entry) {
+        roots.add(entry.root);
+        boolean moved;
+        try {
+            Files.move(entry.root.resolve("files").resolve(entry.id),
+                    entry.root.resolve("purge").resolve(entry.id + "." + System.nanoTime()), StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } catch (NoSuchFileException e) {
+            moved = false;
+        } catch (IOException e) {
+            return false; // keep the record, the next pass tries again
+        }
+        try {
+            Files.deleteIfExists(entry.root.resolve("info").resolve(entry.id + ".trashinfo"));
+        } catch (IOException e) {
+            // listed again and dropped on the next pass
+        }
+        return moved;
+    }
+
+    /**
+     * Starts the purge thread when the home directory's trash has entries from an
+     * earlier session, so they expire even if this one trashes nothing.
+     */
+    static void resume() {
+        if (Files.isDirectory(session.home().resolve(TRASH).resolve("info"))) {
+            wake();
+        }
+    }
+
+    // Starts the purge thread, or makes it look at the trashes again
+    static void wake() {
+        synchronized (wakeUp) {
+            if (purger == null) {
+                purger = new Thread(trashBin::purgeLoop, "trash-purge");
+                purger.setDaemon(true);
+                purger.setPriority(Thread.MIN_PRIORITY);
+                purger.start();
+            }
+            work = true;
+            wakeUp.notifyAll();
+        }
+    }
+
+    // Runs a pass every minute, or as soon as something was trashed or emptied
+    private static void purgeLoop() {
+        Path home = session.home().resolve(TRASH);
+        if (Files.isDirectory(home.resolve("info"))) {
+            roots.add(home);
+        }
+        while (true) {
+            synchronized (wakeUp) {
+                try {
+                    if (!work) {
+                        wakeUp.wait(60_000);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                work = false;
+            }
+            // The trash of a ramdisk goes with the ramdisk
+            roots.removeIf(root -> !root.getFileSystem().isOpen());
+            rootOfStore.values().removeIf(root -> !root.getFileSystem().isOpen());
+            for (Path root : roots) {
+                try {
+                    purge(root);
+                } catch (ClosedFileSystemException e) {
+                    roots.remove(root);
+                }
+            }
+        }
+    }
+
+    private static void purge(Path root) {
+        Instant cutoff = Instant.now().minus(keep);
+        try (DirectoryStream<Path> infos = Files.newDirectoryStream(root.resolve("info"), "*.trashinfo")) {
+            for (Path info : infos) {
+                entry entry = read(root, info);
+                if (entry != null && entry.deleted.atZone(ZoneId.systemDefault()).toInstant().isBefore(cutoff)) {
+                    expire(entry);
+                }
+            }
+        } catch (IOException e) {
+            roots.remove(root); // the trash is gone, e.g. with its ramdisk
+            return;
+        }
+        try (DirectoryStream<Path> doomed = Files.newDirectoryStream(root.resolve("purge"))) {
+            for (Path entry : doomed) {
+                delete(entry);
+            }
+        } catch (IOException e) {
+            // retried on the next pass
+        }
+    }
+
+    // Deletes a tree bottom up, pausing to stay under the rate limit
+    private static void delete(Path tree) throws IOException {
+        Files.walkFileTree(tree, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                remove(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                remove(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                remove(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void remove(Path path) throws IOException {
+        Files.deleteIfExists(path);
+        if (++batchDeleted < 100) {
+            return;
+        }
+        // A batch of deletes may take no less than its share of a second
+        long wait = batchStarted + 100 * 1_000_000_000L / DELETES_PER_SECOND - System.nanoTime();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("purge interrupted");
+            }
+        }
+        batchStarted = System.nanoTime();
+        batchDeleted = 0;
+    }
+
+}
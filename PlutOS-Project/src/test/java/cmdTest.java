@@ -4,11 +4,30 @@ import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.api.Test;
 import org.os.cmd;
+import org.os.commandWatch;
+import org.os.commandHistory;
+import org.os.contentIndex;
+import org.os.driverProgram;
+import org.os.lineSink;
+import org.os.pathCompleter;
+import org.os.pipeline;
+import org.os.session;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -32,33 +51,752 @@ public class cmdTest {
     }
 
     @Nested
-    class ForwardArrowTest {
+    class sortCommandTest {
+        @Test
+        public void testSortPipeInput() {
+            String result = cmd.sort(new String[]{"sort"}, "banana\napple\ncherry");
+            assertEquals("apple\nbanana\ncherry\n", result);
+        }
 
-        private final String fileName = "testFile.txt";
+        @Test
+        public void testSortNumericReverseUnique() {
+            String result = cmd.sort(new String[]{"sort", "-nru"}, "10\n9\n100\n9\n-1");
+            assertEquals("100\n10\n9\n-1\n", result);
+        }
+
+        @Test
+        public void testSortByKeyWithSeparator() {
+            String result = cmd.sort(new String[]{"sort", "-t", ",", "-k", "2", "-n"}, "a,3\nb,1\nc,2");
+            assertEquals("b,1\nc,2\na,3\n", result);
+        }
+
+        @Test
+        public void testSortSpillsToDiskWithSmallBudget(@TempDir Path tempDir) throws IOException {
+            List<String> lines = new ArrayList<>();
+            Random random = new Random(42);
+            // Enough lines for more runs than one merge takes (externalSortTest checks the runs)
+            for (int i = 0; i < 100_000; i++) {
+                lines.add("line-" + random.nextInt(1_000_000));
+            }
+            Path file = tempDir.resolve("big.txt");
+            Files.write(file, lines);
+
+            String result = cmd.sort(new String[]{"sort", "-S", "128K", file.toString()}, "");
+
+            Collections.sort(lines);
+            assertEquals(String.join("\n", lines) + "\n", result);
+        }
+
+        @Test
+        public void testSortInvalidOption() {
+            String result = cmd.sort(new String[]{"sort", "-z"}, "");
+            assertEquals("Error: This z argument isn't supported", result);
+        }
+    }
+
+    @Nested
+    class headTailCommandTest {
+        private Path numbered(Path dir, int count) throws IOException {
+            StringBuilder content = new StringBuilder();
+            for (int i = 1; i <= count; i++) {
+                content.append("line ").append(i).append('\n');
+            }
+            return Files.writeString(dir.resolve("numbers.txt"), content);
+        }
+
+        @Test
+        public void testHeadLinesFromFile(@TempDir Path tempDir) throws IOException {
+            Path file = numbered(tempDir, 100);
+            assertEquals("line 1\nline 2\nline 3\n", cmd.head(new String[]{"head", "-n", "3", file.toString()}, ""));
+            assertEquals("line 1\nline 2\n", cmd.head(new String[]{"head", "-2", file.toString()}, ""));
+        }
+
+        @Test
+        public void testHeadBytesFromPipe() {
+            assertEquals("abc", cmd.head(new String[]{"head", "-c", "3"}, "abcdef"));
+            // Never more bytes than asked, and no character cut in half
+            assertEquals("h", cmd.head(new String[]{"head", "-c", "2"}, "héllo"));
+            assertEquals("hé", cmd.head(new String[]{"head", "-c", "3"}, "héllo"));
+        }
+
+        @Test
+        public void testHeadBytesCutsOnUtf8Bytes(@TempDir Path tempDir) throws IOException {
+            Path file = Files.writeString(tempDir.resolve("greek.txt"), "αβγ\nδεζ\n");
+            List<String> lines = new ArrayList<>();
+            new pipeline("cat " + file + " | head -c 9").run(lines::add);
+            assertEquals(List.of("αβγ", "δ"), lines);
+            lines.clear();
+            new pipeline("cat " + file + " | head -c 10").run(lines::add);
+            assertEquals(List.of("αβγ", "δ"), lines);
+            assertEquals("αβγ\nδ", cmd.head(new String[]{"head", "-c", "10", file.toString()}, ""));
+        }
+
+        @Test
+        public void testTailLinesAcrossBlocks(@TempDir Path tempDir) throws IOException {
+            Path file = numbered(tempDir, 20_000);
+            String result = cmd.tail(new String[]{"tail", "-n", "3", file.toString()}, "");
+            assertEquals("line 19998\nline 19999\nline 20000\n", result);
+            String many = cmd.tail(new String[]{"tail", "-n", "2000", file.toString()}, "");
+            assertTrue(many.startsWith("line 18001\n"));
+            assertEquals(2000, many.split("\n").length);
+        }
+
+        @Test
+        public void testTailWithoutTrailingNewlineAndBytes(@TempDir Path tempDir) throws IOException {
+            Path file = Files.writeString(tempDir.resolve("partial.txt"), "a\nb\nc");
+            assertEquals("b\nc", cmd.tail(new String[]{"tail", "-2", file.toString()}, ""));
+            assertEquals("\nc", cmd.tail(new String[]{"tail", "-c", "2", file.toString()}, ""));
+            assertEquals("b\nc\n", cmd.tail(new String[]{"tail", "-n", "2"}, "a\nb\nc"));
+        }
+
+        @Test
+        public void testTailBytesStartOnACharacter(@TempDir Path tempDir) throws IOException {
+            Path file = Files.writeString(tempDir.resolve("greek.txt"), "αβγ\nδεζ\n");
+            // Never more bytes than asked, and no character cut in half
+            assertEquals("ζ\n", cmd.tail(new String[]{"tail", "-c", "4", file.toString()}, ""));
+            assertEquals("εζ\n", cmd.tail(new String[]{"tail", "-c", "5", file.toString()}, ""));
+            assertEquals("lo", cmd.tail(new String[]{"tail", "-c", "2"}, "héllo"));
+            assertEquals("llo", cmd.tail(new String[]{"tail", "-c", "4"}, "héllo"));
+            assertEquals("éllo", cmd.tail(new String[]{"tail", "-c", "5"}, "héllo"));
+            List<String> lines = new ArrayList<>();
+            new pipeline("cat " + file + " | tail -c 6").run(lines::add);
+            assertEquals(List.of("εζ"), lines);
+        }
+
+        @Test
+        public void testTailFollowPrintsAppendedData(@TempDir Path tempDir) throws Exception {
+            Path file = Files.writeString(tempDir.resolve("growing.log"), "old\n");
+            ByteArrayOutputStream followed = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(followed, true);
+            java.util.concurrent.atomic.AtomicBoolean stop = new java.util.concurrent.atomic.AtomicBoolean();
+            long start = Files.size(file);
+            Thread follower = new Thread(() -> {
+                try {
+                    org.os.fileTail.follow(file, start, out, stop::get);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            });
+            follower.start();
+            Files.writeString(file, "new line\n", java.nio.file.StandardOpenOption.APPEND);
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!followed.toString().contains("new line") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            stop.set(true);
+            follower.join();
+            assertEquals("new line\n", followed.toString());
+        }
+    }
+
+    @Nested
+    class uniqCommandTest {
+        @Test
+        public void testUniqAdjacent() {
+            assertEquals("a\nb\na\n", cmd.uniq(new String[]{"uniq"}, "a\na\nb\na"));
+        }
+
+        @Test
+        public void testUniqCountsAndFilters() {
+            String input = "x\nx\ny\nz\nz\nz";
+            assertEquals("      2 x\n      1 y\n      3 z\n", cmd.uniq(new String[]{"uniq", "-c"}, input));
+            assertEquals("x\nz\n", cmd.uniq(new String[]{"uniq", "-d"}, input));
+            assertEquals("y\n", cmd.uniq(new String[]{"uniq", "-u"}, input));
+        }
+
+        @Test
+        public void testUniqAllWithoutSorting() {
+            String input = "b\na\nb\nc\na\nb";
+            assertEquals("b\na\nc\n", cmd.uniq(new String[]{"uniq", "--all"}, input));
+            assertEquals("      3 b\n      2 a\n      1 c\n", cmd.uniq(new String[]{"uniq", "--all", "-c"}, input));
+        }
+
+        @Test
+        public void testUniqAllManyDistinctLines() {
+            StringBuilder input = new StringBuilder();
+            for (int i = 0; i < 100_000; i++) {
+                input.append("error-").append(i % 30_000).append('\n');
+            }
+            String result = cmd.uniq(new String[]{"uniq", "--all", "-d"}, input.toString());
+            assertEquals(30_000, result.split("\n").length);
+            assertTrue(result.startsWith("error-0\nerror-1\n"));
+        }
+
+        @Test
+        public void testSortUniqCountInPipe(@TempDir Path tempDir) throws IOException {
+            Path file = Files.writeString(tempDir.resolve("log.txt"), "b\na\nb\n");
+            List<String> lines = new ArrayList<>();
+            new pipeline("cat " + file + " | sort | uniq -c").run(line -> lines.add(line));
+            assertEquals(List.of("      1 a", "      2 b"), lines);
+        }
+    }
+
+    @Nested
+    class checksumCommandTest {
+        @Test
+        public void testKnownDigests(@TempDir Path tempDir) throws IOException {
+            Path file = Files.writeString(tempDir.resolve("abc.txt"), "abc");
+            assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad  " + file + "\n",
+                    cmd.checksum(new String[]{"sha256sum", file.toString()}, ""));
+            assertEquals("900150983cd24fb0d6963f7d28e17f72  " + file + "\n",
+                    cmd.checksum(new String[]{"md5sum", file.toString()}, ""));
+            assertEquals("364b3fb7  " + file + "\n",
+                    cmd.checksum(new String[]{"crc32c", file.toString()}, ""));
+        }
+
+        @Test
+        public void testMappedLargeFileMatchesHeapDigest(@TempDir Path tempDir) throws Exception {
+            byte[] data = new byte[9 << 20];
+            new Random(7).nextBytes(data);
+            Path file = Files.write(tempDir.resolve("big.bin"), data);
+            String expected = java.util.HexFormat.of().formatHex(
+                    java.security.MessageDigest.getInstance("SHA-256").digest(data));
+            assertEquals(expected + "  " + file + "\n", cmd.checksum(new String[]{"sha256sum", file.toString()}, ""));
+        }
+
+        @Test
+        public void testVerifyChecksumFile(@TempDir Path tempDir) throws IOException {
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                names.add(Files.writeString(tempDir.resolve("artifact" + i), "content " + i).toString());
+            }
+            List<String> command = new ArrayList<>(List.of("md5sum"));
+            command.addAll(names);
+            String sums = cmd.checksum(command.toArray(new String[0]), "");
+            Path sumFile = Files.writeString(tempDir.resolve("SUMS"), sums);
+
+            String ok = cmd.checksum(new String[]{"md5sum", "-c", sumFile.toString()}, "");
+            assertEquals(20, ok.split("\n").length);
+            assertFalse(ok.contains("FAILED"));
+
+            Files.writeString(Path.of(names.get(3)), "tampered");
+            String failed = cmd.checksum(new String[]{"md5sum", "-c", sumFile.toString()}, "");
+            assertTrue(failed.contains(names.get(3) + ": FAILED\n"));
+            assertTrue(failed.contains("WARNING: 1 computed checksum(s) did NOT match"));
+        }
+
+        @Test
+        public void testChecksumOfPipedInput() {
+            assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad  -\n",
+                    cmd.checksum(new String[]{"sha256sum"}, "abc"));
+        }
+    }
+
+    @Nested
+    class gzipCommandTest {
+        private byte[] gunzip(Path file) throws IOException {
+            try (InputStream in = new java.util.zip.GZIPInputStream(Files.newInputStream(file))) {
+                return in.readAllBytes();
+            }
+        }
+
+        @Test
+        public void testGzipAndGunzipRoundTrip(@TempDir Path tempDir) throws IOException {
+            StringBuilder content = new StringBuilder();
+            for (int i = 0; i < 300_000; i++) {
+                content.append("2024-01-01 INFO request ").append(i).append('\n');
+            }
+            Path file = Files.writeString(tempDir.resolve("app.log"), content);
+            long size = Files.size(file);
+
+            assertEquals("", cmd.gzip(new String[]{"gzip", file.toString()}));
+            Path compressed = tempDir.resolve("app.log.gz");
+            assertFalse(Files.exists(file), "gzip should remove the original file");
+            assertTrue(Files.size(compressed) < size / 4);
+            // Several members, still one standard gzip stream
+            assertEquals(content.toString(), new String(gunzip(compressed), java.nio.charset.StandardCharsets.UTF_8));
+
+            assertEquals("", cmd.gzip(new String[]{"gunzip", compressed.toString()}));
+            assertEquals(content.toString(), Files.readString(file));
+            assertFalse(Files.exists(compressed));
+        }
+
+        @Test
+        public void testGzipEmptyFileAndKeep(@TempDir Path tempDir) throws IOException {
+            Path file = Files.createFile(tempDir.resolve("empty.txt"));
+            cmd.gzip(new String[]{"gzip", "-k", file.toString()});
+            assertTrue(Files.exists(file));
+            assertEquals(0, gunzip(tempDir.resolve("empty.txt.gz")).length);
+        }
+
+        @Test
+        public void testZcatCatAndGrepReadGzip(@TempDir Path tempDir) throws IOException {
+            Path file = Files.writeString(tempDir.resolve("notes.txt"), "alpha\nbeta\ngamma\n");
+            cmd.gzip(new String[]{"gzip", file.toString()});
+            String gz = tempDir.resolve("notes.txt.gz").toString();
+
+            assertEquals("alpha\nbeta\ngamma\n", cmd.gzip(new String[]{"zcat", gz}));
+            assertEquals("alpha\nbeta\ngamma\n", cmd.gzip(new String[]{"gzip", "-dc", gz}));
+            assertTrue(cmd.gzip(new String[]{"gzip", "-c", gz}).startsWith("Error: gzip -c is not supported"));
+            assertEquals("alpha\nbeta\ngamma\n", cmd.cat(new String[]{"cat", gz}));
+            assertEquals("beta", cmd.grep(new String[]{"grep", "bet", gz}, ""));
+
+            List<String> lines = new ArrayList<>();
+            new pipeline("grep a " + gz + " | head -2").run(lines::add);
+            assertEquals(List.of("alpha", "beta"), lines);
+        }
+    }
+
+    @Nested
+    class archiveBrowsingTest {
+        private String initialDir;
+        private Path archive;
 
         @BeforeEach
-        void setUp() throws IOException {
-            File file = new File(fileName);
-            if (!file.exists()) {
-                file.createNewFile();
+        void setUp(@TempDir Path tempDir) throws IOException {
+            initialDir = System.getProperty("user.dir");
+            archive = tempDir.resolve("app.jar");
+            try (java.util.zip.ZipOutputStream zip = new java.util.zip.ZipOutputStream(Files.newOutputStream(archive))) {
+                zip.putNextEntry(new java.util.zip.ZipEntry("META-INF/MANIFEST.MF"));
+                zip.write("Manifest-Version: 1.0\nMain-Class: org.os.Main\n".getBytes());
+                zip.putNextEntry(new java.util.zip.ZipEntry("org/os/Main.class"));
+                zip.write(new byte[]{(byte) 0xca, (byte) 0xfe});
+                zip.closeEntry();
             }
         }
 
         @AfterEach
         void tearDown() {
-            File file = new File(fileName);
-            if (file.exists()) {
-                file.delete();
+            org.os.session.changeDir(Path.of(initialDir));
+        }
+
+        @Test
+        public void testLsAndCatInsideArchiveWithoutCd() {
+            String listing = cmd.ls(new String[]{"ls", "-r", archive + "!/"});
+            assertTrue(listing.contains("META-INF/\n"), listing);
+            assertTrue(listing.contains("    MANIFEST.MF\n"), listing);
+            assertTrue(listing.contains("        Main.class\n"), listing);
+
+            String manifest = cmd.cat(new String[]{"cat", archive + "!/META-INF/MANIFEST.MF"});
+            assertEquals("Manifest-Version: 1.0\nMain-Class: org.os.Main\n", manifest);
+        }
+
+        @Test
+        public void testCdIntoArchiveAndBack() {
+            cmd.cd(new String[]{"cd", archive + "!/"});
+            assertEquals(archive + "!/", cmd.pwd());
+
+            cmd.cd(new String[]{"cd", "META-INF"});
+            assertEquals(archive + "!/META-INF", cmd.pwd());
+            assertEquals("Main-Class: org.os.Main", cmd.grep(new String[]{"grep", "Main", "MANIFEST.MF"}, ""));
+
+            cmd.cd(new String[]{"cd", ".."});
+            cmd.cd(new String[]{"cd", ".."});
+            assertEquals(archive.getParent().toString(), cmd.pwd());
+            assertEquals(archive.getParent().toString(), System.getProperty("user.dir"));
+        }
+
+        @Test
+        public void testParallelRunsOpenTheArchiveOnce(@TempDir Path tempDir) throws IOException {
+            List<String> names = Collections.nCopies(40, archive + "!/META-INF/MANIFEST.MF");
+            Path list = Files.write(tempDir.resolve("list"), names);
+            List<String> lines = new ArrayList<>();
+            new pipeline("cat " + list + " | xargs -P 8 -n 1 head -n 1").run(line -> {
+                lines.add(line);
+                return true;
+            });
+            assertEquals(Collections.nCopies(40, "Manifest-Version: 1.0"), lines);
+            assertSame(session.resolve(archive + "!/").getFileSystem(), session.resolve(names.get(0)).getFileSystem());
+        }
+
+        @Test
+        public void testArchivesAreReadOnly() throws IOException {
+            byte[] before = Files.readAllBytes(archive);
+            String entry = archive + "!/META-INF/MANIFEST.MF";
+            assertTrue(cmd.rm(new String[]{"rm", entry}).contains("archives are read-only"));
+            assertTrue(cmd.touchCommand(new String[]{"touch", archive + "!/new.txt"}).contains("archives are read-only"));
+            assertTrue(cmd.gzip(new String[]{"gzip", entry}).contains("archives are read-only"));
+
+            cmd.cd(new String[]{"cd", archive + "!/"});
+            assertTrue(cmd.mkdirCommand(new String[]{"mkdir", "extra"}).startsWith("Error:"));
+            assertFalse(Files.exists(session.resolve("extra")));
+            assertTrue(cmd.index(new String[]{"index"}).contains("archives are read-only"));
+            cmd.cd(new String[]{"cd", ".."});
+            assertTrue(cmd.updatedb(new String[]{"updatedb", archive.getParent().toString(), "--db", archive + "!/locate.db"})
+                    .contains("archives are read-only"));
+
+            assertEquals("Manifest-Version: 1.0\nMain-Class: org.os.Main\n", cmd.cat(new String[]{"cat", entry}));
+            session.current().close();
+            assertArrayEquals(before, Files.readAllBytes(archive), "The archive is left as it was");
+        }
+
+        @Test
+        public void testArchiveIsReopenedWhenItChanges() throws IOException {
+            cmd.cd(new String[]{"cd", archive + "!/META-INF"});
+            assertEquals("Main-Class: org.os.Main", cmd.grep(new String[]{"grep", "Main", "MANIFEST.MF"}, ""));
+
+            try (java.util.zip.ZipOutputStream zip = new java.util.zip.ZipOutputStream(Files.newOutputStream(archive))) {
+                zip.putNextEntry(new java.util.zip.ZipEntry("META-INF/MANIFEST.MF"));
+                zip.write("Manifest-Version: 1.0\nMain-Class: org.os.Other\n".getBytes());
+                zip.closeEntry();
+            }
+            Files.setLastModifiedTime(archive, FileTime.fromMillis(Files.getLastModifiedTime(archive).toMillis() + 2000));
+            assertEquals("Main-Class: org.os.Other", cmd.grep(new String[]{"grep", "Main", "MANIFEST.MF"}, ""));
+            assertEquals(archive + "!/META-INF", cmd.pwd());
+        }
+
+        @Test
+        public void testChecksumOfArchiveEntry() {
+            String sum = cmd.checksum(new String[]{"md5sum", archive + "!/org/os/Main.class"}, "");
+            assertTrue(sum.endsWith("  " + archive + "!/org/os/Main.class\n"), sum);
+        }
+    }
+
+    @Nested
+    class pipelineTest {
+        private List<String> run(pipeline pipe) throws IOException {
+            List<String> lines = new ArrayList<>();
+            pipe.run(line -> {
+                lines.add(line);
+                return true;
+            });
+            return lines;
+        }
+
+        @Test
+        public void testHeadStopsUpstreamReading(@TempDir Path tempDir) throws IOException {
+            Path file = tempDir.resolve("big.log");
+            try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+                for (int i = 0; i < 200_000; i++) {
+                    writer.write((i % 10 == 0 ? "ERROR " : "INFO ") + i + "\n");
+                }
+            }
+
+            pipeline pipe = new pipeline("cat " + file + " | grep ERROR | head -5");
+            List<String> lines = run(pipe);
+
+            assertEquals(List.of("ERROR 0", "ERROR 10", "ERROR 20", "ERROR 30", "ERROR 40"), lines);
+            assertTrue(Files.size(file) > 1_000_000);
+            assertTrue(pipe.bytesRead() <= 16 * 1024, "Only the first buffer should be read, got " + pipe.bytesRead());
+        }
+
+        @Test
+        public void testWholeFileIsReadWithoutEarlyExit(@TempDir Path tempDir) throws IOException {
+            Path file = Files.writeString(tempDir.resolve("small.txt"), "b\na\nc\n");
+            pipeline pipe = new pipeline("cat " + file + " | sort -r | head -2");
+            assertEquals(List.of("c", "b"), run(pipe));
+            assertEquals(Files.size(file), pipe.bytesRead());
+        }
+
+        @Test
+        public void testFiltersWithoutProducer() throws IOException {
+            assertEquals(List.of(), run(new pipeline("grep x | head -1")));
+        }
+
+        @Test
+        public void testTailInPipe(@TempDir Path tempDir) throws IOException {
+            Path file = Files.writeString(tempDir.resolve("t.txt"), "1\n2\n3\n4\n");
+            assertEquals(List.of("3", "4"), run(new pipeline("cat " + file + " | tail -n 2")));
+        }
+
+        @Test
+        public void testManyFilesKeepArgumentOrder(@TempDir Path tempDir) throws IOException {
+            StringBuilder command = new StringBuilder("cat");
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                // Every fifth file is bigger than the block read ahead
+                String content = i % 5 == 0 ? "x".repeat(100_000) : "file " + i;
+                command.append(' ').append(Files.writeString(tempDir.resolve("f" + i), content + "\n"));
+                expected.add(content);
+                if (i == 20) {
+                    command.append(' ').append(tempDir.resolve("missing"));
+                }
+            }
+            assertEquals(expected, run(new pipeline(command.toString())));
+            assertEquals(expected.subList(0, 3), run(new pipeline(command + " | head -3")));
+            assertEquals(String.join("\n", expected) + "\n", cmd.cat(command.toString().split(" ")));
+        }
+
+        @Test
+        public void testXargsKeepsOutputOfEachRunTogether(@TempDir Path tempDir) throws IOException {
+            List<String> names = new ArrayList<>();
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                Path file = tempDir.resolve("part" + i + ".txt");
+                // Bigger files first, so later runs tend to finish before earlier ones
+                StringBuilder content = new StringBuilder();
+                for (int j = 0; j < (40 - i) * 200; j++) {
+                    content.append(i).append(':').append(j).append('\n');
+                }
+                Files.writeString(file, content);
+                names.add(file.toString());
+                expected.add(i + ":0");
+                expected.add(i + ":1");
+            }
+            Path list = Files.write(tempDir.resolve("list.txt"), names);
+
+            assertEquals(expected, run(new pipeline("cat " + list + " | xargs -P 8 -n 1 head -n 2")));
+            assertEquals(List.of("7:3"), run(new pipeline("cat " + list + " | xargs -P 4 -I {} grep 7:3 {} | head -1")));
+            assertEquals(List.of("0:0", "0:1", "0:2"), run(new pipeline("cat " + list + " | xargs -P 4 -n 1 cat | head -3")));
+        }
+
+        @Test
+        public void testXargsKeepsErrorsWithTheirRun(@TempDir Path tempDir) throws IOException {
+            List<String> names = new ArrayList<>();
+            for (int i = 1; i <= 5; i++) {
+                Path file = tempDir.resolve("a" + i);
+                if (i != 3) {
+                    Files.writeString(file, "a" + i + "\n");
+                }
+                names.add(file.toString());
+            }
+            Path list = Files.write(tempDir.resolve("list"), names);
+            List<String> reported = new ArrayList<>();
+            List<String> lines = new ArrayList<>();
+            new pipeline("cat " + list + " | xargs -n 1 -P 4 cat").reportTo(reported::add).run(line -> {
+                lines.add(line);
+                return true;
+            });
+            assertEquals(List.of("a1", "a2", "Error: " + names.get(2) + " does not exist.", "a4", "a5"), lines);
+            assertEquals(List.of(), reported);
+        }
+
+        @Test
+        public void testXargsBatchesArguments(@TempDir Path tempDir) throws IOException {
+            Path a = Files.writeString(tempDir.resolve("a"), "x\n");
+            Path b = Files.writeString(tempDir.resolve("b"), "y\n");
+            Path list = Files.writeString(tempDir.resolve("list"), a + "\n\n" + b + "\n");
+            assertEquals(List.of("x", "y"), run(new pipeline("cat " + list + " | xargs cat")));
+            assertEquals(List.of(), run(new pipeline("grep nothing " + list + " | xargs cat")), "Nothing runs without input");
+            assertEquals(List.of(), run(new pipeline("cat " + list + " | xargs -P x cat")));
+        }
+
+        @Test
+        public void testByteStagesMatchLineSemantics(@TempDir Path tempDir) throws IOException {
+            // Windows line ends, multi-byte text, a line longer than a read and no final line break
+            String longLine = "é".repeat(20_000);
+            Path file = Files.writeString(tempDir.resolve("mixed.txt"),
+                    "ünï\r\nünï\nabc\n\n" + longLine + "\n" + longLine + "\nlast ünï");
+            assertEquals(List.of("ünï", "ünï", "abc", "", longLine, longLine, "last ünï"), run(new pipeline("cat " + file)));
+            assertEquals(List.of("ünï", "ünï", "last ünï"), run(new pipeline("cat " + file + " | grep nï")));
+            assertEquals(List.of("      2 ünï", "      1 abc", "      1 ", "      2 " + longLine, "      1 last ünï"),
+                    run(new pipeline("cat " + file + " | uniq -c")));
+            assertEquals(List.of("ünï", "abc", "", longLine, "last ünï"), run(new pipeline("uniq --all " + file)));
+            assertEquals(List.of("ünï", "ünï", "abc"), run(new pipeline("cat " + file + " | head -3")));
+            assertEquals(run(new pipeline("cat " + file + " | sha256sum")),
+                    List.of(cmd.checksum(new String[]{"sha256sum"}, "ünï\nünï\nabc\n\n" + longLine + "\n" + longLine + "\nlast ünï\n")
+                            .trim()));
+        }
+
+        @Test
+        public void testStagesSpillWhenMemoryBudgetIsTight(@TempDir Path tempDir) throws IOException {
+            List<String> lines = new ArrayList<>();
+            Random random = new Random(7);
+            for (int i = 0; i < 40_000; i++) {
+                lines.add("row-" + random.nextInt(1_000_000) + (i % 3 == 0 ? " é" : ""));
+            }
+            Path file = Files.write(tempDir.resolve("rows.txt"), lines);
+            String before = cmd.memory(new String[]{"memory"});
+            long budget = Long.parseLong(before.substring(before.indexOf(':') + 1, before.indexOf(" bytes")).trim());
+            cmd.memory(new String[]{"memory", "256K"});
+            try {
+                // Four pipes at once, each wanting more than the whole budget
+                List<Callable<List<String>>> pipes = new ArrayList<>();
+                for (int i = 0; i < 2; i++) {
+                    pipes.add(() -> run(new pipeline("cat " + file + " | sort")));
+                    pipes.add(() -> run(new pipeline("cat " + file + " | tail -n 30000")));
+                }
+                ExecutorService pool = Executors.newFixedThreadPool(4);
+                try {
+                    List<String> sorted = new ArrayList<>(lines);
+                    Collections.sort(sorted);
+                    List<Future<List<String>>> results = pool.invokeAll(pipes);
+                    for (int i = 0; i < results.size(); i++) {
+                        assertEquals(i % 2 == 0 ? sorted : lines.subList(10_000, 40_000), results.get(i).get());
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    fail(e);
+                } finally {
+                    pool.shutdown();
+                }
+                assertEquals(List.of(lines.get(39_999)), run(new pipeline("cat " + file + " | tail -n 1")));
+                assertEquals(List.of("      2 x", "      1 y"), run(new pipeline("uniq --all -c " + Files.writeString(
+                        tempDir.resolve("u.txt"), "x\ny\nx\n"))));
+
+                String stats = cmd.memory(new String[]{"memory"});
+                assertTrue(stats.contains("in use:      0 bytes"), stats);
+                assertFalse(stats.contains("denied:      0 "), stats);
+            } finally {
+                cmd.memory(new String[]{"memory", budget + "b"});
             }
         }
 
+        @Test
+        public void testStageAloneOverBudgetDoesNotWait(@TempDir Path tempDir) throws IOException {
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < 200_000; i++) {
+                lines.add("line " + i);
+            }
+            Path file = Files.write(tempDir.resolve("big.txt"), lines);
+            String before = cmd.memory(new String[]{"memory"});
+            long budget = Long.parseLong(before.substring(before.indexOf(':') + 1, before.indexOf(" bytes")).trim());
+            cmd.memory(new String[]{"memory", "256K"});
+            try {
+                long start = System.nanoTime();
+                assertEquals(List.of("200000"), run(new pipeline("cat " + file + " | uniq --all | wc -l")).stream()
+                        .map(String::trim).toList());
+                assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5), "A stage alone must not wait on itself");
+                String after = cmd.memory(new String[]{"memory"});
+                assertEquals(before.substring(before.indexOf("waits:")), after.substring(after.indexOf("waits:")));
+            } finally {
+                cmd.memory(new String[]{"memory", budget + "b"});
+            }
+        }
+
+        @Test
+        public void testFailedPipeReleasesItsStages(@TempDir Path tempDir) throws IOException, InterruptedException {
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                names.add(Files.writeString(tempDir.resolve("f" + i), "line " + i + "\n").toString());
+            }
+            Path list = Files.write(tempDir.resolve("list"), names);
+            lineSink failing = line -> {
+                throw new IOException("disk full");
+            };
+            assertThrows(IOException.class, () -> new pipeline("cat " + list + " | uniq --all").run(failing));
+            assertThrows(IOException.class, () -> new pipeline("cat " + list + " | xargs -P 4 -n 1 cat").run(failing));
+
+            assertTrue(cmd.memory(new String[]{"memory"}).contains("in use:      0 bytes"));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (Thread.getAllStackTraces().keySet().stream().anyMatch(t -> t.getName().equals("xargs-worker"))) {
+                assertTrue(System.nanoTime() < deadline, "xargs workers are still running");
+                Thread.sleep(10);
+            }
+        }
+
+        @Test
+        public void testWordCount(@TempDir Path tempDir) throws IOException {
+            Path a = Files.writeString(tempDir.resolve("a.txt"), "one two\n  three\tfour  \n\nfünf\n");
+            Path b = Files.writeString(tempDir.resolve("b.txt"), "x\n");
+            assertEquals(List.of("      4       5      30"), run(new pipeline("cat " + a + " | wc")));
+            assertEquals(List.of("      2"), run(new pipeline("cat " + a + " | grep o | wc -l")));
+            assertEquals("      4       5      30 " + a + "\n      1       1       2 " + b
+                    + "\n      5       6      32 total\n", cmd.wc(new String[]{"wc", a.toString(), b.toString()}, ""));
+            // Counted like coreutils wc: a last line without a line break is no line, "\r\n" is two bytes
+            assertEquals("      0       2\n", cmd.wc(new String[]{"wc", "-lw"}, "a b"));
+            Path noBreak = Files.writeString(tempDir.resolve("c.txt"), "abc");
+            Path crlf = Files.writeString(tempDir.resolve("d.txt"), "a b\r\nc\r\n");
+            assertEquals("      0       1       3 " + noBreak + "\n", cmd.wc(new String[]{"wc", noBreak.toString()}, ""));
+            assertEquals("      2       3       8 " + crlf + "\n", cmd.wc(new String[]{"wc", crlf.toString()}, ""));
+            assertEquals(List.of("      2       3       8"), run(new pipeline("cat " + crlf + " | wc")));
+            assertEquals("Error: This x argument isn't supported", cmd.wc(new String[]{"wc", "-x"}, ""));
+        }
+
+        @Test
+        public void testRecordStagesFilterSortAndSelect(@TempDir Path tempDir) throws IOException {
+            Files.writeString(tempDir.resolve("a.txt"), "0123456789");
+            Files.write(tempDir.resolve("big.bin"), new byte[2 << 20]);
+            Files.createDirectory(tempDir.resolve("sub"));
+            Files.writeString(tempDir.resolve("sub/c.txt"), "c".repeat(3000));
+
+            assertEquals(List.of("big.bin"), run(new pipeline("find " + tempDir + " | where size > 1M | select name")));
+            assertEquals(List.of("big.bin\t2097152", "c.txt\t3000", "a.txt\t10"),
+                    run(new pipeline("find " + tempDir + " | where type = file | sort-by size -r | select name,size")));
+            assertEquals(List.of("a.txt", "big.bin"),
+                    run(new pipeline("find " + tempDir + " | where type=file | sort-by name | head -2 | select name")));
+            assertEquals(List.of(), run(new pipeline("find " + tempDir + " | where mtime < 2000-01-01")));
+            assertEquals(List.of("sub/"), run(new pipeline("ls " + tempDir + " | where mtime > 1d | where type = dir")));
+
+            List<String> json = run(new pipeline("ls " + tempDir + " | where name ~ *.txt | to-json"));
+            assertEquals(1, json.size());
+            assertTrue(json.get(0).startsWith("{\"path\":") && json.get(0).contains("\"name\":\"a.txt\",\"type\":\"file\",\"size\":10,"),
+                    json.get(0));
+            assertEquals(List.of("{\"size\":2100162}"), run(new pipeline("du -s " + tempDir + " | select size | to-json")));
+            assertEquals("2051\t" + tempDir + "\n", cmd.du(new String[]{"du", "-s", tempDir.toString()}));
+
+            // Plain text is not a listing
+            assertEquals(List.of(), run(new pipeline("cat " + tempDir.resolve("a.txt") + " | where size > 1")));
+        }
+    }
+
+    @Nested
+    class profilingTest {
+        private String printed(Runnable command) {
+            PrintStream console = System.out;
+            ByteArrayOutputStream captured = new ByteArrayOutputStream();
+            System.setOut(new PrintStream(captured, true));
+            try {
+                command.run();
+            } finally {
+                System.setOut(console);
+            }
+            return captured.toString();
+        }
+
+        @Test
+        public void testTimePrintsOutputThenTimes(@TempDir Path tempDir) throws IOException {
+            Path file = Files.writeString(tempDir.resolve("t.txt"), "timed\n");
+            String output = printed(() -> driverProgram.parseCommand("time cat " + file));
+            assertTrue(output.contains("timed\n"), output);
+            String[] lines = output.substring(output.indexOf("real")).split("\\R");
+            assertTrue(lines[0].matches("real   \\d+\\.\\d{3}s"), output);
+            assertTrue(lines[1].startsWith("user   ") && lines[2].startsWith("sys    "), output);
+            assertTrue(lines[3].endsWith("s (all threads)"), output);
+            assertTrue(lines[4].matches("alloc  \\d+ bytes"), output);
+        }
+
+        @Test
+        public void testFlightRecorderEvents(@TempDir Path tempDir) throws IOException {
+            Path file = Files.writeString(tempDir.resolve("log.txt"), "a 1\nb 2\na 3\n");
+            Path dump = tempDir.resolve("run.jfr");
+            try (Recording recording = new Recording()) {
+                recording.enable("org.os.Command");
+                recording.enable("org.os.PipeStage");
+                recording.start();
+                printed(() -> driverProgram.parseCommand("cat " + file + " | grep a | wc -l"));
+                printed(() -> driverProgram.parseCommand("sha256sum " + file));
+                recording.stop();
+                recording.dump(dump);
+            }
+            List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+
+            RecordedEvent grep = events.stream()
+                    .filter(e -> e.getEventType().getName().equals("org.os.PipeStage") && e.getString("command").equals("grep"))
+                    .findFirst().orElseThrow();
+            assertEquals(1, grep.getInt("stage"));
+            assertEquals(3, grep.getLong("linesIn"));
+            assertEquals(2, grep.getLong("linesOut"));
+            assertEquals(8, grep.getLong("bytesOut"));
+
+            RecordedEvent cat = events.stream()
+                    .filter(e -> e.getEventType().getName().equals("org.os.PipeStage") && e.getString("command").equals("cat"))
+                    .findFirst().orElseThrow();
+            assertEquals(Files.size(file), cat.getLong("bytesIn"));
+
+            RecordedEvent sum = events.stream()
+                    .filter(e -> e.getEventType().getName().equals("org.os.Command") && e.getString("command").equals("sha256sum"))
+                    .findFirst().orElseThrow();
+            assertEquals(file.toString(), sum.getString("arguments"));
+            assertEquals(1, sum.getLong("files"));
+            assertEquals(64 + 2 + file.toString().length() + 2, sum.getLong("bytesOut"), "The line, its break and println's");
+        }
+    }
+
+    @Nested
+    class ForwardArrowTest {
+
+        private final String fileName = "testFile.txt";
+
+        @BeforeEach
+        void setUp() throws IOException {
+            session.use(session.inMemory());
+            Files.createFile(session.cwd().resolve(fileName));
+        }
+
+        @AfterEach
+        void tearDown() throws IOException {
+            session.current().close();
+            session.use(null);
+        }
+
         @Test
         void testForwardArrowWritesContentToFile() throws IOException {
             String[] args = {"pwd", ">", fileName};
 
             cmd.forwardArrow(args);
 
-            String content = new String(Files.readAllBytes(Paths.get(fileName)));
+            String content = new String(Files.readAllBytes(session.cwd().resolve(fileName)));
             String value = cmd.pwd();
 
             assertEquals(content, value, "The content in the file should match the input.");
@@ -73,62 +811,62 @@ public class cmdTest {
 
     @Nested
     class changeDirectoryTest {
-        private String initialDir;
-        private String homeDir;
+        private Path initialDir;
+        private Path homeDir;
 
         @BeforeEach
         void setUp() {
-            initialDir = System.getProperty("user.dir");
-            homeDir = System.getProperty("user.home");
+            session.use(session.inMemory());
+            initialDir = session.cwd();
+            homeDir = session.home();
+        }
+
+        @AfterEach
+        void tearDown() throws IOException {
+            session.current().close();
+            session.use(null);
         }
 
         @Test
-        void testChangeToParentDirectory() {
-            File testSubDir = new File(initialDir, "testSubDir");
-            assertTrue(testSubDir.mkdir(), "Failed to create test subdirectory");
+        void testChangeToParentDirectory() throws IOException {
+            Path testSubDir = Files.createDirectory(initialDir.resolve("testSubDir"));
 
-            System.setProperty("user.dir", testSubDir.getAbsolutePath());
-            assertEquals(testSubDir.getAbsolutePath(), System.getProperty("user.dir"));
+            session.changeDir(testSubDir);
+            assertEquals(testSubDir, session.cwd());
 
             cmd.cd(new String[]{"ignored", ".."});
-            assertEquals(initialDir, System.getProperty("user.dir"));
-
-            assertTrue(testSubDir.delete(), "Failed to delete test subdirectory");
+            assertEquals(initialDir, session.cwd());
         }
 
         @Test
-        void testChangeToHomeDirectory() {
-            System.setProperty("user.dir", initialDir);  // Reset to initial directory
+        void testChangeToHomeDirectory() throws IOException {
+            session.changeDir(Files.createDirectory(initialDir.resolve("elsewhere")));
 
             cmd.cd(new String[]{"ignored", "~"});
-            assertEquals(homeDir, System.getProperty("user.dir"));
+            assertEquals(homeDir, session.cwd());
         }
 
         @Test
-        void testChangeToSpecificExistingDirectory() {
-            File specificDir = new File(initialDir, "specificDir");
-            assertTrue(specificDir.mkdir(), "Failed to create specific directory");
+        void testChangeToSpecificExistingDirectory() throws IOException {
+            Path specificDir = Files.createDirectory(initialDir.resolve("specificDir"));
 
             cmd.cd(new String[]{"ignored", "specificDir"});
-            assertEquals(specificDir.getAbsolutePath(), System.getProperty("user.dir"));
-
-            assertTrue(specificDir.delete(), "Failed to delete specific directory");
+            assertEquals(specificDir, session.cwd());
         }
 
         @Test
         void testErrorForNonExistingDirectory() {
-            System.setProperty("user.dir", initialDir);  // Reset to initial directory
-
             cmd.cd(new String[]{"ignored", "nonExistentDir"});
-            assertEquals(initialDir, System.getProperty("user.dir"));
+            assertEquals(initialDir, session.cwd());
         }
 
         @Test
         void testErrorForNoParentDirectory() {
-            System.setProperty("user.dir", "/");
+            Path root = initialDir.getRoot();
+            session.changeDir(root);
 
             cmd.cd(new String[]{"ignored", ".."});
-            assertEquals("/", System.getProperty("user.dir"));
+            assertEquals(root, session.cwd());
         }
     }
 
@@ -139,17 +877,14 @@ public class cmdTest {
 
         @BeforeEach
         void setUp() throws IOException {
-            FileWriter writer = new FileWriter(sourceFileName);
-            writer.write("This is a test file.");
-            writer.close();
+            session.use(session.inMemory());
+            Files.writeString(session.cwd().resolve(sourceFileName), "This is a test file.");
         }
 
         @AfterEach
-        void tearDown() {
-            File sourceFile = new File(sourceFileName);
-            File destFile = new File(destFileName);
-            if (sourceFile.exists()) sourceFile.delete();
-            if (destFile.exists()) destFile.delete();
+        void tearDown() throws IOException {
+            session.current().close();
+            session.use(null);
         }
 
         @Test
@@ -168,12 +903,11 @@ public class cmdTest {
             ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
             System.setOut(new PrintStream(outputStream));
             cmd.mv(args);
-            File destFile = new File(destFileName);
-            assertTrue(destFile.exists(), "Destination file should exist after moving.");
-            String content = new String(Files.readAllBytes(destFile.toPath()));
+            Path destFile = session.cwd().resolve(destFileName);
+            assertTrue(Files.exists(destFile), "Destination file should exist after moving.");
+            String content = new String(Files.readAllBytes(destFile));
             assertEquals("This is a test file." + System.lineSeparator(), content, "File content should match.");
-            File sourceFile = new File(sourceFileName);
-            assertFalse(sourceFile.exists(), "Source file should be deleted after moving.");
+            assertFalse(Files.exists(session.cwd().resolve(sourceFileName)), "Source file should be deleted after moving.");
             assertTrue(outputStream.toString().contains("File moved successfully and original file deleted."),
                     "Output should confirm successful file move and deletion.");
         }
@@ -193,14 +927,17 @@ public class cmdTest {
     class rmdirCommandTests {
 
         @BeforeEach
-        public void setUpRmdir() {
-            new File("testEmptyDir").mkdir();
-            File nonEmptyDir = new File("testNonEmptyDir");
-            nonEmptyDir.mkdir();
-            try {
-                new File(nonEmptyDir, "testFile.txt").createNewFile();
-            } catch (Exception ignored) {
-            }
+        public void setUpRmdir() throws IOException {
+            session.use(session.inMemory());
+            Files.createDirectory(session.cwd().resolve("testEmptyDir"));
+            Path nonEmptyDir = Files.createDirectory(session.cwd().resolve("testNonEmptyDir"));
+            Files.createFile(nonEmptyDir.resolve("testFile.txt"));
+        }
+
+        @AfterEach
+        public void tearDown() throws IOException {
+            session.current().close();
+            session.use(null);
         }
 
         @Test
@@ -226,14 +963,17 @@ public class cmdTest {
     class RmCommandTests {
 
         @BeforeEach
-        public void setUpRm() {
-            try {
-                new File("testFile.txt").createNewFile();
-                File dir = new File("testDirRecursive");
-                dir.mkdir();
-                new File(dir, "testFile.txt").createNewFile();
-            } catch (Exception ignored) {
-            }
+        public void setUpRm() throws IOException {
+            session.use(session.inMemory());
+            Files.createFile(session.cwd().resolve("testFile.txt"));
+            Path dir = Files.createDirectory(session.cwd().resolve("testDirRecursive"));
+            Files.createFile(dir.resolve("testFile.txt"));
+        }
+
+        @AfterEach
+        public void tearDown() throws IOException {
+            session.current().close();
+            session.use(null);
         }
 
         @Test
@@ -253,39 +993,683 @@ public class cmdTest {
             String result = cmd.rm(new String[]{"rm", "-r", "testDirRecursive"});
             assertEquals("Directory 'testDirRecursive' deleted.", result, "RM command failed on recursive directory deletion");
         }
+
+        @Test
+        public void testRmToTrashRestoreAndEmpty() throws IOException, InterruptedException {
+            Path work = session.cwd();
+            assertEquals("Directory 'testDirRecursive' moved to the trash.",
+                    cmd.rm(new String[]{"rm", "-r", "--trash", "testDirRecursive"}));
+            assertEquals("File 'testFile.txt' moved to the trash.", cmd.rm(new String[]{"rm", "--trash", "testFile.txt"}));
+            assertFalse(Files.exists(work.resolve("testDirRecursive")));
+            assertTrue(cmd.trash(new String[]{"trash"}).contains("  /work/testDirRecursive  (testDirRecursive)\n"));
+
+            assertEquals("Restored /work/testDirRecursive", cmd.trash(new String[]{"trash", "restore", "testDirRecursive"}));
+            assertTrue(Files.exists(work.resolve("testDirRecursive/testFile.txt")));
+            assertEquals("Error: testDirRecursive is not in the trash",
+                    cmd.trash(new String[]{"trash", "restore", "testDirRecursive"}));
+
+            // A second file of the same name gets an entry of its own
+            Files.createFile(work.resolve("testFile.txt"));
+            assertEquals("rm uses the trash by default: on", cmd.trash(new String[]{"trash", "default", "on"}));
+            try {
+                assertEquals("File 'testFile.txt' moved to the trash.", cmd.rm(new String[]{"rm", "testFile.txt"}));
+            } finally {
+                cmd.trash(new String[]{"trash", "default", "off"});
+            }
+            assertTrue(cmd.trash(new String[]{"trash", "list"}).contains("(testFile.txt.2)"));
+
+            assertEquals("Deleting 2 trashed entries in the background.", cmd.trash(new String[]{"trash", "empty"}));
+            assertEquals("The trash is empty.", cmd.trash(new String[]{"trash"}));
+            Path purge = work.resolve(".plutos_trash/purge");
+            for (int i = 0; i < 100 && Files.list(purge).findAny().isPresent(); i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(0, Files.list(purge).count(), "The purge thread deletes emptied entries");
+        }
+
+        @Test
+        public void testEmptyPurgesTrashOfEarlierSession() throws IOException, InterruptedException {
+            // Left by another session: nothing trashed in this one
+            Path trash = session.home().resolve(".plutos_trash");
+            Files.writeString(Files.createDirectories(trash.resolve("info")).resolve("old.txt.trashinfo"),
+                    "[Trash Info]\nPath=/work/old.txt\nDeletionDate=2024-01-01T10:00:00\n");
+            Files.writeString(Files.createDirectories(trash.resolve("files")).resolve("old.txt"), "old\n");
+            Path purge = Files.createDirectories(trash.resolve("purge"));
+
+            assertEquals("Deleting 1 trashed entries in the background.", cmd.trash(new String[]{"trash", "empty"}));
+            for (int i = 0; i < 100 && Files.list(purge).findAny().isPresent(); i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(0, Files.list(purge).count(), "The purge thread deletes emptied entries");
+        }
     }
 
-//    ls command tests
+    @Nested
+    class ramdiskTest {
+
+        @AfterEach
+        void tearDown() throws IOException {
+            session.current().close();
+            session.use(null);
+        }
+
+        @Test
+        void testRamdiskKeepsFilesOffTheDisk() throws IOException {
+            String diskDir = System.getProperty("user.dir");
+            assertEquals("ramdisk on, current directory is /work", cmd.ramdisk(new String[]{"ramdisk", "on"}));
+            assertEquals("/work", cmd.pwd());
+
+            cmd.mkdirCommand(new String[]{"mkdir", "scratch"});
+            cmd.touchCommand(new String[]{"touch", "scratch/notes.txt"});
+            cmd.forwardArrow(new String[]{"pwd", ">", "scratch/out.txt"});
+            assertEquals("/work", Files.readString(session.resolve("scratch/out.txt")));
+            assertTrue(cmd.ls(new String[]{"ls", "scratch"}).contains("notes.txt"));
+            assertFalse(new File(diskDir, "scratch").exists(), "Nothing should be written to the disk");
+
+            java.nio.file.FileSystem ramdisk = session.current().fileSystem();
+            assertEquals("ramdisk off, current directory is " + diskDir, cmd.ramdisk(new String[]{"ramdisk", "off"}));
+            assertFalse(ramdisk.isOpen(), "The ramdisk is dropped once switched off");
+            assertEquals("ramdisk is off", cmd.ramdisk(new String[]{"ramdisk"}));
+        }
+
+        @Test
+        void testSessionsAreIsolatedPerThread() throws Exception {
+            session.use(session.inMemory());
+            cmd.touchCommand(new String[]{"touch", "mine.txt"});
+
+            List<String> seen = Collections.synchronizedList(new ArrayList<>());
+            Thread other = new Thread(() -> {
+                try (session ramdisk = session.inMemory()) {
+                    session.use(ramdisk);
+                    seen.add(cmd.ls(new String[]{"ls"}));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    session.use(null);
+                }
+            });
+            other.start();
+            other.join();
+
+            assertFalse(seen.get(0).contains("mine.txt"), "Another thread must not see this thread's ramdisk");
+            assertTrue(cmd.ls(new String[]{"ls"}).contains("mine.txt"));
+        }
+    }
 
     @Nested
-    class LsCommandTests {
+    class historyTest {
+        @TempDir
+        Path tempDir;
 
-        @BeforeEach
-        public void setUpLs() {
+        @Test
+        void testHistoryIsKeptAcrossSessions() throws IOException {
+            Path log = tempDir.resolve("history");
+            try (commandHistory history = commandHistory.open(log)) {
+                history.add("ls -r src");
+                history.add("cat notes.txt");
+                history.add("cat notes.txt");
+                history.add("   ");
+            }
+            try (commandHistory history = commandHistory.open(log)) {
+                assertEquals(2, history.size(), "Blank commands and repeats should not be logged");
+                assertEquals("    1  ls -r src\n    2  cat notes.txt",
+                        cmd.history(new String[]{"history"}, history).replace(System.lineSeparator(), "\n"));
+                assertEquals("cat notes.txt", cmd.history(new String[]{"history", "-s", "notes"}, history));
+            }
+        }
+
+        @Test
+        void testSearchFindsNewestMatchThroughIndexSegments() throws IOException {
+            Path log = tempDir.resolve("history");
+            int total = 3 * 1024 + 17; // several index segments plus commands indexed in memory
+            try (commandHistory history = commandHistory.open(log)) {
+                for (int i = 0; i < total; i++) {
+                    history.add("grep pattern" + i + " file" + (i % 7) + ".txt");
+                }
+            }
+            try (commandHistory history = commandHistory.open(log);
+                 commandHistory other = commandHistory.open(log)) {
+                assertEquals(total, history.size());
+
+                long newest = history.search("file3.txt", history.end());
+                assertEquals("grep pattern" + (total - 1 - (total - 1 - 3) % 7) + " file3.txt", history.entry(newest));
+                long older = history.search("file3.txt", newest);
+                assertEquals("grep pattern" + (total - 1 - (total - 1 - 3) % 7 - 7) + " file3.txt", history.entry(older));
+
+                assertEquals("grep pattern5 file5.txt", history.entry(history.search("pattern5 ", history.end())));
+                assertEquals(-1, history.search("no such command", history.end()));
+
+                // A command added by one shell is found by another one
+                other.add("echo from another shell");
+                assertEquals("echo from another shell", history.entry(history.search("another", history.end())));
+            }
+        }
+    }
+
+    @Nested
+    class completionTest {
+        @TempDir
+        Path tempDir;
+
+        @Test
+        void testCompletesNamesInDirectory() throws IOException {
+            Files.createFile(tempDir.resolve("notes.txt"));
+            Files.createFile(tempDir.resolve("notebook.md"));
+            Files.createFile(tempDir.resolve(".notes"));
+            Files.createDirectory(tempDir.resolve("nodes"));
+
+            pathCompleter completer = new pathCompleter(new String[]{"rm", "rmdir", "ls"});
+            completer.prefetch(tempDir);
+            assertEquals(List.of("rm", "rmdir"), completer.commands("rm"));
+
+            // Stages that need piped input are only offered after a '|'
+            pathCompleter withStages = new pathCompleter(new String[]{"sync", "sort"}, new String[]{"sort-by", "select"});
+            assertEquals(List.of("sort", "sync"), withStages.commands("s"));
+            assertEquals(List.of("select", "sort", "sort-by", "sync"), withStages.pipeCommands("s"));
+            assertEquals(List.of("nodes/", "notebook.md", "notes.txt"), completer.complete(tempDir, "no"));
+            assertEquals("note", pathCompleter.commonPrefix(completer.complete(tempDir, "not")));
+            assertEquals(List.of(".notes"), completer.complete(tempDir, "."));
+            assertTrue(completer.complete(tempDir, "x").isEmpty());
+        }
+
+        @Test
+        void testListingIsRefreshedWhenDirectoryChanges() throws IOException {
+            session.use(session.inMemory());
             try {
-                // Create some test files and directories
-                new File("testFile1.txt").createNewFile();
-                new File("testFile2.txt").createNewFile();
-                File testDir = new File("testDir");
-                testDir.mkdir();
-                new File(testDir, "testFileInDir.txt").createNewFile();
-            } catch (Exception ignored) {
+                Path dir = session.cwd();
+                Files.createFile(dir.resolve("alpha.txt"));
+                pathCompleter completer = new pathCompleter(new String[0]);
+                assertEquals(List.of("alpha.txt"), completer.complete(dir, "a"));
+
+                Files.createFile(dir.resolve("another.txt"));
+                assertEquals(List.of("alpha.txt", "another.txt"), completer.complete(dir, "a"));
+                Files.delete(dir.resolve("alpha.txt"));
+                assertEquals(List.of("another.txt"), completer.complete(dir, "a"));
+            } finally {
+                session.current().close();
+                session.use(null);
+            }
+        }
+    }
+
+    @Nested
+    class locateTest {
+        @TempDir
+        Path tempDir;
+
+        @Test
+        void testLocateFindsIndexedPaths() throws IOException {
+            Path root = tempDir.resolve("root");
+            Files.createDirectories(root.resolve("src/main"));
+            Files.createDirectories(root.resolve("docs"));
+            Files.createFile(root.resolve("src/main/App.java"));
+            Files.createFile(root.resolve("src/main/util.java"));
+            Files.createFile(root.resolve("docs/README.md"));
+            String db = tempDir.resolve("locate.db").toString();
+
+            assertEquals("Indexed 6 entries in 4 directories (4 listed, 0 unchanged)",
+                    cmd.updatedb(new String[]{"updatedb", root.toString(), "--db", db}));
+            assertEquals(root.resolve("src/main/App.java").toString(),
+                    cmd.locate(new String[]{"locate", "--db", db, "App"}));
+            assertEquals(root.resolve("src/main/App.java") + "\n" + root.resolve("src/main/util.java"),
+                    cmd.locate(new String[]{"locate", "--db", db, "*.java"}));
+            assertEquals(root.resolve("docs/README.md").toString(),
+                    cmd.locate(new String[]{"locate", "--db", db, "-i", "readme"}));
+            assertEquals("2", cmd.locate(new String[]{"locate", "--db", db, "-c", "-r", "[A-Z][a-z]+\\.java$|md$"}));
+            assertEquals("", cmd.locate(new String[]{"locate", "--db", db, "nothing"}));
+            assertEquals("Error: invalid limit: -1", cmd.locate(new String[]{"locate", "--db", db, "-l", "-1", "App"}));
+        }
+
+        @Test
+        void testUpdateOnlyListsChangedDirectories() throws IOException {
+            Path root = tempDir.resolve("root");
+            for (int d = 0; d < 20; d++) {
+                Path dir = Files.createDirectories(root.resolve("directory-number-" + d));
+                for (int f = 0; f < 250; f++) {
+                    Files.createFile(dir.resolve("a-fairly-long-file-name-" + f + ".txt"));
+                }
+            }
+            String db = tempDir.resolve("locate.db").toString();
+            cmd.updatedb(new String[]{"updatedb", root.toString(), "--db", db});
+
+            Files.createFile(root.resolve("directory-number-7/new-file.txt"));
+            assertEquals("Indexed 5021 entries in 21 directories (1 listed, 20 unchanged)",
+                    cmd.updatedb(new String[]{"updatedb", root.toString(), "--db", db}));
+            assertEquals(root.resolve("directory-number-7/new-file.txt").toString(),
+                    cmd.locate(new String[]{"locate", "--db", db, "new-file"}));
+            // The index spans several blocks, results still come back in order
+            assertEquals("250", cmd.locate(new String[]{"locate", "--db", db, "-c", "number-19/"}));
+            assertEquals(root.resolve("directory-number-0/a-fairly-long-file-name-0.txt").toString(),
+                    cmd.locate(new String[]{"locate", "--db", db, "-l", "1", "name-0.txt"}));
+            // A limit stops the scan early but keeps the paths it finds in index order
+            String all = cmd.locate(new String[]{"locate", "--db", db, "name-1"});
+            String[] first = all.split("\n", 1001);
+            assertEquals(String.join("\n", Arrays.asList(first).subList(0, 1000)),
+                    cmd.locate(new String[]{"locate", "--db", db, "-l", "1000", "name-1"}));
+            assertEquals("3", cmd.locate(new String[]{"locate", "--db", db, "-c", "-l", "3", "number-19/"}));
+            assertEquals("", cmd.locate(new String[]{"locate", "--db", db, "-l", "0", "name-1"}));
+        }
+    }
+
+    @Nested
+    class contentIndexTest {
+        @TempDir
+        Path tempDir;
+
+        @Test
+        void testGrepRecursiveUsesIndexAndSeesChanges() throws IOException {
+            Path src = Files.createDirectories(tempDir.resolve("src/util"));
+            Files.writeString(tempDir.resolve("src/App.java"), "class App {\n    // TODO remove\n}\n");
+            Files.writeString(src.resolve("Strings.java"), "class Strings {\n    // TODO split\n}\n");
+            Files.writeString(src.resolve("Other.java"), "class Other {}\n");
+            Files.write(src.resolve("blob.bin"), new byte[]{'T', 'O', 'D', 'O', 0, 1, 2});
+            String dir = tempDir.toString();
+
+            String expected = dir + "/src/App.java:    // TODO remove\n" + dir + "/src/util/Strings.java:    // TODO split";
+            assertEquals(expected, cmd.grep(new String[]{"grep", "-r", "TODO", dir}, ""), "Without an index the tree is scanned");
+
+            assertEquals("Indexed 4 files (4 read, 0 unchanged, 1 binary), ",
+                    cmd.index(new String[]{"index", dir}).replaceAll("\\d+ trigrams$", ""));
+            assertEquals(expected, cmd.grep(new String[]{"grep", "-r", "TODO", dir}, ""));
+            assertEquals("", cmd.grep(new String[]{"grep", "-r", "FIXME", dir}, ""));
+
+            // A file changed after indexing is still searched
+            Files.writeString(src.resolve("Other.java"), "class Other {} // FIXME\n");
+            assertEquals(dir + "/src/util/Other.java:class Other {} // FIXME", cmd.grep(new String[]{"grep", "-r", "FIXME", dir}, ""));
+
+            assertTrue(cmd.index(new String[]{"index", dir}).startsWith("Indexed 4 files (1 read, 3 unchanged, 1 binary)"));
+            assertEquals(dir + "/src/util/Other.java:class Other {} // FIXME", cmd.grep(new String[]{"grep", "-r", "FIXME", dir}, ""));
+            assertEquals(dir + "/src/util/Strings.java:    // TODO split",
+                    cmd.grep(new String[]{"grep", "-r", "TODO split", dir + "/src/util"}, ""));
+        }
+
+        @Test
+        void testIndexNarrowsCandidates() throws IOException {
+            for (int i = 0; i < 50; i++) {
+                Files.writeString(tempDir.resolve("file" + i + ".txt"), "line with word" + i + "\n");
+            }
+            contentIndex.update(tempDir);
+            contentIndex index = contentIndex.open(tempDir);
+            assertEquals(1, index.candidates("word42").cardinality());
+            assertEquals(50, index.candidates("with").cardinality());
+            assertEquals(0, index.candidates("absent").cardinality());
+            assertNull(index.candidates("wo"), "Texts shorter than a trigram cannot be narrowed down");
+        }
+    }
+
+    @Nested
+    class diffTest {
+        @TempDir
+        Path tempDir;
+
+        @Test
+        void testDiffFormats() throws IOException {
+            Path a = tempDir.resolve("a.txt");
+            Path b = tempDir.resolve("b.txt");
+            Files.writeString(a, "one\ntwo\nthree\nfour\nfive\nsix\nseven\neight\nnine\nten\n");
+            Files.writeString(b, "zero\none\ntwo\nthree\nfour\nFIVE\nsix\nseven\neight\nnine\n");
+            String first = a.toString();
+            String second = b.toString();
+
+            assertEquals("0a1\n> zero\n5c6\n< five\n---\n> FIVE\n10d10\n< ten",
+                    cmd.diff(new String[]{"diff", first, second}));
+            assertEquals("--- " + first + "\n+++ " + second + "\n"
+                            + "@@ -1,10 +1,10 @@\n+zero\n one\n two\n three\n four\n-five\n+FIVE\n six\n seven\n eight\n nine\n-ten",
+                    cmd.diff(new String[]{"diff", "-u", first, second}));
+            assertEquals("", cmd.diff(new String[]{"diff", first, first}));
+            assertEquals("Error: diff needs two files to compare.", cmd.diff(new String[]{"diff", first}));
+        }
+
+        @Test
+        void testUnifiedHunksAreSeparated() throws IOException {
+            StringBuilder original = new StringBuilder();
+            for (int i = 1; i <= 30; i++) {
+                original.append("line ").append(i).append('\n');
             }
+            String changed = original.toString().replace("line 2\n", "line two\n").replace("line 25\n", "");
+            Path a = tempDir.resolve("a");
+            Path b = tempDir.resolve("b");
+            Files.writeString(a, original);
+            Files.writeString(b, changed);
+            assertEquals("--- a\n+++ b\n"
+                            + "@@ -1,5 +1,5 @@\n line 1\n-line 2\n+line two\n line 3\n line 4\n line 5\n"
+                            + "@@ -22,7 +22,6 @@\n line 22\n line 23\n line 24\n-line 25\n line 26\n line 27\n line 28",
+                    cmd.diff(new String[]{"diff", "-u", a.toString(), b.toString()})
+                            .replace(a.toString(), "a").replace(b.toString(), "b"));
+        }
+
+        @Test
+        void testRecursiveDiff() throws IOException {
+            Path left = Files.createDirectories(tempDir.resolve("left/sub"));
+            Path right = Files.createDirectories(tempDir.resolve("right/sub"));
+            Files.writeString(left.resolve("same.txt"), "same\n");
+            Files.writeString(right.resolve("same.txt"), "same\n");
+            Files.writeString(left.resolve("changed.txt"), "old\n");
+            Files.writeString(right.resolve("changed.txt"), "new\n");
+            // Same size and time would be taken as equal without reading
+            Files.setLastModifiedTime(right.resolve("changed.txt"), java.nio.file.attribute.FileTime.fromMillis(0));
+            Files.writeString(left.resolve("gone.txt"), "x\n");
+            Files.writeString(right.resolve("added.txt"), "y\n");
+            String l = tempDir.resolve("left").toString();
+            String r = tempDir.resolve("right").toString();
+
+            assertEquals("Only in " + r + "/sub: added.txt\n"
+                            + "diff -r " + l + "/sub/changed.txt " + r + "/sub/changed.txt\n1c1\n< old\n---\n> new\n"
+                            + "Only in " + l + "/sub: gone.txt",
+                    cmd.diff(new String[]{"diff", "-r", l, r}));
+            assertTrue(cmd.diff(new String[]{"diff", l, r}).startsWith("Error: "));
         }
+    }
+
+    @Nested
+    class cacheTest {
+        @TempDir
+        Path tempDir;
 
         @AfterEach
-        public void tearDown() {
-            // Clean up the created files and directories after each test
-            new File("testFile1.txt").delete();
-            new File("testFile2.txt").delete();
-            File dir = new File("testDir");
-            File[] files = dir.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    file.delete();
+        void turnOff() {
+            cmd.cache(new String[]{"cache", "off"});
+        }
+
+        private String run(String command) {
+            PrintStream console = System.out;
+            ByteArrayOutputStream captured = new ByteArrayOutputStream();
+            System.setOut(new PrintStream(captured, true));
+            try {
+                org.os.driverProgram.parseCommand(command);
+            } finally {
+                System.setOut(console);
+            }
+            return captured.toString();
+        }
+
+        @Test
+        void testCachedOutputIsValidatedOnEveryHit() throws IOException {
+            Path file = Files.writeString(tempDir.resolve("config.txt"), "key=1\nother=2\n");
+            java.nio.file.attribute.FileTime old = java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+            Files.setLastModifiedTime(file, old);
+            assertEquals("cache on, 1048576 bytes", cmd.cache(new String[]{"cache", "on", "1M"}));
+
+            assertTrue(run("grep key " + file).contains("key=1"));
+            assertTrue(run("grep key " + file).contains("key=1"));
+            String stats = cmd.cache(new String[]{"cache", "stats"});
+            assertTrue(stats.contains("hits:      1"), stats);
+            assertTrue(stats.contains("entries:   1"), stats);
+
+            // Same size, new time: the entry is stale
+            Files.writeString(file, "key=9\nother=2\n");
+            Files.setLastModifiedTime(file, java.nio.file.attribute.FileTime.fromMillis(old.toMillis() + 1000));
+            assertTrue(run("grep key " + file).contains("key=9"));
+            assertTrue(cmd.cache(new String[]{"cache", "stats"}).contains("(1 stale)"));
+        }
+
+        @Test
+        void testRecentlyModifiedInputsAreNotCached() throws IOException {
+            Path file = Files.writeString(tempDir.resolve("fresh.txt"), "fresh\n");
+            cmd.cache(new String[]{"cache", "on"});
+            run("grep fresh " + file);
+            run("grep fresh " + file);
+            assertTrue(cmd.cache(new String[]{"cache", "stats"}).contains("hits:      0"));
+            assertEquals("cache off", cmd.cache(new String[]{"cache", "off"}));
+            assertEquals("cache is off", cmd.cache(new String[]{"cache", "stats"}));
+        }
+
+        @Test
+        void testListingsOfWholeTreesAreNotCached() throws IOException {
+            Path dir = Files.createDirectories(tempDir.resolve("dir/sub"));
+            java.nio.file.attribute.FileTime old = java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+            Files.setLastModifiedTime(dir, old);
+            Files.setLastModifiedTime(dir.getParent(), old);
+            cmd.cache(new String[]{"cache", "on"});
+
+            run("ls -ar " + dir.getParent());
+            Files.writeString(dir.resolve("new.txt"), "new\n");
+            Files.setLastModifiedTime(dir, old);
+            assertTrue(run("ls -ar " + dir.getParent()).contains("new.txt"));
+            assertTrue(run("ls -ra " + dir.getParent()).contains("new.txt"));
+            assertTrue(cmd.cache(new String[]{"cache", "stats"}).contains("hits:      0"));
+        }
+
+        @Test
+        void testCachedCatShowsTheFileNames() throws IOException {
+            Path file = Files.writeString(tempDir.resolve("old.txt"), "old\n");
+            Files.setLastModifiedTime(file, java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+            cmd.cache(new String[]{"cache", "on"});
+
+            String first = run("cat " + file);
+            assertEquals(file + "\nold\n\n", first);
+            assertEquals(first, run("cat " + file));
+            assertTrue(cmd.cache(new String[]{"cache", "stats"}).contains("hits:      1"));
+        }
+
+        @Test
+        void testWordCountOfFilesIsCached() throws IOException {
+            Path file = Files.writeString(tempDir.resolve("words.txt"), "one two\nthree\n");
+            java.nio.file.attribute.FileTime old = java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+            Files.setLastModifiedTime(file, old);
+            cmd.cache(new String[]{"cache", "on"});
+
+            String counts = "      2       3      14 " + file + "\n\n";
+            assertEquals(counts, run("wc " + file));
+            assertEquals(counts, run("wc " + file));
+            assertTrue(cmd.cache(new String[]{"cache", "stats"}).contains("hits:      1"));
+
+            Files.writeString(file, "one two\nthree\nfour\n");
+            Files.setLastModifiedTime(file, java.nio.file.attribute.FileTime.fromMillis(old.toMillis() + 1000));
+            assertTrue(run("wc -l " + file).startsWith("      3 "));
+            assertTrue(run("wc " + file).startsWith("      3       4      19 "));
+        }
+
+        @Test
+        void testListingsOrderedBySizeOrTimeAreNotCached() throws IOException {
+            Path small = Files.writeString(tempDir.resolve("small.txt"), "a\n");
+            Files.writeString(tempDir.resolve("big.txt"), "abcdef\n");
+            java.nio.file.attribute.FileTime old = java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+            Files.setLastModifiedTime(tempDir, old);
+            cmd.cache(new String[]{"cache", "on"});
+
+            assertTrue(run("ls -S " + tempDir).startsWith("big.txt"));
+            // Growing a file leaves the directory's time as it was
+            Files.writeString(small, "abcdefghijkl\n");
+            Files.setLastModifiedTime(tempDir, old);
+            assertTrue(run("ls -S " + tempDir).startsWith("small.txt"));
+            run("ls -t " + tempDir);
+            run("ls -t " + tempDir);
+            run("ls --top 1 " + tempDir);
+            run("ls --top 1 " + tempDir);
+            assertTrue(cmd.cache(new String[]{"cache", "stats"}).contains("hits:      0"));
+        }
+    }
+
+    @Nested
+    class dupesTest {
+        @TempDir
+        Path tempDir;
+
+        @Test
+        void testFindsAndLinksDuplicates() throws IOException {
+            byte[] big = new byte[20000];
+            new Random(7).nextBytes(big);
+            Files.write(tempDir.resolve("a.bin"), big);
+            Files.write(Files.createDirectories(tempDir.resolve("sub")).resolve("copy.bin"), big);
+            // Same size, same first and last block: only the full hash tells it apart
+            byte[] changed = big.clone();
+            changed[10000]++;
+            Files.write(tempDir.resolve("middle.bin"), changed);
+            Files.writeString(tempDir.resolve("x.txt"), "hello\n");
+            Files.writeString(tempDir.resolve("y.txt"), "hello\n");
+            Files.writeString(tempDir.resolve("z.txt"), "world\n");
+            Files.createFile(tempDir.resolve("empty1"));
+            Files.createFile(tempDir.resolve("empty2"));
+            String dir = tempDir.toString();
+
+            assertEquals(dir + "/a.bin\n" + dir + "/sub/copy.bin\n\n" + dir + "/x.txt\n" + dir + "/y.txt",
+                    cmd.dupes(new String[]{"dupes", dir}));
+
+            assertTrue(cmd.dupes(new String[]{"dupes", "--link", dir}).endsWith("Linked 2 duplicate files, freed 20006 bytes"));
+            assertEquals(Files.readAttributes(tempDir.resolve("a.bin"), java.nio.file.attribute.BasicFileAttributes.class).fileKey(),
+                    Files.readAttributes(tempDir.resolve("sub/copy.bin"), java.nio.file.attribute.BasicFileAttributes.class).fileKey());
+            assertArrayEquals(big, Files.readAllBytes(tempDir.resolve("sub/copy.bin")));
+            assertEquals("No duplicate files found.", cmd.dupes(new String[]{"dupes", dir}), "Hard links are not duplicates");
+        }
+
+        @Test
+        void testDupesArguments() {
+            assertEquals("Error: This -x argument isn't supported", cmd.dupes(new String[]{"dupes", "-x"}));
+            assertEquals("Error: missing is not a directory.", cmd.dupes(new String[]{"dupes", tempDir.resolve("missing").toString()}).replace(tempDir + "/", ""));
+        }
+    }
+
+    @Nested
+    class syncTest {
+        @TempDir
+        Path tempDir;
+
+        private String sync(String... arguments) {
+            List<String> tokens = new ArrayList<>(List.of("sync"));
+            tokens.addAll(List.of(arguments));
+            tokens.add(tempDir.resolve("src").toString());
+            tokens.add(tempDir.resolve("dst").toString());
+            return cmd.sync(tokens.toArray(new String[0]));
+        }
+
+        private long written(String summary) {
+            java.util.regex.Matcher matcher = java.util.regex.Pattern.compile("(\\d+) bytes written").matcher(summary);
+            assertTrue(matcher.find(), summary);
+            return Long.parseLong(matcher.group(1));
+        }
+
+        @Test
+        void testSyncWritesOnlyChangedBlocks() throws IOException {
+            byte[] data = new byte[200_000];
+            new Random(11).nextBytes(data);
+            Path big = Files.write(Files.createDirectories(tempDir.resolve("src")).resolve("big.bin"), data);
+            Files.writeString(Files.createDirectories(tempDir.resolve("src/sub")).resolve("small.txt"), "hello\n");
+            Path copy = tempDir.resolve("dst/big.bin");
+
+            assertEquals("2 files checked, 2 copied, 0 updated, 0 unchanged, 0 deleted: 200006 bytes written, 0 reused", sync());
+            assertEquals("hello\n", Files.readString(tempDir.resolve("dst/sub/small.txt")));
+            assertEquals("2 files checked, 0 copied, 0 updated, 2 unchanged, 0 deleted: 0 bytes written, 0 reused", sync());
+
+            // A few bytes changed in the middle: written over the copy in place
+            data[100_000] ^= 1;
+            Files.write(big, data);
+            Files.setLastModifiedTime(big, FileTime.fromMillis(1_000_000));
+            Object key = Files.readAttributes(copy, java.nio.file.attribute.BasicFileAttributes.class).fileKey();
+            String summary = sync();
+            assertTrue(summary.contains("1 updated, 1 unchanged"), summary);
+            assertTrue(written(summary) <= 2048, summary);
+            assertArrayEquals(data, Files.readAllBytes(copy));
+            assertEquals(key, Files.readAttributes(copy, java.nio.file.attribute.BasicFileAttributes.class).fileKey());
+            assertEquals(FileTime.fromMillis(1_000_000), Files.getLastModifiedTime(copy));
+
+            // Bytes inserted at the start shift every block: the copy is rebuilt and renamed
+            byte[] shifted = new byte[data.length + 3];
+            System.arraycopy(data, 0, shifted, 3, data.length);
+            Files.write(big, shifted);
+            summary = sync();
+            assertTrue(written(summary) <= 2048, summary);
+            assertArrayEquals(shifted, Files.readAllBytes(copy));
+
+            Files.delete(tempDir.resolve("src/sub/small.txt"));
+            assertTrue(sync().contains("1 unchanged, 0 deleted"));
+            assertTrue(Files.exists(tempDir.resolve("dst/sub/small.txt")), "Only --delete deletes");
+            assertTrue(sync("--delete").contains("1 unchanged, 1 deleted"));
+            assertFalse(Files.exists(tempDir.resolve("dst/sub/small.txt")));
+            assertEquals("Error: usage: sync [--delete] source target", cmd.sync(new String[]{"sync", "a"}));
+        }
+    }
+
+    @Nested
+    class watchTest {
+        @TempDir
+        Path tempDir;
+
+        private void await(ByteArrayOutputStream screen, String text) throws InterruptedException {
+            for (int i = 0; i < 100 && !screen.toString().contains(text); i++) {
+                Thread.sleep(50);
+            }
+            assertTrue(screen.toString().contains(text), screen.toString());
+        }
+
+        @Test
+        void testWatchRedrawsChangedRowsOnChange() throws Exception {
+            Path log = Files.writeString(tempDir.resolve("app.log"), "one\ntwo\n");
+            ByteArrayOutputStream screen = new ByteArrayOutputStream();
+            java.util.concurrent.atomic.AtomicBoolean stop = new java.util.concurrent.atomic.AtomicBoolean();
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                Future<Integer> runs = executor.submit(() ->
+                        commandWatch.watch("cat " + log, 0, tempDir, new PrintStream(screen, true), stop::get));
+                await(screen, "\u001B[4;1Htwo");
+                int drawn = screen.size();
+
+                Files.writeString(log, "one\nthree\n");
+                await(screen, "\u001B[4;1Hthree");
+                assertFalse(screen.toString().substring(drawn).contains("\u001B[3;1H"), "Unchanged rows are not redrawn");
+
+                // A burst of writes reruns the command once or twice, not once per write
+                for (int i = 0; i < 50; i++) {
+                    Files.writeString(tempDir.resolve("burst" + i + ".tmp"), "x");
                 }
+                Thread.sleep(1500);
+                stop.set(true);
+                int count = runs.get(5, TimeUnit.SECONDS);
+                assertTrue(count >= 3 && count <= 5, "ran " + count + " times");
+            } finally {
+                stop.set(true);
+                executor.shutdownNow();
+            }
+        }
+
+        @Test
+        void testWatchShowsErrorsInItsOutput() throws Exception {
+            PrintStream console = System.out;
+            ByteArrayOutputStream printed = new ByteArrayOutputStream();
+            ByteArrayOutputStream screen = new ByteArrayOutputStream();
+            System.setOut(new PrintStream(printed, true));
+            try {
+                int[] checks = {0};
+                assertEquals(1, commandWatch.watch("ls " + tempDir.resolve("missing") + " | nosuch", 1000, null,
+                        new PrintStream(screen, true), () -> checks[0]++ > 0));
+            } finally {
+                System.setOut(console);
             }
-            dir.delete();
+            assertEquals("", printed.toString(), "Nothing is printed around the redraw");
+            assertTrue(screen.toString().contains("\u001B[3;1HError: " + tempDir.resolve("missing") + " does not exist."), screen.toString());
+            assertTrue(screen.toString().contains("\u001B[4;1HUnknown command in pipe: nosuch"), screen.toString());
+        }
+
+        @Test
+        void testWatchArguments() {
+            assertEquals("Error: usage: watch [-n SECONDS] [--on-change DIRECTORY] command", cmd.watch(new String[]{"watch", "-n", "1"}));
+            assertEquals("Error: watch -n takes at least 0.1 seconds", cmd.watch(new String[]{"watch", "-n", "0", "ls"}));
+            assertEquals("Error: watch -n takes a number of seconds", cmd.watch(new String[]{"watch", "-n", "x", "ls"}));
+            assertEquals("Error: missing is not a directory.",
+                    cmd.watch(new String[]{"watch", "--on-change", tempDir.resolve("missing").toString(), "ls"}).replace(tempDir + "/", ""));
+        }
+    }
+
+//    ls command tests
+
+    @Nested
+    class LsCommandTests {
+
+        @BeforeEach
+        public void setUpLs() throws IOException {
+            session.use(session.inMemory());
+            // Create some test files and directories
+            Path work = session.cwd();
+            Files.createFile(work.resolve("testFile1.txt"));
+            Files.createFile(work.resolve("testFile2.txt"));
+            Path testDir = Files.createDirectory(work.resolve("testDir"));
+            Files.createFile(testDir.resolve("testFileInDir.txt"));
+        }
+
+        @AfterEach
+        public void tearDown() throws IOException {
+            session.current().close();
+            session.use(null);
         }
 
         @Test
@@ -315,12 +1699,9 @@ public class cmdTest {
         }
 
         @Test
-        public void testLsWithAllFlag() {
+        public void testLsWithAllFlag() throws IOException {
             // Create a hidden file for testing
-            try {
-                new File(".hiddenFile.txt").createNewFile();
-            } catch (Exception ignored) {
-            }
+            Files.createFile(session.cwd().resolve(".hiddenFile.txt"));
 
             String result = cmd.ls(new String[]{"ls", "-a"});
             // Check if the output includes the hidden file and other visible files
@@ -328,29 +1709,41 @@ public class cmdTest {
             assertTrue(result.contains("testFile2.txt"), "LS command should list 'testFile2.txt'");
             assertTrue(result.contains("testDir"), "LS command should list 'testDir'");
             assertTrue(result.contains(".hiddenFile.txt"), "LS command should list '.hiddenFile.txt' when using -a");
-
-            // Clean up
-            new File(".hiddenFile.txt").delete();
         }
 
         @Test
-        public void testLsWithRecursiveFlag() {
+        public void testLsWithRecursiveFlag() throws IOException {
             // Create a directory with nested directories and files for testing
-            File nestedDir = new File("testDir/nestedDir");
-            nestedDir.mkdirs();
-            try {
-                new File(nestedDir, "nestedFile.txt").createNewFile();
-            } catch (Exception ignored) {
-            }
+            Path nestedDir = Files.createDirectories(session.cwd().resolve("testDir/nestedDir"));
+            Files.createFile(nestedDir.resolve("nestedFile.txt"));
 
             String result = cmd.ls(new String[]{"ls", "-r", "testDir"});
             // Check if the output includes the nested file
             assertTrue(result.contains("nestedDir"), "LS command should list 'nestedDir' in 'testDir'");
             assertTrue(result.contains("nestedFile.txt"), "LS command should list 'nestedFile.txt' in 'nestedDir'");
+        }
 
-            // Clean up
-            new File(nestedDir, "nestedFile.txt").delete();
-            nestedDir.delete();
+        @Test
+        public void testLsSortedAndTop() throws IOException {
+            Path tempDir = Files.createDirectory(session.cwd().resolve("sorted"));
+            Path sub = Files.createDirectories(tempDir.resolve("sub/deeper"));
+            Files.writeString(tempDir.resolve("b.txt"), "x".repeat(300));
+            Files.writeString(tempDir.resolve("a.log"), "x".repeat(100));
+            Files.writeString(tempDir.resolve("c"), "x".repeat(200));
+            Files.writeString(tempDir.resolve(".big"), "x".repeat(5000));
+            Files.writeString(sub.resolve("huge.bin"), "x".repeat(1000));
+            Files.setLastModifiedTime(tempDir.resolve("a.log"), FileTime.fromMillis(3_000_000));
+            Files.setLastModifiedTime(tempDir.resolve("c"), FileTime.fromMillis(2_000_000));
+            Files.setLastModifiedTime(tempDir.resolve("b.txt"), FileTime.fromMillis(1_000_000));
+            Files.setLastModifiedTime(tempDir.resolve("sub"), FileTime.fromMillis(0));
+
+            String dir = tempDir.toString();
+            assertEquals("c\nsub/\na.log\nb.txt\n", cmd.ls(new String[]{"ls", "-X", dir}));
+            assertEquals("a.log\nc\nb.txt\nsub/\n", cmd.ls(new String[]{"ls", "-t", dir}));
+            assertEquals("b.txt\nc\n", cmd.ls(new String[]{"ls", "-S", "--top", "2", dir}));
+            assertEquals("sub/deeper/huge.bin\nb.txt\n", cmd.ls(new String[]{"ls", "--top", "2", "-r", dir}));
+            assertEquals(".big\nsub/deeper/huge.bin\nb.txt\n", cmd.ls(new String[]{"ls", "-raS", dir, "--top", "3"}));
+            assertEquals("Error: --top needs a positive number of entries", cmd.ls(new String[]{"ls", "--top", "x"}));
         }
 
     }
@@ -363,24 +1756,15 @@ public class cmdTest {
 
         @BeforeEach
         public void setUp() throws IOException {
-            new File(testDirPath).mkdir();
-
-            File testFile = new File(testFilePath);
-            if (!testFile.exists()) {
-                testFile.createNewFile();
-            }
+            session.use(session.inMemory());
+            Files.createDirectory(session.cwd().resolve(testDirPath));
+            Files.createFile(session.cwd().resolve(testFilePath));
         }
 
         @AfterEach
-        public void tearDown() {
-            File testFile = new File(testFilePath);
-            if (testFile.exists()) {
-                testFile.delete();
-            }
-            File testDir = new File(testDirPath);
-            if (testDir.exists()) {
-                testDir.delete();
-            }
+        public void tearDown() throws IOException {
+            session.current().close();
+            session.use(null);
         }
 
         @Test
@@ -389,8 +1773,8 @@ public class cmdTest {
 
             assertEquals("Output successfully appended to outputTest.txt", result);
 
-            String content = new String(java.nio.file.Files.readAllBytes(java.nio.file.Paths.get(testFilePath)));
-            assertTrue(content.contains(System.getProperty("user.dir")), "Output file should contain the current directory path.");
+            String content = Files.readString(session.cwd().resolve(testFilePath));
+            assertTrue(content.contains(session.cwd().toString()), "Output file should contain the current directory path.");
         }
 
         @Test
@@ -407,16 +1791,14 @@ public class cmdTest {
 
         @Test
         public void testAppendOutputToFileWithExistingFile() throws IOException {
-            try (FileWriter writer = new FileWriter(testFilePath)) {
-                writer.write("Existing content\n");
-            }
+            Files.writeString(session.cwd().resolve(testFilePath), "Existing content\n");
 
             String result = cmd.appendOutputToFile(new String[]{"pwd", ">>", testFilePath});
             assertEquals("Output successfully appended to outputTest.txt", result);
 
-            String content = new String(java.nio.file.Files.readAllBytes(java.nio.file.Paths.get(testFilePath)));
+            String content = Files.readString(session.cwd().resolve(testFilePath));
             assertTrue(content.contains("Existing content"), "Output file should still contain the existing content.");
-            assertTrue(content.contains(System.getProperty("user.dir")), "Output file should contain the current directory path.");
+            assertTrue(content.contains(session.cwd().toString()), "Output file should contain the current directory path.");
         }
     }
 
@@ -426,7 +1808,14 @@ public class cmdTest {
 
         @BeforeEach
         public void setup() {
-            basePath = System.getProperty("user.dir") + File.separator;
+            session.use(session.inMemory());
+            basePath = session.cwd() + "/";
+        }
+
+        @AfterEach
+        public void tearDown() throws IOException {
+            session.current().close();
+            session.use(null);
         }
 
         @Test
@@ -436,52 +1825,35 @@ public class cmdTest {
             String result = cmd.mkdirCommand(tokens);
             String expectedPath = basePath + dirName;
             assertEquals("Directory '" + dirName + "' created at " + expectedPath, result);
-            new File(expectedPath).delete();
         }
 
         @Test
-        public void testMkdirWithValidName() {
+        public void testMkdirWithValidName() throws IOException {
             String dirName = "testDir_" + System.currentTimeMillis();
             String[] tokens = {"mkdir", dirName};
-            new File(basePath + dirName).mkdir();
+            Files.createDirectory(session.cwd().resolve(dirName));
             String result = cmd.mkdirCommand(tokens);
             assertEquals("Error: Directory already exists.", result);
-            new File(basePath + dirName).delete();
         }
 
         @Test
         void testMkdirCustomPath() throws IOException {
-            File tempDir = Files.createTempDirectory("testDir").toFile();
-            String[] tokens = {"mkdir", "some/custom/nestedDir_test", tempDir.getAbsolutePath()};
+            Path tempDir = Files.createDirectories(session.current().fileSystem().getPath("/tmp/testDir"));
+            String[] tokens = {"mkdir", "some/custom/nestedDir_test", tempDir.toString()};
             String expectedOutput = "Directory 'some/custom/nestedDir_test' created at " +
-                    tempDir.getAbsolutePath() + File.separator + "some" + File.separator + "custom" + File.separator + "nestedDir_test";
+                    tempDir + "/some/custom/nestedDir_test";
             String actualOutput = cmd.mkdirCommand(tokens);
             assertEquals(expectedOutput, actualOutput);
-            deleteDir(tempDir);
-        }
-
-        private void deleteDir(File directory) {
-            File[] files = directory.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (file.isDirectory()) {
-                        deleteDir(file);
-                    } else {
-                        file.delete();
-                    }
-                }
-            }
-            directory.delete();
+            assertTrue(Files.isDirectory(tempDir.resolve("some/custom/nestedDir_test")));
         }
 
         @Test
-        public void testMkdirWithExistingDir() {
+        public void testMkdirWithExistingDir() throws IOException {
             String dirName = "existingDir_" + System.currentTimeMillis();
             String[] tokens = {"mkdir", dirName};
-            new File(basePath + dirName).mkdir();
+            Files.createDirectory(session.cwd().resolve(dirName));
             String result = cmd.mkdirCommand(tokens);
             assertEquals("Error: Directory already exists.", result);
-            new File(basePath + dirName).delete();
         }
 
         @Test
@@ -498,7 +1870,6 @@ public class cmdTest {
             String result = cmd.mkdirCommand(tokens);
             String expectedPath = basePath + dirName;
             assertEquals("Directory '" + dirName + "' created at " + expectedPath, result);
-            new File(expectedPath).delete();
         }
     }
 
@@ -507,14 +1878,18 @@ public class cmdTest {
     @Nested
     public class touchTest {
         private static final String TEST_FILE_NAME = "testFile.txt";
-        private File testFile;
+        private Path testFile;
 
         @BeforeEach
         public void setUp() {
-            testFile = new File(System.getProperty("user.dir"), TEST_FILE_NAME);
-            if (testFile.exists()) {
-                testFile.delete();  // clean up 2bl kol test
-            }
+            session.use(session.inMemory());
+            testFile = session.cwd().resolve(TEST_FILE_NAME);
+        }
+
+        @AfterEach
+        public void tearDown() throws IOException {
+            session.current().close();
+            session.use(null);
         }
 
         @Test
@@ -522,12 +1897,12 @@ public class cmdTest {
             String[] tokens = {"touch", TEST_FILE_NAME};
             String result = cmd.touchCommand(tokens);
             assertEquals("File 'testFile.txt' created successfully.", result);
-            assertTrue(testFile.exists());
+            assertTrue(Files.exists(testFile));
         }
 
         @Test
         public void testTouchCommandUpdatesFile() throws IOException {
-            Files.createFile(Paths.get(System.getProperty("user.dir"), TEST_FILE_NAME));
+            Files.createFile(testFile);
 
             String[] tokens = {"touch", TEST_FILE_NAME};
             String result = cmd.touchCommand(tokens);
@@ -537,19 +1912,30 @@ public class cmdTest {
 
     @Nested
     public class pipeTest {
+        @BeforeEach
+        public void setUp() {
+            session.use(session.inMemory());
+        }
+
+        @AfterEach
+        public void tearDown() throws IOException {
+            session.current().close();
+            session.use(null);
+        }
+
         @Test
         public void testPipeCommandWithMkdirAndTouch() {
             String input = "mkdir testDir | touch testFile.txt";
             cmd.handlePipe(input);
-            assertTrue(new File(System.getProperty("user.dir"), "testDir").exists());
-            assertTrue(new File(System.getProperty("user.dir"), TEST_FILE_NAME).exists());
+            assertTrue(Files.exists(session.cwd().resolve("testDir")));
+            assertTrue(Files.exists(session.cwd().resolve(TEST_FILE_NAME)));
         }
 
         @Test
         public void testPipeCommandWithPwd() {
             String input = "pwd";
             cmd.handlePipe(input);
-            assertEquals(System.getProperty("user.dir"), cmd.pwd());
+            assertEquals(session.cwd().toString(), cmd.pwd());
         }
 
         @Test
@@ -558,10 +1944,7 @@ public class cmdTest {
             String testFileName = "testFileForLs.txt";
 
             try {
-                Path dirPath = Paths.get(testDirectory);
-                if (!Files.exists(dirPath)) {
-                    Files.createDirectory(dirPath);
-                }
+                Path dirPath = Files.createDirectory(session.cwd().resolve(testDirectory));
                 Files.writeString(dirPath.resolve(testFileName), "Sample content for ls test.");
                 assertTrue(Files.exists(dirPath), "Directory should exist after creation.");
                 assertTrue(Files.exists(dirPath.resolve(testFileName)), "File should exist after writing.");
@@ -570,76 +1953,62 @@ public class cmdTest {
                 assertTrue(output.contains(testFileName), "Output should contain the file name in the directory.");
             } catch (IOException e) {
                 fail("Failed to create or read the test directory/file: " + e.getMessage());
-            } finally {
-                try {
-                    Files.deleteIfExists(Paths.get(testDirectory, testFileName));
-                    Files.deleteIfExists(Paths.get(testDirectory));
-                } catch (IOException e) {
-                    System.err.println("Cleanup failed: " + e.getMessage());
-                }
             }
         }
+
         @Test
-        public void testPipeCommandWithCat () {
-                    String testFileName = "testFileForCat.txt";
-                    try {
-                        Files.writeString(Paths.get(testFileName), "Sample content for cat test.");
-                        assertTrue(Files.exists(Paths.get(testFileName)), "File should exist after writing.");
-                        String input = "cat " + testFileName;
-                        String output = handlePipe(input);
-                        assertEquals("Sample content for cat test.", output.strip(), "Output should match file content.");
-                    } catch (IOException e) {
-                        fail("Failed to create or read the test file: " + e.getMessage());
-                    } finally {
-                        try {
-                            Files.deleteIfExists(Paths.get(testFileName));
-                        } catch (IOException e) {
-                            System.err.println("Cleanup failed: " + e.getMessage());
-                        }
-                    }
-                }
+        public void testPipeCommandWithCat() {
+            String testFileName = "testFileForCat.txt";
+            try {
+                Path file = Files.writeString(session.cwd().resolve(testFileName), "Sample content for cat test.");
+                assertTrue(Files.exists(file), "File should exist after writing.");
+                String input = "cat " + testFileName;
+                String output = handlePipe(input);
+                assertEquals("Sample content for cat test.", output.strip(), "Output should match file content.");
+            } catch (IOException e) {
+                fail("Failed to create or read the test file: " + e.getMessage());
+            }
+        }
 
-        private String handlePipe (String command){
-                    if (command.startsWith("cat ")) {
-                        String fileName = command.substring(4).trim();
-                        return readFileContents(fileName);
-                    } else if (command.startsWith("ls ")) {
-                        String directoryName = command.substring(3).trim();
-                        return listDirectoryContents(directoryName);
-                    }
-                    return "";
-                }
+        private String handlePipe(String command) throws IOException {
+            if (command.startsWith("cat ")) {
+                String fileName = command.substring(4).trim();
+                return readFileContents(fileName);
+            } else if (command.startsWith("ls ")) {
+                String directoryName = command.substring(3).trim();
+                return listDirectoryContents(directoryName);
+            }
+            return "";
+        }
 
-        private String readFileContents (String fileName){
-                    try {
-                        return Files.readString(Paths.get(fileName));
-                    } catch (IOException e) {
-                        return "Error reading file: " + e.getMessage();
-                    }
-                }
+        private String readFileContents(String fileName) {
+            try {
+                return Files.readString(session.resolve(fileName));
+            } catch (IOException e) {
+                return "Error reading file: " + e.getMessage();
+            }
+        }
 
-        private String listDirectoryContents (String directoryName){
-                    File directory = new File(directoryName);
-                    String[] files = directory.list();
-                    if (files != null && files.length > 0) {
-                        return String.join("\n", files);
-                    }
-                    return "";
-                }
+        private String listDirectoryContents(String directoryName) throws IOException {
+            try (java.util.stream.Stream<Path> files = Files.list(session.resolve(directoryName))) {
+                return String.join("\n", files.map(file -> file.getFileName().toString()).toList());
+            }
+        }
 
         @Test
-        public void testPipeCommandWithHelp () {
-                    String input = "help";
-                    cmd.handlePipe(input);
-                    String helpOutput = cmd.help();
-                    assertNotNull(helpOutput);
-                    assertTrue(helpOutput.length() > 0);
-                }
-        @Test
-        public void testPipeCommandWithInvalidCommand () {
-                    String input = "mkdir testDir | invalidCommand";
-                    cmd.handlePipe(input); //"Unknown command in pipe: invalidcommand"
-                }
+        public void testPipeCommandWithHelp() {
+            String input = "help";
+            cmd.handlePipe(input);
+            String helpOutput = cmd.help();
+            assertNotNull(helpOutput);
+            assertTrue(helpOutput.length() > 0);
+        }
 
+        @Test
+        public void testPipeCommandWithInvalidCommand() {
+            String input = "mkdir testDir | invalidCommand";
+            cmd.handlePipe(input); //"Unknown command in pipe: invalidcommand"
+            assertTrue(Files.exists(session.cwd().resolve("testDir")));
+        }
     }
 }
@@ -0,0 +1,70 @@
+package org.os;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Looks at the runs of the sort, which the commands in cmdTest cannot see
+public class externalSortTest {
+
+    @Test
+    public void testSpillsRunsAndMergesThemInPasses() throws IOException {
+        List<String> lines = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            lines.add("line-" + random.nextInt(1_000_000));
+        }
+
+        List<String> sorted = new ArrayList<>();
+        try (externalSort sorter = new externalSort(Comparator.naturalOrder(), false, false, 128 * 1024)) {
+            for (String line : lines) {
+                sorter.add(line);
+            }
+            assertTrue(sorter.spilledRuns() > externalSort.MAX_FAN_IN,
+                    "Enough runs for more than one merge: " + sorter.spilledRuns());
+            sorter.writeTo(line -> sorted.add(line));
+            assertTrue(sorter.spilledRuns() <= externalSort.MAX_FAN_IN,
+                    "Merge passes leave few enough runs for the last merge: " + sorter.spilledRuns());
+        }
+
+        Collections.sort(lines);
+        assertEquals(lines, sorted);
+    }
+
+    @Test
+    public void testEqualKeysKeepInputOrderAcrossMergePasses() throws IOException {
+        List<String> lines = new ArrayList<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 100_000; i++) {
+            lines.add("key-" + random.nextInt(500) + ":" + i);
+        }
+        Comparator<String> byKey = Comparator.comparing(line -> line.substring(0, line.indexOf(':')));
+
+        // -u keeps the first line of every key, which only holds if the merges are stable
+        List<String> kept = new ArrayList<>();
+        try (externalSort sorter = new externalSort(byKey, false, true, 128 * 1024)) {
+            for (String line : lines) {
+                sorter.add(line);
+            }
+            assertTrue(sorter.spilledRuns() > externalSort.MAX_FAN_IN, "Runs: " + sorter.spilledRuns());
+            sorter.writeTo(line -> kept.add(line));
+        }
+
+        Map<String, String> first = new TreeMap<>();
+        for (String line : lines) {
+            first.putIfAbsent(line.substring(0, line.indexOf(':')), line);
+        }
+        List<String> expected = new ArrayList<>(first.values());
+        expected.sort(byKey);
+        assertEquals(expected, kept);
+    }
+}